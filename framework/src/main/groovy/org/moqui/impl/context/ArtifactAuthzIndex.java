@@ -0,0 +1,181 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.context;
+
+import org.moqui.context.ArtifactExecutionInfo;
+import org.moqui.context.ArtifactExecutionInfo.ArtifactType;
+import org.moqui.context.ArtifactExecutionInfo.AuthzAction;
+import org.moqui.entity.EntityList;
+import org.moqui.impl.context.ArtifactExecutionInfoImpl.ArtifactAuthzCheck;
+import org.moqui.impl.entity.EntityValueBase;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * ArtifactAuthzCheckView records for a set of user groups indexed by artifact type and exact name, with patterns
+ * compiled once. The matching records for each (type, action, name) are memoized so ArtifactExecutionFacadeImpl only
+ * needs to check filterMap, authzServiceName, and the artifact stack (which vary by call) for each push.
+ *
+ * Indexes are shared by all users with the same groups, see Registry. An index is built from the cached
+ * ArtifactAuthzCheckView lists and is replaced when the entity cache has a different list for any of its groups, which
+ * happens when ArtifactAuthz, ArtifactGroupMember, etc records change and the entity cache is cleared.
+ */
+public class ArtifactAuthzIndex {
+    protected final static Logger logger = LoggerFactory.getLogger(ArtifactAuthzIndex.class);
+    /** Max memoized (type, action, name) entries per index, mainly for REST paths with IDs in them */
+    public final static int maxMatchEntries = 20000;
+    private final static ArtifactAuthzCheck[] emptyChecks = new ArtifactAuthzCheck[0];
+
+    private static final class IndexEntry {
+        final int sequence;
+        final ArtifactAuthzCheck aacv;
+        final Pattern namePattern;
+        IndexEntry(int sequence, ArtifactAuthzCheck aacv) {
+            this.sequence = sequence;
+            this.aacv = aacv;
+            Pattern pattern = null;
+            if (aacv.nameIsPattern && aacv.artifactName != null) {
+                try { pattern = Pattern.compile(aacv.artifactName); }
+                catch (PatternSyntaxException e) { logger.warn("Invalid artifactName pattern in ArtifactGroupMember for group " + aacv.artifactGroupId + ": " + e.toString()); }
+            }
+            this.namePattern = pattern;
+        }
+        boolean actionMatches(AuthzAction action) { return ArtifactExecutionInfo.AUTHZA_ALL == aacv.authzAction || action == aacv.authzAction; }
+        boolean patternMatches(String name) {
+            // if the pattern didn't compile do the same as before so the error is not hidden
+            return namePattern != null ? namePattern.matcher(name).matches() : name.matches(aacv.artifactName);
+        }
+    }
+    private static final class TypeIndex {
+        final HashMap<String, ArrayList<IndexEntry>> byName = new HashMap<>();
+        final ArrayList<IndexEntry> patternList = new ArrayList<>();
+        final EnumMap<AuthzAction, ConcurrentHashMap<String, ArtifactAuthzCheck[]>> matchesByAction = new EnumMap<>(AuthzAction.class);
+        TypeIndex() { for (AuthzAction action : AuthzAction.values()) matchesByAction.put(action, new ConcurrentHashMap<>()); }
+    }
+
+    private final List<String> userGroupIdList;
+    private final ArrayList<EntityList> sourceLists;
+    private final EnumMap<ArtifactType, TypeIndex> typeIndexMap = new EnumMap<>(ArtifactType.class);
+    private final Registry registry;
+    private final LongAdder matchEntryCount = new LongAdder();
+
+    ArtifactAuthzIndex(List<String> userGroupIdList, ArrayList<EntityList> sourceLists, Registry registry) {
+        this.userGroupIdList = userGroupIdList;
+        this.sourceLists = sourceLists;
+        this.registry = registry;
+        int sequence = 0;
+        for (EntityList aacvList : sourceLists) {
+            int aacvListSize = aacvList.size();
+            for (int i = 0; i < aacvListSize; i++) {
+                ArtifactAuthzCheck aacv = new ArtifactAuthzCheck((EntityValueBase) aacvList.get(i));
+                if (aacv.artifactType == null) continue;
+                IndexEntry entry = new IndexEntry(sequence++, aacv);
+                TypeIndex typeIndex = typeIndexMap.computeIfAbsent(aacv.artifactType, k -> new TypeIndex());
+                if (aacv.nameIsPattern) typeIndex.patternList.add(entry);
+                else typeIndex.byName.computeIfAbsent(aacv.artifactName, k -> new ArrayList<>(2)).add(entry);
+            }
+        }
+    }
+
+    public List<String> getUserGroupIdList() { return userGroupIdList; }
+
+    /** Get authz records for the type, action, and name in the same order as the full list for the groups */
+    public ArtifactAuthzCheck[] getMatches(ArtifactType type, AuthzAction action, String name) {
+        TypeIndex typeIndex = typeIndexMap.get(type);
+        if (typeIndex == null || name == null) return emptyChecks;
+        ConcurrentHashMap<String, ArtifactAuthzCheck[]> matchesByName = typeIndex.matchesByAction.get(action);
+        ArtifactAuthzCheck[] matches = matchesByName.get(name);
+        if (matches != null) {
+            registry.hitCount.increment();
+            return matches;
+        }
+        registry.missCount.increment();
+
+        ArrayList<IndexEntry> entryList = new ArrayList<>();
+        ArrayList<IndexEntry> nameList = typeIndex.byName.get(name);
+        if (nameList != null) for (int i = 0; i < nameList.size(); i++) {
+            IndexEntry entry = nameList.get(i);
+            if (entry.actionMatches(action)) entryList.add(entry);
+        }
+        ArrayList<IndexEntry> patternList = typeIndex.patternList;
+        int patternListSize = patternList.size();
+        for (int i = 0; i < patternListSize; i++) {
+            IndexEntry entry = patternList.get(i);
+            if (entry.actionMatches(action) && entry.patternMatches(name)) entryList.add(entry);
+        }
+        int entryListSize = entryList.size();
+        if (entryListSize == 0) {
+            matches = emptyChecks;
+        } else {
+            if (nameList != null && patternListSize > 0) entryList.sort(Comparator.comparingInt(e -> e.sequence));
+            matches = new ArtifactAuthzCheck[entryListSize];
+            for (int i = 0; i < entryListSize; i++) matches[i] = entryList.get(i).aacv;
+        }
+
+        if (matchEntryCount.sum() < maxMatchEntries && matchesByName.putIfAbsent(name, matches) == null) matchEntryCount.increment();
+        return matches;
+    }
+
+    boolean isCurrent(ArrayList<EntityList> curLists) {
+        int size = sourceLists.size();
+        if (curLists.size() != size) return false;
+        for (int i = 0; i < size; i++) if (curLists.get(i) != sourceLists.get(i)) return false;
+        return true;
+    }
+
+    /** Shared indexes by user group set, one per ExecutionContextFactory */
+    public static class Registry {
+        private final ConcurrentHashMap<List<String>, ArtifactAuthzIndex> indexByGroups = new ConcurrentHashMap<>();
+        final LongAdder hitCount = new LongAdder(), missCount = new LongAdder(), buildCount = new LongAdder();
+
+        public ArtifactAuthzIndex getIndex(Set<String> userGroupIdSet, ExecutionContextImpl eci) {
+            // sort so the same groups always get the same index, and checks are always in the same order
+            ArrayList<String> groupIdList = new ArrayList<>(userGroupIdSet);
+            Collections.sort(groupIdList);
+            // get the list for each group separately to increase cache hits/efficiency
+            ArrayList<EntityList> curLists = new ArrayList<>(groupIdList.size());
+            for (String userGroupId : groupIdList) {
+                curLists.add(eci.getEntity().find("moqui.security.ArtifactAuthzCheckView")
+                        .condition("userGroupId", userGroupId).useCache(true).disableAuthz().list());
+            }
+
+            ArtifactAuthzIndex index = indexByGroups.get(groupIdList);
+            if (index != null && index.isCurrent(curLists)) return index;
+            index = new ArtifactAuthzIndex(Collections.unmodifiableList(groupIdList), curLists, this);
+            buildCount.increment();
+            indexByGroups.put(index.userGroupIdList, index);
+            return index;
+        }
+
+        public void clear() { indexByGroups.clear(); }
+
+        public long getHitCount() { return hitCount.sum(); }
+        public long getMissCount() { return missCount.sum(); }
+        public long getBuildCount() { return buildCount.sum(); }
+        public Map<String, Object> getStats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("indexCount", indexByGroups.size());
+            stats.put("hitCount", hitCount.sum());
+            stats.put("missCount", missCount.sum());
+            stats.put("buildCount", buildCount.sum());
+            return stats;
+        }
+    }
+}
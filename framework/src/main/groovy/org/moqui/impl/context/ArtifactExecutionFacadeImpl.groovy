@@ -32,7 +32,6 @@ import org.moqui.entity.EntityList
 import org.moqui.entity.EntityValue
 import org.moqui.impl.context.ArtifactExecutionInfoImpl.ArtifactAuthzCheck
 import org.moqui.impl.entity.EntityDefinition
-import org.moqui.impl.entity.EntityFacadeImpl
 import org.moqui.util.MNode
 
 import org.slf4j.Logger
@@ -316,29 +315,17 @@ class ArtifactExecutionFacadeImpl implements ArtifactExecutionFacade {
         // don't check authz for these queries, would cause infinite recursion
         boolean alreadyDisabled = disableAuthz()
         try {
-            // don't make a big condition for the DB to filter the list, or EntityList.filterByCondition from bigger
-            //     cached list, both are slower than manual iterate and check fields explicitly
-            ArrayList<ArtifactAuthzCheck> aacvList = new ArrayList<>()
-            ArrayList<ArtifactAuthzCheck> origAacvList = ufi.getArtifactAuthzCheckList()
-            int origAacvListSize = origAacvList.size()
-            for (int i = 0; i < origAacvListSize; i++) {
-                ArtifactAuthzCheck aacv = (ArtifactAuthzCheck) origAacvList.get(i)
-                if (artifactTypeEnum.is(aacv.artifactType) &&
-                        (ArtifactExecutionInfo.AUTHZA_ALL.is(aacv.authzAction) || aeii.internalActionEnum.is(aacv.authzAction)) &&
-                        (aacv.nameIsPattern || aeii.nameInternal.equals(aacv.artifactName))) {
-                    aacvList.add(aacv)
-                }
-            }
+            // matching records by type, action, and name come from the index (patterns pre-compiled, matches memoized)
+            //     so here just need to check what varies by call: filterMap, authz service, and ancestor deny
+            ArtifactAuthzCheck[] aacvArray = ufi.getArtifactAuthzIndex().getMatches(artifactTypeEnum, aeii.internalActionEnum, aeii.nameInternal)
 
             // if ((ArtifactExecutionInfo.AT_XML_SCREEN.is(artifactTypeEnum) || ArtifactExecutionInfo.AT_XML_SCREEN_TRANS.is(artifactTypeEnum)) && aeii.getName().contains("recordChange"))
-            //     logger.warn("TOREMOVE for aeii [${aeii}] artifact isPermitted\naacvList: ${aacvList}\norigAacvList: ${origAacvList.join("\n")}")
+            //     logger.warn("TOREMOVE for aeii [${aeii}] artifact isPermitted\naacvArray: ${aacvArray}")
 
-            int aacvListSize = aacvList.size()
-            for (int i = 0; i < aacvListSize; i++) {
-                ArtifactAuthzCheck aacv = (ArtifactAuthzCheck) aacvList.get(i)
+            int aacvArrayLength = aacvArray.length
+            for (int i = 0; i < aacvArrayLength; i++) {
+                ArtifactAuthzCheck aacv = aacvArray[i]
 
-                // check the name
-                if (aacv.nameIsPattern && !aeii.getName().matches(aacv.artifactName)) continue
                 // check the filterMap
                 if (aacv.filterMap != null && aeii.parameters != null) {
                     Map<String, Object> filterMapObj = (Map<String, Object>) eci.getResource().expression(aacv.filterMap, null)
@@ -477,68 +464,58 @@ class ArtifactExecutionFacadeImpl implements ArtifactExecutionFacade {
         boolean alreadyDisabled = disableAuthz()
         try {
             // record and check velocity limit (tarpit)
-            boolean recordHitTime = false
-            long lockForSeconds = 0L
-            long checkTime = System.currentTimeMillis()
-            // if (artifactTypeEnumId == "AT_XML_SCREEN")
-            //     logger.warn("TOREMOVE about to check tarpit [${tarpitKey}], userGroupIdSet=${userGroupIdSet}, artifactTarpitList=${artifactTarpitList}")
+            ArtifactTarpitLimiter limiter = ecfi.artifactTarpitLimiter
+            String artifactName = aeii.nameInternal
+            // find the tarpits for this artifact first so the hit window can hold enough hits for all of them
+            ArrayList<Map<String, Object>> matchList = (ArrayList<Map<String, Object>>) null
+            long maxHitsCountMax = 0L
+            int artifactTarpitCheckListSize = artifactTarpitCheckList.size()
+            for (int i = 0; i < artifactTarpitCheckListSize; i++) {
+                Map<String, Object> artifactTarpit = (Map<String, Object>) artifactTarpitCheckList.get(i)
+                if (!limiter.nameMatches(artifactTarpit, artifactName)) continue
+                if (matchList == null) matchList = new ArrayList<>()
+                matchList.add(artifactTarpit)
+                long maxHitsCount = artifactTarpit.maxHitsCount as long
+                if (maxHitsCount > maxHitsCountMax) maxHitsCountMax = maxHitsCount
+            }
+            if (matchList == null) return
 
             // see if there is a UserAccount for the username, and if so get its userId as a more permanent identifier
             String userId = ufi.getUserId()
             if (userId == null) userId = ""
+            String tarpitKey = ArtifactTarpitLimiter.makeKey(userId, artifactTypeEnum.name(), artifactName)
 
-            String tarpitKey = userId + '@' + artifactTypeEnum.name() + ':' + aeii.getName()
-            ArrayList<Long> hitTimeList = (ArrayList<Long>) null
-            int artifactTarpitCheckListSize = artifactTarpitCheckList.size()
-            for (int i = 0; i < artifactTarpitCheckListSize; i++) {
-                Map<String, Object> artifactTarpit = (Map<String, Object>) artifactTarpitCheckList.get(i)
-                if (('Y'.equals(artifactTarpit.nameIsPattern) &&
-                        aeii.nameInternal.matches((String) artifactTarpit.artifactName)) ||
-                        aeii.nameInternal.equals(artifactTarpit.artifactName)) {
-                    recordHitTime = true
-                    if (hitTimeList == null) hitTimeList = (ArrayList<Long>) eci.tarpitHitCache.get(tarpitKey)
-                    long maxHitsDuration = artifactTarpit.maxHitsDuration as long
-                    // count hits in this duration; start with 1 to count the current hit
-                    long hitsInDuration = 1L
-                    if (hitTimeList != null && hitTimeList.size() > 0) {
-                        // copy the list to avoid a ConcurrentModificationException
-                        // NOTE: a better approach to concurrency that won't ever miss hits would be better
-                        ArrayList<Long> hitTimeListCopy = new ArrayList<Long>(hitTimeList)
-                        for (int htlInd = 0; htlInd < hitTimeListCopy.size(); htlInd++) {
-                            Long hitTime = (Long) hitTimeListCopy.get(htlInd)
-                            if (hitTime != null && ((hitTime - checkTime) < maxHitsDuration)) hitsInDuration++
-                        }
-                    }
-                    // logger.warn("TOREMOVE artifact [${tarpitKey}], now has ${hitsInDuration} hits in ${maxHitsDuration} seconds")
-                    if (hitsInDuration > (artifactTarpit.maxHitsCount as long) && (artifactTarpit.tarpitDuration as long) > lockForSeconds) {
-                        lockForSeconds = artifactTarpit.tarpitDuration as long
-                        logger.warn("User [${userId}] exceeded ${artifactTarpit.maxHitsCount} in ${maxHitsDuration} seconds for artifact [${tarpitKey}], locking for ${lockForSeconds} seconds")
-                    }
+            long checkTime = System.currentTimeMillis()
+            ArtifactTarpitLimiter.HitWindow hitWindow = limiter.getHitWindow(eci.tarpitHitCache, tarpitKey, maxHitsCountMax + 1L)
+            long hitSeq = hitWindow.record(checkTime)
+
+            long lockForSeconds = 0L
+            int matchListSize = matchList.size()
+            for (int i = 0; i < matchListSize; i++) {
+                Map<String, Object> artifactTarpit = (Map<String, Object>) matchList.get(i)
+                long maxHitsCount = artifactTarpit.maxHitsCount as long
+                long maxHitsDuration = artifactTarpit.maxHitsDuration as long
+                long tarpitDuration = artifactTarpit.tarpitDuration as long
+                if (tarpitDuration > lockForSeconds && hitWindow.exceeded(hitSeq, checkTime, maxHitsCount, maxHitsDuration * 1000L)) {
+                    lockForSeconds = tarpitDuration
+                    logger.warn("User [${userId}] exceeded ${maxHitsCount} in ${maxHitsDuration} seconds for artifact [${tarpitKey}], locking for ${lockForSeconds} seconds")
                 }
             }
-            if (recordHitTime) {
-                if (hitTimeList == null) { hitTimeList = new ArrayList<Long>(); eci.tarpitHitCache.put(tarpitKey, hitTimeList) }
-                hitTimeList.add(System.currentTimeMillis())
-                // logger.warn("TOREMOVE recorded hit time for [${tarpitKey}], now has ${hitTimeList.size()} hits")
-
-                // check the ArtifactTarpitLock for the current artifact attempt before seeing if there is a new lock to create
-                // NOTE: this only runs if we are recording a hit time for an artifact, so no performance impact otherwise
-                EntityFacadeImpl efi = ecfi.entityFacade
-                EntityList tarpitLockList = efi.find('moqui.security.ArtifactTarpitLock')
-                        .condition([userId:userId, artifactName:aeii.getName(), artifactTypeEnumId:artifactTypeEnum.name()] as Map<String, Object>)
-                        .useCache(true).list()
-                        .filterByCondition(efi.getConditionFactory().makeCondition('releaseDateTime', ComparisonOperator.GREATER_THAN, ufi.getNowTimestamp()), true)
-                if (tarpitLockList.size() > 0) {
-                    Timestamp releaseDateTime = tarpitLockList.get(0).getTimestamp('releaseDateTime')
-                    int retryAfterSeconds = ((releaseDateTime.getTime() - System.currentTimeMillis())/1000).intValue()
-                    throw new ArtifactTarpitException("User ${userId} has accessed ${aeii.getTypeDescription()} ${aeii.getName()} too many times and may not again until ${eci.l10nFacade.format(releaseDateTime, 'yyyy-MM-dd HH:mm:ss')} (retry after ${retryAfterSeconds} seconds)".toString(), retryAfterSeconds)
-                }
+
+            // check the ArtifactTarpitLock for the current artifact attempt before seeing if there is a new lock to create
+            long releaseTime = limiter.getLockReleaseTime(tarpitKey, checkTime)
+            if (releaseTime > 0L) {
+                Timestamp releaseDateTime = new Timestamp(releaseTime)
+                int retryAfterSeconds = ((releaseTime - checkTime) / 1000L) as int
+                throw new ArtifactTarpitException("User ${userId} has accessed ${aeii.getTypeDescription()} ${aeii.getName()} too many times and may not again until ${eci.l10nFacade.format(releaseDateTime, 'yyyy-MM-dd HH:mm:ss')} (retry after ${retryAfterSeconds} seconds)".toString(), retryAfterSeconds)
             }
             // record the tarpit lock
             if (lockForSeconds > 0L) {
+                long lockReleaseTime = checkTime + lockForSeconds * 1000L
                 eci.getService().sync().name('create', 'moqui.security.ArtifactTarpitLock').parameters(
                         [userId:userId, artifactName:aeii.getName(), artifactTypeEnumId:artifactTypeEnum.name(),
-                         releaseDateTime:(new Timestamp(checkTime + ((lockForSeconds as BigDecimal) * 1000).intValue()))]).call()
+                         releaseDateTime:new Timestamp(lockReleaseTime)]).call()
+                limiter.addLock(tarpitKey, lockReleaseTime)
                 eci.tarpitHitCache.remove(tarpitKey)
             }
         } finally {
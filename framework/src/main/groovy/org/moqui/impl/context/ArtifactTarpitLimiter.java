@@ -0,0 +1,186 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.context;
+
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityList;
+import org.moqui.entity.EntityValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.cache.Cache;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Tarpit (velocity limit) support for ArtifactExecutionFacadeImpl.checkTarpit(): fixed size hit time ring buffers per
+ * user and artifact (in the artifact.tarpit.hits cache), compiled ArtifactTarpitCheckView name patterns, and an in
+ * memory table of ArtifactTarpitLock release times.
+ *
+ * The lock table is loaded from the database on first use and reloaded every lockReloadMillis so locks created on
+ * other servers or removed by an administrator are picked up. Locks created on this server are added right away.
+ */
+public class ArtifactTarpitLimiter {
+    protected final static Logger logger = LoggerFactory.getLogger(ArtifactTarpitLimiter.class);
+    /** Max hit times kept per user and artifact; for tarpits with a higher maxHitsCount hits in the duration are estimated */
+    public final static int maxWindowSize = 1024;
+    public final static long lockReloadMillis = 60000L;
+
+    /** Ring buffer of the most recent hit times for a user and artifact, updated without locking */
+    public static final class HitWindow {
+        private final AtomicLongArray hitTimes;
+        private final AtomicLong hitCount = new AtomicLong(0);
+        private final int size;
+        HitWindow(int size) { this.size = size; hitTimes = new AtomicLongArray(size); }
+        public int getSize() { return size; }
+        public long getHitCount() { return hitCount.get(); }
+
+        /** Record a hit, returns the sequence number of the hit to pass to exceeded() */
+        long record(long hitTime) {
+            long hitSeq = hitCount.getAndIncrement();
+            hitTimes.set((int) (hitSeq % size), hitTime);
+            return hitSeq;
+        }
+        /** Is there more than maxHitsCount hits, including the one at hitSeq, in the durationMillis before checkTime? */
+        boolean exceeded(long hitSeq, long checkTime, long maxHitsCount, long durationMillis) {
+            if (maxHitsCount < size) {
+                // the hit maxHitsCount before this one is within the duration if there are more than maxHitsCount hits
+                long priorSeq = hitSeq - maxHitsCount;
+                if (priorSeq < 0) return false;
+                return (checkTime - hitTimes.get((int) (priorSeq % size))) < durationMillis;
+            }
+            // more hits allowed than kept, estimate hits in the duration from the rate over the kept hits
+            long oldestSeq = hitSeq - size + 1;
+            if (oldestSeq < 0) return false;
+            long keptMillis = Math.max(1L, checkTime - hitTimes.get((int) (oldestSeq % size)));
+            if (keptMillis >= durationMillis) return false;
+            return ((double) size) * durationMillis / keptMillis > maxHitsCount;
+        }
+    }
+
+    private final ExecutionContextFactoryImpl ecfi;
+    private final ConcurrentHashMap<String, Pattern> patternByName = new ConcurrentHashMap<>();
+
+    private static final class LockInfo {
+        final long releaseTime, addedTime;
+        LockInfo(long releaseTime, long addedTime) { this.releaseTime = releaseTime; this.addedTime = addedTime; }
+    }
+    private volatile ConcurrentHashMap<String, LockInfo> lockByKey = new ConcurrentHashMap<>();
+    private final AtomicLong lockLoadTime = new AtomicLong(0);
+
+    public ArtifactTarpitLimiter(ExecutionContextFactoryImpl ecfi) { this.ecfi = ecfi; }
+
+    public static String makeKey(String userId, String artifactTypeEnumId, String artifactName) {
+        return userId + '@' + artifactTypeEnumId + ':' + artifactName;
+    }
+
+    /** Does the artifact name match the ArtifactTarpitCheckView record, with patterns compiled once */
+    public boolean nameMatches(Map<String, Object> artifactTarpit, String name) {
+        String artifactName = (String) artifactTarpit.get("artifactName");
+        if (artifactName == null) return false;
+        if (name.equals(artifactName)) return true;
+        if (!"Y".equals(artifactTarpit.get("nameIsPattern"))) return false;
+        Pattern pattern = patternByName.get(artifactName);
+        if (pattern == null) {
+            try { pattern = Pattern.compile(artifactName); }
+            catch (PatternSyntaxException e) {
+                // same as before, let the error through so it can be fixed
+                return name.matches(artifactName);
+            }
+            patternByName.putIfAbsent(artifactName, pattern);
+        }
+        return pattern.matcher(name).matches();
+    }
+
+    /** Get the HitWindow for the key, replacing it with a bigger one if minSize is more than the current size */
+    public HitWindow getHitWindow(Cache<String, HitWindow> hitCache, String tarpitKey, long minSize) {
+        int size = (int) Math.max(1L, Math.min(minSize, (long) maxWindowSize));
+        HitWindow hitWindow = hitCache.get(tarpitKey);
+        if (hitWindow != null && hitWindow.size >= size) return hitWindow;
+        HitWindow newWindow = new HitWindow(size);
+        if (hitWindow == null) {
+            if (hitCache.putIfAbsent(tarpitKey, newWindow)) return newWindow;
+            hitWindow = hitCache.get(tarpitKey);
+            return hitWindow != null ? hitWindow : newWindow;
+        }
+        // tarpit config changed (or user groups), start over with the bigger window
+        hitCache.put(tarpitKey, newWindow);
+        return newWindow;
+    }
+
+    /** Get the release time (epoch millis) of an active lock for the key, or 0 if there is none */
+    public long getLockReleaseTime(String tarpitKey, long nowTime) {
+        if (nowTime - lockLoadTime.get() > lockReloadMillis) reloadLocks(nowTime);
+        LockInfo lockInfo = lockByKey.get(tarpitKey);
+        if (lockInfo == null) return 0L;
+        if (lockInfo.releaseTime <= nowTime) {
+            lockByKey.remove(tarpitKey, lockInfo);
+            return 0L;
+        }
+        return lockInfo.releaseTime;
+    }
+    /** Add a lock created on this server; call after the ArtifactTarpitLock record is created */
+    public void addLock(String tarpitKey, long releaseTime) {
+        lockByKey.merge(tarpitKey, new LockInfo(releaseTime, System.currentTimeMillis()),
+                (oldInfo, newInfo) -> oldInfo.releaseTime >= newInfo.releaseTime ? oldInfo : newInfo);
+    }
+
+    private void reloadLocks(long nowTime) {
+        long lastLoadTime = lockLoadTime.get();
+        // only one thread reloads, others use the current table
+        if (nowTime - lastLoadTime <= lockReloadMillis || !lockLoadTime.compareAndSet(lastLoadTime, nowTime)) return;
+
+        ConcurrentHashMap<String, LockInfo> newLockByKey = new ConcurrentHashMap<>();
+        ExecutionContextImpl eci = ecfi.getEci();
+        boolean alreadyDisabled = eci.artifactExecutionFacade.disableAuthz();
+        try {
+            EntityList lockList = eci.getEntity().find("moqui.security.ArtifactTarpitLock")
+                    .condition("releaseDateTime", EntityCondition.ComparisonOperator.GREATER_THAN, new Timestamp(nowTime))
+                    .useCache(false).list();
+            int lockListSize = lockList.size();
+            for (int i = 0; i < lockListSize; i++) {
+                EntityValue lock = lockList.get(i);
+                String tarpitKey = makeKey(lock.getString("userId"), lock.getString("artifactTypeEnumId"), lock.getString("artifactName"));
+                long releaseTime = lock.getTimestamp("releaseDateTime").getTime();
+                newLockByKey.merge(tarpitKey, new LockInfo(releaseTime, 0L),
+                        (oldInfo, newInfo) -> oldInfo.releaseTime >= newInfo.releaseTime ? oldInfo : newInfo);
+            }
+        } catch (Throwable t) {
+            logger.warn("Error loading ArtifactTarpitLock records, using current locks: " + t.toString());
+            return;
+        } finally {
+            if (!alreadyDisabled) eci.artifactExecutionFacade.enableAuthz();
+        }
+
+        // keep locks added here since the last load, their records may not be committed yet
+        for (Map.Entry<String, LockInfo> entry : lockByKey.entrySet()) {
+            LockInfo lockInfo = entry.getValue();
+            if (lockInfo.addedTime >= lastLoadTime && lockInfo.releaseTime > nowTime)
+                newLockByKey.merge(entry.getKey(), lockInfo, (oldInfo, newInfo) -> oldInfo.releaseTime >= newInfo.releaseTime ? oldInfo : newInfo);
+        }
+        lockByKey = newLockByKey;
+    }
+
+    /** Clear the lock table so it is reloaded on the next check, for use after ArtifactTarpitLock records are removed */
+    public void clearLocks() {
+        lockByKey = new ConcurrentHashMap<>();
+        lockLoadTime.set(0);
+    }
+    public int getLockCount() { return lockByKey.size(); }
+}
@@ -15,11 +15,13 @@ package org.moqui.impl.context
 
 import groovy.transform.CompileStatic
 import org.moqui.jcache.MCache
+import org.moqui.jcache.MCacheBudget
 import org.moqui.jcache.MCacheConfiguration
 import org.moqui.jcache.MCacheManager
 import org.moqui.impl.tools.MCacheToolFactory
 import org.moqui.jcache.MEntry
 import org.moqui.jcache.MStats
+import org.moqui.jcache.MWeigher
 import org.moqui.util.CollectionUtilities
 import org.moqui.util.MNode
 import org.moqui.util.ObjectUtilities
@@ -54,6 +56,9 @@ public class CacheFacadeImpl implements CacheFacade {
     protected CacheManager distCacheManagerInternal = (CacheManager) null
 
     final ConcurrentMap<String, Cache> localCacheMap = new ConcurrentHashMap<>()
+    /** Heap budget shared by local caches, from cache-list.@max-memory; null if not configured */
+    protected final MCacheBudget cacheBudget
+    protected final MWeigher defaultWeigher = new ContextJavaUtil.CacheWeigher()
 
     CacheFacadeImpl(ExecutionContextFactoryImpl ecfi) {
         this.ecfi = ecfi
@@ -61,8 +66,18 @@ public class CacheFacadeImpl implements CacheFacade {
         MNode cacheListNode = ecfi.getConfXmlRoot().first("cache-list")
         String localCacheFactoryName = cacheListNode.attribute("local-factory") ?: MCacheToolFactory.TOOL_NAME
         localCacheManagerInternal = ecfi.getTool(localCacheFactoryName, CacheManager.class)
+
+        long budgetSize = MCacheBudget.parseMemorySize(cacheListNode.attribute("max-memory"))
+        if (budgetSize > 0) {
+            cacheBudget = new MCacheBudget(budgetSize)
+            logger.info("Local caches sharing heap budget of ${budgetSize} bytes")
+        } else {
+            cacheBudget = (MCacheBudget) null
+        }
     }
 
+    MCacheBudget getCacheBudget() { return cacheBudget }
+
     CacheManager getDistCacheManager() {
         if (distCacheManagerInternal == null) {
             MNode cacheListNode = ecfi.getConfXmlRoot().first("cache-list")
@@ -166,12 +181,12 @@ public class CacheFacadeImpl implements CacheFacade {
                 Long expireIdle = mc.getAccessDuration()?.durationAmount ?: 0
                 Long expireLive = mc.getCreationDuration()?.durationAmount ?: 0
                 ci.add([name:co.getName(), expireTimeIdle:expireIdle,
-                        expireTimeLive:expireLive, maxElements:mc.getMaxEntries(),
-                        evictionStrategy:"LRU", size:mc.size(),
+                        expireTimeLive:expireLive, maxElements:mc.getMaxEntries(), maxWeight:mc.getMaxWeight(), weight:mc.getWeight(),
+                        evictionStrategy:(mc.getMaxEntries() > 0 || mc.getMaxWeight() > 0 || mc.getBudget() != null ? "W-TinyLFU" : "none"), size:mc.size(),
                         getCount:stats.getCacheGets(), putCount:stats.getCachePuts(),
                         hitCount:stats.getCacheHits(), missCountTotal:stats.getCacheMisses(),
                         evictionCount:stats.getCacheEvictions(), removeCount:stats.getCacheRemovals(),
-                        expireCount:stats.getCacheExpires()] as Map<String, Object>)
+                        expireCount:stats.getCacheExpires(), admissionRejectCount:stats.getCacheAdmissionRejections()] as Map<String, Object>)
             } else {
                 logger.warn("Cannot get detailed info for cache ${cn} which is of type ${co.class.name}")
             }
@@ -237,6 +252,21 @@ public class CacheFacadeImpl implements CacheFacade {
                     mConf.setMaxEntries(maxElements)
                 }
 
+                // weight limits: max-weight in weigher units, max-memory in bytes (or percent of heap), use the lower if both
+                long maxWeight = cacheNode.attribute("max-weight") ? Long.parseLong(cacheNode.attribute("max-weight")) : 0L
+                long maxMemory = MCacheBudget.parseMemorySize(cacheNode.attribute("max-memory"))
+                if (maxMemory > 0 && (maxWeight == 0L || maxMemory < maxWeight)) maxWeight = maxMemory
+                boolean useBudget = cacheBudget != null && "local".equals(cacheType) && cacheNode.attribute("use-budget") != "false"
+                if (maxWeight > 0L || useBudget) {
+                    String weigherName = cacheNode.attribute("weigher")
+                    MWeigher weigher = weigherName ? (MWeigher) Thread.currentThread().getContextClassLoader()
+                            .loadClass(weigherName).getDeclaredConstructor().newInstance() : defaultWeigher
+                    mConf.setWeigher(weigher)
+                    mConf.setMaxWeight(maxWeight)
+                    if (useBudget) mConf.setBudget(cacheBudget)
+                    if (cacheNode.attribute("miss-cost")) mConf.setMissCost(Double.parseDouble(cacheNode.attribute("miss-cost")))
+                }
+
                 config = (Configuration) mConf
             /* TODO: somehow support external cache configuration like Hazelcast, through some sort of Moqui interface, maybe pass cacheNode to Cache factory?
                NOTE: this isn't all that important because we don't have a good use case for distributed caches, and they can be configured directly through hazelcast.xml or other Hazelcast conf
@@ -286,7 +316,15 @@ public class CacheFacadeImpl implements CacheFacade {
             }
 
             logger.info("Creating default ${defaultCacheType} cache ${cacheName}, storeByValue=${storeByValue}")
-            MutableConfiguration mutConfig = new MutableConfiguration()
+            MutableConfiguration mutConfig
+            if (cacheBudget != null && "local".equals(defaultCacheType) && cacheManager instanceof MCacheManager) {
+                // local caches with no configuration still count against the heap budget
+                MCacheConfiguration mConf = new MCacheConfiguration()
+                mConf.setWeigher(defaultWeigher).setBudget(cacheBudget)
+                mutConfig = mConf
+            } else {
+                mutConfig = new MutableConfiguration()
+            }
             mutConfig.setStoreByValue(storeByValue).setStatisticsEnabled(true)
             // any defaults we want here? better to use underlying defaults and conf file settings only
             newCache = cacheManager.createCache(cacheName, mutConfig)
@@ -15,7 +15,9 @@ package org.moqui.impl.context;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
@@ -25,12 +27,14 @@ import com.fasterxml.jackson.databind.ser.std.StdSerializer;
 import groovy.lang.GString;
 import org.codehaus.groovy.runtime.StringGroovyMethods;
 import org.jetbrains.annotations.NotNull;
+import org.moqui.BaseException;
 import org.moqui.context.ArtifactExecutionInfo;
 import org.moqui.entity.EntityFind;
 import org.moqui.entity.EntityList;
 import org.moqui.entity.EntityValue;
 import org.moqui.impl.entity.EntityValueBase;
 import org.moqui.impl.screen.ScreenRenderImpl;
+import org.moqui.jcache.MWeigher;
 import org.moqui.resource.ResourceReference;
 import org.moqui.util.ContextStack;
 import org.moqui.util.LiteStringMap;
@@ -41,6 +45,7 @@ import org.slf4j.LoggerFactory;
 import javax.transaction.Synchronization;
 import javax.transaction.Transaction;
 import javax.transaction.xa.XAResource;
+import java.io.Closeable;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
@@ -49,8 +54,7 @@ import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.*;
 
 public class ContextJavaUtil {
     protected final static Logger logger = LoggerFactory.getLogger(ContextJavaUtil.class);
@@ -109,48 +113,82 @@ public class ContextJavaUtil {
         }
     }
 
+    /** Stats for an artifact since start plus the current hit bin; updated concurrently from all request threads without locking */
     public static class ArtifactStatsInfo {
         private ArtifactExecutionInfo.ArtifactType artifactTypeEnum;
         private String artifactSubType;
         private String artifactName;
-        public ArtifactBinInfo curHitBin = null;
-        private long hitCount = 0L; // slowHitCount = 0L;
-        private double totalTimeMillis = 0, totalSquaredTime = 0;
+        private final AtomicReference<ArtifactBinInfo> curHitBinRef = new AtomicReference<>();
+        private final AtomicBoolean firstHitDone = new AtomicBoolean(false);
+        private final LongAdder hitCount = new LongAdder(); // slowHitCount = 0L;
+        private final DoubleAdder totalTimeMillis = new DoubleAdder(), totalSquaredTime = new DoubleAdder();
 
         ArtifactStatsInfo(ArtifactExecutionInfo.ArtifactType artifactTypeEnum, String artifactSubType, String artifactName) {
             this.artifactTypeEnum = artifactTypeEnum;
             this.artifactSubType = artifactSubType;
             this.artifactName = artifactName;
         }
-        double getAverage() { return hitCount > 0 ? totalTimeMillis / hitCount : 0; }
+        public ArtifactBinInfo getCurHitBin() { return curHitBinRef.get(); }
+        double getAverage() { long count = hitCount.sum(); return count > 0 ? totalTimeMillis.sum() / count : 0; }
         double getStdDev() {
-            if (hitCount < 2) return 0;
-            return Math.sqrt(Math.abs(totalSquaredTime - ((totalTimeMillis*totalTimeMillis) / hitCount)) / (hitCount - 1L));
+            long count = hitCount.sum();
+            if (count < 2) return 0;
+            double total = totalTimeMillis.sum();
+            return Math.sqrt(Math.abs(totalSquaredTime.sum() - ((total*total) / count)) / (count - 1L));
         }
         public boolean countHit(long startTime, double runningTime) {
-            hitCount++;
             boolean isSlow = isHitSlow(runningTime);
             // if (isSlow) slowHitCount++;
-            // do something funny with these so we get a better avg and std dev, leave out the first result (count 2nd
-            //     twice) if first hit is more than 2x the second because the first hit is almost always MUCH slower
-            if (hitCount == 2L && totalTimeMillis > (runningTime * 3)) {
-                totalTimeMillis = runningTime * 2;
-                totalSquaredTime = runningTime * runningTime * 2;
-            } else {
-                totalTimeMillis += runningTime;
-                totalSquaredTime += runningTime * runningTime;
+            // leave the first hit out of the since start stats used to find slow hits, the first hit is almost always
+            //     MUCH slower; it is still counted in the bin
+            if (firstHitDone.get() || !firstHitDone.compareAndSet(false, true)) {
+                hitCount.increment();
+                totalTimeMillis.add(runningTime);
+                totalSquaredTime.add(runningTime * runningTime);
             }
 
-            if (curHitBin == null) curHitBin = new ArtifactBinInfo(this, startTime);
+            ArtifactBinInfo curHitBin = curHitBinRef.get();
+            if (curHitBin == null) {
+                curHitBinRef.compareAndSet(null, new ArtifactBinInfo(this, startTime));
+                curHitBin = curHitBinRef.get();
+            }
             curHitBin.countHit(runningTime, isSlow);
 
             return isSlow;
         }
+        /** Since start and current bin stats with percentiles, for tool screens */
+        public Map<String, Object> makeStatsMap() {
+            Map<String, Object> statsMap = new LinkedHashMap<>();
+            statsMap.put("artifactType", artifactTypeEnum.name());
+            statsMap.put("artifactSubType", artifactSubType);
+            statsMap.put("artifactName", artifactName);
+            statsMap.put("hitCount", hitCount.sum());
+            statsMap.put("averageTimeMillis", getAverage());
+            statsMap.put("stdDevTimeMillis", getStdDev());
+            ArtifactBinInfo curHitBin = curHitBinRef.get();
+            if (curHitBin != null) {
+                statsMap.put("binStartDateTime", new Timestamp(curHitBin.startTime));
+                statsMap.put("binHitCount", curHitBin.getHitCount());
+                statsMap.put("binP50TimeMillis", curHitBin.getPercentile(50));
+                statsMap.put("binP95TimeMillis", curHitBin.getPercentile(95));
+                statsMap.put("binP99TimeMillis", curHitBin.getPercentile(99));
+            }
+            return statsMap;
+        }
+        /** If the current bin ended before startTime replace it with a new bin; returns the old bin to persist if
+         * replaced by this call, otherwise null (including when another thread replaced it) */
+        public ArtifactBinInfo advanceBin(long startTime, long binLengthMillis) {
+            ArtifactBinInfo curHitBin = curHitBinRef.get();
+            if (curHitBin == null || startTime <= (curHitBin.startTime + binLengthMillis)) return null;
+            return curHitBinRef.compareAndSet(curHitBin, new ArtifactBinInfo(this, startTime)) ? curHitBin : null;
+        }
         boolean isHitSlow(double runningTime) {
-            if (hitCount < checkSlowThreshold) return false;
+            long count = hitCount.sum();
+            if (count < checkSlowThreshold) return false;
             // calc new average and standard deviation
-            double average = hitCount > 0 ? totalTimeMillis / hitCount : 0;
-            double stdDev = Math.sqrt(Math.abs(totalSquaredTime - ((totalTimeMillis*totalTimeMillis) / hitCount)) / (hitCount - 1L));
+            double total = totalTimeMillis.sum();
+            double average = total / count;
+            double stdDev = Math.sqrt(Math.abs(totalSquaredTime.sum() - ((total*total) / count)) / (count - 1L));
 
             // if runningTime is more than 2.6 std devs from the avg, count it and possibly log it
             // using 2.6 standard deviations because 2 would give us around 5% of hits (normal distro), shooting for more like 1%
@@ -170,8 +208,11 @@ public class ContextJavaUtil {
         private final ArtifactStatsInfo statsInfo;
         public final long startTime;
 
-        private long hitCount = 0L, slowHitCount = 0L;
-        private double totalTimeMillis = 0, totalSquaredTime = 0, minTimeMillis = Long.MAX_VALUE, maxTimeMillis = 0;
+        private final LongAdder hitCount = new LongAdder(), slowHitCount = new LongAdder();
+        private final DoubleAdder totalTimeMillis = new DoubleAdder(), totalSquaredTime = new DoubleAdder();
+        private final DoubleAccumulator minTimeMillis = new DoubleAccumulator(Math::min, Double.MAX_VALUE),
+                maxTimeMillis = new DoubleAccumulator(Math::max, 0);
+        private final LatencyHistogram histogram = new LatencyHistogram();
 
         ArtifactBinInfo(ArtifactStatsInfo statsInfo, long startTime) {
             this.statsInfo = statsInfo;
@@ -179,35 +220,42 @@ public class ContextJavaUtil {
         }
 
         void countHit(double runningTime, boolean isSlow) {
-            hitCount++;
-            if (isSlow) slowHitCount++;
-
-            if (hitCount == 2L && totalTimeMillis > (runningTime * 3)) {
-                totalTimeMillis = runningTime * 2;
-                totalSquaredTime = runningTime * runningTime * 2;
-            } else {
-                totalTimeMillis += runningTime;
-                totalSquaredTime += runningTime * runningTime;
-            }
+            hitCount.increment();
+            if (isSlow) slowHitCount.increment();
+            totalTimeMillis.add(runningTime);
+            totalSquaredTime.add(runningTime * runningTime);
+            minTimeMillis.accumulate(runningTime);
+            maxTimeMillis.accumulate(runningTime);
+            histogram.record(runningTime);
+        }
 
-            if (runningTime < minTimeMillis) minTimeMillis = runningTime;
-            if (runningTime > maxTimeMillis) maxTimeMillis = runningTime;
+        public long getHitCount() { return hitCount.sum(); }
+        /** Running time in milliseconds at the percentile (0 to 100) from the histogram, within about 5% */
+        public double getPercentile(double percentile) {
+            double minTime = minTimeMillis.get(), maxTime = maxTimeMillis.get();
+            if (minTime > maxTime) return 0;
+            return Math.max(minTime, Math.min(maxTime, histogram.getPercentile(percentile)));
         }
 
         EntityValue makeAhbValue(ExecutionContextFactoryImpl ecfi, Timestamp binEndDateTime) {
+            double minTime = minTimeMillis.get();
+            if (minTime > maxTimeMillis.get()) minTime = 0;
             EntityValueBase ahb = (EntityValueBase) ecfi.entityFacade.makeValue("moqui.server.ArtifactHitBin");
             ahb.put("artifactType", statsInfo.artifactTypeEnum.name());
             ahb.put("artifactSubType", statsInfo.artifactSubType);
             ahb.put("artifactName", statsInfo.artifactName);
             ahb.put("binStartDateTime", new Timestamp(startTime));
             ahb.put("binEndDateTime", binEndDateTime);
-            ahb.put("hitCount", hitCount);
+            ahb.put("hitCount", hitCount.sum());
             // NOTE: use 6 digit precision for nanos in millisecond unit
-            ahb.put("totalTimeMillis", new BigDecimal(totalTimeMillis).setScale(6, RoundingMode.HALF_UP));
-            ahb.put("totalSquaredTime", new BigDecimal(totalSquaredTime).setScale(6, RoundingMode.HALF_UP));
-            ahb.put("minTimeMillis", new BigDecimal(minTimeMillis).setScale(6, RoundingMode.HALF_UP));
-            ahb.put("maxTimeMillis", new BigDecimal(maxTimeMillis).setScale(6, RoundingMode.HALF_UP));
-            ahb.put("slowHitCount", slowHitCount);
+            ahb.put("totalTimeMillis", new BigDecimal(totalTimeMillis.sum()).setScale(6, RoundingMode.HALF_UP));
+            ahb.put("totalSquaredTime", new BigDecimal(totalSquaredTime.sum()).setScale(6, RoundingMode.HALF_UP));
+            ahb.put("minTimeMillis", new BigDecimal(minTime).setScale(6, RoundingMode.HALF_UP));
+            ahb.put("maxTimeMillis", new BigDecimal(maxTimeMillis.get()).setScale(6, RoundingMode.HALF_UP));
+            ahb.put("p50TimeMillis", new BigDecimal(getPercentile(50)).setScale(6, RoundingMode.HALF_UP));
+            ahb.put("p95TimeMillis", new BigDecimal(getPercentile(95)).setScale(6, RoundingMode.HALF_UP));
+            ahb.put("p99TimeMillis", new BigDecimal(getPercentile(99)).setScale(6, RoundingMode.HALF_UP));
+            ahb.put("slowHitCount", slowHitCount.sum());
             ahb.put("serverIpAddress", ecfi.localhostAddress != null ? ecfi.localhostAddress.getHostAddress() : "127.0.0.1");
             ahb.put("serverHostName", ecfi.localhostAddress != null ? ecfi.localhostAddress.getHostName() : "localhost");
             return ahb;
@@ -215,6 +263,46 @@ public class ContextJavaUtil {
         }
     }
 
+    /**
+     * Fixed memory histogram of running times in milliseconds with log scale buckets, each 10% wider than the one
+     * before, from 0.01ms to over a day. Percentiles use the geometric middle of the bucket so are within about 5%.
+     */
+    public static class LatencyHistogram {
+        private static final double minValue = 0.01, growth = 1.1;
+        private static final double logGrowth = Math.log(growth);
+        public static final int bucketCount = (int) Math.ceil(Math.log(1.0E8 / minValue) / logGrowth) + 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+
+        static int bucketIndex(double value) {
+            if (value <= minValue) return 0;
+            int index = (int) Math.ceil(Math.log(value / minValue) / logGrowth);
+            return Math.min(Math.max(index, 0), bucketCount - 1);
+        }
+        static double bucketValue(int index) {
+            if (index == 0) return minValue;
+            return minValue * Math.pow(growth, index - 0.5);
+        }
+
+        public void record(double value) { counts.incrementAndGet(bucketIndex(value)); }
+        public long getCount() {
+            long total = 0;
+            for (int i = 0; i < bucketCount; i++) total += counts.get(i);
+            return total;
+        }
+        public double getPercentile(double percentile) {
+            long total = getCount();
+            if (total == 0) return 0;
+            long rank = Math.max(1L, (long) Math.ceil(total * (percentile / 100.0)));
+            long cumulative = 0;
+            for (int i = 0; i < bucketCount; i++) {
+                cumulative += counts.get(i);
+                if (cumulative >= rank) return bucketValue(i);
+            }
+            return bucketValue(bucketCount - 1);
+        }
+    }
+
     public static class ArtifactHitInfo {
         String visitId, userId;
         boolean isSlowHit;
@@ -466,24 +554,79 @@ public class ContextJavaUtil {
      * rollback, or destroy (when transactions are also cleaned up as a last resort).
      *
      * Connections are attached to 2 things: entity group and transaction.
+     *
+     * Because these connections live for the whole transaction they also keep an LRU cache of idle PreparedStatements,
+     * see prepareCachedStatement() and releaseStatement(), so the same SQL run many times in a transaction is only
+     * prepared once. Cached statements are closed when evicted and in closeInternal().
      */
     public static class ConnectionWrapper implements Connection {
         protected Connection con;
         TransactionFacadeImpl tfi;
         String groupName;
+        private final int statementCacheSize;
+        private LinkedHashMap<StatementKey, PreparedStatement> statementCache = null;
+        private long prepareCount = 0, reuseCount = 0;
 
         public ConnectionWrapper(Connection con, TransactionFacadeImpl tfi, String groupName) {
             this.con = con;
             this.tfi = tfi;
             this.groupName = groupName;
+            this.statementCacheSize = tfi != null ? tfi.getStatementCacheSize() : 0;
         }
 
         public String getGroupName() { return groupName; }
 
         public void closeInternal() throws SQLException {
+            closeCachedStatements();
             con.close();
         }
 
+        /** Get an idle cached PreparedStatement for the SQL and result set type/concurrency or prepare a new one. The
+         * statement is checked out of the cache until passed to releaseStatement(), if not released (like for an
+         * EntityListIterator) it is closed with the connection. */
+        public synchronized PreparedStatement prepareCachedStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+            if (statementCache != null) {
+                PreparedStatement ps = statementCache.remove(new StatementKey(sql, resultSetType, resultSetConcurrency));
+                if (ps != null) {
+                    if (!ps.isClosed()) { reuseCount++; return ps; }
+                }
+            }
+            prepareCount++;
+            return con.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+        /** Return a statement from prepareCachedStatement() to the cache, or close it if caching is disabled or the
+         * statement should not be reused (after an error) */
+        public synchronized void releaseStatement(String sql, int resultSetType, int resultSetConcurrency, PreparedStatement ps,
+                                                  boolean reusable) throws SQLException {
+            if (ps == null || ps.isClosed()) return;
+            if (!reusable || statementCacheSize <= 0 || con.isClosed()) { ps.close(); return; }
+            ps.clearParameters();
+            ps.clearWarnings();
+            if (statementCache == null) statementCache = new LinkedHashMap<StatementKey, PreparedStatement>(statementCacheSize * 4 / 3 + 1, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+                    if (size() <= statementCacheSize) return false;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+            PreparedStatement existing = statementCache.put(new StatementKey(sql, resultSetType, resultSetConcurrency), ps);
+            if (existing != null && existing != ps) closeQuietly(existing);
+        }
+        public synchronized void closeCachedStatements() {
+            if (statementCache == null) return;
+            for (PreparedStatement ps : statementCache.values()) closeQuietly(ps);
+            statementCache = null;
+        }
+        public synchronized int getCachedStatementCount() { return statementCache != null ? statementCache.size() : 0; }
+        /** Number of statements prepared on the underlying connection through prepareCachedStatement() */
+        public synchronized long getPrepareCount() { return prepareCount; }
+        /** Number of prepareCachedStatement() calls that got a cached statement */
+        public synchronized long getReuseCount() { return reuseCount; }
+        private void closeQuietly(PreparedStatement ps) {
+            try { ps.close(); }
+            catch (SQLException e) { logger.warn("Error closing cached statement for group " + groupName + ": " + e.toString()); }
+        }
+
         @Override public Statement createStatement() throws SQLException { return con.createStatement(); }
         @Override public PreparedStatement prepareStatement(String sql) throws SQLException { return con.prepareStatement(sql); }
         @Override public CallableStatement prepareCall(String sql) throws SQLException { return con.prepareCall(sql); }
@@ -575,6 +718,20 @@ public class ContextJavaUtil {
         protected void finalize() throws Throwable { con.finalize() }
         */
     }
+    static final class StatementKey {
+        final String sql;
+        final int resultSetType, resultSetConcurrency;
+        StatementKey(String sql, int resultSetType, int resultSetConcurrency) {
+            this.sql = sql; this.resultSetType = resultSetType; this.resultSetConcurrency = resultSetConcurrency;
+        }
+        @Override public int hashCode() { return (sql.hashCode() * 31 + resultSetType) * 31 + resultSetConcurrency; }
+        @Override public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof StatementKey)) return false;
+            StatementKey that = (StatementKey) obj;
+            return resultSetType == that.resultSetType && resultSetConcurrency == that.resultSetConcurrency && sql.equals(that.sql);
+        }
+    }
 
 
     public final static ObjectMapper jacksonMapper = new ObjectMapper()
@@ -590,6 +747,57 @@ public class ContextJavaUtil {
         module.addSerializer(ResourceReference.class, new ContextJavaUtil.ResourceReferenceJsonSerializer());
         jacksonMapper.registerModule(module);
     }
+
+    /** Lazy iterator over the elements of a JSON array, each element is parsed (into a Map, List, etc) when next() is
+     * called so only one element is in memory at a time. The parser must be positioned on the START_ARRAY token.
+     * Can only be iterated once, and the parser is closed when the end of the array is reached. */
+    public static class JsonArrayIterator implements Iterator<Object>, Closeable {
+        private final JsonParser parser;
+        private JsonToken nextToken = null;
+        private boolean done = false;
+        private int index = 0;
+        public JsonArrayIterator(JsonParser parser) {
+            if (parser.currentToken() != JsonToken.START_ARRAY)
+                throw new IllegalArgumentException("JSON parser not at start of array, at " + parser.currentToken());
+            this.parser = parser;
+        }
+        /** Number of elements returned so far */
+        public int getIndex() { return index; }
+
+        @Override public boolean hasNext() {
+            if (done) return false;
+            if (nextToken != null) return true;
+            try {
+                nextToken = parser.nextToken();
+            } catch (IOException e) {
+                close();
+                throw new BaseException("Error parsing JSON array element " + index + ": " + e.getMessage(), e);
+            }
+            if (nextToken == null || nextToken == JsonToken.END_ARRAY) {
+                close();
+                return false;
+            }
+            return true;
+        }
+        @Override public Object next() {
+            if (!hasNext()) throw new NoSuchElementException("No more elements in JSON array, read " + index);
+            nextToken = null;
+            try {
+                Object element = jacksonMapper.readValue(parser, Object.class);
+                index++;
+                return element;
+            } catch (IOException e) {
+                close();
+                throw new BaseException("Error parsing JSON array element " + index + ": " + e.getMessage(), e);
+            }
+        }
+        @Override public void close() {
+            done = true;
+            nextToken = null;
+            try { parser.close(); } catch (IOException e) { logger.warn("Error closing JSON array parser: " + e.toString()); }
+        }
+    }
+
     static class GStringJsonSerializer extends StdSerializer<GString> {
         GStringJsonSerializer() { super(GString.class); }
         @Override public void serialize(GString value, JsonGenerator gen, SerializerProvider serializers)
@@ -647,6 +855,25 @@ public class ContextJavaUtil {
         }
     }
 
+    /** Default weigher for local caches with max-weight or max-memory, estimates retained heap bytes of entity values
+     * and lists (EntityListImpl is weighed as a Collection, sampling values), Strings, byte[] and other simple values */
+    public static class CacheWeigher extends MWeigher.SimpleWeigher<Object, Object> {
+        @Override
+        public long estimate(Object value) {
+            if (value instanceof EntityValueBase) {
+                // field names are shared (interned), only count the value arrays and the values
+                LiteStringMap<Object> valueMap = ((EntityValueBase) value).getValueMap();
+                int size = valueMap.size();
+                long weight = 96 + 16L * size;
+                for (int i = 0; i < size; i++) weight += super.estimate(valueMap.getValue(i));
+                return weight;
+            }
+            if (value instanceof java.util.Date) return 32;
+            if (value instanceof BigDecimal) return 48;
+            return super.estimate(value);
+        }
+    }
+
     // NOTE: using unbound LinkedBlockingQueue, so max pool size in ThreadPoolExecutor has no effect
     public static class WorkerThreadFactory implements ThreadFactory {
         private final ThreadGroup workerGroup = new ThreadGroup("MoquiWorkers");
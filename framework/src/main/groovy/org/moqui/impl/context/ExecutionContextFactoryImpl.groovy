@@ -66,6 +66,7 @@ import java.lang.management.ManagementFactory
 import java.math.RoundingMode
 import java.sql.Timestamp
 import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ConcurrentLinkedQueue
 import java.util.concurrent.LinkedBlockingQueue
 import java.util.concurrent.ScheduledFuture
@@ -112,9 +113,13 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
     protected final Map<String, WebappInfo> webappInfoMap = new HashMap<>()
     protected final List<NotificationMessageListener> registeredNotificationMessageListeners = []
 
-    protected final Map<String, ArtifactStatsInfo> artifactStatsInfoByType = new HashMap<>()
+    protected final ConcurrentHashMap<String, ArtifactStatsInfo> artifactStatsInfoByType = new ConcurrentHashMap<>()
     public final Map<ArtifactType, Boolean> artifactTypeAuthzEnabled = new EnumMap<ArtifactType, Boolean>(ArtifactType.class)
     public final Map<ArtifactType, Boolean> artifactTypeTarpitEnabled = new EnumMap<ArtifactType, Boolean>(ArtifactType.class)
+    /** Authz records indexed by user group set, see ArtifactAuthzIndex */
+    public final ArtifactAuthzIndex.Registry artifactAuthzIndexRegistry = new ArtifactAuthzIndex.Registry()
+    /** Tarpit hit windows and lock table, see ArtifactTarpitLimiter */
+    public final ArtifactTarpitLimiter artifactTarpitLimiter = new ArtifactTarpitLimiter(this)
 
     protected String skipStatsCond
     protected long hitBinLengthMillis = 900000 // 15 minute default
@@ -619,6 +624,8 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
         // schedule DeferredHitInfoFlush (every 5 seconds, after 10 second init delay)
         DeferredHitInfoFlush dhif = new DeferredHitInfoFlush(this)
         this.scheduleAtFixedRate(dhif, 10, 5)
+        // schedule the DataFeed outbox dispatcher for feeds not done after commit
+        entityFacade.entityDataFeed.scheduleOutboxDispatcher()
 
         // all config loaded, save memory by clearing the parsed MNode cache, especially for production mode
         MNode.clearParsedNodeCache()
@@ -821,8 +828,9 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
         boolean enableAuthz = !aefi.disableAuthz()
         try {
             for (ArtifactStatsInfo asi in asiList) {
-                if (asi.curHitBin == null) continue
-                EntityValue ahb = asi.curHitBin.makeAhbValue(this, currentTimestamp)
+                ArtifactBinInfo curHitBin = asi.getCurHitBin()
+                if (curHitBin == null) continue
+                EntityValue ahb = curHitBin.makeAhbValue(this, currentTimestamp)
                 ahb.setSequencedIdPrimary().create()
             }
         } finally { if (enableAuthz) aefi.enableAuthz() }
@@ -1182,7 +1190,10 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
             JavaStats: [ GcCount:gcCount, GcTimeSeconds:gcTime/1000, JIT:jitMXBean.getName(), CompileTimeSeconds:jitMXBean.getTotalCompilationTime()/1000,
                     ClassesLoaded:classMXBean.getLoadedClassCount(), ClassesTotalLoaded:classMXBean.getTotalLoadedClassCount(),
                     ClassesUnloaded:classMXBean.getUnloadedClassCount(), ThreadCount:threadMXBean.getThreadCount(),
-                    PeakThreadCount:threadMXBean.getPeakThreadCount() ] as Map<String, Object>
+                    PeakThreadCount:threadMXBean.getPeakThreadCount() ] as Map<String, Object>,
+            ArtifactAuthzIndex: artifactAuthzIndexRegistry.getStats(),
+            DataFeedOutbox: entityFacade.entityDataFeed.getOutboxStats(),
+            AsyncServiceQueue: serviceFacade.asyncQueue.getStats()
             // because security: DataSources: entityFacade.getDataSourcesInfo()
         ] as Map<String, Object>
         if (includeSensitive) {
@@ -1206,6 +1217,13 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
         return infoList
     }
 
+    // called in tool screens, live stats for artifacts with hit bins enabled
+    List<Map<String, Object>> getArtifactStatsList() {
+        List<Map<String, Object>> statsList = new ArrayList<>(artifactStatsInfoByType.size())
+        for (ArtifactStatsInfo asi in artifactStatsInfoByType.values()) statsList.add(asi.makeStatsMap())
+        return statsList
+    }
+
     protected void checkSortDependentComponents() {
         // we have an issue here where not all dependencies are declared, most are implied by component load order
         // because of this not doing a full topological sort, just a single pass with dependencies inserted as needed
@@ -1484,17 +1502,16 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
             ArtifactStatsInfo statsInfo = (ArtifactStatsInfo) artifactStatsInfoByType.get(binKey)
             if (statsInfo == null) {
                 // consider seeding this from the DB using ArtifactHitReport to get all past data, or maybe not to better handle different servers/etc over time, etc
-                statsInfo = new ArtifactStatsInfo(artifactTypeEnum, artifactSubType, artifactName)
-                artifactStatsInfoByType.put(binKey, statsInfo)
+                ArtifactStatsInfo newStatsInfo = new ArtifactStatsInfo(artifactTypeEnum, artifactSubType, artifactName)
+                statsInfo = artifactStatsInfoByType.putIfAbsent(binKey, newStatsInfo)
+                if (statsInfo == null) statsInfo = newStatsInfo
             }
 
-            // has the current bin expired since the last hit record?
-            if (statsInfo.curHitBin != null) {
-                long binStartTime = statsInfo.curHitBin.startTime
-                if (startTime > (binStartTime + hitBinLengthMillis)) {
-                    if (isTraceEnabled) logger.trace("Advancing ArtifactHitBin [${artifactTypeEnum.name()}.${artifactSubType}:${artifactName}] current hit start [${new Timestamp(startTime)}], bin start [${new Timestamp(binStartTime)}] bin length ${hitBinLengthMillis/1000} seconds")
-                    advanceArtifactHitBin(getEci(), statsInfo, startTime, hitBinLengthMillis)
-                }
+            // has the current bin expired since the last hit record? only one thread gets the old bin to persist
+            ArtifactBinInfo expiredBin = statsInfo.advanceBin(startTime, hitBinLengthMillis)
+            if (expiredBin != null) {
+                if (isTraceEnabled) logger.trace("Advancing ArtifactHitBin [${artifactTypeEnum.name()}.${artifactSubType}:${artifactName}] current hit start [${new Timestamp(startTime)}], bin start [${new Timestamp(expiredBin.startTime)}] bin length ${hitBinLengthMillis/1000} seconds")
+                persistArtifactHitBin(getEci(), expiredBin, hitBinLengthMillis)
             }
 
             // handle stats since start
@@ -1580,28 +1597,15 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
         }
     }
 
-    protected synchronized void advanceArtifactHitBin(ExecutionContextImpl eci, ArtifactStatsInfo statsInfo,
-            long startTime, long hitBinLengthMillis) {
-        ArtifactBinInfo abi = statsInfo.curHitBin
-        if (abi == null) {
-            statsInfo.curHitBin = new ArtifactBinInfo(statsInfo, startTime)
-            return
-        }
-
-        // check the time again and return just in case something got in while waiting with the same type
-        long binStartTime = abi.startTime
-        if (startTime < (binStartTime + hitBinLengthMillis)) return
-
-        // otherwise, persist the old and create a new one
-        EntityValue ahb = abi.makeAhbValue(this, new Timestamp(binStartTime + hitBinLengthMillis))
+    protected void persistArtifactHitBin(ExecutionContextImpl eci, ArtifactBinInfo abi, long hitBinLengthMillis) {
+        // create in a worker thread, also gives hits that got the old bin just before it was replaced time to count
         eci.runInWorkerThread({
+            EntityValue ahb = abi.makeAhbValue(this, new Timestamp(abi.startTime + hitBinLengthMillis))
             ArtifactExecutionFacadeImpl aefi = getEci().artifactExecutionFacade
             boolean enableAuthz = !aefi.disableAuthz()
             try { ahb.setSequencedIdPrimary().create() }
             finally { if (enableAuthz) aefi.enableAuthz() }
         })
-
-        statsInfo.curHitBin = new ArtifactBinInfo(statsInfo, startTime)
     }
 
     // ========================================================
@@ -1817,6 +1821,8 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
         boolean httpsEnabled
         boolean requireSessionToken
         String clientIpHeader
+        long requestJsonStreamSize
+        ArrayList<String> requestJsonStreamPaths = new ArrayList<>()
 
         WebappInfo(String webappName, ExecutionContextFactoryImpl ecfi) {
             this.webappName = webappName
@@ -1832,6 +1838,11 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
             requireSessionToken = !"false".equals(webappNode.attribute("require-session-token"))
             clientIpHeader = webappNode.attribute("client-ip-header")
 
+            String jsonStreamSizeStr = webappNode.attribute("request-json-stream-size")
+            requestJsonStreamSize = jsonStreamSizeStr ? (jsonStreamSizeStr as long) : 0L
+            String jsonStreamPaths = webappNode.attribute("request-json-stream-paths")
+            if (jsonStreamPaths) for (String path in jsonStreamPaths.split(",")) if (path.trim()) requestJsonStreamPaths.add(path.trim())
+
             String allowOrigins = webappNode.attribute("allow-origins")
             if (allowOrigins) for (String origin in allowOrigins.split(",")) allowOriginSet.add(origin.trim().toLowerCase())
 
@@ -1871,6 +1882,19 @@ class ExecutionContextFactoryImpl implements ExecutionContextFactory {
             }
         }
 
+        /** Parse a JSON request body from the stream instead of reading the full body text? */
+        boolean isRequestJsonStream(HttpServletRequest request) {
+            if (requestJsonStreamPaths.size() > 0) {
+                String path = request.getServletPath() + (request.getPathInfo() ?: "")
+                for (int i = 0; i < requestJsonStreamPaths.size(); i++) if (path.startsWith(requestJsonStreamPaths.get(i))) return true
+            }
+            // not streamed by size unless configured, body text may be needed (like for system messages)
+            if (requestJsonStreamSize <= 0L) return false
+            long contentLength = request.getContentLengthLong()
+            // unknown length (chunked) only streamed by path
+            return contentLength >= 0L && contentLength >= requestJsonStreamSize
+        }
+
         MNode getErrorScreenNode(String error) {
             return webappNode.first({ MNode it -> it.name == "error-screen" && it.attribute("error") == error })
         }
@@ -65,7 +65,7 @@ public class ExecutionContextImpl implements ExecutionContext {
 
     private Boolean skipStats = null;
     private Cache<String, String> l10nMessageCache;
-    private Cache<String, ArrayList> tarpitHitCache;
+    private Cache<String, ArtifactTarpitLimiter.HitWindow> tarpitHitCache;
 
     public String forThreadName;
     public long forThreadId;
@@ -111,7 +111,7 @@ public class ExecutionContextImpl implements ExecutionContext {
         l10nMessageCache = cacheFacade.getCache("l10n.message");
     }
     Cache<String, String> getL10nMessageCache() { return l10nMessageCache; }
-    public Cache<String, ArrayList> getTarpitHitCache() { return tarpitHitCache; }
+    public Cache<String, ArtifactTarpitLimiter.HitWindow> getTarpitHitCache() { return tarpitHitCache; }
 
     @Override public @Nonnull ExecutionContextFactory getFactory() { return ecfi; }
 
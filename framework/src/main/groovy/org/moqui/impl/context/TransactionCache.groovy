@@ -17,6 +17,7 @@ import groovy.transform.CompileStatic
 import org.moqui.entity.EntityCondition
 import org.moqui.entity.EntityException
 import org.moqui.entity.EntityValue
+import org.moqui.impl.entity.EntityBatchWriter
 import org.moqui.impl.entity.EntityDefinition
 import org.moqui.impl.entity.EntityFacadeImpl
 import org.moqui.impl.entity.EntityFindBase
@@ -31,7 +32,6 @@ import org.slf4j.LoggerFactory
 
 import javax.transaction.Synchronization
 import javax.transaction.xa.XAException
-import java.sql.Connection
 
 /** This is a per-transaction cache that basically pretends to be the database for the scope of the transaction.
  * Test your code well when using this as it doesn't support everything.
@@ -440,40 +440,31 @@ class TransactionCache implements Synchronization {
     }
 
     void flushCache(boolean clearRead) {
-        Map<String, Connection> connectionByGroup = new HashMap<>()
+        EntityBatchWriter batchWriter = (EntityBatchWriter) null
         try {
             int writeInfoListSize = writeInfoList.size()
             if (writeInfoListSize > 0) {
                 // logger.error("Tx cache flush at", new BaseException("txc flush"))
                 EntityFacadeImpl efi = ecfi.entityFacade
+                // consecutive writes with the same entity, operation, and fields are done in a JDBC batch; order is
+                //     not changed so records are still written in the order needed for FKs
+                batchWriter = new EntityBatchWriter(efi, efi.jdbcBatchSize)
 
                 long startTime = System.currentTimeMillis()
-                int createCount = 0
-                int updateCount = 0
-                int deleteCount = 0
                 // for (EntityWriteInfo ewi in writeInfoList) logger.warn("===== TX Cache value to ${ewi.writeMode} ${ewi.evb.getEntityName()}: \n${ewi.evb}")
                 if (readOnly && writeInfoListSize > 0) logger.warn("Read only TX cache has ${writeInfoListSize} values to write")
                 for (int i = 0; i < writeInfoListSize; i++) {
                     EntityWriteInfo ewi = (EntityWriteInfo) writeInfoList.get(i)
-                    String groupName = ewi.evb.getEntityDefinition().getEntityGroupName()
-                    Connection con = connectionByGroup.get(groupName)
-                    if (con == null) {
-                        con = efi.getConnection(groupName)
-                        connectionByGroup.put(groupName, con)
-                    }
-
                     if (ewi.writeMode.is(WriteMode.CREATE)) {
-                        ewi.evb.basicCreate(con)
-                        createCount++
+                        batchWriter.addCreate(ewi.evb)
                     } else if (ewi.writeMode.is(WriteMode.DELETE)) {
-                        ewi.evb.deleteExtended(con)
-                        deleteCount++
+                        batchWriter.addDelete(ewi.evb)
                     } else {
-                        ewi.evb.basicUpdate(con)
-                        updateCount++
+                        batchWriter.addUpdate(ewi.evb)
                     }
                 }
-                if (logger.isDebugEnabled()) logger.debug("Flushed TransactionCache in ${System.currentTimeMillis() - startTime}ms: ${createCount} creates, ${updateCount} updates, ${deleteCount} deletes, ${readOneCache.size()} read entries, ${readListCache.size()} entities with list cache")
+                batchWriter.flush()
+                if (logger.isDebugEnabled()) logger.debug("Flushed TransactionCache in ${System.currentTimeMillis() - startTime}ms: ${batchWriter.insertCount} creates, ${batchWriter.updateCount} updates, ${batchWriter.deleteCount} deletes in ${batchWriter.batchCount} batches (${batchWriter.fallbackCount} retried by row), ${readOneCache.size()} read entries, ${readListCache.size()} entities with list cache")
             }
 
             writeInfoList.clear()
@@ -491,7 +482,7 @@ class TransactionCache implements Synchronization {
             throw new XAException("Error writing values from TransactionCache: + ${t.toString()}")
         } finally {
             // now close connections
-            for (Connection con in connectionByGroup.values()) con.close()
+            if (batchWriter != null) batchWriter.close()
         }
     }
 
@@ -52,6 +52,7 @@ class TransactionFacadeImpl implements TransactionFacade {
     protected boolean useConnectionStash = true
     protected boolean useLockTrack = false
     protected boolean useStatementTimeout = false
+    protected int statementCacheSize = 50
 
     private ThreadLocal<TxStackInfo> txStackInfoCurThread = new ThreadLocal<TxStackInfo>()
     private ThreadLocal<LinkedList<TxStackInfo>> txStackInfoListThread = new ThreadLocal<LinkedList<TxStackInfo>>()
@@ -86,6 +87,8 @@ class TransactionFacadeImpl implements TransactionFacade {
 
         if (transactionFacadeNode.attribute("use-transaction-cache") == "false") useTransactionCache = false
         if (transactionFacadeNode.attribute("use-connection-stash") == "false") useConnectionStash = false
+        String statementCacheSizeAttr = transactionFacadeNode.attribute("statement-cache-size")
+        if (statementCacheSizeAttr) statementCacheSize = statementCacheSizeAttr as int
     }
 
     void destroy() {
@@ -129,6 +132,8 @@ class TransactionFacadeImpl implements TransactionFacade {
 
     boolean getUseLockTrack() { return useLockTrack }
     boolean getUseStatementTimeout() { return useStatementTimeout }
+    /** Max idle PreparedStatements cached per stashed transaction connection, 0 to disable */
+    int getStatementCacheSize() { return statementCacheSize }
 
     TransactionInternal getTransactionInternal() { return transactionInternal }
     TransactionManager getTransactionManager() { return tm }
@@ -897,6 +897,13 @@ class UserFacadeImpl implements UserFacade {
         return currentInfo.internalArtifactAuthzCheckList
     }
 
+    /** Authz records for the current user's groups, see ArtifactAuthzIndex; same index for the life of this UserInfo */
+    ArtifactAuthzIndex getArtifactAuthzIndex() {
+        if (currentInfo.internalArtifactAuthzIndex == null)
+            currentInfo.internalArtifactAuthzIndex = eci.ecfi.artifactAuthzIndexRegistry.getIndex(getUserGroupIdSet(), eci)
+        return currentInfo.internalArtifactAuthzIndex
+    }
+
     @Override String getUserId() { return currentInfo.userId }
     @Override String getUsername() { return currentInfo.username }
     @Override EntityValue getUserAccount() { return currentInfo.getUserAccount() }
@@ -1026,6 +1033,7 @@ class UserFacadeImpl implements UserFacade {
         final EnumMap<ArtifactExecutionInfo.ArtifactType, ArrayList<Map<String, Object>>> internalArtifactTarpitCheckListMap =
                 new EnumMap<ArtifactExecutionInfo.ArtifactType, ArrayList<Map<String, Object>>>(ArtifactExecutionInfo.ArtifactType.class)
         ArrayList<ArtifactAuthzCheck> internalArtifactAuthzCheckList = (ArrayList<ArtifactAuthzCheck>) null
+        ArtifactAuthzIndex internalArtifactAuthzIndex = (ArtifactAuthzIndex) null
 
         Locale localeCache = (Locale) null
         TimeZone tzCache = (TimeZone) null
@@ -1085,6 +1093,7 @@ class UserFacadeImpl implements UserFacade {
             internalUserGroupIdSet = (Set<String>) null
             internalArtifactTarpitCheckListMap.clear()
             internalArtifactAuthzCheckList = (ArrayList<ArtifactAuthzCheck>) null
+            internalArtifactAuthzIndex = (ArtifactAuthzIndex) null
         }
 
         String getUsername() { return username }
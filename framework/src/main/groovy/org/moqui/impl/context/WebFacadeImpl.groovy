@@ -14,7 +14,8 @@
 package org.moqui.impl.context
 
 import com.fasterxml.jackson.core.io.JsonStringEncoder
-import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
 import groovy.transform.CompileStatic
 
 import org.apache.commons.fileupload.FileItem
@@ -125,7 +126,11 @@ class WebFacadeImpl implements WebFacade {
 
         // if there is a JSON document submitted consider those as parameters too
         String contentType = request.getHeader("Content-Type")
-        if (ResourceReference.isTextContentType(contentType)) {
+        boolean isJsonContent = contentType != null && (contentType.contains("application/json") || contentType.contains("text/json"))
+        if (isJsonContent && eci.ecfi.getWebappInfo(webappMoquiName).isRequestJsonStream(request)) {
+            // large body or configured path, parse from the stream without keeping the body text
+            parseRequestJsonStream(request.getReader())
+        } else if (ResourceReference.isTextContentType(contentType)) {
             // read the body first to make sure it isn't empty, better support clients that pass a Content-Type but no content (even though they shouldn't)
             BufferedReader reader = request.getReader()
             StringBuilderWriter bodyBuilder = new StringBuilderWriter()
@@ -137,13 +142,14 @@ class WebFacadeImpl implements WebFacade {
                 multiPartParameters = new HashMap()
                 multiPartParameters.put("_requestBodyText", bodyString)
 
-                if ((contentType.contains("application/json") || contentType.contains("text/json"))) {
+                if (isJsonContent && !bodyString.isBlank()) {
                     try {
-                        JsonNode jsonNode = ContextJavaUtil.jacksonMapper.readTree(bodyString)
-                        if (jsonNode.isObject()) {
-                            jsonParameters = ContextJavaUtil.jacksonMapper.treeToValue(jsonNode, Map.class)
-                        } else if (jsonNode.isArray()) {
-                            jsonParameters = [_requestBodyJsonList:ContextJavaUtil.jacksonMapper.treeToValue(jsonNode, List.class)] as Map<String, Object>
+                        // parse directly to Map or List, no intermediate JsonNode tree
+                        Object jsonObj = ContextJavaUtil.jacksonMapper.readValue(bodyString, Object.class)
+                        if (jsonObj instanceof Map) {
+                            jsonParameters = (Map<String, Object>) jsonObj
+                        } else if (jsonObj instanceof List) {
+                            jsonParameters = [_requestBodyJsonList:jsonObj] as Map<String, Object>
                         }
                     } catch (Throwable t) {
                         logger.error("Error parsing HTTP request body JSON: ${t.toString()}", t)
@@ -479,6 +485,32 @@ class WebFacadeImpl implements WebFacade {
         return pathList
     }
 
+    /** Parse a JSON request body directly into jsonParameters; an array is not parsed here, _requestBodyJsonList is a
+     * ContextJavaUtil.JsonArrayIterator that parses each element as it is consumed (and can only be iterated once) */
+    protected void parseRequestJsonStream(BufferedReader reader) {
+        if (reader == null) return
+        JsonParser parser = (JsonParser) null
+        try {
+            parser = ContextJavaUtil.jacksonMapper.getFactory().createParser(reader)
+            JsonToken firstToken = parser.nextToken()
+            if (firstToken == JsonToken.START_OBJECT) {
+                jsonParameters = (Map<String, Object>) ContextJavaUtil.jacksonMapper.readValue(parser, Map.class)
+            } else if (firstToken == JsonToken.START_ARRAY) {
+                jsonParameters = [_requestBodyJsonList:new ContextJavaUtil.JsonArrayIterator(parser)] as Map<String, Object>
+                // closed by the iterator when the end of the array is reached, or by the servlet container
+                parser = (JsonParser) null
+            }
+            // otherwise empty body or a scalar value, ignored like when reading the body text
+        } catch (Throwable t) {
+            logger.error("Error parsing HTTP request body JSON stream: ${t.toString()}", t)
+            jsonParameters = [_requestBodyJsonParseError:t.getMessage()] as Map<String, Object>
+        } finally {
+            if (parser != null) {
+                try { parser.close() } catch (IOException e) { logger.warn("Error closing request body JSON parser: ${e.toString()}") }
+            }
+        }
+    }
+
     @Override String getRequestBodyText() { return requestBodyText }
     @Override String getResourceDistinctValue() {
         return eci.ecfi.initStartHex
@@ -1070,7 +1102,10 @@ class WebFacadeImpl implements WebFacade {
                     eci.contextStack.push(parmStack)
 
                     RestApi.RestResult restResult = eci.serviceFacade.restApi.run(extraPathNameList, eci)
-                    responseList.add(restResult.responseObj ?: [:])
+                    Object responseObj = restResult.responseObj
+                    // combined batch responses can't be streamed, read all rows
+                    if (responseObj instanceof RestApi.EntityListStream) responseObj = ((RestApi.EntityListStream) responseObj).readAll()
+                    responseList.add(responseObj ?: [:])
 
                     eci.contextStack.pop()
                     parmStack.pop()
@@ -1098,6 +1133,9 @@ class WebFacadeImpl implements WebFacade {
                     String errorsString = eci.message.errorsString
                     logger.warn((String) "Error message from Service REST API (400): " + errorsString)
                     sendJsonError(HttpServletResponse.SC_BAD_REQUEST, errorsString, null)
+                } else if (restResult.responseObj instanceof RestApi.EntityListStream) {
+                    // write rows as they are read, chunked with no content length
+                    ((RestApi.EntityListStream) restResult.responseObj).write(response)
                 } else {
                     // NOTE: This will always respond with 200 OK, consider using 201 Created (for successful POST, create PUT)
                     //     and 204 No Content (for DELETE and other when no content is returned)
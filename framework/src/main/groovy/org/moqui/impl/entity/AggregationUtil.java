@@ -71,6 +71,13 @@ public class AggregationUtil {
         }
     }
 
+    /** True if there are no group by or total fields so each row is processed on its own and a list can be aggregated in parts */
+    public boolean isRowIndependent() {
+        if (groupFields != null && groupFields.length > 0) return false;
+        for (int i = 0; i < aggregateFields.length; i++) if (aggregateFields[i].showTotal != null) return false;
+        return true;
+    }
+
 
     @SuppressWarnings("unchecked")
     public ArrayList<Map<String, Object>> aggregateList(Object listObj, Set<String> includeFields, boolean makeSubList, ExecutionContextImpl eci) {
@@ -0,0 +1,407 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.entity.EntityException;
+import org.moqui.entity.EntityValue;
+import org.moqui.impl.context.TransactionFacadeImpl;
+import org.moqui.util.LiteStringMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Writes entity values with JDBC batches: consecutive inserts, updates or deletes with the same entity and field set
+ * share one PreparedStatement and are sent with addBatch()/executeBatch() in chunks of batchSize. Writes are never
+ * reordered here, a different entity, operation or field set just ends the current batch.
+ *
+ * If a batch fails and a savepoint could be set before it the batch is rolled back to the savepoint and run again one
+ * row at a time so the error is reported for the row that caused it. Without a savepoint the failed row is found from
+ * BatchUpdateException.getUpdateCounts() if the driver supports it.
+ */
+public class EntityBatchWriter {
+    protected final static Logger logger = LoggerFactory.getLogger(EntityBatchWriter.class);
+
+    public final EntityFacadeImpl efi;
+    public final int batchSize;
+    private final HashMap<String, Connection> connectionByGroup = new HashMap<>();
+
+    public enum WriteOp { INSERT, UPDATE, DELETE }
+
+    private EntityDefinition curEd = null;
+    private WriteOp curOp = null;
+    private FieldInfo[] curFieldArray = null;
+    private final ArrayList<EntityValueBase> curValueList;
+
+    private int batchCount = 0, rowCount = 0, fallbackCount = 0;
+    private int insertCount = 0, updateCount = 0, deleteCount = 0;
+
+    public EntityBatchWriter(EntityFacadeImpl efi, int batchSize) {
+        this.efi = efi;
+        this.batchSize = batchSize > 0 ? batchSize : 1;
+        curValueList = new ArrayList<>(this.batchSize);
+    }
+
+    public int getBatchCount() { return batchCount; }
+    public int getRowCount() { return rowCount; }
+    public int getFallbackCount() { return fallbackCount; }
+    public int getInsertCount() { return insertCount; }
+    public int getUpdateCount() { return updateCount; }
+    public int getDeleteCount() { return deleteCount; }
+
+    /**
+     * Create all values running the same logic as EntityValue.create() for each (authz, EECA rules, data feed, cache
+     * clear, audit log) with the inserts done in batches. Values are handled in chunks of batchSize: the before part
+     * for each value in the chunk, then the inserts, then the after part for each value.
+     *
+     * Within a run of consecutive values for the same entity values are grouped by field set unless the entity has a
+     * relationship to itself (parent records must be inserted first), order across entities is not changed.
+     */
+    public void createAll(List<? extends EntityValue> valueList) {
+        if (valueList == null) return;
+        int valueListSize = valueList.size();
+        ArrayList<EntityValueBase> chunkList = new ArrayList<>(Math.min(valueListSize, batchSize));
+        try {
+            for (int i = 0; i < valueListSize; i++) {
+                EntityValue ev = valueList.get(i);
+                if (!(ev instanceof EntityValueBase) || ((EntityValueBase) ev).getEntityDefinition().isViewEntity) {
+                    // not something we can batch, create now after anything already in the chunk
+                    createChunk(chunkList);
+                    ev.create();
+                    continue;
+                }
+                chunkList.add((EntityValueBase) ev);
+                if (chunkList.size() >= batchSize) createChunk(chunkList);
+            }
+            createChunk(chunkList);
+        } finally {
+            close();
+        }
+        if (logger.isDebugEnabled()) logger.debug("Bulk created " + rowCount + " records in " + batchCount + " batches (" + fallbackCount + " batches retried by row)");
+    }
+
+    private void createChunk(ArrayList<EntityValueBase> chunkList) {
+        int chunkSize = chunkList.size();
+        if (chunkSize == 0) return;
+
+        ArrayList<EntityValueBase> insertList = new ArrayList<>(chunkSize);
+        for (int i = 0; i < chunkSize; i++) {
+            EntityValueBase evb = chunkList.get(i);
+            if (evb.createBulkBefore()) insertList.add(evb);
+        }
+
+        ArrayList<EntityValueBase> orderedList = groupByFieldSet(insertList);
+        int orderedSize = orderedList.size();
+        try {
+            for (int i = 0; i < orderedSize; i++) {
+                EntityValueBase evb = orderedList.get(i);
+                addCreate(evb);
+            }
+            flush();
+        } catch (SQLException e) {
+            throw new EntitySqlException("Error in bulk create: " + e.toString(), e);
+        }
+
+        for (int i = 0; i < chunkSize; i++) chunkList.get(i).createBulkAfter();
+        chunkList.clear();
+    }
+
+    /** Stable reorder of each run of values for the same entity so values with the same field set are together */
+    private static ArrayList<EntityValueBase> groupByFieldSet(ArrayList<EntityValueBase> valueList) {
+        int valueListSize = valueList.size();
+        ArrayList<EntityValueBase> orderedList = new ArrayList<>(valueListSize);
+        LinkedHashMap<List<FieldInfo>, ArrayList<EntityValueBase>> runGroups = new LinkedHashMap<>();
+        EntityDefinition runEd = null;
+        boolean runSelfRel = false;
+        for (int i = 0; i < valueListSize; i++) {
+            EntityValueBase evb = valueList.get(i);
+            EntityDefinition ed = evb.getEntityDefinition();
+            if (runEd != ed) {
+                for (ArrayList<EntityValueBase> group : runGroups.values()) orderedList.addAll(group);
+                runGroups.clear();
+                runEd = ed;
+                runSelfRel = hasSelfRelationship(ed);
+            }
+            if (runSelfRel) { orderedList.add(evb); continue; }
+            runGroups.computeIfAbsent(Arrays.asList(evb.getCreateFieldArray()), k -> new ArrayList<>()).add(evb);
+        }
+        for (ArrayList<EntityValueBase> group : runGroups.values()) orderedList.addAll(group);
+        return orderedList;
+    }
+    static boolean hasSelfRelationship(EntityDefinition ed) {
+        ArrayList<EntityJavaUtil.RelationshipInfo> relInfoList = ed.getRelationshipsInfo(false);
+        int relInfoListSize = relInfoList.size();
+        for (int i = 0; i < relInfoListSize; i++) {
+            EntityJavaUtil.RelationshipInfo relInfo = relInfoList.get(i);
+            if (relInfo.isTypeOne && relInfo.relatedEntityName.equals(ed.getFullEntityName())) return true;
+        }
+        return false;
+    }
+
+    /** Batched equivalent of EntityValueBase.basicCreate(), the insert may not be done until a later call or flush() */
+    public void addCreate(EntityValueBase evb) throws SQLException {
+        evb.registerMutateLock();
+        insert(evb, evb.getCreateFieldArray());
+    }
+    /** Batched equivalent of EntityValueBase.basicUpdate(), the update may not be done until a later call or flush() */
+    public void addUpdate(EntityValueBase evb) throws SQLException {
+        evb.registerMutateLock();
+        update(evb, evb.getUpdateFieldArray());
+    }
+    /** Batched equivalent of EntityValueBase.deleteExtended(), the delete may not be done until a later call or flush() */
+    public void addDelete(EntityValueBase evb) throws SQLException { delete(evb); }
+
+    /** Add an insert to the current batch, or execute the current batch and start a new one if entity, operation or
+     * fields differ. This only does the insert, see createAll() for full create handling. */
+    public void insert(EntityValueBase evb, FieldInfo[] fieldArray) throws SQLException { add(evb, WriteOp.INSERT, fieldArray); }
+    /** Add an update of the given non-PK fields (usually from getUpdateFieldArray()) to the current batch */
+    public void update(EntityValueBase evb, FieldInfo[] nonPkFieldArray) throws SQLException { add(evb, WriteOp.UPDATE, nonPkFieldArray); }
+    /** Add a delete by primary key to the current batch */
+    public void delete(EntityValueBase evb) throws SQLException {
+        add(evb, WriteOp.DELETE, evb.getEntityDefinition().entityInfo.pkFieldInfoArray);
+    }
+
+    private void add(EntityValueBase evb, WriteOp op, FieldInfo[] fieldArray) throws SQLException {
+        EntityDefinition ed = evb.getEntityDefinition();
+        if (curEd != ed || curOp != op || !Arrays.equals(curFieldArray, fieldArray)) {
+            flush();
+            curEd = ed;
+            curOp = op;
+            curFieldArray = fieldArray;
+        }
+        curValueList.add(evb);
+        if (curValueList.size() >= batchSize) flush();
+    }
+
+    /** Execute the current batch, if there is one */
+    public void flush() throws SQLException {
+        int valueListSize = curValueList.size();
+        if (valueListSize == 0) return;
+
+        EntityDefinition ed = curEd;
+        WriteOp op = curOp;
+        FieldInfo[] fieldArray = curFieldArray;
+        efi.getEntityDbMeta().checkTableRuntime(ed);
+        Connection con = getConnection(ed.getEntityGroupName());
+
+        if (valueListSize == 1) {
+            // no point in a batch for a single value
+            EntityValueBase evb = curValueList.get(0);
+            curValueList.clear();
+            writeRow(evb, op, fieldArray, con);
+            batchCount++; rowCount++;
+            countOp(op, 1);
+            return;
+        }
+
+        String sql = makeSql(ed, op, fieldArray);
+        if (logger.isTraceEnabled()) logger.trace("Batch " + op + " of " + valueListSize + " with SQL: " + sql);
+
+        Savepoint savepoint = null;
+        try { savepoint = con.setSavepoint(); }
+        catch (Exception e) { if (logger.isTraceEnabled()) logger.trace("Could not set savepoint for batch " + op + ": " + e.toString()); }
+
+        FieldInfo[] pkFieldArray = ed.entityInfo.pkFieldInfoArray;
+        int fieldArraySize = fieldArray.length;
+        int pkFieldArraySize = op == WriteOp.UPDATE ? pkFieldArray.length : 0;
+        PreparedStatement ps = null;
+        try {
+            ps = con.prepareStatement(sql);
+            setStatementTimeout(ps);
+            for (int i = 0; i < valueListSize; i++) {
+                EntityValueBase evb = curValueList.get(i);
+                LiteStringMap<Object> valueMap = evb.getValueMap();
+                for (int j = 0; j < fieldArraySize; j++) {
+                    FieldInfo fi = fieldArray[j];
+                    fi.setPreparedStatementValue(ps, j + 1, valueMap.getByIString(fi.name, fi.index), ed, efi);
+                }
+                // for update the PK fields for the where clause come after the fields to set
+                for (int j = 0; j < pkFieldArraySize; j++) {
+                    FieldInfo fi = pkFieldArray[j];
+                    fi.setPreparedStatementValue(ps, fieldArraySize + j + 1, valueMap.getByIString(fi.name, fi.index), ed, efi);
+                }
+                ps.addBatch();
+            }
+            int[] updateCounts = ps.executeBatch();
+            checkUpdateCounts(op, updateCounts, sql);
+            if (op != WriteOp.DELETE) for (int i = 0; i < valueListSize; i++) curValueList.get(i).setSyncedWithDb();
+            if (savepoint != null) {
+                try { con.releaseSavepoint(savepoint); }
+                catch (Exception e) { if (logger.isTraceEnabled()) logger.trace("Could not release savepoint for batch " + op + ": " + e.toString()); }
+            }
+            batchCount++;
+            rowCount += valueListSize;
+            countOp(op, valueListSize);
+        } catch (SQLException e) {
+            if (ps != null) { try { ps.close(); } catch (SQLException ce) { logger.trace("Error closing batch statement", ce); } ps = null; }
+            handleBatchError(e, con, savepoint, op, fieldArray);
+        } finally {
+            curValueList.clear();
+            if (ps != null) ps.close();
+        }
+    }
+
+    /** Same checks as the single record updateExtended() and deleteExtended() methods; counts of SUCCESS_NO_INFO are not checked */
+    private void checkUpdateCounts(WriteOp op, int[] updateCounts, String sql) {
+        if (op == WriteOp.INSERT || updateCounts == null) return;
+        int countsSize = Math.min(updateCounts.length, curValueList.size());
+        for (int i = 0; i < countsSize; i++) {
+            if (updateCounts[i] != 0) continue;
+            EntityValueBase evb = curValueList.get(i);
+            if (op == WriteOp.UPDATE) throw new EntityException("Tried to update a value that does not exist [" + evb.toString() + "]. SQL used was " + sql);
+            logger.info("Tried to delete a value that does not exist " + evb.toString());
+        }
+    }
+
+    private void handleBatchError(SQLException e, Connection con, Savepoint savepoint, WriteOp op, FieldInfo[] fieldArray) throws SQLException {
+        int valueListSize = curValueList.size();
+        if (savepoint != null) {
+            // roll back the partial batch and do one row at a time so we get the error for the row that caused it
+            logger.warn("Error in batch " + op + " of " + valueListSize + " " + curEd.getFullEntityName() + " records, retrying by row: " + e.toString());
+            con.rollback(savepoint);
+            fallbackCount++;
+            for (int i = 0; i < valueListSize; i++) {
+                EntityValueBase evb = curValueList.get(i);
+                try {
+                    writeRow(evb, op, fieldArray, con);
+                } catch (SQLException rowE) {
+                    throw new EntitySqlException(makeErrorMsg(evb, op), rowE);
+                }
+                rowCount++;
+            }
+            countOp(op, valueListSize);
+            return;
+        }
+
+        // no savepoint, rows before the failure may be written and the transaction may not be usable (ie Postgres) so
+        //     just find the row that failed if the driver tells us
+        if (e instanceof BatchUpdateException) {
+            int[] updateCounts = ((BatchUpdateException) e).getUpdateCounts();
+            int failedIndex = -1;
+            if (updateCounts != null) {
+                if (updateCounts.length < valueListSize) failedIndex = updateCounts.length;
+                else for (int i = 0; i < updateCounts.length; i++) if (updateCounts[i] == Statement.EXECUTE_FAILED) { failedIndex = i; break; }
+            }
+            if (failedIndex >= 0 && failedIndex < valueListSize) {
+                SQLException cause = e.getNextException() != null ? e.getNextException() : e;
+                throw new EntitySqlException(makeErrorMsg(curValueList.get(failedIndex), op) + " (row " + (failedIndex + 1) +
+                        " of " + valueListSize + " in batch)", cause);
+            }
+        }
+        throw new EntitySqlException("Error in batch " + op + " of " + valueListSize + " " + curEd.getFullEntityName() +
+                " records, first " + curValueList.get(0).getPrimaryKeys(), e);
+    }
+
+    private static void writeRow(EntityValueBase evb, WriteOp op, FieldInfo[] fieldArray, Connection con) throws SQLException {
+        switch (op) {
+            case INSERT: evb.createExtended(fieldArray, con); break;
+            case UPDATE: evb.updateExtended(evb.getEntityDefinition().entityInfo.pkFieldInfoArray, fieldArray, con); break;
+            case DELETE: evb.deleteExtended(con); break;
+        }
+    }
+    private static String makeErrorMsg(EntityValueBase evb, WriteOp op) {
+        switch (op) {
+            case UPDATE: return evb.makeUpdateErrorMsg();
+            case DELETE: return evb.makeDeleteErrorMsg();
+            default: return evb.makeCreateErrorMsg();
+        }
+    }
+    private void countOp(WriteOp op, int count) {
+        switch (op) {
+            case INSERT: insertCount += count; break;
+            case UPDATE: updateCount += count; break;
+            case DELETE: deleteCount += count; break;
+        }
+    }
+
+    private void setStatementTimeout(Statement stmt) throws SQLException {
+        TransactionFacadeImpl tfi = efi.ecfi.transactionFacade;
+        if (!tfi.getUseStatementTimeout()) return;
+        long remainingMillis = tfi.getTxTimeoutRemainingMillis();
+        if (remainingMillis > 0) stmt.setQueryTimeout((int) Math.max(1L, remainingMillis / 1000));
+    }
+
+    private Connection getConnection(String groupName) {
+        Connection con = connectionByGroup.get(groupName);
+        if (con == null) {
+            con = efi.getConnection(groupName);
+            connectionByGroup.put(groupName, con);
+        }
+        return con;
+    }
+
+    /** Close connections (no-op for connections stashed with the transaction) */
+    public void close() {
+        for (Connection con : connectionByGroup.values()) {
+            try { con.close(); } catch (SQLException e) { logger.error("Error closing connection after batch write", e); }
+        }
+        connectionByGroup.clear();
+    }
+
+    static String makeSql(EntityDefinition ed, WriteOp op, FieldInfo[] fieldInfoArray) {
+        switch (op) {
+            case UPDATE: return makeUpdateSql(ed, fieldInfoArray);
+            case DELETE: return makeDeleteSql(ed);
+            default: return makeInsertSql(ed, fieldInfoArray);
+        }
+    }
+    static String makeInsertSql(EntityDefinition ed, FieldInfo[] fieldInfoArray) {
+        int size = fieldInfoArray.length;
+        StringBuilder sql = new StringBuilder(200);
+        StringBuilder values = new StringBuilder(size*3);
+        sql.append("INSERT INTO ").append(ed.getFullTableName()).append(" (");
+        for (int i = 0; i < size; i++) {
+            FieldInfo fieldInfo = fieldInfoArray[i];
+            if (fieldInfo == null) break;
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append(fieldInfo.getFullColumnName());
+            values.append("?");
+        }
+        sql.append(") VALUES (").append(values).append(")");
+        return sql.toString();
+    }
+    /** Same SQL as EntityValueImpl.updateExtended(), parameters are the fields to set then the PK fields */
+    static String makeUpdateSql(EntityDefinition ed, FieldInfo[] nonPkFieldArray) {
+        StringBuilder sql = new StringBuilder(200);
+        sql.append("UPDATE ").append(ed.getFullTableName()).append(" SET ");
+        int size = nonPkFieldArray.length;
+        for (int i = 0; i < size; i++) {
+            FieldInfo fieldInfo = nonPkFieldArray[i];
+            if (fieldInfo == null) break;
+            if (i > 0) sql.append(", ");
+            sql.append(fieldInfo.getFullColumnName()).append("=?");
+        }
+        appendPkWhere(ed, sql);
+        return sql.toString();
+    }
+    static String makeDeleteSql(EntityDefinition ed) {
+        StringBuilder sql = new StringBuilder(100);
+        sql.append("DELETE FROM ").append(ed.getFullTableName());
+        appendPkWhere(ed, sql);
+        return sql.toString();
+    }
+    private static void appendPkWhere(EntityDefinition ed, StringBuilder sql) {
+        sql.append(" WHERE ");
+        FieldInfo[] pkFieldArray = ed.entityInfo.pkFieldInfoArray;
+        for (int i = 0; i < pkFieldArray.length; i++) {
+            if (i > 0) sql.append(" AND ");
+            sql.append(pkFieldArray[i].getFullColumnName()).append("=?");
+        }
+    }
+}
@@ -20,6 +20,7 @@ import org.moqui.entity.EntityCondition
 import org.moqui.entity.EntityList
 import org.moqui.entity.EntityValue
 import org.moqui.impl.context.CacheFacadeImpl
+import org.moqui.jcache.MCache
 import org.moqui.util.MNode
 import org.moqui.util.SimpleTopic
 import org.slf4j.Logger
@@ -45,6 +46,8 @@ class EntityCache {
 
     Cache<String, Set<EntityCondition>> oneBfCache
     protected final Map<String, List<String>> cachedListViewEntitiesByMember = new HashMap<>()
+    /** Invalidation index for list caches by entity name, see EntityListCacheIndex */
+    protected final ConcurrentMap<String, EntityListCacheIndex> listCacheIndexByEntity = new ConcurrentHashMap<>()
 
     protected final boolean distributedCacheInvalidate
     /** Entity Cache Invalidate Topic */
@@ -118,7 +121,8 @@ class EntityCache {
         if (entityListCache == null) entityListCache = ed.getCacheList(this)
 
         EntityListImpl cacheHit = (EntityListImpl) entityListCache.get(whereCondition)
-        if (cacheHit != null && orderByList != null && orderByList.size() > 0) cacheHit.orderByFields(orderByList)
+        // cached lists are immutable, get a memoized sorted view (dropped with the cached list on invalidate)
+        if (cacheHit != null && orderByList != null && orderByList.size() > 0) cacheHit = cacheHit.getSortedView(orderByList)
         return cacheHit
     }
     void putInListCache(EntityDefinition ed, EntityListImpl el, EntityCondition whereCondition,
@@ -130,8 +134,26 @@ class EntityCache {
         EntityListImpl elToCache = el != null ? el : efi.getEmptyList()
         elToCache.setFromCache()
         entityListCache.put(whereCondition, elToCache)
+        // NOTE: register in index after put so a concurrent invalidate either finds the key or runs before the put
+        if (entityListCache instanceof MCache) getListCacheIndex(ed).register(whereCondition, entityListCache)
         registerCacheListRa(ed.getFullEntityName(), whereCondition, elToCache)
     }
+
+    EntityListCacheIndex getListCacheIndex(EntityDefinition ed) {
+        String fullEntityName = ed.getFullEntityName()
+        EntityListCacheIndex index = listCacheIndexByEntity.get(fullEntityName)
+        if (index == null) {
+            listCacheIndexByEntity.putIfAbsent(fullEntityName, new EntityListCacheIndex(fullEntityName, ed.isViewEntity))
+            index = listCacheIndexByEntity.get(fullEntityName)
+        }
+        return index
+    }
+    /** Get list cache invalidation stats (keys checked vs removed, etc) for each entity with a list cache index */
+    List<Map<String, Object>> getListCacheIndexStats() {
+        List<Map<String, Object>> statsList = new ArrayList<>(listCacheIndexByEntity.size())
+        for (EntityListCacheIndex index in listCacheIndexByEntity.values()) statsList.add(index.getStats())
+        return statsList
+    }
     /*
     Long getFromCountCache(EntityDefinition ed, EntityCondition whereCondition, Cache<EntityCondition, Long> entityCountCache) {
         if (entityCountCache == null) entityCountCache = getCacheCount(ed.getFullEntityName())
@@ -238,16 +260,25 @@ class EntityCache {
 
                 Cache<EntityCondition, EntityListImpl> entityListCache = ed.getCacheList(this)
 
-                // if this was a create the RA cache won't help, so go through EACH entry and see if it matches the created value
+                // if this was a create the RA cache won't help, so check each entry that may match the created value
                 // The RA cache doesn't work for updates in the scenario where a record exists but its fields don't
                 //     match a find condition when the cached list find is initially done, but is then updated so the
                 //     fields do match
-                Iterator<Cache.Entry<EntityCondition, EntityListImpl>> elcIterator = entityListCache.iterator()
-                while (elcIterator.hasNext()) {
-                    Cache.Entry<EntityCondition, EntityListImpl> entry = (Cache.Entry<EntityCondition, EntityListImpl>) elcIterator.next()
-                    EntityCondition ec = (EntityCondition) entry.getKey()
-                    // any way to efficiently clear out the RA cache for these? for now just leave and they are handled eventually
-                    if (ec.mapMatches(evbMap)) entityListCache.remove(ec)
+                // use the invalidation index to only check entries with a matching equals/in term (plus those that can't
+                //     be indexed) instead of iterating over the entire cache
+                // any way to efficiently clear out the RA cache for these? for now just leave and they are handled eventually
+                if (entityListCache instanceof MCache) {
+                    EntityListCacheIndex listCacheIndex = listCacheIndexByEntity.get(fullEntityName)
+                    if (listCacheIndex != null) listCacheIndex.invalidate(evbMap, entityListCache)
+                } else {
+                    // not a local cache, may have entries put on other servers so no complete index, check every entry
+                    Iterator<Cache.Entry<EntityCondition, EntityListImpl>> elcIterator = entityListCache.iterator()
+                    while (elcIterator.hasNext()) {
+                        Cache.Entry<EntityCondition, EntityListImpl> entry = (Cache.Entry<EntityCondition, EntityListImpl>) elcIterator.next()
+                        if (entry == null) continue
+                        EntityCondition ec = (EntityCondition) entry.getKey()
+                        if (ec.mapMatches(evbMap)) entityListCache.remove(ec)
+                    }
                 }
 
                 // if this is an update also check reverse associations (RA) as the condition check above may not match
@@ -317,20 +348,24 @@ class EntityCache {
 
                     Cache<EntityCondition, EntityListImpl> entityListCache = viewEd.getCacheList(this)
 
-                    Iterator<Cache.Entry<EntityCondition, EntityListImpl>> elcIterator = entityListCache.iterator()
-                    while (elcIterator.hasNext()) {
-                        Cache.Entry<EntityCondition, EntityListImpl> entry = (Cache.Entry<EntityCondition, EntityListImpl>) elcIterator.next()
-                        // in javax.cache.Cache next() may return null for expired, etc entries
-                        if (entry == null) continue;
-                        EntityCondition econd = (EntityCondition) entry.getKey()
-                        // logger.warn("======= entity ${fullEntityName} view-entity ${cachedViewEntityName} matches any? ${econd.mapMatchesAny(viewMatchMap)} keys not contained? ${econd.mapKeysNotContained(viewMatchMap)} econd: ${econd}")
-                        // FUTURE: any way to efficiently clear out the RA cache for these? for now just leave and they are handled eventually
-                        // don't require a full match, if matches any part of condition clear it
-                        // NOTE: the mapKeysNotContained() call will handle cases where there is no negative match, but is overly
-                        //     inclusive and will clear cache entries that may not need to be cleared; a better approach might be
-                        //     possible; especially needed for cases where the list is queried by a field on the primary member-entity
-                        //     but another member-entity is updated
-                        if (econd.mapMatchesAny(viewMatchMap) || econd.mapKeysNotContained(viewMatchMap)) elcIterator.remove()
+                    // don't require a full match, if matches any part of condition clear it
+                    // NOTE: the mapKeysNotContained() check (done in the index for keys where it can be) will handle cases
+                    //     where there is no negative match, but is overly inclusive and will clear cache entries that may not
+                    //     need to be cleared; a better approach might be possible; especially needed for cases where the list
+                    //     is queried by a field on the primary member-entity but another member-entity is updated
+                    // FUTURE: any way to efficiently clear out the RA cache for these? for now just leave and they are handled eventually
+                    if (entityListCache instanceof MCache) {
+                        EntityListCacheIndex listCacheIndex = listCacheIndexByEntity.get(cachedViewEntityName)
+                        if (listCacheIndex != null) listCacheIndex.invalidate(viewMatchMap, entityListCache)
+                    } else {
+                        Iterator<Cache.Entry<EntityCondition, EntityListImpl>> elcIterator = entityListCache.iterator()
+                        while (elcIterator.hasNext()) {
+                            Cache.Entry<EntityCondition, EntityListImpl> entry = (Cache.Entry<EntityCondition, EntityListImpl>) elcIterator.next()
+                            // in javax.cache.Cache next() may return null for expired, etc entries
+                            if (entry == null) continue
+                            EntityCondition econd = (EntityCondition) entry.getKey()
+                            if (econd.mapMatchesAny(viewMatchMap) || econd.mapKeysNotContained(viewMatchMap)) elcIterator.remove()
+                        }
                     }
                 }
             }
@@ -32,9 +32,12 @@ import org.moqui.util.ObjectUtilities
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
 import java.sql.Timestamp
 import java.time.ZoneOffset
 import java.time.format.DateTimeFormatter
+import java.util.concurrent.Future
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 
@@ -287,18 +290,31 @@ class EntityDataDocument {
         Timestamp docTimestamp = thruUpdatedStamp != (Timestamp) null ? thruUpdatedStamp : new Timestamp(startTimeMillis)
         String docTsString = docTimestamp.toInstant().atZone(ZoneOffset.UTC.normalized()).format(DateTimeFormatter.ISO_INSTANT)
 
-        boolean hasAllPrimaryPks = ddi.hasAllPrimaryPks
-        if (!hasAllPrimaryPks) logger.warn("DataDocument ${dataDocumentId} does not have all primary keys for feed to service ${feedReceiveServiceName}")
-        Map<String, Map> documentMapMap = hasAllPrimaryPks ? new LinkedHashMap<String, Map>(batchSize + 10) : null
-        ArrayList<Map> documentMapList = hasAllPrimaryPks ? null : new ArrayList<Map>(batchSize + 10)
+        if (!ddi.hasAllPrimaryPks) logger.warn("DataDocument ${dataDocumentId} does not have all primary keys for feed to service ${feedReceiveServiceName}")
 
         EntityFind mainFind = makeDataDocumentFind(ddi, fromUpdateStamp, thruUpdatedStamp)
         if (condition != null) mainFind.condition(condition)
 
+        int docCount = feedDocumentsFromFind(ddi, mainFind, docTsString, feedReceiveServiceName, batchSize)
+
+        logger.info("Fed ${docCount} data documents for dataDocumentId ${dataDocumentId} to service ${feedReceiveServiceName} in ${System.currentTimeMillis() - startTimeMillis}ms")
+        return docCount
+    }
+
+    /** Run the query for a DataDocument find and feed documents to the service in batches, returns documents fed;
+     * stops if there is an error in the feed receive service (see MessageFacade.hasError()) */
+    protected int feedDocumentsFromFind(DataDocumentInfo ddi, EntityFind mainFind, String docTsString,
+            String feedReceiveServiceName, int batchSize) {
+        String dataDocumentId = ddi.dataDocumentId
+        boolean hasAllPrimaryPks = ddi.hasAllPrimaryPks
+        Map<String, Map> documentMapMap = hasAllPrimaryPks ? new LinkedHashMap<String, Map>(batchSize + 10) : null
+        ArrayList<Map> documentMapList = hasAllPrimaryPks ? null : new ArrayList<Map>(batchSize + 10)
+
         // for this to work sort by primary key fields (of primary entity) so all records for a given document are together
         mainFind.orderBy(ddi.primaryPkFieldNames)
 
         // do the one big query
+        long startTimeMillis = System.currentTimeMillis()
         String lastDocId = null
         int docCount = 0
         try (EntityListIterator mainEli = mainFind.iterator()) {
@@ -338,7 +354,7 @@ class EntityDataDocument {
             if (documentMapMap != null && documentMapMap.size() > 0) {
                 documentMapList = new ArrayList<>(documentMapMap.values())
             }
-            if (documentMapList != null && documentMapList.size() > 0) {
+            if (documentMapList != null && documentMapList.size() > 0 && !efi.ecfi.getEci().messageFacade.hasError()) {
                 postProcessDocMapList(documentMapList, ddi)
                 // call the feed receive service
                 efi.ecfi.serviceFacade.sync().name(feedReceiveServiceName).parameter("documentList", documentMapList).call()
@@ -347,10 +363,177 @@ class EntityDataDocument {
             logger.info("Feed dataDocumentId ${dataDocumentId} feed complete and cursor closed in ${System.currentTimeMillis() - startTimeMillis}ms")
         }
 
-        logger.info("Fed ${docCount} data documents for dataDocumentId ${dataDocumentId} to service ${feedReceiveServiceName}")
         return docCount
     }
 
+    /** Like feedDataDocuments() but splits the documents into ranges of the first primary entity PK field and feeds
+     * ranges concurrently in worker threads, up to threads ranges (and so feed batches) at a time.
+     *
+     * Progress is saved per range in DataDocumentFeedRange records. If resume is true and there are incomplete ranges
+     * from an earlier feed of the document with the same receive service, update stamp range and condition only those
+     * are fed, otherwise new ranges are made. Falls back to feedDataDocuments() if the document does not have all primary PK
+     * fields. */
+    int feedDataDocumentsParallel(String dataDocumentId, EntityCondition condition, Timestamp fromUpdateStamp, Timestamp thruUpdatedStamp,
+            String feedReceiveServiceName, Integer batchSizeOvd, int threads, int rangeCount, boolean resume) {
+        if (feedReceiveServiceName == null || feedReceiveServiceName.isEmpty()) {
+            logger.warn("In feedDataDocumentsParallel no feed receive service name specified, not searching and feeding ${dataDocumentId} documents")
+            return 0
+        }
+        DataDocumentInfo ddi = new DataDocumentInfo(dataDocumentId, efi)
+        if (!ddi.hasAllPrimaryPks || threads <= 1)
+            return feedDataDocuments(dataDocumentId, condition, fromUpdateStamp, thruUpdatedStamp, feedReceiveServiceName, batchSizeOvd)
+
+        final int batchSize = batchSizeOvd != null ? batchSizeOvd.intValue() : 1000
+        if (rangeCount < threads) rangeCount = threads * 4
+        ExecutionContextImpl eci = efi.ecfi.getEci()
+        long startTimeMillis = System.currentTimeMillis()
+        Timestamp docTimestamp = thruUpdatedStamp != (Timestamp) null ? thruUpdatedStamp : new Timestamp(startTimeMillis)
+        final String docTsString = docTimestamp.toInstant().atZone(ZoneOffset.UTC.normalized()).format(DateTimeFormatter.ISO_INSTANT)
+
+        final String rangeField = ddi.primaryPkFieldNames.get(0)
+        final FieldInfo rangeFi = ddi.primaryEd.getFieldInfo(rangeField)
+        final ArrayList<EntityValue> rangeList = getFeedRanges(ddi, rangeField, rangeCount, feedReceiveServiceName,
+                fromUpdateStamp, thruUpdatedStamp, condition, resume)
+        final int rangeListSize = rangeList.size()
+        logger.info("Feeding data documents for dataDocumentId ${dataDocumentId} in ${rangeListSize} ranges of ${rangeField} with ${threads} threads in batches of ${batchSize} to service ${feedReceiveServiceName}")
+
+        final AtomicInteger nextRange = new AtomicInteger(0)
+        final AtomicInteger totalDocCount = new AtomicInteger(0)
+        final AtomicBoolean stopFeed = new AtomicBoolean(false)
+        final List<String> errorList = Collections.synchronizedList(new ArrayList<String>())
+        // each feeder takes the next range until there are none left, so in-flight batches are limited to one per feeder
+        Closure feeder = {
+            ExecutionContextImpl threadEci = efi.ecfi.getEci()
+            int rangeIdx
+            while (!stopFeed.get() && (rangeIdx = nextRange.getAndIncrement()) < rangeListSize) {
+                EntityValue range = rangeList.get(rangeIdx)
+                try {
+                    int rangeDocCount = (int) threadEci.transactionFacade.runRequireNew(3600, "Error feeding DataDocument range", {
+                        EntityFind mainFind = makeDataDocumentFind(ddi, fromUpdateStamp, thruUpdatedStamp)
+                        if (condition != null) mainFind.condition(condition)
+                        String fromPkValue = (String) range.getNoCheckSimple("fromPkValue")
+                        String thruPkValue = (String) range.getNoCheckSimple("thruPkValue")
+                        if (fromPkValue != null && !fromPkValue.isEmpty())
+                            mainFind.condition(rangeField, EntityCondition.GREATER_THAN_EQUAL_TO, rangeFi.convertFromString(fromPkValue, threadEci.l10nFacade))
+                        if (thruPkValue != null && !thruPkValue.isEmpty())
+                            mainFind.condition(rangeField, EntityCondition.LESS_THAN, rangeFi.convertFromString(thruPkValue, threadEci.l10nFacade))
+                        return feedDocumentsFromFind(ddi, mainFind, docTsString, feedReceiveServiceName, batchSize)
+                    })
+                    if (threadEci.messageFacade.hasError()) {
+                        errorList.add("Range ${range.getNoCheckSimple('rangeSeqId')}: ${threadEci.messageFacade.getErrorsString()}".toString())
+                        threadEci.messageFacade.clearErrors()
+                        stopFeed.set(true)
+                        break
+                    }
+                    totalDocCount.addAndGet(rangeDocCount)
+                    threadEci.transactionFacade.runRequireNew(null, "Error saving DataDocument feed range checkpoint", {
+                        efi.makeValue("moqui.entity.feed.DataDocumentFeedRange").setAll([dataDocumentId:dataDocumentId,
+                                feedRunId:range.getNoCheckSimple("feedRunId"), rangeSeqId:range.getNoCheckSimple("rangeSeqId"), completedDate:new Timestamp(System.currentTimeMillis()),
+                                docCount:rangeDocCount]).update()
+                    })
+                } catch (Throwable t) {
+                    logger.error("Error feeding dataDocumentId ${dataDocumentId} range ${range.getNoCheckSimple('rangeSeqId')}", t)
+                    errorList.add("Range ${range.getNoCheckSimple('rangeSeqId')}: ${t.toString()}".toString())
+                    threadEci.messageFacade.clearErrors()
+                    stopFeed.set(true)
+                    break
+                }
+            }
+        }
+
+        // this thread feeds too so there is progress even if the worker pool is busy
+        ArrayList<Future> futureList = new ArrayList<>(threads - 1)
+        for (int i = 1; i < threads && i < rangeListSize; i++)
+            futureList.add(efi.ecfi.workerPool.submit(new ExecutionContextImpl.ThreadPoolRunnable(eci, feeder)))
+        feeder.call()
+        for (Future future in futureList) future.get()
+
+        for (String error in errorList) eci.messageFacade.addError(error)
+        int docCount = totalDocCount.get()
+        logger.info("Fed ${docCount} data documents for dataDocumentId ${dataDocumentId} in ${rangeListSize} ranges to service ${feedReceiveServiceName} in ${System.currentTimeMillis() - startTimeMillis}ms")
+        return docCount
+    }
+
+    /** Get incomplete DataDocumentFeedRange records to resume a feed with the same feed key, or split the first primary
+     * PK field values into rangeCount ranges with about the same number of primary entity records and save them as new
+     * DataDocumentFeedRange records with a new feedRunId */
+    protected ArrayList<EntityValue> getFeedRanges(DataDocumentInfo ddi, String rangeField, int rangeCount, String feedReceiveServiceName,
+            Timestamp fromUpdateStamp, Timestamp thruUpdatedStamp, EntityCondition condition, boolean resume) {
+        String dataDocumentId = ddi.dataDocumentId
+        String feedKey = makeFeedKey(feedReceiveServiceName, fromUpdateStamp, thruUpdatedStamp, condition)
+        ExecutionContextImpl eci = efi.ecfi.getEci()
+        return (ArrayList<EntityValue>) eci.transactionFacade.runRequireNew(null, "Error getting DataDocument feed ranges", {
+            EntityList existingList = efi.find("moqui.entity.feed.DataDocumentFeedRange").condition("dataDocumentId", dataDocumentId)
+                    .condition("feedKey", feedKey).orderBy(["-runStartDate", "feedRunId", "rangeSeqId"]).useCache(false).disableAuthz().list()
+            // runs with incomplete ranges, most recent first
+            LinkedHashMap<String, ArrayList<EntityValue>> incompleteByRun = new LinkedHashMap<>()
+            for (EntityValue range in existingList) {
+                if (range.getNoCheckSimple("completedDate") != null) continue
+                String feedRunId = (String) range.getNoCheckSimple("feedRunId")
+                ArrayList<EntityValue> runIncompleteList = incompleteByRun.get(feedRunId)
+                if (runIncompleteList == null) { runIncompleteList = new ArrayList<>(); incompleteByRun.put(feedRunId, runIncompleteList) }
+                runIncompleteList.add(range)
+            }
+            if (resume && incompleteByRun.size() > 0) {
+                Map.Entry<String, ArrayList<EntityValue>> runEntry = incompleteByRun.entrySet().iterator().next()
+                logger.info("Resuming feed of dataDocumentId ${dataDocumentId} run ${runEntry.key}, ${runEntry.value.size()} ranges not complete")
+                return runEntry.value
+            }
+            // remove ranges of earlier complete runs, runs that are not complete may be running or may be resumed
+            for (EntityValue range in existingList) {
+                if (!incompleteByRun.containsKey((String) range.getNoCheckSimple("feedRunId"))) range.delete()
+            }
+
+            // find boundary values at even intervals in the primary entity records, sorted and distinct; each is found
+            //     with an offset from the last boundary so the database only skips over each range once
+            ArrayList<Object> boundaryList = new ArrayList<>()
+            long primaryCount = efi.find(ddi.primaryEntityName).useClone(true).disableAuthz().count()
+            int rangeRows = (int) (primaryCount / rangeCount)
+            Object lastBoundary = null
+            while (primaryCount > rangeCount && boundaryList.size() < rangeCount - 1) {
+                EntityFind boundaryFind = efi.find(ddi.primaryEntityName).selectField(rangeField).orderBy(rangeField)
+                        .offset(rangeRows).limit(1).useClone(true).disableAuthz()
+                if (lastBoundary != null) boundaryFind.condition(rangeField, EntityCondition.GREATER_THAN_EQUAL_TO, lastBoundary)
+                EntityList boundaryValues = boundaryFind.list()
+                if (boundaryValues.size() == 0) break
+                Object boundary = boundaryValues.get(0).getNoCheckSimple(rangeField)
+                if (lastBoundary != null && ((Comparable) boundary).compareTo(lastBoundary) <= 0) {
+                    // more than rangeRows records with the last boundary value (not the only PK field), use the next value
+                    boundaryValues = efi.find(ddi.primaryEntityName).selectField(rangeField).orderBy(rangeField)
+                            .condition(rangeField, EntityCondition.GREATER_THAN, lastBoundary).limit(1).useClone(true).disableAuthz().list()
+                    if (boundaryValues.size() == 0) break
+                    boundary = boundaryValues.get(0).getNoCheckSimple(rangeField)
+                }
+                boundaryList.add(boundary)
+                lastBoundary = boundary
+            }
+
+            ArrayList<EntityValue> rangeList = new ArrayList<>(boundaryList.size() + 1)
+            String feedRunId = efi.sequencedIdPrimary("moqui.entity.feed.DataDocumentFeedRange", null, null)
+            Timestamp runStartDate = new Timestamp(System.currentTimeMillis())
+            int boundaryListSize = boundaryList.size()
+            for (int i = 0; i <= boundaryListSize; i++) {
+                EntityValue range = efi.makeValue("moqui.entity.feed.DataDocumentFeedRange")
+                range.setAll([dataDocumentId:dataDocumentId, feedRunId:feedRunId, rangeSeqId:String.format("%05d", i + 1),
+                        feedKey:feedKey, feedReceiveServiceName:feedReceiveServiceName, fromUpdateStamp:fromUpdateStamp,
+                        thruUpdateStamp:thruUpdatedStamp,
+                        fromPkValue:(i > 0 ? ObjectUtilities.toPlainString(boundaryList.get(i - 1)) : null),
+                        thruPkValue:(i < boundaryListSize ? ObjectUtilities.toPlainString(boundaryList.get(i)) : null),
+                        runStartDate:runStartDate])
+                range.create()
+                rangeList.add(range)
+            }
+            return rangeList
+        })
+    }
+    /** Key for the parameters of a parallel feed, a feed only resumes ranges with the same key */
+    static String makeFeedKey(String feedReceiveServiceName, Timestamp fromUpdateStamp, Timestamp thruUpdatedStamp,
+            EntityCondition condition) {
+        String keyText = feedReceiveServiceName + '|' + (fromUpdateStamp != null ? fromUpdateStamp.toInstant().toString() : '') + '|' +
+                (thruUpdatedStamp != null ? thruUpdatedStamp.toInstant().toString() : '') + '|' + (condition != null ? condition.toString() : '')
+        return MessageDigest.getInstance("SHA-256").digest(keyText.getBytes(StandardCharsets.UTF_8)).encodeHex().toString()
+    }
+
     ArrayList<Map> getDataDocuments(String dataDocumentId, EntityCondition condition, Timestamp fromUpdateStamp, Timestamp thruUpdatedStamp) {
         DataDocumentInfo ddi = new DataDocumentInfo(dataDocumentId, efi)
 
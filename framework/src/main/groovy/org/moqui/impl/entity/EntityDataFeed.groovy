@@ -18,10 +18,15 @@ import org.moqui.entity.EntityCondition
 import org.moqui.entity.EntityException
 import org.moqui.entity.EntityList
 import org.moqui.entity.EntityValue
+import org.moqui.entity.EntityConditionFactory
+import org.moqui.impl.context.ContextJavaUtil
 import org.moqui.impl.context.ExecutionContextFactoryImpl
 import org.moqui.impl.context.ExecutionContextImpl
+import org.moqui.impl.context.TransactionCache
 import org.moqui.impl.entity.EntityJavaUtil.RelationshipInfo
 import org.moqui.jcache.MCache
+import org.moqui.util.MNode
+import org.moqui.util.ObjectUtilities
 
 import javax.cache.Cache
 import javax.transaction.Status
@@ -35,6 +40,8 @@ import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
 import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
 
 @CompileStatic
 class EntityDataFeed {
@@ -45,9 +52,33 @@ class EntityDataFeed {
     protected final MCache<String, ArrayList<DocumentEntityInfo>> dataFeedEntityInfo
     Set<String> entitiesWithDataFeed = null
 
+    final static String outboxEntityName = "moqui.entity.feed.DataFeedOutbox"
+    /** Transaction timeout for feeding each DataDocument */
+    protected final static int feedTransactionTimeout = 1800
+    /** Outbox records claimed longer ago than this are considered abandoned (node stopped while feeding) and claimed
+     * again; longer than the feed of one DataDocument, the claim is renewed before each (see renewOutboxClaim()) */
+    protected final static long outboxClaimLeaseMillis = (feedTransactionTimeout + 5 * 60) * 1000L
+    protected final static int outboxBatchSize = 100
+    protected final static int outboxMaxAttempts = 10
+    protected final static long outboxRetryBaseMillis = 30 * 1000L
+    protected final static long outboxRetryMaxMillis = 60 * 60 * 1000L
+
+    /** If true real-time feed work is recorded in a DataFeedOutbox record in the same transaction as the entity changes,
+     * see entity-facade.@data-feed-outbox */
+    final boolean outboxEnabled
+    protected final long outboxCheckSeconds
+    protected final AtomicBoolean outboxDispatching = new AtomicBoolean(false)
+    protected final AtomicLong outboxFedCount = new AtomicLong(0)
+    protected final AtomicLong outboxRetryCount = new AtomicLong(0)
+    protected final AtomicLong outboxFailedCount = new AtomicLong(0)
+    protected volatile long outboxLastDispatchTime = 0
+
     EntityDataFeed(EntityFacadeImpl efi) {
         this.efi = efi
         dataFeedEntityInfo = efi.ecfi.cacheFacade.getLocalCache("entity.data.feed.info")
+        MNode entityFacadeNode = efi.getEntityFacadeNode()
+        outboxEnabled = entityFacadeNode.attribute("data-feed-outbox") == "true"
+        outboxCheckSeconds = (entityFacadeNode.attribute("data-feed-outbox-check-time") ?: "10") as long
     }
 
     EntityFacadeImpl getEfi() { return efi }
@@ -423,6 +454,242 @@ class EntityDataFeed {
         return entityInfoMap
     }
 
+    /** Schedule the OutboxDispatcher to feed outbox records not completed after commit (worker pool busy, error, or
+     * server stopped); called once on init */
+    void scheduleOutboxDispatcher() {
+        if (!outboxEnabled) return
+        if (outboxCheckSeconds > 0L) {
+            efi.ecfi.scheduleAtFixedRate(new OutboxDispatcher(this), 60L, outboxCheckSeconds)
+        } else {
+            logger.warn("DataFeed outbox enabled but dispatcher not scheduled (data-feed-outbox-check-time ${outboxCheckSeconds}), only feeds run after commit will be done")
+        }
+    }
+
+    /** Called in DataFeedSynchronization.beforeCompletion() to record the feed in the transaction being committed.
+     * The record is created claimed by the synchronization so it is not also fed by an OutboxDispatcher. */
+    protected void createOutbox(DataFeedSynchronization dfs) {
+        ExecutionContextImpl eci = efi.ecfi.getEci()
+        boolean alreadyDisabled = eci.artifactExecutionFacade.disableAuthz()
+        try {
+            Timestamp nowTimestamp = new Timestamp(System.currentTimeMillis())
+            String claimToken = UUID.randomUUID().toString()
+            EntityValue outbox = efi.makeValue(outboxEntityName)
+            outbox.setAll([createdDate:nowTimestamp, dataDocumentIds:String.join(",", dfs.allDataDocumentIds),
+                    feedValuesText:valuesToJson(dfs.feedValues), deleteValuesText:valuesToJson(dfs.deleteValues),
+                    claimToken:claimToken, claimedDate:nowTimestamp, attemptCount:0L, nextAttemptDate:nowTimestamp])
+            outbox.setSequencedIdPrimary().create()
+            // the TransactionCache is flushed in its own beforeCompletion() which may have already been called
+            TransactionCache txCache = efi.ecfi.transactionFacade.getTransactionCache()
+            if (txCache != null) txCache.flushCache(false)
+            dfs.outboxId = outbox.getString("outboxId")
+            dfs.outboxClaimToken = claimToken
+        } finally {
+            if (!alreadyDisabled) eci.artifactExecutionFacade.enableAuthz()
+        }
+    }
+
+    /** Claim up to outboxBatchSize outbox records that are due and not claimed (or with an expired claim); each record is
+     * locked and checked again before claiming so records are claimed by only one node */
+    protected ArrayList<EntityValue> claimOutbox(String claimToken) {
+        ArrayList<EntityValue> claimedList = new ArrayList<>()
+        efi.ecfi.transactionFacade.runUseOrBegin(60, "Error claiming DataFeed outbox records", {
+            EntityConditionFactory ecf = efi.getConditionFactory()
+            Timestamp nowTimestamp = new Timestamp(System.currentTimeMillis())
+            Timestamp leaseExpired = new Timestamp(nowTimestamp.getTime() - outboxClaimLeaseMillis)
+            EntityList candidateList = efi.find(outboxEntityName).condition("failedDate", null)
+                    .condition("nextAttemptDate", EntityCondition.LESS_THAN_EQUAL_TO, nowTimestamp)
+                    .condition(ecf.makeCondition(ecf.makeCondition("claimToken", EntityCondition.EQUALS, null), EntityCondition.OR,
+                        ecf.makeCondition("claimedDate", EntityCondition.LESS_THAN, leaseExpired)))
+                    .selectField("outboxId").orderBy("createdDate").limit(outboxBatchSize).useCache(false).disableAuthz().list()
+            int candidateListSize = candidateList.size()
+            for (int i = 0; i < candidateListSize; i++) {
+                EntityValue outbox = efi.find(outboxEntityName).condition("outboxId", candidateList.get(i).getNoCheckSimple("outboxId"))
+                        .forUpdate(true).useCache(false).disableAuthz().one()
+                if (outbox == null || outbox.getNoCheckSimple("failedDate") != null) continue
+                Timestamp claimedDate = outbox.getTimestamp("claimedDate")
+                if (outbox.getNoCheckSimple("claimToken") != null && claimedDate != null && !claimedDate.before(leaseExpired)) continue
+                outbox.set("claimToken", claimToken)
+                outbox.set("claimedDate", nowTimestamp)
+                outbox.update()
+                claimedList.add(outbox)
+            }
+        })
+        return claimedList
+    }
+
+    /** Delete the outbox record if fed without errors, otherwise release the claim and set the next attempt with
+     * exponential backoff or set failedDate after outboxMaxAttempts */
+    protected void completeOutbox(String outboxId, String claimToken, ArrayList<String> errorList) {
+        efi.ecfi.transactionFacade.runUseOrBegin(60, "Error updating DataFeed outbox record ${outboxId}", {
+            EntityValue outbox = efi.find(outboxEntityName).condition("outboxId", outboxId).forUpdate(true)
+                    .useCache(false).disableAuthz().one()
+            if (outbox == null || claimToken != outbox.getNoCheckSimple("claimToken")) {
+                logger.warn("DataFeed outbox record ${outboxId} no longer claimed by this feed (claim expired?), not updating")
+                return
+            }
+            boolean alreadyDisabled = efi.ecfi.getEci().artifactExecutionFacade.disableAuthz()
+            try {
+                if (errorList.size() == 0) {
+                    outbox.delete()
+                    outboxFedCount.incrementAndGet()
+                    return
+                }
+                long attemptCount = (outbox.getLong("attemptCount") ?: 0L) + 1
+                long nowMillis = System.currentTimeMillis()
+                String errorText = String.join("\n", errorList)
+                outbox.set("attemptCount", attemptCount)
+                outbox.set("claimToken", null)
+                outbox.set("claimedDate", null)
+                outbox.set("lastErrorText", errorText.length() > 4000 ? errorText.substring(0, 4000) : errorText)
+                if (attemptCount >= outboxMaxAttempts) {
+                    outbox.set("failedDate", new Timestamp(nowMillis))
+                    outboxFailedCount.incrementAndGet()
+                    logger.error("DataFeed outbox record ${outboxId} failed after ${attemptCount} attempts, not retrying: ${errorText}")
+                } else {
+                    long retryMillis = Math.min(outboxRetryBaseMillis << Math.min(attemptCount - 1, 20L), outboxRetryMaxMillis)
+                    outbox.set("nextAttemptDate", new Timestamp(nowMillis + retryMillis))
+                    outboxRetryCount.incrementAndGet()
+                    logger.warn("DataFeed outbox record ${outboxId} attempt ${attemptCount} had errors, retrying in ${retryMillis/1000}s")
+                }
+                outbox.update()
+            } finally {
+                if (!alreadyDisabled) efi.ecfi.getEci().artifactExecutionFacade.enableAuthz()
+            }
+        })
+    }
+
+    /** Check the outbox record still exists and is claimed with claimToken and if so set claimedDate to now to extend the
+     * lease; returns false if no longer claimed (completed, or the claim expired and it was claimed again) */
+    protected boolean renewOutboxClaim(String outboxId, String claimToken) {
+        return (boolean) efi.ecfi.transactionFacade.runUseOrBegin(60, "Error renewing DataFeed outbox claim ${outboxId}", {
+            EntityValue outbox = efi.find(outboxEntityName).condition("outboxId", outboxId).forUpdate(true)
+                    .useCache(false).disableAuthz().one()
+            if (outbox == null || claimToken != outbox.getNoCheckSimple("claimToken")) return false
+            boolean alreadyDisabled = efi.ecfi.getEci().artifactExecutionFacade.disableAuthz()
+            try {
+                outbox.set("claimedDate", new Timestamp(System.currentTimeMillis()))
+                outbox.update()
+            } finally {
+                if (!alreadyDisabled) efi.ecfi.getEci().artifactExecutionFacade.enableAuthz()
+            }
+            return true
+        })
+    }
+
+    /** Claim and feed outbox records in the current thread until there are no more due, returns the number fed */
+    int dispatchOutbox() {
+        ExecutionContextImpl threadEci = efi.ecfi.getEci()
+        String claimToken = UUID.randomUUID().toString()
+        int outboxCount = 0
+        try {
+            // like feeds run after commit authz is not inherited, the feed services are run with authz disabled
+            threadEci.artifactExecutionFacade.disableAuthz()
+            while (true) {
+                ArrayList<EntityValue> claimedList = claimOutbox(claimToken)
+                int claimedListSize = claimedList.size()
+                for (int i = 0; i < claimedListSize; i++) {
+                    EntityValue outbox = (EntityValue) claimedList.get(i)
+                    String outboxId = outbox.getString("outboxId")
+                    FeedRunnable runnable = null
+                    try {
+                        String dataDocumentIds = outbox.getString("dataDocumentIds")
+                        runnable = new FeedRunnable(efi.ecfi, this, valuesFromJson(outbox.getString("feedValuesText")),
+                                dataDocumentIds ? new HashSet<String>(Arrays.asList(dataDocumentIds.split(","))) : new HashSet<String>(),
+                                valuesFromJson(outbox.getString("deleteValuesText")))
+                        runnable.outboxId = outboxId
+                        runnable.outboxClaimToken = claimToken
+                    } catch (Throwable t) {
+                        logger.error("Error reading DataFeed outbox record ${outboxId}", t)
+                        completeOutbox(outboxId, claimToken, new ArrayList<String>([t.toString()]))
+                        continue
+                    }
+                    // the claim is checked and renewed by feed(), records later in the batch may wait past the lease
+                    runnable.feed(threadEci)
+                    if (runnable.claimLost) continue
+                    completeOutbox(outboxId, claimToken, runnable.errorList)
+                    outboxCount++
+                }
+                if (claimedListSize < outboxBatchSize) break
+            }
+            outboxLastDispatchTime = System.currentTimeMillis()
+        } finally {
+            threadEci.destroy()
+        }
+        if (outboxCount > 0) logger.info("DataFeed outbox dispatcher fed ${outboxCount} records")
+        return outboxCount
+    }
+
+    /** Outbox backlog and lag for the status map; Backlog and LagSeconds count records not yet fed (including those
+     * waiting for a retry), Fed/Retried/FailedSinceStart are counts for this server since start */
+    Map<String, Object> getOutboxStats() {
+        if (!outboxEnabled) return [Enabled:false] as Map<String, Object>
+        Map<String, Object> stats = [Enabled:true, Fed:outboxFedCount.get(), Retried:outboxRetryCount.get(),
+                FailedSinceStart:outboxFailedCount.get(),
+                LastDispatch:(outboxLastDispatchTime > 0 ? new Timestamp(outboxLastDispatchTime) : null)] as Map<String, Object>
+        try {
+            stats.put("Backlog", efi.find(outboxEntityName).condition("failedDate", null).useCache(false).disableAuthz().count())
+            stats.put("Failed", efi.find(outboxEntityName).condition("failedDate", EntityCondition.NOT_EQUAL, null)
+                    .useCache(false).disableAuthz().count())
+            EntityList oldestList = efi.find(outboxEntityName).condition("failedDate", null).selectField("createdDate")
+                    .orderBy("createdDate").limit(1).useCache(false).disableAuthz().list()
+            Timestamp oldestDate = oldestList.size() > 0 ? oldestList.get(0).getTimestamp("createdDate") : (Timestamp) null
+            stats.put("LagSeconds", oldestDate != null ? (System.currentTimeMillis() - oldestDate.getTime()) / 1000L : 0L)
+        } catch (Throwable t) {
+            logger.warn("Error getting DataFeed outbox stats", t)
+            stats.put("Error", t.toString())
+        }
+        return stats
+    }
+
+    /** Values as JSON with plain String field values (the form used by EntityValue.setString()) for the outbox */
+    protected static String valuesToJson(EntityList values) {
+        int valuesSize = values.size()
+        if (valuesSize == 0) return null
+        ArrayList<Map<String, Object>> valueList = new ArrayList<>(valuesSize)
+        for (int i = 0; i < valuesSize; i++) {
+            EntityValueBase evb = (EntityValueBase) values.get(i)
+            Map<String, String> fieldMap = new HashMap<>()
+            for (Map.Entry<String, Object> entry in evb.getValueMap().entrySet()) {
+                Object fieldValue = entry.getValue()
+                // binary and other object fields are not used to find DataDocuments, skip them
+                if (fieldValue instanceof CharSequence || fieldValue instanceof Number || fieldValue instanceof Boolean ||
+                        fieldValue instanceof java.util.Date)
+                    fieldMap.put(entry.getKey(), ObjectUtilities.toPlainString(fieldValue))
+            }
+            valueList.add([entityName:evb.getEntityName(), fields:fieldMap] as Map<String, Object>)
+        }
+        return ContextJavaUtil.jacksonMapper.writeValueAsString(valueList)
+    }
+    protected EntityList valuesFromJson(String json) {
+        EntityList values = new EntityListImpl(efi)
+        if (json == null || json.isEmpty()) return values
+        List<Map<String, Object>> valueList = (List<Map<String, Object>>) ContextJavaUtil.jacksonMapper.readValue(json, List.class)
+        for (Map<String, Object> valueMap in valueList) {
+            EntityValue ev = efi.makeValue((String) valueMap.get("entityName"))
+            Map<String, Object> fieldMap = (Map<String, Object>) valueMap.get("fields")
+            for (Map.Entry<String, Object> entry in fieldMap.entrySet()) ev.setString(entry.getKey(), (String) entry.getValue())
+            values.add(ev)
+        }
+        return values
+    }
+
+    static class OutboxDispatcher implements Runnable {
+        protected final EntityDataFeed edf
+        OutboxDispatcher(EntityDataFeed edf) { this.edf = edf }
+        @Override
+        void run() {
+            // skip if the previous run is still going, scheduled at a fixed rate
+            if (!edf.outboxDispatching.compareAndSet(false, true)) return
+            try {
+                edf.dispatchOutbox()
+            } catch (Throwable t) {
+                logger.error("Error in DataFeed outbox dispatcher", t)
+            } finally {
+                edf.outboxDispatching.set(false)
+            }
+        }
+    }
+
     static class DocumentEntityInfo implements Serializable {
         String fullEntityName
         String dataDocumentId
@@ -466,6 +733,8 @@ class EntityDataFeed {
         protected EntityList feedValues
         protected EntityList deleteValues
         protected Set<String> allDataDocumentIds = new HashSet<String>()
+        protected String outboxId = (String) null
+        protected String outboxClaimToken = (String) null
 
         DataFeedSynchronization(EntityDataFeed edf) {
             // logger.warn("========= Creating new DataFeedSynchronization")
@@ -501,17 +770,23 @@ class EntityDataFeed {
         }
 
         @Override
-        void beforeCompletion() { }
+        void beforeCompletion() {
+            // an error here rolls back the transaction, the changes are not committed without the outbox record
+            if (edf.outboxEnabled && (feedValues.size() > 0 || deleteValues.size() > 0)) edf.createOutbox(this)
+        }
 
         @Override
         void afterCompletion(int status) {
             if (status == Status.STATUS_COMMITTED) {
                 // send feed in new thread and tx
                 FeedRunnable runnable = new FeedRunnable(ecfi, edf, feedValues, allDataDocumentIds, deleteValues)
+                runnable.outboxId = outboxId
+                runnable.outboxClaimToken = outboxClaimToken
                 try {
                     ecfi.workerPool.execute(runnable)
                 } catch (RejectedExecutionException e) {
-                    logger.error("Worker pool rejected DataFeed run: " + e.toString())
+                    if (outboxId != null) logger.warn("Worker pool rejected DataFeed run, will be fed from outbox record ${outboxId} when its claim expires: " + e.toString())
+                    else logger.error("Worker pool rejected DataFeed run: " + e.toString())
                 }
                 // logger.warn("================================================================\n================ feeding DataFeed with documents ${allDataDocumentIds}")
             }
@@ -523,6 +798,12 @@ class EntityDataFeed {
         private EntityDataFeed edf
         private EntityList feedValues, deleteValues
         private Set<String> allDataDocumentIds
+        /** Set when fed from a DataFeedOutbox record, which is completed with errorList when done */
+        String outboxId = (String) null
+        String outboxClaimToken = (String) null
+        /** Set if the outbox record was no longer claimed with outboxClaimToken, the feed was stopped and not completed */
+        boolean claimLost = false
+        final ArrayList<String> errorList = new ArrayList<>()
         FeedRunnable(ExecutionContextFactoryImpl ecfi, EntityDataFeed edf, EntityList feedValues, Set<String> allDataDocumentIds, EntityList deleteValues) {
             this.ecfi = ecfi
             this.edf = edf
@@ -533,32 +814,55 @@ class EntityDataFeed {
 
         @Override
         void run() {
-            Timestamp feedStamp = new Timestamp(System.currentTimeMillis())
             ExecutionContextImpl threadEci = ecfi.getEci()
             try {
-                if (logger.isTraceEnabled()) logger.trace("Doing DataFeed with allDataDocumentIds: ${allDataDocumentIds}, feedValues: ${feedValues}")
-                // iterate through dataDocumentIdSet and generate/update for each
-                for (String dataDocumentId in allDataDocumentIds) {
-                    try {
-                        feedDataDocument(dataDocumentId, feedStamp, threadEci)
-                    } catch (Throwable t) {
-                        logger.error("Error running Real-time DataFeed", t)
-                    }
-                }
-                // iterate through deleteValues, handle differently from updates as these are primary entities for relevant DataDocuments only
-                if (deleteValues != null && deleteValues.size() > 0) {
-                    for (int di = 0; di < deleteValues.size(); di++) {
-                        EntityValue deleteEv = (EntityValue) deleteValues.get(di)
-                        deleteDataDocuments(deleteEv, feedStamp, threadEci)
-                    }
-                }
+                feed(threadEci)
+                if (outboxId != null && !claimLost) edf.completeOutbox(outboxId, outboxClaimToken, errorList)
+            } catch (Throwable t) {
+                logger.error("Error completing Real-time DataFeed", t)
             } finally {
                 if (threadEci != null) threadEci.destroy()
             }
         }
 
+        /** Run the feed in the current thread, returns true if there were no errors (see errorList) and, if fed from an
+         * outbox record, it was still claimed (see claimLost) */
+        boolean feed(ExecutionContextImpl threadEci) {
+            // may have waited in the worker pool or behind other outbox records, check the claim before starting
+            if (!renewClaim()) return false
+            Timestamp feedStamp = new Timestamp(System.currentTimeMillis())
+            if (logger.isTraceEnabled()) logger.trace("Doing DataFeed with allDataDocumentIds: ${allDataDocumentIds}, feedValues: ${feedValues}")
+            // iterate through dataDocumentIdSet and generate/update for each
+            for (String dataDocumentId in allDataDocumentIds) {
+                try {
+                    feedDataDocument(dataDocumentId, feedStamp, threadEci)
+                } catch (Throwable t) {
+                    logger.error("Error running Real-time DataFeed", t)
+                    errorList.add("DataDocument ${dataDocumentId}: ${t.toString()}".toString())
+                }
+                if (!renewClaim()) return false
+            }
+            // iterate through deleteValues, handle differently from updates as these are primary entities for relevant DataDocuments only
+            if (deleteValues != null && deleteValues.size() > 0) {
+                for (int di = 0; di < deleteValues.size(); di++) {
+                    EntityValue deleteEv = (EntityValue) deleteValues.get(di)
+                    deleteDataDocuments(deleteEv, feedStamp, threadEci)
+                }
+            }
+            return errorList.size() == 0
+        }
+
+        /** If fed from an outbox record renew the claim, if no longer claimed set claimLost and return false */
+        protected boolean renewClaim() {
+            if (outboxId == null) return true
+            if (edf.renewOutboxClaim(outboxId, outboxClaimToken)) return true
+            claimLost = true
+            logger.warn("DataFeed outbox record ${outboxId} no longer claimed by this feed (completed or claim expired), not feeding")
+            return false
+        }
+
         private void feedDataDocument(String dataDocumentId, Timestamp feedStamp, ExecutionContextImpl threadEci) {
-            boolean beganTransaction = ecfi.transactionFacade.begin(1800)
+            boolean beganTransaction = ecfi.transactionFacade.begin(feedTransactionTimeout)
             try {
                 EntityFacadeImpl efi = ecfi.entityFacade
                 // assemble data and call DataFeed services
@@ -769,10 +1073,12 @@ class EntityDataFeed {
                                             feedStamp:feedStamp, documentList:documents]).call()
                                     if (threadEci.messageFacade.hasError()) {
                                         logger.error("Error calling DataFeed ${dataFeedAndDocument.dataFeedId} service ${serviceName}: ${threadEci.messageFacade.getErrorsString()}")
+                                        errorList.add("DataFeed ${dataFeedAndDocument.dataFeedId} service ${serviceName}: ${threadEci.messageFacade.getErrorsString()}".toString())
                                         threadEci.messageFacade.clearErrors()
                                     }
                                 } catch (Throwable t) {
                                     logger.error("Error calling DataFeed ${dataFeedAndDocument.dataFeedId} service ${serviceName}", t)
+                                    errorList.add("DataFeed ${dataFeedAndDocument.dataFeedId} service ${serviceName}: ${t.toString()}".toString())
                                 }
                             }
                         } else {
@@ -787,6 +1093,7 @@ class EntityDataFeed {
                 }
             } catch (Throwable t) {
                 logger.error("Error running Real-time DataFeed for DataDocument ${dataDocumentId}", t)
+                errorList.add("DataDocument ${dataDocumentId}: ${t.toString()}".toString())
                 ecfi.transactionFacade.rollback(beganTransaction, "Error running Real-time DataFeed for DataDocument ${dataDocumentId}", t)
             } finally {
                 // commit transaction if we started one and still there
@@ -803,6 +1110,7 @@ class EntityDataFeed {
                 entityInfoList = edf.getDataFeedEntityInfoList(entityName)
             } catch (Throwable t) {
                 logger.error("Error getting DataFeed info for delete for entity ${entityName}", t)
+                errorList.add("Delete ${entityName}: ${t.toString()}".toString())
                 return
             }
 
@@ -834,15 +1142,18 @@ class EntityDataFeed {
                             servicesCalled.add(serviceName)
                             if (threadEci.messageFacade.hasError()) {
                                 logger.error("Error calling DataFeed ${dataFeedAndDocument.dataFeedId} delete service ${serviceName} for entity ${entityName} PK ${deleteEv.getPrimaryKeys()}: ${threadEci.messageFacade.getErrorsString()}")
+                                errorList.add("DataFeed ${dataFeedAndDocument.dataFeedId} delete service ${serviceName}: ${threadEci.messageFacade.getErrorsString()}".toString())
                                 threadEci.messageFacade.clearErrors()
                             }
                         } catch (Throwable t) {
                             logger.error("Error calling DataFeed ${dataFeedAndDocument.dataFeedId} delete service ${serviceName} for entity ${entityName} PK ${deleteEv.getPrimaryKeys()}", t)
+                            errorList.add("DataFeed ${dataFeedAndDocument.dataFeedId} delete service ${serviceName}: ${t.toString()}".toString())
                         }
                     }
 
                 } catch (Throwable t) {
                     logger.error("Error processing DataFeed delete for entity ${entityName} PK ${deleteEv.getPrimaryKeys()}", t)
+                    errorList.add("Delete ${entityName} PK ${deleteEv.getPrimaryKeys()}: ${t.toString()}".toString())
                 } finally {
                     if (!alreadyDisabled) threadEci.artifactExecutionFacade.enableAuthz()
                 }
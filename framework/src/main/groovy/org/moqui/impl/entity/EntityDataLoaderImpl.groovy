@@ -13,7 +13,10 @@
  */
 package org.moqui.impl.entity
 
-import groovy.json.JsonSlurper
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.databind.ObjectReader
 import groovy.transform.CompileStatic
 import org.apache.commons.csv.CSVFormat
 import org.apache.commons.csv.CSVParser
@@ -23,10 +26,12 @@ import org.moqui.context.NotificationMessage
 import org.moqui.impl.context.TransactionFacadeImpl
 import org.moqui.resource.ResourceReference
 import org.moqui.context.TransactionFacade
+import org.moqui.entity.EntityCondition
 import org.moqui.entity.EntityDataLoader
 import org.moqui.entity.EntityException
 import org.moqui.entity.EntityList
 import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ContextJavaUtil
 import org.moqui.impl.context.ExecutionContextImpl
 import org.moqui.impl.service.ServiceCallSyncImpl
 import org.moqui.impl.service.ServiceDefinition
@@ -43,6 +48,18 @@ import javax.sql.rowset.serial.SerialBlob
 import javax.xml.parsers.SAXParser
 import javax.xml.parsers.SAXParserFactory
 import java.nio.charset.StandardCharsets
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.security.DigestInputStream
+import java.security.MessageDigest
 import java.util.zip.ZipEntry
 import java.util.zip.ZipInputStream
 
@@ -66,6 +83,8 @@ class EntityDataLoaderImpl implements EntityDataLoader {
     boolean useTryInsert = false
     boolean onlyCreate = false
     boolean dummyFks = false
+    int threads = 1
+    int batchSize = 1000
     boolean messageNoActionFiles = true
     boolean disableEeca = false
     boolean disableAuditLog = false
@@ -105,6 +124,8 @@ class EntityDataLoaderImpl implements EntityDataLoader {
     @Override EntityDataLoader useTryInsert(boolean useTryInsert) { this.useTryInsert = useTryInsert; return this }
     @Override EntityDataLoader onlyCreate(boolean onlyCreate) { this.onlyCreate = onlyCreate; return this }
     @Override EntityDataLoader dummyFks(boolean dummyFks) { this.dummyFks = dummyFks; return this }
+    @Override EntityDataLoader threads(int threads) { this.threads = threads > 0 ? threads : 1; return this }
+    @Override EntityDataLoader batchSize(int batchSize) { this.batchSize = batchSize > 0 ? batchSize : 1000; return this }
     @Override EntityDataLoader messageNoActionFiles(boolean message) { this.messageNoActionFiles = message; return this }
 
     @Override EntityDataLoader disableEntityEca(boolean disable) { disableEeca = disable; return this }
@@ -181,6 +202,8 @@ class EntityDataLoaderImpl implements EntityDataLoader {
 
     @Override long load() { load(null) }
     @Override long load(List<String> messageList) {
+        if (threads > 1) return loadParallel(messageList)
+
         LoadValueHandler lvh = new LoadValueHandler(this, messageList)
         EntityXmlHandler exh = new EntityXmlHandler(this, lvh)
         EntityCsvHandler ech = new EntityCsvHandler(this, lvh)
@@ -189,6 +212,20 @@ class EntityDataLoaderImpl implements EntityDataLoader {
         internalRun(exh, ech, ejh)
         return exh.getValuesRead() + ech.getValuesRead() + ejh.getValuesRead()
     }
+    protected long loadParallel(List<String> messageList) {
+        ParallelLoadValueHandler plvh = new ParallelLoadValueHandler(this, messageList)
+        EntityXmlHandler exh = new EntityXmlHandler(this, plvh)
+        EntityCsvHandler ech = new EntityCsvHandler(this, plvh)
+        EntityJsonHandler ejh = new EntityJsonHandler(this, plvh)
+
+        try {
+            internalRun(exh, ech, ejh)
+            plvh.flush()
+        } finally {
+            plvh.close()
+        }
+        return exh.getValuesRead() + ech.getValuesRead() + ejh.getValuesRead()
+    }
 
     @Override
     EntityList list() {
@@ -280,7 +317,7 @@ class EntityDataLoaderImpl implements EntityDataLoader {
         // Thread.sleep(45000)
 
         TransactionFacadeImpl tf = efi.ecfi.transactionFacade
-        tf.runRequireNew(transactionTimeout, "Error loading entity data", false, true, {
+        Closure loadAll = {
             // load the XML text in its own transaction
             if (this.xmlText) {
                 tf.runUseOrBegin(transactionTimeout, "Error loading XML entity data", {
@@ -319,7 +356,10 @@ class EntityDataLoaderImpl implements EntityDataLoader {
                     logger.error("Skipping to next file after error: ${t.toString()} ${t.getCause() != null ? t.getCause().toString() : ''}")
                 }
             }
-        })
+        }
+        // when loading in parallel values are written in a transaction per chunk, no transaction around everything
+        if (exh.valueHandler instanceof ParallelLoadValueHandler) loadAll.call()
+        else tf.runRequireNew(transactionTimeout, "Error loading entity data", false, true, loadAll)
 
         if (reenableEeca) eci.artifactExecutionFacade.enableEntityEca()
         if (reenableAuditLog) eci.artifactExecutionFacade.enableEntityAuditLog()
@@ -331,8 +371,12 @@ class EntityDataLoaderImpl implements EntityDataLoader {
     }
 
     void loadSingleFile(String location, EntityXmlHandler exh, EntityCsvHandler ech, EntityJsonHandler ejh) {
+        if (location.endsWith(EntityDataWriterImpl.manifestFilename)) {
+            logger.info("Skipping export manifest ${location}")
+            return
+        }
         TransactionFacade tf = efi.ecfi.transactionFacade
-        boolean beganTransaction = tf.begin(transactionTimeout)
+        boolean beganTransaction = exh.valueHandler instanceof ParallelLoadValueHandler ? false : tf.begin(transactionTimeout)
         try {
             InputStream inputStream = null
             try {
@@ -368,45 +412,74 @@ class EntityDataLoaderImpl implements EntityDataLoader {
                     }
                 } else if (location.endsWith(".zip")) {
                     NoCloseZipStream zis = new NoCloseZipStream(inputStream)
+                    // rows and SHA-256 of each entry read to compare with the manifest from a parallel export, if there is one
+                    Map<String, Object> manifest = (Map<String, Object>) null
+                    Map<String, ZipEntryCheck> entryCheckMap = new HashMap<>()
+                    // entries not loaded because not in the data types to load, not checked against the manifest
+                    Set<String> skippedEntrySet = new HashSet<>()
                     ZipEntry entry
                     while((entry = zis.getNextEntry()) != null) {
                         try {
                             String entryFile = entry.getName()
                             long entryBeforeTime = System.currentTimeMillis()
+                            if (entryFile.endsWith(EntityDataWriterImpl.manifestFilename)) {
+                                manifest = (Map<String, Object>) ContextJavaUtil.jacksonMapper.readValue(zis, Map.class)
+                                continue
+                            }
+                            MessageDigest digest = MessageDigest.getInstance("SHA-256")
+                            InputStream dis = new DigestInputStream(zis, digest)
+                            ZipEntryCheck entryCheck = new ZipEntryCheck()
                             if (entryFile.endsWith(".xml")) {
                                 long beforeRecords = exh.valuesRead ?: 0
                                 exh.setLocation(location)
 
                                 SAXParser parser = SAXParserFactory.newInstance().newSAXParser()
-                                parser.parse(zis, exh)
+                                parser.parse(dis, exh)
 
                                 long curFileLoaded = (exh.valuesRead?:0) - beforeRecords
                                 recordsLoaded += curFileLoaded
+                                entryCheck.rows = curFileLoaded
                                 logger.info("Loaded ${curFileLoaded} records from ${entryFile} in zip file ${location} in ${((System.currentTimeMillis() - entryBeforeTime)/1000)}s")
                             } else if (entryFile.endsWith(".csv")) {
                                 long beforeRecords = ech.valuesRead ?: 0
-                                if (ech.loadFile(entryFile, zis)) {
+                                if (ech.loadFile(entryFile, dis)) {
                                     long curFileLoaded = (ech.valuesRead?:0) - beforeRecords
                                     recordsLoaded += curFileLoaded
+                                    entryCheck.rows = curFileLoaded
                                     logger.info("Loaded ${curFileLoaded} records from ${entryFile} in zip file ${location} in ${((System.currentTimeMillis() - entryBeforeTime)/1000)}s")
+                                } else {
+                                    skippedEntrySet.add(entryFile)
                                 }
                             } else if (entryFile.endsWith(".json")) {
                                 long beforeRecords = ejh.valuesRead ?: 0
-                                if (ejh.loadFile(entryFile, zis)) {
+                                if (ejh.loadFile(entryFile, dis)) {
                                     long curFileLoaded = (ejh.valuesRead?:0) - beforeRecords
                                     recordsLoaded += curFileLoaded
+                                    entryCheck.rows = curFileLoaded
                                     logger.info("Loaded ${curFileLoaded} records from ${entryFile} in zip file ${location} in ${((System.currentTimeMillis() - entryBeforeTime)/1000)}s")
+                                } else {
+                                    skippedEntrySet.add(entryFile)
                                 }
                             } else {
                                 logger.warn("Found file ${entryFile} in zip file ${location} that is not a .xml file, ignoring")
+                                continue
+                            }
+                            if (entryCheck.rows >= 0) {
+                                // parsers may stop before the end of the entry, read the rest so the checksum covers all of it
+                                byte[] buffer = new byte[8192]
+                                while (dis.read(buffer) != -1) { /* just reading to update the digest */ }
+                                entryCheck.sha256 = digest.digest().encodeHex().toString()
+                                entryCheckMap.put(entryFile, entryCheck)
                             }
                         } catch (TypeToSkipException e) {
-                            // nothing to do, this just stops the parsing when we know the file is not in the types we want
+                            // nothing else to do, this just stops the parsing when we know the file is not in the types we want
+                            skippedEntrySet.add(entry.getName())
                         } catch (Throwable t) {
                             tf.rollback(beganTransaction, "Error loading entity data", t)
                             throw new BaseException("Error loading entity data from ${entry.getName()} in zip file ${location}", t)
                         }
                     }
+                    if (manifest != null) checkManifest(manifest, entryCheckMap, skippedEntrySet, location, exh.valueHandler.messageList)
                 }
 
                 int messagesAdded = (exh.valueHandler.messageList != null ? exh.valueHandler.messageList.size() : 0) - messagesBefore
@@ -436,6 +509,44 @@ class EntityDataLoaderImpl implements EntityDataLoader {
         }
     }
 
+    private static class ZipEntryCheck {
+        long rows = -1
+        String sha256 = (String) null
+    }
+    /** Compare rows and checksums for files loaded from a zip with the manifest written by a parallel EntityDataWriter
+     * export; files skipped because not in the data types to load are not checked */
+    protected static void checkManifest(Map<String, Object> manifest, Map<String, ZipEntryCheck> entryCheckMap,
+            Set<String> skippedEntrySet, String location, List<String> messageList) {
+        List<Map<String, Object>> partList = (List<Map<String, Object>>) manifest.get("parts")
+        if (partList == null) return
+        int mismatchCount = 0
+        for (Map<String, Object> partMap in partList) {
+            String file = (String) partMap.get("file")
+            Object rows = partMap.get("rows")
+            ZipEntryCheck entryCheck = file != null ? entryCheckMap.get(file) : (ZipEntryCheck) null
+            String warning = (String) null
+            if (partMap.get("error")) {
+                warning = "Export of ${file ?: partMap.get('entityName')} in zip file ${location} failed, records may be missing: ${partMap.get('error')}".toString()
+            } else if (file == null || skippedEntrySet.contains(file)) {
+                continue
+            } else if (entryCheck == null) {
+                // no file is written for a part with no records
+                if (rows instanceof Number && ((Number) rows).longValue() == 0L) continue
+                warning = "File ${file} in export manifest not found or not loaded from zip file ${location}".toString()
+            } else if (partMap.get("sha256") != null && partMap.get("sha256") != entryCheck.sha256) {
+                warning = "Checksum for ${file} in zip file ${location} does not match export manifest".toString()
+            } else if (rows instanceof Number && ((Number) rows).longValue() != entryCheck.rows) {
+                warning = "Loaded ${entryCheck.rows} records from ${file} in zip file ${location} but export manifest has ${rows}".toString()
+            }
+            if (warning != null) {
+                mismatchCount++
+                logger.warn(warning)
+                if (messageList != null) messageList.add(warning)
+            }
+        }
+        if (mismatchCount == 0) logger.info("Checked ${entryCheckMap.size()} files in zip file ${location} against export manifest")
+    }
+
     private static class NoCloseZipStream extends ZipInputStream {
         NoCloseZipStream(InputStream is) { super(is) }
         @Override void close() throws IOException { /* do nothing, the point is to not get closed by SAXParser */ }
@@ -609,6 +720,280 @@ class EntityDataLoaderImpl implements EntityDataLoader {
             }
         }
     }
+    /** Loads values with a pool of threads. Values are buffered by entity (merged by primary key) and when enough are
+     * pending they are written in chunks of batchSize, each chunk in its own transaction. Pending entities are written
+     * in levels by foreign key dependency, parents first, and chunks in the same level are written in parallel. Existing
+     * records are found with a query per chunk instead of a find or failed insert per value, new records are inserted
+     * in JDBC batches with createBulk(). Values without a full primary key, plain Maps that need generated IDs and
+     * service calls are run in order on the calling thread after writing everything pending. */
+    static class ParallelLoadValueHandler extends ValueHandler {
+        protected final static int existsQuerySize = 500
+
+        protected final EntityFacadeImpl efi
+        protected final ExecutionContextImpl ec
+        protected final LoadValueHandler singleHandler
+        protected final ExecutorService executor
+        protected final int batchSize, maxPending
+        protected final LinkedHashMap<EntityDefinition, LinkedHashMap<Map<String, Object>, EntityValueBase>> pendingByEntity = new LinkedHashMap<>()
+        protected int pendingCount = 0
+        protected final long startTime = System.currentTimeMillis()
+        protected final ConcurrentHashMap<String, EntityLoadStats> statsByEntity = new ConcurrentHashMap<>()
+        protected final ConcurrentLinkedQueue<String> errorMessages = new ConcurrentLinkedQueue<>()
+
+        ParallelLoadValueHandler(EntityDataLoaderImpl edli, List<String> messages) {
+            super(edli)
+            efi = edli.getEfi()
+            ec = efi.ecfi.getEci()
+            messageList = messages
+            singleHandler = new LoadValueHandler(edli, messages)
+            batchSize = edli.batchSize
+            maxPending = edli.batchSize * edli.threads * 4
+            AtomicInteger threadNumber = new AtomicInteger()
+            executor = Executors.newFixedThreadPool(edli.threads,
+                    { Runnable r -> new Thread(r, "DataLoader-" + threadNumber.incrementAndGet()) } as ThreadFactory)
+        }
+
+        void handleValue(EntityValue value, String location) {
+            if (!(value instanceof EntityValueBase) || !value.containsPrimaryKey() ||
+                    ((EntityValueBase) value).getEntityDefinition().isViewEntity) {
+                flush()
+                ec.transactionFacade.runUseOrBegin(edli.transactionTimeout, "Error loading entity data", {
+                    singleHandler.handleValue(value, location) })
+                return
+            }
+            addPending((EntityValueBase) value)
+            if (pendingCount >= maxPending) flush()
+        }
+        void handlePlainMap(String entityName, Map value, String location) {
+            EntityList el = efi.getValueListFromPlainMap(value, entityName)
+            int elSize = el.size()
+            boolean allPks = true
+            for (int i = 0; i < elSize; i++) {
+                EntityValueBase evb = (EntityValueBase) el.get(i)
+                if (!evb.containsPrimaryKey() || evb.getEntityDefinition().isViewEntity) { allPks = false; break }
+            }
+            if (!allPks) {
+                // needs IDs generated by the store auto service, run now in order
+                flush()
+                ec.transactionFacade.runUseOrBegin(edli.transactionTimeout, "Error loading entity data", {
+                    singleHandler.handlePlainMap(entityName, value, location) })
+                return
+            }
+            for (int i = 0; i < elSize; i++) addPending((EntityValueBase) el.get(i))
+            if (pendingCount >= maxPending) flush()
+        }
+        void handleService(ServiceCallSync scs, String location) {
+            // services may use any data loaded before them so write everything pending first
+            flush()
+            ec.transactionFacade.runUseOrBegin(edli.transactionTimeout, "Error loading entity data", {
+                singleHandler.handleService(scs, location) })
+        }
+
+        protected void addPending(EntityValueBase evb) {
+            EntityDefinition ed = evb.getEntityDefinition()
+            LinkedHashMap<Map<String, Object>, EntityValueBase> pending = pendingByEntity.get(ed)
+            if (pending == null) {
+                pending = new LinkedHashMap<>()
+                pendingByEntity.put(ed, pending)
+            }
+            Map<String, Object> pkMap = evb.getPrimaryKeys()
+            EntityValueBase samePkValue = pending.get(pkMap)
+            if (samePkValue != null) {
+                // same record more than once, later fields win like a second createOrUpdate() would do
+                samePkValue.setAll(evb.getMap())
+            } else {
+                pending.put(pkMap, evb)
+                pendingCount++
+            }
+        }
+
+        /** Write all pending values, returns when done */
+        void flush() {
+            if (pendingCount == 0) return
+            ArrayList<ArrayList<EntityDefinition>> levels = makeLevels(pendingByEntity.keySet())
+            int levelsSize = levels.size()
+            for (int li = 0; li < levelsSize; li++) {
+                ArrayList<EntityDefinition> level = (ArrayList<EntityDefinition>) levels.get(li)
+                ArrayList<Future> futureList = new ArrayList<>()
+                int levelSize = level.size()
+                for (int ei = 0; ei < levelSize; ei++) {
+                    final EntityDefinition ed = (EntityDefinition) level.get(ei)
+                    ArrayList<EntityValueBase> valueList = new ArrayList<>(pendingByEntity.get(ed).values())
+                    final ArrayList<ArrayList<EntityValueBase>> chunkList = new ArrayList<>()
+                    int valueListSize = valueList.size()
+                    for (int i = 0; i < valueListSize; i += batchSize)
+                        chunkList.add(new ArrayList<EntityValueBase>(valueList.subList(i, Math.min(i + batchSize, valueListSize))))
+
+                    if (EntityBatchWriter.hasSelfRelationship(ed)) {
+                        // parent records may be in the same entity, write chunks in order on one thread
+                        futureList.add(executor.submit({ for (ArrayList<EntityValueBase> chunk in chunkList) writeChunk(ed, chunk) } as Runnable))
+                    } else {
+                        int chunkListSize = chunkList.size()
+                        for (int ci = 0; ci < chunkListSize; ci++) {
+                            final ArrayList<EntityValueBase> chunk = (ArrayList<EntityValueBase>) chunkList.get(ci)
+                            futureList.add(executor.submit({ writeChunk(ed, chunk) } as Runnable))
+                        }
+                    }
+                }
+                // wait for this level before starting the next, it may depend on records written here
+                for (Future future in futureList) {
+                    try {
+                        future.get()
+                    } catch (ExecutionException e) {
+                        errorMessages.add("Error loading entity data: " + e.getCause()?.toString())
+                        logger.error("Error loading entity data", e.getCause())
+                    }
+                }
+            }
+            pendingByEntity.clear()
+            pendingCount = 0
+        }
+
+        /** Group entities into levels where each entity has no type one relationship to an entity in the same or a later level */
+        static ArrayList<ArrayList<EntityDefinition>> makeLevels(Set<EntityDefinition> edSet) {
+            LinkedHashMap<EntityDefinition, HashSet<EntityDefinition>> depsByEd = new LinkedHashMap<>()
+            for (EntityDefinition ed in edSet) {
+                HashSet<EntityDefinition> deps = new HashSet<>()
+                ArrayList<EntityJavaUtil.RelationshipInfo> relInfoList = ed.getRelationshipsInfo(false)
+                int relInfoListSize = relInfoList.size()
+                for (int i = 0; i < relInfoListSize; i++) {
+                    EntityJavaUtil.RelationshipInfo relInfo = (EntityJavaUtil.RelationshipInfo) relInfoList.get(i)
+                    if (!relInfo.isTypeOne) continue
+                    EntityDefinition relEd = relInfo.relatedEd
+                    if (relEd != null && !relEd.is(ed) && edSet.contains(relEd)) deps.add(relEd)
+                }
+                depsByEd.put(ed, deps)
+            }
+
+            ArrayList<ArrayList<EntityDefinition>> levels = new ArrayList<>()
+            while (depsByEd.size() > 0) {
+                ArrayList<EntityDefinition> level = new ArrayList<>()
+                for (Map.Entry<EntityDefinition, HashSet<EntityDefinition>> entry in depsByEd.entrySet())
+                    if (entry.getValue().isEmpty()) level.add(entry.getKey())
+                // foreign key cycle between pending entities, break it with the first in load order
+                if (level.isEmpty()) level.add(depsByEd.keySet().iterator().next())
+                for (EntityDefinition ed in level) depsByEd.remove(ed)
+                for (HashSet<EntityDefinition> deps in depsByEd.values()) deps.removeAll(level)
+                levels.add(level)
+            }
+            return levels
+        }
+
+        protected void writeChunk(EntityDefinition ed, ArrayList<EntityValueBase> chunk) {
+            long chunkStart = System.nanoTime()
+            ExecutionContextImpl threadEci = efi.ecfi.getEci()
+            try {
+                threadEci.userFacade.loginAnonymousIfNoUser()
+                threadEci.artifactExecutionFacade.disableAuthz()
+                if (edli.disableEeca) threadEci.artifactExecutionFacade.disableEntityEca()
+                if (edli.disableAuditLog) threadEci.artifactExecutionFacade.disableEntityAuditLog()
+                if (edli.disableFkCreate) threadEci.artifactExecutionFacade.disableEntityFkCreate()
+                if (edli.disableDataFeed) threadEci.artifactExecutionFacade.disableEntityDataFeed()
+
+                TransactionFacadeImpl tf = threadEci.transactionFacade
+                // field values as loaded, storeChunk() marks values synced with the database even if the transaction
+                //     rolls back so retry with new values
+                int chunkSize = chunk.size()
+                ArrayList<Map<String, Object>> loadedMapList = new ArrayList<>(chunkSize)
+                for (int i = 0; i < chunkSize; i++) loadedMapList.add(new HashMap<String, Object>(((EntityValueBase) chunk.get(i)).getValueMap()))
+                try {
+                    tf.runUseOrBegin(edli.transactionTimeout, "Error loading ${ed.getFullEntityName()} values", { storeChunk(ed, chunk) })
+                } catch (Throwable t) {
+                    // find the values with errors, one transaction per value
+                    logger.warn("Error loading ${chunkSize} ${ed.getFullEntityName()} values, trying one at a time: ${t.toString()}")
+                    for (int i = 0; i < chunkSize; i++) {
+                        EntityValueBase evb = (EntityValueBase) efi.makeValue(ed.getFullEntityName()).setAll(loadedMapList.get(i))
+                        try {
+                            tf.runUseOrBegin(edli.transactionTimeout, "Error loading ${ed.getFullEntityName()} value", {
+                                if (edli.dummyFks) evb.checkFks(true)
+                                if (!edli.onlyCreate) evb.createOrUpdate()
+                                else if (!evb.cloneValue().refresh()) evb.create()
+                            })
+                        } catch (Throwable vt) {
+                            String msg = "Error loading ${ed.getFullEntityName()} value ${evb.getPrimaryKeys()}: ${vt.toString()}".toString()
+                            logger.error(msg)
+                            errorMessages.add(msg)
+                        }
+                    }
+                }
+            } finally {
+                threadEci.destroy()
+                EntityLoadStats stats = statsByEntity.computeIfAbsent(ed.getFullEntityName(), { String k -> new EntityLoadStats() })
+                stats.add(chunk.size(), System.nanoTime() - chunkStart)
+            }
+        }
+        protected void storeChunk(EntityDefinition ed, ArrayList<EntityValueBase> chunk) {
+            int chunkSize = chunk.size()
+            if (edli.dummyFks) for (int i = 0; i < chunkSize; i++) ((EntityValueBase) chunk.get(i)).checkFks(true)
+
+            HashSet<Map<String, Object>> existingPks = findExistingPks(ed, chunk)
+            ArrayList<EntityValue> createList = new ArrayList<>(chunkSize)
+            for (int i = 0; i < chunkSize; i++) {
+                EntityValueBase evb = (EntityValueBase) chunk.get(i)
+                if (existingPks.contains(evb.getPrimaryKeys())) {
+                    if (!edli.onlyCreate) evb.update()
+                } else {
+                    createList.add(evb)
+                }
+            }
+            efi.createBulk(createList)
+        }
+        protected HashSet<Map<String, Object>> findExistingPks(EntityDefinition ed, ArrayList<EntityValueBase> chunk) {
+            HashSet<Map<String, Object>> existingPks = new HashSet<>()
+            ArrayList<String> pkFieldNames = ed.getPkFieldNames()
+            EntityConditionFactoryImpl ecfi = efi.getConditionFactoryImpl()
+            int chunkSize = chunk.size()
+            for (int start = 0; start < chunkSize; start += existsQuerySize) {
+                int end = Math.min(start + existsQuerySize, chunkSize)
+                EntityCondition cond
+                if (pkFieldNames.size() == 1) {
+                    String pkName = (String) pkFieldNames.get(0)
+                    ArrayList<Object> pkValues = new ArrayList<>(end - start)
+                    for (int i = start; i < end; i++) pkValues.add(((EntityValueBase) chunk.get(i)).getNoCheckSimple(pkName))
+                    cond = ecfi.makeCondition(pkName, EntityCondition.IN, pkValues)
+                } else {
+                    ArrayList<EntityCondition> condList = new ArrayList<>(end - start)
+                    for (int i = start; i < end; i++) condList.add(ecfi.makeCondition(((EntityValueBase) chunk.get(i)).getPrimaryKeys()))
+                    cond = ecfi.makeCondition(condList, EntityCondition.JoinOperator.OR)
+                }
+                EntityList existingList = efi.find(ed.getFullEntityName()).condition(cond).selectFields(pkFieldNames)
+                        .useCache(false).disableAuthz().list()
+                int existingSize = existingList.size()
+                for (int i = 0; i < existingSize; i++) existingPks.add(existingList.get(i).getPrimaryKeys())
+            }
+            return existingPks
+        }
+
+        /** Stop the threads and log rows per second by entity, call flush() first to write anything pending */
+        void close() {
+            executor.shutdown()
+            try {
+                executor.awaitTermination(edli.transactionTimeout, TimeUnit.SECONDS)
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted waiting for data load threads to finish")
+            }
+
+            ArrayList<Map.Entry<String, EntityLoadStats>> statsList = new ArrayList<>(statsByEntity.entrySet())
+            statsList.sort({ Map.Entry<String, EntityLoadStats> a, Map.Entry<String, EntityLoadStats> b -> Long.compare(b.getValue().rows.get(), a.getValue().rows.get()) })
+            long totalRows = 0
+            for (Map.Entry<String, EntityLoadStats> entry in statsList) {
+                EntityLoadStats stats = entry.getValue()
+                totalRows += stats.rows.get()
+                String msg = "Loaded ${stats.rows.get()} ${entry.getKey()} records in ${stats.nanos.get() / 1000000000}s of thread time (${stats.getRowsPerSecond()}/s)".toString()
+                logger.info(msg)
+                if (messageList != null) messageList.add(msg)
+            }
+            logger.info("Loaded ${totalRows} records with ${edli.threads} threads in ${(System.currentTimeMillis() - startTime)/1000}s, ${errorMessages.size()} errors")
+            if (messageList != null) messageList.addAll(errorMessages)
+        }
+    }
+    static class EntityLoadStats {
+        final AtomicLong rows = new AtomicLong()
+        final AtomicLong nanos = new AtomicLong()
+        void add(int count, long time) { rows.addAndGet(count); nanos.addAndGet(time) }
+        long getRowsPerSecond() { long time = nanos.get(); return time > 0 ? (long) (rows.get() * 1000000000L / time) : 0L }
+    }
+
     static class ListValueHandler extends ValueHandler {
         protected EntityList el
         ListValueHandler(EntityDataLoaderImpl edli) { super(edli); el = new EntityListImpl(edli.efi) }
@@ -1043,73 +1428,86 @@ class EntityDataLoaderImpl implements EntityDataLoader {
         List<String> getMessageList() { return messageList }
 
         boolean loadFile(String location, InputStream is) {
-            JsonSlurper slurper = new JsonSlurper()
-            Object jsonObj
+            // stream one top-level value at a time instead of parsing the whole file, memory is bounded by the largest record
+            ObjectReader reader = ContextJavaUtil.jacksonMapper.readerFor(Object.class)
+                    .with(DeserializationFeature.USE_BIG_DECIMAL_FOR_FLOATS)
+            JsonParser parser
+            JsonToken rootToken
             try {
-                jsonObj = slurper.parse(new BufferedReader(new InputStreamReader(is, "UTF-8")))
+                parser = ContextJavaUtil.jacksonMapper.getFactory().createParser(new InputStreamReader(is, StandardCharsets.UTF_8))
+                // don't close the stream, may be an entry in a zip file
+                parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE)
+                rootToken = parser.nextToken()
             } catch (Throwable t) {
-                String errMsg = "Error parsing HTTP request body JSON: ${t.toString()}"
+                String errMsg = "Error parsing JSON data file ${location}: ${t.toString()}"
                 logger.error(errMsg, t)
                 throw new BaseException(errMsg, t)
             }
 
-            String type = null
-            List valueList
-            if (jsonObj instanceof Map) {
-                Map jsonMap = (Map) jsonObj
-                type = jsonMap.get("_dataType")
-                valueList = [jsonObj]
-            } else if (jsonObj instanceof List) {
-                valueList = (List) jsonObj
-                Object firstValue = valueList?.get(0)
-                if (firstValue instanceof Map) {
-                    Map firstValMap = (Map) firstValue
-                    if (firstValMap.get("_dataType")) {
-                        type = firstValMap.get("_dataType")
-                        valueList.remove((int) 0I)
+            try {
+                if (rootToken == JsonToken.START_OBJECT) {
+                    Map jsonMap = (Map) reader.readValue(parser)
+                    String type = (String) jsonMap.get("_dataType")
+                    if (isTypeToSkip(type, location)) return false
+                    handleJsonValue(jsonMap, location)
+                } else if (rootToken == JsonToken.START_ARRAY) {
+                    boolean first = true
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        Object valueObj = reader.readValue(parser)
+                        if (first) {
+                            first = false
+                            // a first object with _dataType is for the whole file
+                            if (valueObj instanceof Map && ((Map) valueObj).get("_dataType")) {
+                                if (isTypeToSkip((String) ((Map) valueObj).get("_dataType"), location)) return false
+                                continue
+                            }
+                        }
+                        if (!(valueObj instanceof Map)) {
+                            logger.warn("Found non-Map object in JSON import, skipping: ${valueObj}")
+                            continue
+                        }
+                        handleJsonValue((Map) valueObj, location)
                     }
+                } else {
+                    throw new BaseException("Root JSON field was not a Map/object or List/array, first token is ${rootToken}")
                 }
-            } else {
-                throw new BaseException("Root JSON field was not a Map/object or List/array, type is ${jsonObj.getClass().getName()}")
+            } finally {
+                parser.close()
             }
 
+            return true
+        }
+        protected boolean isTypeToSkip(String type, String location) {
             if (type && edli.dataTypes && !edli.dataTypes.contains(type)) {
                 if (logger.isInfoEnabled()) logger.info("Skipping file [${location}], is a type to skip (${type})")
-                return false
+                return true
             }
+            return false
+        }
+        protected void handleJsonValue(Map valueObj, String location) {
+            Map<String, Object> value = [:]
+            if (edli.defaultValues) value.putAll(edli.defaultValues)
+            value.putAll(valueObj)
 
-            for (Object valueObj in valueList) {
-                if (!(valueObj instanceof Map)) {
-                    logger.warn("Found non-Map object in JSON import, skipping: ${valueObj}")
-                    continue
-                }
-
-                Map<String, Object> value = [:]
-                if (edli.defaultValues) value.putAll(edli.defaultValues)
-                value.putAll((Map) valueObj)
-
-                String entityName = value."_entity"
-                boolean isService
-                if (edli.efi.isEntityDefined(entityName)) {
-                    isService = false
-                } else if (edli.sfi.isServiceDefined(entityName)) {
-                    isService = true
-                } else {
-                    throw new BaseException("JSON _entity value [${entityName}] is not a valid entity name or service name")
-                }
-
-                if (isService) {
-                    ServiceCallSyncImpl currentScs = (ServiceCallSyncImpl) edli.sfi.sync().name(entityName).parameters(value)
-                    valueHandler.handleService(currentScs, location)
-                    valuesRead++
-                } else {
-                    valueHandler.handlePlainMap(entityName, value, location)
-                    // TODO: make this more complete, like counting nested Maps?
-                    valuesRead++
-                }
+            String entityName = value."_entity"
+            boolean isService
+            if (edli.efi.isEntityDefined(entityName)) {
+                isService = false
+            } else if (edli.sfi.isServiceDefined(entityName)) {
+                isService = true
+            } else {
+                throw new BaseException("JSON _entity value [${entityName}] is not a valid entity name or service name")
             }
 
-            return true
+            if (isService) {
+                ServiceCallSyncImpl currentScs = (ServiceCallSyncImpl) edli.sfi.sync().name(entityName).parameters(value)
+                valueHandler.handleService(currentScs, location)
+                valuesRead++
+            } else {
+                valueHandler.handlePlainMap(entityName, value, location)
+                // TODO: make this more complete, like counting nested Maps?
+                valuesRead++
+            }
         }
     }
 }
@@ -15,7 +15,10 @@ package org.moqui.impl.entity
 
 import groovy.json.JsonBuilder
 import groovy.transform.CompileStatic
+import org.moqui.entity.EntityList
 import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ContextJavaUtil
+import org.moqui.impl.context.ExecutionContextImpl
 import org.moqui.util.ObjectUtilities
 
 import javax.sql.rowset.serial.SerialBlob
@@ -31,7 +34,19 @@ import org.moqui.entity.EntityCondition.ComparisonOperator
 import org.slf4j.LoggerFactory
 import org.slf4j.Logger
 
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.security.DigestOutputStream
+import java.security.MessageDigest
 import java.time.ZoneOffset
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorCompletionService
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
 import java.time.format.DateTimeFormatter
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
@@ -39,6 +54,8 @@ import java.util.zip.ZipOutputStream
 @CompileStatic
 class EntityDataWriterImpl implements EntityDataWriter {
     private final static Logger logger = LoggerFactory.getLogger(EntityDataWriterImpl.class)
+    /** Written with parallel directory and zip exports, see writeParallel() */
+    final static String manifestFilename = "export-manifest.json"
 
     private EntityFacadeImpl efi
 
@@ -58,6 +75,9 @@ class EntityDataWriterImpl implements EntityDataWriter {
     private boolean isoDateTime = false
     private boolean tableColumnNames = false
 
+    private int threads = 1
+    private long splitRows = 1000000L
+
     EntityDataWriterImpl(EntityFacadeImpl efi) { this.efi = efi }
 
     EntityFacadeImpl getEfi() { return efi }
@@ -87,6 +107,9 @@ class EntityDataWriterImpl implements EntityDataWriter {
     EntityDataWriter isoDateTime(boolean iso) { isoDateTime = iso; return this }
     EntityDataWriter tableColumnNames(boolean tcn) { tableColumnNames = tcn; return this }
 
+    EntityDataWriter threads(int t) { threads = t > 0 ? t : 1; return this }
+    EntityDataWriter splitRows(long sr) { splitRows = sr; return this }
+
     @Override
     int file(String filename) {
         File outFile = new File(filename)
@@ -158,6 +181,7 @@ class EntityDataWriterImpl implements EntityDataWriter {
         }
 
         if (dependentLevels > 0) efi.createAllAutoReverseManyRelationships()
+        if (threads > 1) return writeParallel(outDir, null, null)
 
         int valuesWritten = 0
 
@@ -238,6 +262,14 @@ class EntityDataWriterImpl implements EntityDataWriter {
     @Override
     int zipDirectory(String pathWithinZip, OutputStream outputStream) {
         if (dependentLevels > 0) efi.createAllAutoReverseManyRelationships()
+        if (threads > 1) {
+            ZipOutputStream zipOut = new ZipOutputStream(outputStream)
+            try {
+                return writeParallel(null, pathWithinZip, zipOut)
+            } finally {
+                zipOut.close()
+            }
+        }
 
         int valuesWritten = 0
         ZipOutputStream out = new ZipOutputStream(outputStream)
@@ -337,6 +369,190 @@ class EntityDataWriterImpl implements EntityDataWriter {
         return valuesWritten
     }
 
+    /** Range of records for one file in a parallel export, and after writing its row count and checksum */
+    static class ExportPart {
+        final String entityName, filename
+        final Object pkFrom, pkThru
+        long rows = 0
+        long bytes = 0
+        String sha256 = (String) null
+        String error = (String) null
+        ExportPart(String entityName, String filename, Object pkFrom, Object pkThru) {
+            this.entityName = entityName; this.filename = filename; this.pkFrom = pkFrom; this.pkThru = pkThru
+        }
+        Map<String, Object> getManifestMap() {
+            Map<String, Object> partMap = new LinkedHashMap<>()
+            partMap.put("entityName", entityName)
+            // always the filename, even with no rows or an error when no file was written
+            partMap.put("file", filename)
+            partMap.put("rows", rows)
+            if (sha256 != null) { partMap.put("sha256", sha256); partMap.put("bytes", bytes) }
+            if (pkFrom != null) partMap.put("pkFrom", ObjectUtilities.toPlainString(pkFrom))
+            if (pkThru != null) partMap.put("pkThru", ObjectUtilities.toPlainString(pkThru))
+            if (error != null) partMap.put("error", error)
+            return partMap
+        }
+    }
+
+    /** Write each entity, or range of a large entity, in its own thread and transaction to a file in outDir or, through a
+     * temporary file, to an entry in zipOut; then write a manifest with rows and checksums for each */
+    protected int writeParallel(File outDir, String pathWithinZip, ZipOutputStream zipOut) {
+        long startTime = System.currentTimeMillis()
+        ExecutionContextImpl eci = efi.ecfi.getEci()
+        String extension = '.' + fileType.name().toLowerCase()
+        String zipPrefix = pathWithinZip ? pathWithinZip + '/' : ''
+
+        ArrayList<ExportPart> partList = new ArrayList<>()
+        for (String en in entityNames) {
+            if (skipEntityNames.contains(en)) continue
+            EntityDefinition ed = efi.getEntityDefinition(en)
+            String filenameBase = zipOut != null && tableColumnNames ? ed.getTableName() : en
+            ArrayList<Object> splitValues = findSplitValues(ed)
+            if (splitValues.size() == 0) {
+                partList.add(new ExportPart(en, zipPrefix + filenameBase + extension, null, null))
+            } else {
+                for (int i = 0; i <= splitValues.size(); i++) {
+                    partList.add(new ExportPart(en, zipPrefix + filenameBase + '-' + (i + 1) + extension,
+                            i > 0 ? splitValues.get(i - 1) : null, i < splitValues.size() ? splitValues.get(i) : null))
+                }
+            }
+        }
+
+        File tempDir = zipOut != null ? Files.createTempDirectory("moqui-export").toFile() : (File) null
+        AtomicInteger threadNumber = new AtomicInteger()
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                { Runnable r -> new Thread(r, "DataWriter-" + threadNumber.incrementAndGet()) } as ThreadFactory)
+        ExecutorCompletionService<ExportPart> completionService = new ExecutorCompletionService<>(executor)
+        HashMap<Future<ExportPart>, ExportPart> partByFuture = new HashMap<>()
+        int valuesWritten = 0
+        try {
+            for (ExportPart part in partList) {
+                File outFile = zipOut != null ? new File(tempDir, part.filename.replace('/', '_')) : new File(outDir, part.filename)
+                if (zipOut == null && outFile.exists()) {
+                    eci.messageFacade.addError(efi.ecfi.resource.expand('File ${filename} already exists, skipping entity ${en}.','',[filename:outFile.path,en:part.entityName]))
+                    part.error = "File already exists"
+                    continue
+                }
+                final ExportPart curPart = part
+                partByFuture.put(completionService.submit({ writePart(curPart, outFile) } as Callable<ExportPart>), curPart)
+            }
+
+            // in the order finished add to the zip file and report
+            for (int i = 0; i < partByFuture.size(); i++) {
+                Future<ExportPart> future = completionService.take()
+                ExportPart part = partByFuture.get(future)
+                try {
+                    future.get()
+                } catch (ExecutionException e) {
+                    part.error = e.getCause()?.toString()
+                    logger.error("Error writing ${part.filename}", e.getCause())
+                    eci.messageFacade.addError("Error writing ${part.filename}: ${part.error}".toString())
+                    continue
+                }
+                if (part.rows == 0) continue
+                if (zipOut != null) {
+                    File tempFile = new File(tempDir, part.filename.replace('/', '_'))
+                    zipOut.putNextEntry(new ZipEntry(part.filename))
+                    Files.copy(tempFile.toPath(), zipOut)
+                    zipOut.closeEntry()
+                    tempFile.delete()
+                }
+                eci.messageFacade.addMessage(efi.ecfi.resource.expand('Wrote ${curValuesWritten} records to ${filename}','',[curValuesWritten:part.rows,filename:part.filename]))
+                valuesWritten += (int) part.rows
+            }
+        } finally {
+            executor.shutdownNow()
+            if (tempDir != null) { for (File tempFile in tempDir.listFiles()) tempFile.delete(); tempDir.delete() }
+        }
+
+        // manifest in entity order so a load can check every file is there with the same rows and checksum
+        ArrayList<Map<String, Object>> partMapList = new ArrayList<>(partList.size())
+        for (ExportPart part in partList) partMapList.add(part.getManifestMap())
+        Map<String, Object> manifest = [fileType:fileType.name(), exportDate:eci.userFacade.nowTimestamp.toInstant().toString(),
+                totalRows:valuesWritten, parts:partMapList] as Map<String, Object>
+        byte[] manifestBytes = ContextJavaUtil.jacksonMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(manifest)
+        if (zipOut != null) {
+            zipOut.putNextEntry(new ZipEntry(zipPrefix + manifestFilename))
+            zipOut.write(manifestBytes)
+            zipOut.closeEntry()
+        } else {
+            Files.write(new File(outDir, manifestFilename).toPath(), manifestBytes)
+        }
+
+        logger.info("Wrote ${valuesWritten} records in ${partList.size()} files with ${threads} threads in ${(System.currentTimeMillis() - startTime)/1000}s")
+        return valuesWritten
+    }
+    /** Primary key values to split an entity at so each range has up to splitRows records, empty if not split */
+    protected ArrayList<Object> findSplitValues(EntityDefinition ed) {
+        ArrayList<Object> splitValues = new ArrayList<>()
+        ArrayList<String> pkFieldNames = ed.getPkFieldNames()
+        if (splitRows <= 0 || pkFieldNames.size() != 1 || ed.isViewEntity) return splitValues
+        String pkName = (String) pkFieldNames.get(0)
+        // each boundary is splitRows past the previous one, so the database only skips over each range once instead of
+        //     counting from the start of the table for every boundary
+        Object lastValue = null
+        while (true) {
+            // only by PK, not the order by for writing, so boundaries are in PK order
+            EntityFind boundaryFind = makeConditionFind(ed.getFullEntityName()).selectField(pkName).orderBy(pkName).useCache(false)
+                    .offset((int) splitRows).limit(1)
+            if (lastValue != null) boundaryFind.condition(pkName, ComparisonOperator.GREATER_THAN_EQUAL_TO, lastValue)
+            EntityList boundaryList = boundaryFind.list()
+            if (boundaryList.size() == 0) break
+            lastValue = boundaryList.get(0).getNoCheckSimple(pkName)
+            splitValues.add(lastValue)
+        }
+        return splitValues
+    }
+    /** Write one part in the current thread with its own ExecutionContext and transaction, sets rows, bytes and checksum */
+    ExportPart writePart(ExportPart part, File outFile) {
+        ExecutionContextImpl threadEci = efi.ecfi.getEci()
+        try {
+            // authz for the export is checked on the calling thread
+            threadEci.artifactExecutionFacade.disableAuthz()
+            TransactionFacade tf = threadEci.transactionFacade
+            boolean beganTransaction = tf.begin(txTimeout)
+            try {
+                EntityDefinition ed = efi.getEntityDefinition(part.entityName)
+                boolean useMaster = masterName != null && masterName.length() > 0 && ed.getMasterDefinition(masterName) != null
+                EntityFind ef = makeEntityFind(part.entityName)
+                if (part.pkFrom != null || part.pkThru != null) {
+                    String pkName = ed.getPkFieldNames().get(0)
+                    if (part.pkFrom != null) ef.condition(pkName, ComparisonOperator.GREATER_THAN_EQUAL_TO, part.pkFrom)
+                    if (part.pkThru != null) ef.condition(pkName, ComparisonOperator.LESS_THAN, part.pkThru)
+                }
+                try (EntityListIterator eli = ef.iterator()) {
+                    EntityValue ev = eli.next()
+                    if (ev != null) {
+                        MessageDigest digest = MessageDigest.getInstance("SHA-256")
+                        PrintWriter pw = new PrintWriter(new OutputStreamWriter(new DigestOutputStream(
+                                new BufferedOutputStream(new FileOutputStream(outFile)), digest), StandardCharsets.UTF_8))
+                        try {
+                            startFile(pw, ed)
+                            long curValuesWritten = 0
+                            while (ev != null) {
+                                curValuesWritten += writeValue(ev, pw, useMaster)
+                                ev = eli.next()
+                            }
+                            endFile(pw)
+                            part.rows = curValuesWritten
+                        } finally {
+                            pw.close()
+                        }
+                        part.sha256 = digest.digest().encodeHex().toString()
+                        part.bytes = outFile.length()
+                    }
+                }
+                tf.commit(beganTransaction)
+            } catch (Throwable t) {
+                tf.rollback(beganTransaction, "Error writing ${part.filename}", t)
+                throw t
+            }
+        } finally {
+            threadEci.destroy()
+        }
+        return part
+    }
+
     private void startFile(Writer writer, EntityDefinition ed) {
         if (JSON.is(fileType)) {
             writer.println("[")
@@ -451,8 +667,10 @@ class EntityDataWriterImpl implements EntityDataWriter {
         return fieldStr
     }
 
-    private EntityFind makeEntityFind(String en) {
-        EntityFind ef = efi.find(en).condition(filterMap).orderBy(orderByList)
+    private EntityFind makeEntityFind(String en) { return makeConditionFind(en).orderBy(orderByList) }
+    /** Find with the filterMap and lastUpdatedStamp conditions and no order by */
+    private EntityFind makeConditionFind(String en) {
+        EntityFind ef = efi.find(en).condition(filterMap)
         EntityDefinition ed = efi.getEntityDefinition(en)
         if (ed.isField("lastUpdatedStamp")) {
             if (fromDate) ef.condition("lastUpdatedStamp", ComparisonOperator.GREATER_THAN_EQUAL_TO, fromDate)
@@ -141,12 +141,8 @@ class EntityDatasourceFactoryImpl implements EntityDatasourceFactory {
 
     @Override
     void createBulk(List<EntityValue> valueList) {
-        // basic approach, can probably do better with some JDBC tricks
-        Iterator<EntityValue> valueIterator = valueList.iterator()
-        while (valueIterator.hasNext()) {
-            EntityValue ev = (EntityValue) valueIterator.next()
-            ev.create()
-        }
+        // same as create() for each value but with inserts done in JDBC batches by entity and field set
+        new EntityBatchWriter(efi, efi.jdbcBatchSize).createAll(valueList)
     }
 
     @Override
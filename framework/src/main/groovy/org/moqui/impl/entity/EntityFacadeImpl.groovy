@@ -49,13 +49,11 @@ import java.math.RoundingMode
 import java.sql.*
 import java.util.concurrent.ArrayBlockingQueue
 import java.util.concurrent.BlockingQueue
-import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.ThreadFactory
 import java.util.concurrent.ThreadLocalRandom
 import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicInteger
-import java.util.concurrent.locks.Lock
 import java.util.concurrent.locks.ReentrantLock
 
 @CompileStatic
@@ -77,10 +75,12 @@ class EntityFacadeImpl implements EntityFacade {
     /** Map for framework entity definitions, avoid cache overhead and timeout issues */
     final HashMap<String, EntityDefinition> frameworkEntityDefinitions = new HashMap<>()
 
-    /** Sequence name (often entity name) is the key and the value is an array of 2 Longs the first is the next
-     * available value and the second is the highest value reserved/cached in the bank. */
-    final Cache<String, long[]> entitySequenceBankCache
-    protected final ConcurrentHashMap<String, Lock> dbSequenceLocks = new ConcurrentHashMap<String, Lock>()
+    /** Sequence name (often entity name) is the key and the value has the current and next reserved ID banks */
+    final Cache<String, EntitySequenceBank> entitySequenceBankCache
+    /** SQL select/from/group by/order by text for view-entity finds by query shape, see EntityFindBuilder.makeSelectSql() */
+    final Cache<EntityFindBuilder.SqlShapeKey, EntityFindBuilder.SqlShape> sqlShapeCache
+    /** Total counts for EntityFind.listWithCount() with a short expire time */
+    final Cache<List<Object>, Long> listCountCache
     protected final ReentrantLock locationLoadLock = new ReentrantLock()
 
     protected HashMap<String, ArrayList<EntityEcaRule>> eecaRulesByEntityName = new HashMap<>()
@@ -93,6 +93,11 @@ class EntityFacadeImpl implements EntityFacade {
     protected final ThreadLocal<Calendar> databaseTzLcCalendar = new ThreadLocal<>()
     protected final String sequencedIdPrefix
     boolean queryStats = false
+    /** Max statements per JDBC batch for createBulk() and TransactionCache flush, see entity-facade.@jdbc-batch-size */
+    final int jdbcBatchSize
+    /** See entity-facade.@sequence-bank-refill-percent and @sequence-bank-max-size */
+    final int sequenceBankRefillPercent
+    final long sequenceBankMaxSize
 
     protected EntityDbMeta dbMeta = null
     protected final EntityCache entityCache
@@ -118,6 +123,9 @@ class EntityFacadeImpl implements EntityFacade {
         defaultGroupName = entityFacadeNode.attribute("default-group-name")
         sequencedIdPrefix = entityFacadeNode.attribute("sequenced-id-prefix") ?: null
         queryStats = entityFacadeNode.attribute("query-stats") == "true"
+        jdbcBatchSize = (entityFacadeNode.attribute("jdbc-batch-size") ?: "500") as int
+        sequenceBankRefillPercent = (entityFacadeNode.attribute("sequence-bank-refill-percent") ?: "20") as int
+        sequenceBankMaxSize = (entityFacadeNode.attribute("sequence-bank-max-size") ?: "1000") as long
 
         TimeZone theTimeZone = null
         if (entityFacadeNode.attribute("database-time-zone")) {
@@ -143,6 +151,8 @@ class EntityFacadeImpl implements EntityFacade {
         entityLocationSingleCache = ecfi.cacheFacade.getCache("entity.location")
         // NOTE: don't try to load entity locations before constructor is complete; this.loadAllEntityLocations()
         entitySequenceBankCache = ecfi.cacheFacade.getCache("entity.sequence.bank")
+        sqlShapeCache = ecfi.cacheFacade.getCache("entity.sql.shape")
+        listCountCache = ecfi.cacheFacade.getCache("entity.list.count")
 
         // init connection pool (DataSource) for each group
         initAllDatasources()
@@ -1891,13 +1901,10 @@ class EntityFacadeImpl implements EntityFacade {
     }
 
     void tempSetSequencedIdPrimary(String seqName, long nextSeqNum, long bankSize) {
-        long[] bank = new long[2]
-        bank[0] = nextSeqNum
-        bank[1] = nextSeqNum + bankSize
-        entitySequenceBankCache.put(seqName, bank)
+        getSequenceBank(seqName, bankSize).setBank(nextSeqNum, nextSeqNum + bankSize)
     }
     void tempResetSequencedIdPrimary(String seqName) {
-        entitySequenceBankCache.put(seqName, null)
+        entitySequenceBankCache.remove(seqName)
     }
 
     @Override
@@ -1932,79 +1939,53 @@ class EntityFacadeImpl implements EntityFacade {
     }
 
     protected final static long defaultBankSize = 50L
-    protected Lock getDbSequenceLock(String seqName) {
-        Lock oldLock, dbSequenceLock = dbSequenceLocks.get(seqName)
-        if (dbSequenceLock == null) {
-            dbSequenceLock = new ReentrantLock()
-            oldLock = dbSequenceLocks.putIfAbsent(seqName, dbSequenceLock)
-            if (oldLock != null) return oldLock
-        }
-        return dbSequenceLock
+    protected EntitySequenceBank getSequenceBank(String seqName, long bankSize) {
+        EntitySequenceBank sequenceBank = (EntitySequenceBank) entitySequenceBankCache.get(seqName)
+        if (sequenceBank != null) return sequenceBank
+        EntitySequenceBank newBank = new EntitySequenceBank(this, seqName, bankSize, sequenceBankMaxSize, sequenceBankRefillPercent)
+        if (entitySequenceBankCache.putIfAbsent(seqName, newBank)) return newBank
+        // another thread got there first, use the one in the cache
+        sequenceBank = (EntitySequenceBank) entitySequenceBankCache.get(seqName)
+        return sequenceBank != null ? sequenceBank : newBank
     }
     protected String dbSequencedIdPrimary(String seqName, long staggerMax, long bankSize) {
-
-        // TODO: find some way to get this running non-synchronized for performance reasons (right now if not
-        // TODO:     synchronized the forUpdate won't help if the record doesn't exist yet, causing errors in high
-        // TODO:     traffic creates; is it creates only?)
-
-        Lock dbSequenceLock = getDbSequenceLock(seqName)
-        dbSequenceLock.lock()
-
+        // IDs come from the bank without locking, see EntitySequenceBank for bank reserve and refill details
+        long seqNum = getSequenceBank(seqName, bankSize).nextSeqNum(staggerMax)
+        return sequencedIdPrefix != null ? sequencedIdPrefix + seqNum : seqNum
+    }
+    /** Reserve a bank of bankSize + 1 sequenced IDs starting at minFirst or later in a separate transaction.
+     * Returns an array of 2 longs, the first and last IDs in the bank. */
+    long[] dbSequenceReserveBank(String seqName, long minFirst, long bankSize) {
+        long[] bank = new long[2]
+        bank[0] = minFirst
         // NOTE: simple approach with forUpdate, not using the update/select "ethernet" approach used in OFBiz; consider
         // that in the future if there are issues with this approach
-
-        try {
-            // first get a bank if we don't have one already
-            long[] bank = (long[]) entitySequenceBankCache.get(seqName)
-            if (bank == null || bank[0] > bank[1]) {
-                if (bank == null) {
-                    bank = new long[2]
-                    bank[0] = 0
-                    bank[1] = -1
-                    entitySequenceBankCache.put(seqName, bank)
+        ecfi.transactionFacade.runRequireNew(null, "Error getting primary sequenced ID", true, true, {
+            ArtifactExecutionFacadeImpl aefi = ecfi.getEci().artifactExecutionFacade
+            boolean enableAuthz = !aefi.disableAuthz()
+            try {
+                EntityValue svi = find("moqui.entity.SequenceValueItem").condition("seqName", seqName)
+                        .useCache(false).forUpdate(true).one()
+                if (svi == null) {
+                    svi = makeValue("moqui.entity.SequenceValueItem")
+                    svi.set("seqName", seqName)
+                    // a new tradition: start sequenced values at one hundred thousand instead of ten thousand
+                    bank[0] = Math.max(100000L, minFirst)
+                    bank[1] = bank[0] + bankSize
+                    svi.set("seqNum", bank[1])
+                    svi.create()
+                } else {
+                    Long lastSeqNum = svi.getLong("seqNum")
+                    bank[0] = (lastSeqNum >= bank[0] ? lastSeqNum + 1L : bank[0])
+                    bank[1] = bank[0] + bankSize
+                    svi.set("seqNum", bank[1])
+                    svi.update()
                 }
-
-                ecfi.transactionFacade.runRequireNew(null, "Error getting primary sequenced ID", true, true, {
-                    ArtifactExecutionFacadeImpl aefi = ecfi.getEci().artifactExecutionFacade
-                    boolean enableAuthz = !aefi.disableAuthz()
-                    try {
-                        EntityValue svi = find("moqui.entity.SequenceValueItem").condition("seqName", seqName)
-                                .useCache(false).forUpdate(true).one()
-                        if (svi == null) {
-                            svi = makeValue("moqui.entity.SequenceValueItem")
-                            svi.set("seqName", seqName)
-                            // a new tradition: start sequenced values at one hundred thousand instead of ten thousand
-                            bank[0] = 100000L
-                            bank[1] = bank[0] + bankSize
-                            svi.set("seqNum", bank[1])
-                            svi.create()
-                        } else {
-                            Long lastSeqNum = svi.getLong("seqNum")
-                            bank[0] = (lastSeqNum > bank[0] ? lastSeqNum + 1L : bank[0])
-                            bank[1] = bank[0] + bankSize
-                            svi.set("seqNum", bank[1])
-                            svi.update()
-                        }
-                    } finally {
-                        if (enableAuthz) aefi.enableAuthz()
-                    }
-                })
-            }
-
-            long seqNum = bank[0]
-            if (staggerMax > 1L) {
-                long stagger = Math.round(Math.random() * staggerMax)
-                bank[0] = seqNum + stagger
-                // NOTE: if bank[0] > bank[1] because of this just leave it and the next time we try to get a sequence
-                //     value we'll get one from a new bank
-            } else {
-                bank[0] = seqNum + 1L
+            } finally {
+                if (enableAuthz) aefi.enableAuthz()
             }
-
-            return sequencedIdPrefix != null ? sequencedIdPrefix + seqNum : seqNum
-        } finally {
-            dbSequenceLock.unlock()
-        }
+        })
+        return bank
     }
 
     Set<String> getAllEntityNamesInGroup(String groupName) {
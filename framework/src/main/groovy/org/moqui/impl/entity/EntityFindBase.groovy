@@ -13,6 +13,8 @@
  */
 package org.moqui.impl.entity
 
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
 import groovy.transform.CompileStatic
 import org.moqui.BaseException
 import org.moqui.context.ArtifactAuthorizationException
@@ -35,6 +37,7 @@ import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 
 import javax.cache.Cache
+import java.nio.charset.StandardCharsets
 import java.sql.ResultSet
 import java.sql.SQLException
 import java.sql.Timestamp
@@ -74,6 +77,12 @@ abstract class EntityFindBase implements EntityFind {
     protected boolean distinct = false
     protected Integer offset = (Integer) null
     protected Integer limit = (Integer) null
+    protected Map<String, Object> keysetValues = (Map<String, Object>) null
+    protected List<String> keysetCursorOrderBy = (List<String>) null
+    // for listWithCount(), selectCountOver is only true while it runs the list
+    protected boolean selectCountOver = false
+    protected Long countOverValue = (Long) null
+    protected Long totalCount = (Long) null
     protected boolean forUpdate = false
     protected boolean useClone = false
 
@@ -616,6 +625,141 @@ abstract class EntityFindBase implements EntityFind {
     @Override int getPageIndex() { return offset == null ? 0 : (offset/getPageSize()).intValue() }
     @Override int getPageSize() { return limit != null ? limit : 20 }
 
+    // ======================== Keyset Pagination =============================
+
+    @Override EntityFind keysetAfter(Map<String, Object> lastValues) {
+        keysetValues = lastValues != null ? new HashMap<String, Object>(lastValues) : (Map<String, Object>) null
+        keysetCursorOrderBy = (List<String>) null
+        if (keysetValues != null) offset = (Integer) null
+        return this
+    }
+    @Override EntityFind keysetCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) return this
+        Map cursorMap
+        try {
+            cursorMap = (Map) new JsonSlurper().parseText(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8))
+        } catch (Exception e) {
+            throw new EntityException("Invalid keyset cursor for entity ${entityName}", e)
+        }
+        List<String> cursorOrderBy = (List<String>) cursorMap.get("o")
+        List<String> cursorValues = (List<String>) cursorMap.get("v")
+        if (cursorOrderBy == null || cursorValues == null || cursorOrderBy.size() != cursorValues.size())
+            throw new EntityException("Invalid keyset cursor for entity ${entityName}")
+
+        EntityDefinition ed = getEntityDef()
+        Map<String, Object> lastValues = new HashMap<>()
+        int cobSize = cursorOrderBy.size()
+        for (int i = 0; i < cobSize; i++) {
+            String fieldName = new FieldOrderOptions(cursorOrderBy.get(i)).getFieldName()
+            FieldInfo fi = ed.getFieldInfo(fieldName)
+            if (fi == null) throw new EntityException("Invalid keyset cursor for entity ${entityName}, field ${fieldName} not found")
+            lastValues.put(fieldName, keysetValueFromString(fi, cursorValues.get(i)))
+        }
+        keysetAfter(lastValues)
+        keysetCursorOrderBy = cursorOrderBy
+        return this
+    }
+    @Override String makeKeysetCursor(Map<String, Object> lastValue) {
+        if (lastValue == null) return null
+        EntityDefinition ed = getEntityDef()
+        ArrayList<String> keysetOrderBy = makeKeysetOrderBy(ed)
+        int kobSize = keysetOrderBy.size()
+        ArrayList<String> valueList = new ArrayList<>(kobSize)
+        for (int i = 0; i < kobSize; i++) {
+            FieldOrderOptions foo = new FieldOrderOptions(keysetOrderBy.get(i))
+            String fieldName = foo.getFieldName()
+            if (foo.getCaseUpperLower() != null || !isKeysetField(ed.getFieldInfo(fieldName))) return null
+            Object value = lastValue.get(fieldName)
+            if (value == null) return null
+            valueList.add(keysetValueToString(value))
+        }
+        String cursorJson = JsonOutput.toJson([o:keysetOrderBy, v:valueList])
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursorJson.getBytes(StandardCharsets.UTF_8))
+    }
+
+    /** The order by for keyset pagination: the order by fields plus any primary key fields not already included */
+    protected ArrayList<String> makeKeysetOrderBy(EntityDefinition ed) {
+        ArrayList<String> keysetOrderBy = orderByFields != null ? new ArrayList<String>(orderByFields) : new ArrayList<String>()
+        Set<String> orderByNames = new HashSet<>()
+        for (String orderBy in keysetOrderBy) orderByNames.add(new FieldOrderOptions(orderBy).getFieldName())
+        for (String pkName in ed.getPkFieldNames()) if (!orderByNames.contains(pkName)) keysetOrderBy.add(pkName)
+        return keysetOrderBy
+    }
+    /** Keyset order by fields must be primary key or not-null fields, with nulls records would be skipped (where nulls
+     * sort is database specific and the seek condition never matches null) */
+    protected static boolean isKeysetField(FieldInfo fi) {
+        return fi != null && (fi.isPk || "true".equals(fi.fieldNode.attribute("not-null")))
+    }
+    /** If keyset values are set put the keyset order by first in orderByExpanded and add the seek condition to whereCondition */
+    protected EntityConditionImplBase addKeysetCondition(EntityDefinition ed, EntityConditionImplBase whereCondition, ArrayList<String> orderByExpanded) {
+        if (keysetValues == null) return whereCondition
+        ArrayList<String> keysetOrderBy = makeKeysetOrderBy(ed)
+        if (keysetCursorOrderBy != null && keysetCursorOrderBy != keysetOrderBy)
+            throw new EntityException("Keyset cursor for order by ${keysetCursorOrderBy} does not match find order by ${keysetOrderBy} on entity ${ed.fullEntityName}")
+
+        // the keyset order by is unique, any other order by fields (like from the view-entity) come after and don't matter
+        ArrayList<String> otherOrderBy = new ArrayList<>(orderByExpanded)
+        otherOrderBy.removeAll(keysetOrderBy)
+        orderByExpanded.clear()
+        orderByExpanded.addAll(keysetOrderBy)
+        orderByExpanded.addAll(otherOrderBy)
+
+        // (f1 > v1) OR (f1 = v1 AND f2 > v2) OR ... with < for descending fields, plus f1 >= v1 which databases can use with an index
+        int kobSize = keysetOrderBy.size()
+        ArrayList<EntityConditionImplBase> orList = new ArrayList<>(kobSize)
+        ArrayList<EntityConditionImplBase> equalsList = new ArrayList<>(kobSize)
+        EntityConditionImplBase leadingCond = (EntityConditionImplBase) null
+        for (int i = 0; i < kobSize; i++) {
+            FieldOrderOptions foo = new FieldOrderOptions(keysetOrderBy.get(i))
+            String fieldName = foo.getFieldName()
+            FieldInfo fi = ed.getFieldInfo(fieldName)
+            if (fi == null) throw new EntityException("Keyset order by field ${fieldName} not found in entity ${ed.fullEntityName}")
+            if (foo.getCaseUpperLower() != null)
+                throw new EntityException("Keyset pagination not supported with case insensitive order by on field ${fieldName} in entity ${ed.fullEntityName}")
+            if (!isKeysetField(fi))
+                throw new EntityException("Keyset pagination not supported with order by on field ${fieldName} in entity ${ed.fullEntityName}, not a primary key or not-null field")
+            Object value = keysetValues.get(fieldName)
+            if (value == null) throw new EntityException("Keyset pagination requires a value for order by field ${fieldName} in entity ${ed.fullEntityName}")
+
+            ArrayList<EntityConditionImplBase> termList = new ArrayList<>(equalsList)
+            termList.add(new FieldValueCondition(fi.conditionField, foo.getDescending() ? EntityCondition.LESS_THAN : EntityCondition.GREATER_THAN, value))
+            orList.add(termList.size() == 1 ? termList.get(0) : new ListCondition(termList, EntityCondition.AND))
+            equalsList.add(new FieldValueCondition(fi.conditionField, EntityCondition.EQUALS, value))
+            if (i == 0 && kobSize > 1) leadingCond = new FieldValueCondition(fi.conditionField,
+                    foo.getDescending() ? EntityCondition.LESS_THAN_EQUAL_TO : EntityCondition.GREATER_THAN_EQUAL_TO, value)
+        }
+        EntityConditionImplBase keysetCond = orList.size() == 1 ? orList.get(0) : new ListCondition(orList, EntityCondition.OR)
+        if (leadingCond != null) keysetCond = new ListCondition([leadingCond, keysetCond] as ArrayList<EntityConditionImplBase>, EntityCondition.AND)
+        return EntityConditionFactoryImpl.makeConditionImpl(whereCondition, EntityCondition.AND, keysetCond)
+    }
+    protected static String keysetValueToString(Object value) {
+        // Timestamp getTime() has millis only, add the nanos so a cursor on a value with micros/nanos is exact
+        if (value instanceof Timestamp) return Long.toString(((Timestamp) value).getTime()) + ":" + ((Timestamp) value).getNanos()
+        if (value instanceof java.util.Date) return Long.toString(((java.util.Date) value).getTime())
+        if (value instanceof BigDecimal) return ((BigDecimal) value).toPlainString()
+        return value.toString()
+    }
+    protected static Object keysetValueFromString(FieldInfo fi, String value) {
+        switch (fi.typeValue) {
+            case 2:
+                int nanosIdx = value.indexOf(':')
+                if (nanosIdx == -1) return new Timestamp(Long.parseLong(value))
+                Timestamp ts = new Timestamp(Long.parseLong(value.substring(0, nanosIdx)))
+                ts.setNanos(Integer.parseInt(value.substring(nanosIdx + 1)))
+                return ts
+            case 3: return new java.sql.Time(Long.parseLong(value))
+            case 4: return new java.sql.Date(Long.parseLong(value))
+            case 5: return Integer.valueOf(value)
+            case 6: return Long.valueOf(value)
+            case 7: return Float.valueOf(value)
+            case 8: return Double.valueOf(value)
+            case 9: return new BigDecimal(value)
+            case 10: return Boolean.valueOf(value)
+            case 14: return new java.util.Date(Long.parseLong(value))
+            default: return value
+        }
+    }
+
     @Override
     EntityFind forUpdate(boolean forUpdate) {
         this.forUpdate = forUpdate
@@ -658,6 +802,7 @@ abstract class EntityFindBase implements EntityFind {
         if (dynamicView != null) return false
         if (havingEntityCondition != null) return false
         if (limit != null || offset != null) return false
+        if (keysetValues != null) return false
         if (forUpdate) return false
         if (useCache != null) {
             boolean useCacheLocal = useCache.booleanValue()
@@ -1008,6 +1153,61 @@ abstract class EntityFindBase implements EntityFind {
             if (enableAuthz) aefi.enableAuthz()
         }
     }
+    @Override
+    EntityList listWithCount(boolean useCountCache) throws EntityException {
+        totalCount = (Long) null
+        EntityDefinition ed = getEntityDef()
+        boolean fromCache = shouldCache()
+
+        // the count does not depend on offset, limit, or order by so is the same for all pages; with keyset values the
+        //     count comes from count() which does not add the keyset condition; the user is in the key because authz
+        //     filters are added when the SQL is built
+        Cache<List<Object>, Long> listCountCache = useCountCache && !fromCache ? efi.listCountCache : (Cache<List<Object>, Long>) null
+        List<Object> countKey = (List<Object>) null
+        if (listCountCache != null) {
+            countKey = [ed.getFullEntityName(), getWhereEntityConditionInternal(ed), havingEntityCondition, distinct,
+                    fieldsToSelect != null ? new ArrayList<String>(fieldsToSelect) : null, efi.ecfi.getEci().userFacade.getUserId()] as List<Object>
+            Long cachedCount = listCountCache.get(countKey)
+            if (cachedCount != null) {
+                EntityList el = list()
+                totalCount = cachedCount
+                return el
+            }
+        }
+
+        MNode databaseNode = efi.getDatabaseNode(ed.getEntityGroupName())
+        // with keyset values COUNT(*) OVER would count only the records after the cursor, use count() for the total
+        boolean useCountOver = !fromCache && keysetValues == null && databaseNode != null &&
+                "true".equals(databaseNode.attribute("count-over")) && !"cursor".equals(databaseNode.attribute("offset-style"))
+        EntityList el
+        countOverValue = (Long) null
+        selectCountOver = useCountOver
+        try {
+            el = list()
+        } finally {
+            selectCountOver = false
+        }
+
+        long foundCount
+        int elSize = el.size()
+        int curOffset = offset != null ? offset.intValue() : 0
+        if (countOverValue != null) {
+            foundCount = countOverValue.longValue()
+        } else if (keysetValues == null && (limit == null || elSize < limit.intValue()) && (elSize > 0 || curOffset == 0)) {
+            // got the last page, or all records, so the count is known
+            foundCount = curOffset + elSize
+        } else {
+            // no rows read for the count (page after the last, from the tx cache, etc), distinct, or not supported
+            foundCount = count()
+        }
+        countOverValue = (Long) null
+
+        if (listCountCache != null) listCountCache.put(countKey, foundCount)
+        totalCount = foundCount
+        return el
+    }
+    @Override Long getTotalCount() { return totalCount }
+
     @Override
     List<Map<String, Object>> listMaster(String name) {
         ExecutionContextImpl ec = efi.ecfi.getEci()
@@ -1075,6 +1275,7 @@ abstract class EntityFindBase implements EntityFind {
         EntityConditionImplBase whereCondition = getWhereEntityConditionInternal(ed)
         // don't cache if no whereCondition
         if (whereCondition == null) doEntityCache = false
+        whereCondition = addKeysetCondition(ed, whereCondition, orderByExpanded)
 
         // try the txCache first, more recent than general cache (and for update general cache entries will be cleared anyway)
         EntityListImpl txcEli = txCache != null ? txCache.listGet(ed, whereCondition, orderByExpanded) : (EntityListImpl) null
@@ -1156,6 +1357,7 @@ abstract class EntityFindBase implements EntityFind {
                 } else {
                     el = (EntityListImpl) eli.getCompleteList(false);
                 }
+                if (selectCountOver && eli instanceof EntityListIteratorImpl) countOverValue = ((EntityListIteratorImpl) eli).getCountOver()
             }
             catch (SQLException e) { throw new EntitySqlException(makeErrorMsg("Error finding list of", LIST_ERROR, queryWhereCondition, ed, ec), e) }
             catch (ArtifactAuthorizationException e) { throw e }
@@ -1276,6 +1478,7 @@ abstract class EntityFindBase implements EntityFind {
         // NOTE: artifactExecutionFacade.filterFindForUser() no longer called here, called in EntityFindBuilder after trimming if needed for view-entity
 
         EntityConditionImplBase whereCondition = getWhereEntityConditionInternal(ed)
+        whereCondition = addKeysetCondition(ed, whereCondition, orderByExpanded)
         EntityConditionImplBase havingCondition = havingEntityCondition
         if (isViewEntity) {
             EntityConditionImplBase viewWhere = ed.makeViewWhereCondition()
@@ -17,15 +17,19 @@ import org.moqui.BaseArtifactException;
 import org.moqui.entity.EntityCondition;
 import org.moqui.entity.EntityException;
 import org.moqui.impl.entity.condition.EntityConditionImplBase;
+import org.moqui.impl.entity.EntityJavaUtil.EntityConditionParameter;
 import org.moqui.impl.entity.EntityJavaUtil.FieldOrderOptions;
 import org.moqui.util.MNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.cache.Cache;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -36,6 +40,9 @@ public class EntityFindBuilder extends EntityQueryBuilder {
     private EntityFindBase entityFindBase;
     private EntityConditionImplBase whereCondition;
     private FieldInfo[] fieldInfoArray;
+    /** filterFindForUser() calls while building the FROM clause, replayed for a cached SqlShape */
+    private ArrayList<ShapeFilterCall> filterCalls = null;
+    private boolean filterAddedConditions = false;
 
     public EntityFindBuilder(EntityDefinition entityDefinition, EntityFindBase entityFindBase,
                              EntityConditionImplBase whereCondition, FieldInfo[] fieldInfoArray) {
@@ -50,6 +57,200 @@ public class EntityFindBuilder extends EntityQueryBuilder {
 
     public void makeDistinct() { sqlTopLevel.append("DISTINCT "); }
 
+    private ArrayList<EntityConditionImplBase> filterFindForUser(EntityDefinition localEd, Set<String> entityAliasUsedSet) {
+        ArrayList<EntityConditionImplBase> filterCondList = efi.ecfi.getEci().artifactExecutionFacade.filterFindForUser(localEd, entityAliasUsedSet);
+        if (filterCalls != null) filterCalls.add(new ShapeFilterCall(localEd, entityAliasUsedSet != null ? new HashSet<>(entityAliasUsedSet) : null));
+        if (filterCondList != null && filterCondList.size() > 0) filterAddedConditions = true;
+        return filterCondList;
+    }
+
+    /* ========== SQL shape cache ==========
+     * For view-entities building the select list, FROM clause with joins (trimmed to the member-entities used), GROUP BY
+     * and ORDER BY is most of the SQL building time. These parts only depend on the query shape (entity, fields selected,
+     * fields referred to in conditions, order by, limit/offset used) and not on condition values, so they are cached in
+     * the entity.sql.shape cache by SqlShapeKey. The WHERE and HAVING clauses are still built for each query so the
+     * parameters are always in the same order as the SQL. Shapes are only cached when the FROM clause has no parameters
+     * (view member entity-condition values) and no authz filter conditions; authz filters are checked again on each hit
+     * and if any apply the SQL is built without the cache. */
+
+    /** Make the SQL for a find list or find one, using the shape cache for view-entities; if countOver is true adds a
+     * COUNT(*) OVER () column after the fields with the total count ignoring limit/offset */
+    public void makeSelectSql(boolean isDistinct, FieldOrderOptions[] fieldOptionsArray, boolean addUniqueAs,
+                              EntityConditionImplBase havingCondition, ArrayList<String> orderByExpanded,
+                              Integer limit, Integer offset, boolean forUpdate, boolean isOne, boolean countOver) {
+        boolean hasLimitOffset = limit != null || offset != null;
+        SqlShapeKey shapeKey = makeShapeKey(isOne ? 'O' : (countOver ? 'W' : 'S'), isDistinct, false, fieldOptionsArray, addUniqueAs,
+                havingCondition, orderByExpanded, hasLimitOffset);
+        Cache<SqlShapeKey, SqlShape> shapeCache = shapeKey != null ? efi.getSqlShapeCache() : null;
+        SqlShape shape = shapeCache != null ? shapeCache.get(shapeKey) : null;
+        if (shape != null && shape.filtersApply(efi)) shape = null;
+
+        if (shape != null) {
+            sqlTopLevel.setLength(0);
+            sqlTopLevel.append(shape.selectFrom);
+            makeWhereClause();
+            sqlTopLevel.append(shape.groupBy);
+            if (!isOne) {
+                makeHavingClause(havingCondition);
+                sqlTopLevel.append(shape.orderBy);
+            }
+        } else {
+            if (shapeKey != null) filterCalls = new ArrayList<>();
+            if (isDistinct) makeDistinct();
+            makeSqlSelectFields(fieldInfoArray, fieldOptionsArray, addUniqueAs);
+            // total count as a window function column after the fields, see EntityFind.listWithCount()
+            if (countOver) sqlTopLevel.append(", COUNT(*) OVER ()");
+            makeSqlFromClause();
+            String selectFrom = sqlTopLevel.toString();
+            boolean cacheable = shapeKey != null && parameters.size() == 0 && !filterAddedConditions;
+
+            makeWhereClause();
+            int groupByStart = sqlTopLevel.length();
+            makeGroupByClause();
+            String groupBy = sqlTopLevel.substring(groupByStart);
+            String orderBy = "";
+            if (!isOne) {
+                makeHavingClause(havingCondition);
+                int orderByStart = sqlTopLevel.length();
+                makeOrderByClause(orderByExpanded, hasLimitOffset);
+                orderBy = sqlTopLevel.substring(orderByStart);
+            }
+            if (cacheable) shapeCache.put(shapeKey, new SqlShape(selectFrom, groupBy, orderBy, filterCalls));
+            filterCalls = null;
+        }
+
+        if (!isOne && hasLimitOffset) addLimitOffset(limit, offset);
+        if (forUpdate) makeForUpdate();
+    }
+
+    /** Make the SQL for a count, using the shape cache for view-entities */
+    public void makeCountSql(FieldOrderOptions[] fieldOptionsArray, EntityConditionImplBase havingCondition,
+                             boolean isDistinct, boolean isGroupBy) {
+        SqlShapeKey shapeKey = makeShapeKey('C', isDistinct, isGroupBy, fieldOptionsArray, false,
+                havingCondition, null, false);
+        Cache<SqlShapeKey, SqlShape> shapeCache = shapeKey != null ? efi.getSqlShapeCache() : null;
+        SqlShape shape = shapeCache != null ? shapeCache.get(shapeKey) : null;
+        if (shape != null && shape.filtersApply(efi)) shape = null;
+
+        if (shape != null) {
+            sqlTopLevel.setLength(0);
+            sqlTopLevel.append(shape.selectFrom);
+            makeWhereClause();
+            sqlTopLevel.append(shape.groupBy);
+        } else {
+            if (shapeKey != null) filterCalls = new ArrayList<>();
+            makeCountFunction(fieldOptionsArray, isDistinct, isGroupBy);
+            makeSqlFromClause();
+            String selectFrom = sqlTopLevel.toString();
+            boolean cacheable = shapeKey != null && parameters.size() == 0 && !filterAddedConditions;
+
+            makeWhereClause();
+            int groupByStart = sqlTopLevel.length();
+            makeGroupByClause();
+            String groupBy = sqlTopLevel.substring(groupByStart);
+            if (cacheable) shapeCache.put(shapeKey, new SqlShape(selectFrom, groupBy, "", filterCalls));
+            filterCalls = null;
+        }
+        makeHavingClause(havingCondition);
+        closeCountSubSelect(fieldInfoArray.length, isDistinct, isGroupBy);
+    }
+
+    /** Returns null if this find should not use the shape cache: not a view-entity, a dynamic view, or sub-select
+     * members (where conditions go in the FROM clause) */
+    private SqlShapeKey makeShapeKey(char mode, boolean isDistinct, boolean isGroupBy, FieldOrderOptions[] fieldOptionsArray,
+            boolean addUniqueAs, EntityConditionImplBase havingCondition, ArrayList<String> orderByExpanded, boolean hasLimitOffset) {
+        EntityDefinition ed = mainEntityDefinition;
+        if (!ed.isViewEntity || ed.hasSubSelectMembers || entityFindBase.dynamicView != null) return null;
+        if (efi.getSqlShapeCache() == null) return null;
+
+        Set<String> condAliases = new HashSet<>(), condFields = new HashSet<>();
+        if (whereCondition != null) whereCondition.getAllAliases(condAliases, condFields);
+        if (havingCondition != null) havingCondition.getAllAliases(condAliases, condFields);
+
+        String fieldOptions = null;
+        if (fieldOptionsArray != null) {
+            StringBuilder optionsBuilder = new StringBuilder(fieldOptionsArray.length);
+            for (int i = 0; i < fieldOptionsArray.length; i++) {
+                FieldOrderOptions foo = fieldOptionsArray[i];
+                Boolean caseUpperLower = foo != null ? foo.getCaseUpperLower() : null;
+                optionsBuilder.append(caseUpperLower == null ? '_' : (caseUpperLower ? 'U' : 'L'));
+            }
+            fieldOptions = optionsBuilder.toString();
+        }
+        ArrayList<String> findOrderBy = entityFindBase.orderByFields;
+        return new SqlShapeKey(ed, mode, isDistinct, isGroupBy, hasLimitOffset, addUniqueAs, fieldInfoArray, fieldOptions,
+                findOrderBy != null ? new ArrayList<>(findOrderBy) : null,
+                orderByExpanded != null ? new ArrayList<>(orderByExpanded) : null, condAliases, condFields);
+    }
+
+    public static final class SqlShapeKey {
+        private final EntityDefinition ed;
+        private final char mode;
+        private final boolean isDistinct, isGroupBy, hasLimitOffset, addUniqueAs;
+        private final FieldInfo[] fieldInfoArray;
+        private final String fieldOptions;
+        private final ArrayList<String> findOrderBy, orderByExpanded;
+        private final Set<String> condAliases, condFields;
+        private final int hashCode;
+
+        SqlShapeKey(EntityDefinition ed, char mode, boolean isDistinct, boolean isGroupBy, boolean hasLimitOffset,
+                    boolean addUniqueAs, FieldInfo[] fieldInfoArray, String fieldOptions, ArrayList<String> findOrderBy,
+                    ArrayList<String> orderByExpanded, Set<String> condAliases, Set<String> condFields) {
+            this.ed = ed; this.mode = mode; this.isDistinct = isDistinct; this.isGroupBy = isGroupBy;
+            this.hasLimitOffset = hasLimitOffset; this.addUniqueAs = addUniqueAs;
+            this.fieldInfoArray = fieldInfoArray; this.fieldOptions = fieldOptions;
+            this.findOrderBy = findOrderBy; this.orderByExpanded = orderByExpanded;
+            this.condAliases = condAliases; this.condFields = condFields;
+            int hash = System.identityHashCode(ed);
+            hash = 31 * hash + mode;
+            hash = 31 * hash + (isDistinct ? 1 : 0) + (isGroupBy ? 2 : 0) + (hasLimitOffset ? 4 : 0) + (addUniqueAs ? 8 : 0);
+            hash = 31 * hash + Arrays.hashCode(fieldInfoArray);
+            hash = 31 * hash + Objects.hashCode(fieldOptions);
+            hash = 31 * hash + Objects.hashCode(findOrderBy);
+            hash = 31 * hash + Objects.hashCode(orderByExpanded);
+            hash = 31 * hash + condFields.hashCode();
+            hashCode = hash;
+        }
+
+        @Override public int hashCode() { return hashCode; }
+        @Override public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof SqlShapeKey)) return false;
+            SqlShapeKey that = (SqlShapeKey) o;
+            return hashCode == that.hashCode && ed == that.ed && mode == that.mode && isDistinct == that.isDistinct &&
+                    isGroupBy == that.isGroupBy && hasLimitOffset == that.hasLimitOffset && addUniqueAs == that.addUniqueAs &&
+                    Arrays.equals(fieldInfoArray, that.fieldInfoArray) && Objects.equals(fieldOptions, that.fieldOptions) &&
+                    Objects.equals(findOrderBy, that.findOrderBy) && Objects.equals(orderByExpanded, that.orderByExpanded) &&
+                    condAliases.equals(that.condAliases) && condFields.equals(that.condFields);
+        }
+        @Override public String toString() { return ed.getFullEntityName() + ":" + mode + ":" + condFields + ":" + orderByExpanded; }
+    }
+
+    static final class ShapeFilterCall {
+        final EntityDefinition ed;
+        final Set<String> entityAliasUsedSet;
+        ShapeFilterCall(EntityDefinition ed, Set<String> entityAliasUsedSet) { this.ed = ed; this.entityAliasUsedSet = entityAliasUsedSet; }
+    }
+
+    public static final class SqlShape {
+        final String selectFrom, groupBy, orderBy;
+        private final ShapeFilterCall[] filterCalls;
+        SqlShape(String selectFrom, String groupBy, String orderBy, ArrayList<ShapeFilterCall> filterCallList) {
+            this.selectFrom = selectFrom; this.groupBy = groupBy; this.orderBy = orderBy;
+            this.filterCalls = filterCallList != null ? filterCallList.toArray(new ShapeFilterCall[0]) : new ShapeFilterCall[0];
+        }
+        /** True if any authz filter applies for the current user, then the cached shape can't be used */
+        boolean filtersApply(EntityFacadeImpl efi) {
+            for (int i = 0; i < filterCalls.length; i++) {
+                ShapeFilterCall call = filterCalls[i];
+                ArrayList<EntityConditionImplBase> filterCondList = efi.ecfi.getEci().artifactExecutionFacade
+                        .filterFindForUser(call.ed, call.entityAliasUsedSet != null ? new HashSet<>(call.entityAliasUsedSet) : null);
+                if (filterCondList != null && filterCondList.size() > 0) return true;
+            }
+            return false;
+        }
+    }
+
     public void makeCountFunction(FieldOrderOptions[] fieldOptionsArray, boolean isDistinct, boolean isGroupBy) {
         int fiaLength = fieldInfoArray.length;
         if (isGroupBy || (isDistinct && fiaLength > 0)) {
@@ -196,7 +397,7 @@ public class EntityFindBuilder extends EntityQueryBuilder {
             // logger.warn("============== entityAliasUsedSet=${entityAliasUsedSet} for entity ${localEntityDefinition.entityName}\nfieldUsedSet=${fieldUsedSet}\n fieldInfoList=${fieldInfoList}\n orderByFields=${entityFindBase.orderByFields}")
 
             // at this point entityAliasUsedSet is finalized so do authz filter if needed
-            ArrayList<EntityConditionImplBase> filterCondList = efi.ecfi.getEci().artifactExecutionFacade.filterFindForUser(localEntityDefinition, entityAliasUsedSet);
+            ArrayList<EntityConditionImplBase> filterCondList = filterFindForUser(localEntityDefinition, entityAliasUsedSet);
             outWhereCondition = EntityConditionFactoryImpl.addAndListToCondition(outWhereCondition, filterCondList);
 
             // keep a set of all aliases in the join so far and if the left entity alias isn't there yet, and this
@@ -319,7 +520,7 @@ public class EntityFindBuilder extends EntityQueryBuilder {
             }
         } else {
             // not a view-entity so do authz filter now if needed
-            ArrayList<EntityConditionImplBase> filterCondList = efi.ecfi.getEci().artifactExecutionFacade.filterFindForUser(localEntityDefinition, null);
+            ArrayList<EntityConditionImplBase> filterCondList = filterFindForUser(localEntityDefinition, null);
             outWhereCondition = EntityConditionFactoryImpl.addAndListToCondition(outWhereCondition, filterCondList);
 
             localBuilder.append(localEntityDefinition.getFullTableName());
@@ -743,19 +944,42 @@ public class EntityFindBuilder extends EntityQueryBuilder {
         // if no databaseNode do nothing, means it is not a standard SQL/JDBC database
         if (databaseNode != null) {
             String offsetStyle = databaseNode.attribute("offset-style");
+            // bind parameters by default so the SQL is the same for all pages (for database and JDBC statement caches)
+            boolean useParameters = !"false".equals(databaseNode.attribute("offset-parameters"));
+            int offsetValue = offset != null ? offset : 0;
             if ("limit".equals(offsetStyle)) {
                 // use the LIMIT/OFFSET style
-                sqlTopLevel.append(" LIMIT ").append(limit != null && limit > 0 ? limit : "ALL");
-                sqlTopLevel.append(" OFFSET ").append(offset != null ? offset : 0);
+                if (limit != null && limit > 0) {
+                    if (useParameters) { sqlTopLevel.append(" LIMIT ?"); parameters.add(new LimitOffsetParameter(limit, this)); }
+                    else { sqlTopLevel.append(" LIMIT ").append(limit); }
+                } else {
+                    sqlTopLevel.append(" LIMIT ALL");
+                }
+                if (useParameters) { sqlTopLevel.append(" OFFSET ?"); parameters.add(new LimitOffsetParameter(offsetValue, this)); }
+                else { sqlTopLevel.append(" OFFSET ").append(offsetValue); }
             } else if (offsetStyle == null || offsetStyle.length() == 0 || "fetch".equals(offsetStyle)) {
                 // use SQL2008 OFFSET/FETCH style by default
-                sqlTopLevel.append(" OFFSET ").append(offset != null ? offset.toString() : '0').append(" ROWS");
-                if (limit != null) sqlTopLevel.append(" FETCH FIRST ").append(limit).append(" ROWS ONLY");
+                if (useParameters) { sqlTopLevel.append(" OFFSET ? ROWS"); parameters.add(new LimitOffsetParameter(offsetValue, this)); }
+                else { sqlTopLevel.append(" OFFSET ").append(offsetValue).append(" ROWS"); }
+                if (limit != null) {
+                    if (useParameters) { sqlTopLevel.append(" FETCH FIRST ? ROWS ONLY"); parameters.add(new LimitOffsetParameter(limit, this)); }
+                    else { sqlTopLevel.append(" FETCH FIRST ").append(limit).append(" ROWS ONLY"); }
+                }
             }
             // do nothing here for offset-style=cursor, taken care of in EntityFindImpl
         }
     }
 
+    /** Parameter for a LIMIT or OFFSET value, an int with no field */
+    static class LimitOffsetParameter extends EntityConditionParameter {
+        LimitOffsetParameter(int value, EntityQueryBuilder eqb) { super(null, value, eqb); }
+        @Override void setPreparedStatementValue(int index) throws EntityException {
+            try { eqb.ps.setInt(index, (Integer) value); }
+            catch (SQLException e) { throw new EntityException("Error setting limit/offset parameter " + index + " to " + value, e); }
+        }
+        @Override public String toString() { return "limitOffset:" + value; }
+    }
+
     /** Adds FOR UPDATE, should be added to end of query */
     public void makeForUpdate() {
         MNode databaseNode = efi.getDatabaseNode(mainEntityDefinition.getEntityGroupName());
@@ -774,10 +998,11 @@ public class EntityFindBuilder extends EntityQueryBuilder {
         // if (this.mainEntityDefinition.getEntityName().contains("FooBar")) logger.warn("========= making find PreparedStatement for SQL: " + finalSql + "; parameters: " + parameters);
         if (isDebugEnabled) logger.debug("making find PreparedStatement for SQL: " + finalSql);
         try {
-            ps = connection.prepareStatement(finalSql, entityFindBase.getResultSetType(), entityFindBase.getResultSetConcurrency());
+            ps = prepareStatement(finalSql, entityFindBase.getResultSetType(), entityFindBase.getResultSetConcurrency());
             Integer maxRows = entityFindBase.getMaxRows();
             Integer fetchSize = entityFindBase.getFetchSize();
-            if (maxRows != null && maxRows > 0) ps.setMaxRows(maxRows);
+            // always set max rows, the statement may be cached and have been used with a different max rows
+            ps.setMaxRows(maxRows != null && maxRows > 0 ? maxRows : 0);
             // NOTE: always set a fetch size, without explicit fetch size some JDBC drivers (like MySQL Connector/J) will try to fetch all rows
             // NOTE: the default here of 1000 is a balance between memory use and network overhead, 100 rows generally being easy to accommodate
             if (fetchSize != null && fetchSize > 0) { ps.setFetchSize(fetchSize); } else { ps.setFetchSize(100); }
@@ -55,17 +55,10 @@ public class EntityFindImpl extends EntityFindBase {
         // flag as a find one, small changes to internal behavior to reduce overhead
         efb.isFindOne();
 
-        // SELECT fields
-        efb.makeSqlSelectFields(fieldInfoArray, fieldOptionsArray, "true".equals(efi.getDatabaseNode(ed.groupName).attribute("add-unique-as")));
-        // FROM Clause
-        efb.makeSqlFromClause();
-        // WHERE clause only for one/pk query
-        efb.makeWhereClause();
-        // GROUP BY clause
-        efb.makeGroupByClause();
+        // SELECT fields, FROM, WHERE, GROUP BY, FOR UPDATE (no HAVING, ORDER BY for one/pk query)
         // NOTE 20200707 don't do this, databases such as Oracle (error ORA-02014) do not allow use of limit/offset with for update: LIMIT/OFFSET clause - for find one always limit to 1: efb.addLimitOffset(1, 0);
-        // FOR UPDATE
-        if (getForUpdate()) efb.makeForUpdate();
+        efb.makeSelectSql(false, fieldOptionsArray, "true".equals(efi.getDatabaseNode(ed.groupName).attribute("add-unique-as")),
+                null, null, null, null, getForUpdate(), true, false);
 
         // run the SQL now that it is built
         EntityValueBase newEntityValue = null;
@@ -114,26 +107,11 @@ public class EntityFindImpl extends EntityFindBase {
         if (!ed.tableExistsDbMetaOnly()) return new EntityListIteratorWrapper(new ArrayList<>(), ed, efi, null, null);
 
         EntityFindBuilder efb = new EntityFindBuilder(ed, this, whereCondition, fieldInfoArray);
-        if (getDistinct()) efb.makeDistinct();
-
-        // select fields
-        efb.makeSqlSelectFields(fieldInfoArray, fieldOptionsArray, "true".equals(efi.getDatabaseNode(ed.groupName).attribute("add-unique-as")));
-        // FROM Clause
-        efb.makeSqlFromClause();
-        // WHERE clause
-        efb.makeWhereClause();
-        // GROUP BY clause
-        efb.makeGroupByClause();
-        // HAVING clause
-        efb.makeHavingClause(havingCondition);
-
-        boolean hasLimitOffset = limit != null || offset != null;
-        // ORDER BY clause
-        efb.makeOrderByClause(orderByExpanded, hasLimitOffset);
-        // LIMIT/OFFSET clause
-        if (hasLimitOffset) efb.addLimitOffset(limit, offset);
-        // FOR UPDATE
-        if (getForUpdate()) efb.makeForUpdate();
+        // the window count would be of rows before DISTINCT, so only for non-distinct finds
+        boolean countOver = selectCountOver && !getDistinct();
+        // SELECT [DISTINCT] fields, FROM, WHERE, GROUP BY, HAVING, ORDER BY, LIMIT/OFFSET, FOR UPDATE
+        efb.makeSelectSql(getDistinct(), fieldOptionsArray, "true".equals(efi.getDatabaseNode(ed.groupName).attribute("add-unique-as")),
+                havingCondition, orderByExpanded, limit, offset, getForUpdate(), false, countOver);
 
         // run the SQL now that it is built
         EntityListIteratorImpl elii;
@@ -149,6 +127,7 @@ public class EntityFindImpl extends EntityFindBase {
 
             ResultSet rs = efb.executeQuery();
             elii = new EntityListIteratorImpl(con, rs, ed, fieldInfoArray, efi, txCache, whereCondition, orderByExpanded);
+            if (countOver) elii.setCountOverIndex(fieldInfoArray.length + 1);
             // ResultSet will be closed in the EntityListIterator
             efb.releaseAll();
             queryTextList.add(efb.finalSql);
@@ -178,18 +157,8 @@ public class EntityFindImpl extends EntityFindBase {
         boolean isDistinct = getDistinct() || (ed.isViewEntity && condNode != null && "true".equals(condNode.attribute("distinct")));
         boolean isGroupBy = ed.entityInfo.hasFunctionAlias;
 
-        // count function instead of select fields
-        efb.makeCountFunction(fieldOptionsArray, isDistinct, isGroupBy);
-        // FROM Clause
-        efb.makeSqlFromClause();
-        // WHERE clause
-        efb.makeWhereClause();
-        // GROUP BY clause
-        efb.makeGroupByClause();
-        // HAVING clause
-        efb.makeHavingClause(havingCondition);
-
-        efb.closeCountSubSelect(fieldInfoArray.length, isDistinct, isGroupBy);
+        // count function instead of select fields, FROM, WHERE, GROUP BY, HAVING
+        efb.makeCountSql(fieldOptionsArray, havingCondition, isDistinct, isGroupBy);
 
         // run the SQL now that it is built
         long count = 0;
@@ -0,0 +1,335 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityCondition.ComparisonOperator;
+import org.moqui.entity.EntityCondition.JoinOperator;
+import org.moqui.impl.entity.condition.BasicJoinCondition;
+import org.moqui.impl.entity.condition.FieldValueCondition;
+import org.moqui.impl.entity.condition.ListCondition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.cache.Cache;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Invalidation index for an entity list cache (entity.record.list.${entityName}). Maps field/value pairs from EQUALS
+ * and IN terms in cached conditions to the cache keys that depend on them so that a create/update/delete only needs
+ * to evaluate the keys it can actually affect. Keys with no indexable terms (ranges, OR only, etc) are kept in a
+ * separate set that is always scanned.
+ *
+ * For entities (matchAny=false) a key is removed when condition.mapMatches() is true for the written record, so one
+ * indexable term from the top-level AND is used as the anchor: if the record doesn't match the anchor the condition
+ * can't match.
+ *
+ * For view-entities (matchAny=true) a key is removed when condition.mapMatchesAny() or condition.mapKeysNotContained()
+ * is true for the member entity record (see EntityCache.clearCacheForValueActual()), so every term is indexed and keys
+ * are grouped by the set of fields they reference to handle the not contained case without checking each key.
+ */
+public class EntityListCacheIndex {
+    protected final static Logger logger = LoggerFactory.getLogger(EntityListCacheIndex.class);
+    private static final Object NULL_VALUE = new Object();
+    private static final int minPruneSize = 1000;
+
+    public final String entityName;
+    public final boolean matchAny;
+
+    // NOTE: all fields below are guarded by this object's monitor
+    private final HashMap<String, HashMap<Object, Set<EntityCondition>>> valueIndex = new HashMap<>();
+    private final HashMap<Set<String>, Set<EntityCondition>> fieldSetIndex = new HashMap<>();
+    private final HashMap<EntityCondition, IndexEntry> entryByKey = new HashMap<>();
+    private final Set<EntityCondition> scanKeys = new HashSet<>();
+    private int pruneSize = minPruneSize;
+
+    private final AtomicLong invalidateCount = new AtomicLong(0);
+    private final AtomicLong keysCheckedCount = new AtomicLong(0);
+    private final AtomicLong keysRemovedCount = new AtomicLong(0);
+    private final AtomicLong scanKeysCheckedCount = new AtomicLong(0);
+    private volatile int lastKeysChecked = 0;
+    private volatile int lastKeysRemoved = 0;
+
+    public EntityListCacheIndex(String entityName, boolean matchAny) {
+        this.entityName = entityName;
+        this.matchAny = matchAny;
+    }
+
+    private static class IndexEntry {
+        final ArrayList<String> fieldNames = new ArrayList<>();
+        final ArrayList<Collection<Object>> fieldValues = new ArrayList<>();
+        Set<String> fieldSet = null;
+        void addTerm(String fieldName, Collection<Object> values) { fieldNames.add(fieldName); fieldValues.add(values); }
+    }
+
+    /** Call after the key is put in the list cache */
+    public void register(EntityCondition key, Cache<EntityCondition, ?> listCache) {
+        if (key == null) return;
+        IndexEntry entry = new IndexEntry();
+        boolean indexable;
+        if (matchAny) {
+            indexable = addAnyTerms(key, entry);
+            if (indexable) entry.fieldSet = Collections.unmodifiableSet(new HashSet<>(entry.fieldNames));
+        } else {
+            indexable = addAnchorTerm(key, entry);
+        }
+
+        synchronized (this) {
+            if (entryByKey.containsKey(key) || scanKeys.contains(key)) return;
+            if (indexable) {
+                entryByKey.put(key, entry);
+                int termSize = entry.fieldNames.size();
+                for (int i = 0; i < termSize; i++) {
+                    HashMap<Object, Set<EntityCondition>> fieldValueMap = valueIndex.computeIfAbsent(entry.fieldNames.get(i), k -> new HashMap<>());
+                    for (Object value : entry.fieldValues.get(i)) fieldValueMap.computeIfAbsent(value, k -> new HashSet<>()).add(key);
+                }
+                if (entry.fieldSet != null) fieldSetIndex.computeIfAbsent(entry.fieldSet, k -> new HashSet<>()).add(key);
+            } else {
+                scanKeys.add(key);
+            }
+
+            if (entryByKey.size() + scanKeys.size() > pruneSize) prune(listCache);
+        }
+    }
+
+    /** Remove cached lists that may be affected by the record in valueMap (member entity field values mapped to
+     * view-entity aliases when matchAny=true). Returns the number of keys removed. */
+    public int invalidate(Map<String, Object> valueMap, Cache<EntityCondition, ?> listCache) {
+        ArrayList<EntityCondition> candidates = new ArrayList<>();
+        ArrayList<EntityCondition> noCheckKeys = null;
+        int scanKeysSize;
+        synchronized (this) {
+            scanKeysSize = scanKeys.size();
+            candidates.addAll(scanKeys);
+            if (matchAny) {
+                Set<String> mapKeys = valueMap.keySet();
+                for (Map.Entry<Set<String>, Set<EntityCondition>> fsEntry : fieldSetIndex.entrySet()) {
+                    // no fields referenced in the condition are in the map, mapKeysNotContained() is true for all keys in group
+                    if (Collections.disjoint(fsEntry.getKey(), mapKeys)) {
+                        if (noCheckKeys == null) noCheckKeys = new ArrayList<>();
+                        noCheckKeys.addAll(fsEntry.getValue());
+                    }
+                }
+                for (Map.Entry<String, Object> mapEntry : valueMap.entrySet()) {
+                    HashMap<Object, Set<EntityCondition>> fieldValueMap = valueIndex.get(mapEntry.getKey());
+                    if (fieldValueMap == null) continue;
+                    Set<EntityCondition> keySet = fieldValueMap.get(indexValue(mapEntry.getValue()));
+                    if (keySet != null) candidates.addAll(keySet);
+                }
+            } else {
+                for (Map.Entry<String, HashMap<Object, Set<EntityCondition>>> fieldEntry : valueIndex.entrySet()) {
+                    Set<EntityCondition> keySet = fieldEntry.getValue().get(indexValue(valueMap.get(fieldEntry.getKey())));
+                    if (keySet != null) candidates.addAll(keySet);
+                }
+            }
+        }
+
+        // evaluate candidates outside the lock, may be a candidate from more than one term so track what is checked
+        int candidatesSize = candidates.size();
+        HashSet<EntityCondition> checkedSet = new HashSet<>(candidatesSize * 2);
+        ArrayList<EntityCondition> touchedKeys = new ArrayList<>();
+        int removed = 0;
+        if (noCheckKeys != null) {
+            int noCheckSize = noCheckKeys.size();
+            for (int i = 0; i < noCheckSize; i++) {
+                EntityCondition key = noCheckKeys.get(i);
+                if (!checkedSet.add(key)) continue;
+                if (listCache.remove(key)) removed++;
+                touchedKeys.add(key);
+            }
+        }
+        for (int i = 0; i < candidatesSize; i++) {
+            EntityCondition key = candidates.get(i);
+            if (!checkedSet.add(key)) continue;
+            boolean matches = matchAny ? (key.mapMatchesAny(valueMap) || key.mapKeysNotContained(valueMap)) : key.mapMatches(valueMap);
+            if (matches) {
+                if (listCache.remove(key)) removed++;
+                touchedKeys.add(key);
+            } else if (!listCache.containsKey(key)) {
+                // stale index entry, removed from cache by RA clear, expire, etc
+                touchedKeys.add(key);
+            }
+        }
+
+        if (touchedKeys.size() > 0) synchronized (this) {
+            // only unindex if still not in the cache, may have been put again by another thread after the remove above
+            int touchedSize = touchedKeys.size();
+            for (int i = 0; i < touchedSize; i++) {
+                EntityCondition key = touchedKeys.get(i);
+                if (!listCache.containsKey(key)) unindex(key);
+            }
+        }
+
+        int checked = checkedSet.size();
+        invalidateCount.incrementAndGet();
+        keysCheckedCount.addAndGet(checked);
+        keysRemovedCount.addAndGet(removed);
+        scanKeysCheckedCount.addAndGet(scanKeysSize);
+        lastKeysChecked = checked;
+        lastKeysRemoved = removed;
+        if (logger.isDebugEnabled()) logger.debug("List cache invalidate for " + entityName + " checked " + checked +
+                " keys (" + scanKeysSize + " scan only), removed " + removed);
+        return removed;
+    }
+
+    public synchronized void clear() {
+        valueIndex.clear();
+        fieldSetIndex.clear();
+        entryByKey.clear();
+        scanKeys.clear();
+        pruneSize = minPruneSize;
+    }
+
+    public synchronized int getIndexedKeyCount() { return entryByKey.size(); }
+    public synchronized int getScanKeyCount() { return scanKeys.size(); }
+    public long getInvalidateCount() { return invalidateCount.get(); }
+    public long getKeysCheckedCount() { return keysCheckedCount.get(); }
+    public long getKeysRemovedCount() { return keysRemovedCount.get(); }
+    public long getScanKeysCheckedCount() { return scanKeysCheckedCount.get(); }
+    public int getLastKeysChecked() { return lastKeysChecked; }
+    public int getLastKeysRemoved() { return lastKeysRemoved; }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entityName", entityName);
+        stats.put("matchAny", matchAny);
+        stats.put("indexedKeys", getIndexedKeyCount());
+        stats.put("scanKeys", getScanKeyCount());
+        stats.put("invalidates", getInvalidateCount());
+        stats.put("keysChecked", getKeysCheckedCount());
+        stats.put("keysRemoved", getKeysRemovedCount());
+        stats.put("scanKeysChecked", getScanKeysCheckedCount());
+        stats.put("lastKeysChecked", getLastKeysChecked());
+        stats.put("lastKeysRemoved", getLastKeysRemoved());
+        return stats;
+    }
+
+    /* ========== Internal Methods ========== */
+
+    private void unindex(EntityCondition key) {
+        if (scanKeys.remove(key)) return;
+        IndexEntry entry = entryByKey.remove(key);
+        if (entry == null) return;
+        int termSize = entry.fieldNames.size();
+        for (int i = 0; i < termSize; i++) {
+            String fieldName = entry.fieldNames.get(i);
+            HashMap<Object, Set<EntityCondition>> fieldValueMap = valueIndex.get(fieldName);
+            if (fieldValueMap == null) continue;
+            for (Object value : entry.fieldValues.get(i)) {
+                Set<EntityCondition> keySet = fieldValueMap.get(value);
+                if (keySet == null) continue;
+                keySet.remove(key);
+                if (keySet.isEmpty()) fieldValueMap.remove(value);
+            }
+            if (fieldValueMap.isEmpty()) valueIndex.remove(fieldName);
+        }
+        if (entry.fieldSet != null) {
+            Set<EntityCondition> keySet = fieldSetIndex.get(entry.fieldSet);
+            if (keySet != null) {
+                keySet.remove(key);
+                if (keySet.isEmpty()) fieldSetIndex.remove(entry.fieldSet);
+            }
+        }
+    }
+
+    /** Drop keys no longer in the cache (evicted, expired, cleared, removed through RA); called with lock held */
+    private void prune(Cache<EntityCondition, ?> listCache) {
+        ArrayList<EntityCondition> allKeys = new ArrayList<>(entryByKey.keySet());
+        allKeys.addAll(scanKeys);
+        int allKeysSize = allKeys.size();
+        for (int i = 0; i < allKeysSize; i++) {
+            EntityCondition key = allKeys.get(i);
+            if (!listCache.containsKey(key)) unindex(key);
+        }
+        pruneSize = Math.max(minPruneSize, (entryByKey.size() + scanKeys.size()) * 2);
+        if (logger.isDebugEnabled()) logger.debug("Pruned list cache index for " + entityName + " from " + allKeysSize +
+                " to " + (entryByKey.size() + scanKeys.size()) + " keys");
+    }
+
+    private static Object indexValue(Object value) { return value == null ? NULL_VALUE : value; }
+
+    /** For mapMatches() find a single term that must match, prefer EQUALS over IN (fewer index entries) */
+    private static boolean addAnchorTerm(EntityCondition cond, IndexEntry entry) {
+        FieldValueCondition anchor = findAnchor(cond, true);
+        if (anchor == null) anchor = findAnchor(cond, false);
+        if (anchor == null) return false;
+        entry.addTerm(anchor.getFieldName(), termValues(anchor, false));
+        return true;
+    }
+    private static FieldValueCondition findAnchor(EntityCondition cond, boolean equalsOnly) {
+        if (cond instanceof FieldValueCondition) {
+            FieldValueCondition fvc = (FieldValueCondition) cond;
+            if (equalsOnly && fvc.getOperator() != ComparisonOperator.EQUALS) return null;
+            return termValues(fvc, false) != null ? fvc : null;
+        } else if (cond instanceof ListCondition) {
+            ListCondition lc = (ListCondition) cond;
+            if (lc.getOperator() != JoinOperator.AND) return null;
+            ArrayList<? extends EntityCondition> condList = lc.getConditionList();
+            int condListSize = condList.size();
+            for (int i = 0; i < condListSize; i++) {
+                FieldValueCondition anchor = findAnchor(condList.get(i), equalsOnly);
+                if (anchor != null) return anchor;
+            }
+        } else if (cond instanceof BasicJoinCondition) {
+            BasicJoinCondition bjc = (BasicJoinCondition) cond;
+            if (bjc.getOperator() != JoinOperator.AND) return null;
+            FieldValueCondition anchor = findAnchor(bjc.getLhs(), equalsOnly);
+            return anchor != null ? anchor : findAnchor(bjc.getRhs(), equalsOnly);
+        }
+        return null;
+    }
+
+    /** For mapMatchesAny() and mapKeysNotContained() every term must be indexable, join operator doesn't matter */
+    private static boolean addAnyTerms(EntityCondition cond, IndexEntry entry) {
+        if (cond instanceof FieldValueCondition) {
+            FieldValueCondition fvc = (FieldValueCondition) cond;
+            Collection<Object> values = termValues(fvc, true);
+            if (values == null) return false;
+            entry.addTerm(fvc.getFieldName(), values);
+            return true;
+        } else if (cond instanceof ListCondition) {
+            ArrayList<? extends EntityCondition> condList = ((ListCondition) cond).getConditionList();
+            int condListSize = condList.size();
+            for (int i = 0; i < condListSize; i++) if (!addAnyTerms(condList.get(i), entry)) return false;
+            return true;
+        } else if (cond instanceof BasicJoinCondition) {
+            BasicJoinCondition bjc = (BasicJoinCondition) cond;
+            return addAnyTerms(bjc.getLhs(), entry) && addAnyTerms(bjc.getRhs(), entry);
+        }
+        return false;
+    }
+
+    /** Get index values for an EQUALS or IN term, or null if not indexable. EQUALS compares with Groovy == semantics
+     * (numbers of different types, etc) so only String and null are indexed; IN uses Collection.contains() so any
+     * element type is fine. When noNulls is true (mapMatchesAny() where a missing field is compared as null) null
+     * values are not allowed. */
+    private static Collection<Object> termValues(FieldValueCondition fvc, boolean noNulls) {
+        ComparisonOperator op = fvc.getOperator();
+        Object value = fvc.getValue();
+        if (op == ComparisonOperator.IN && value instanceof Collection) {
+            Collection<?> valueColl = (Collection<?>) value;
+            ArrayList<Object> values = new ArrayList<>(valueColl.size());
+            for (Object elem : valueColl) {
+                if (elem == null && noNulls) return null;
+                values.add(indexValue(elem));
+            }
+            return values;
+        } else if (op == ComparisonOperator.EQUALS || op == ComparisonOperator.IN) {
+            if (value == null) return noNulls ? null : Collections.singletonList(NULL_VALUE);
+            if (value instanceof String) return Collections.singletonList(value);
+        }
+        return null;
+    }
+}
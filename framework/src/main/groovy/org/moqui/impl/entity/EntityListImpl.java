@@ -32,12 +32,17 @@ import java.io.Writer;
 import java.sql.Date;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class EntityListImpl implements EntityList {
     protected static final Logger logger = LoggerFactory.getLogger(EntityConditionFactoryImpl.class);
+    /** Max sorted views memoized per list from cache */
+    public static final int maxSortedViews = 8;
     private transient EntityFacadeImpl efiTransient;
     private ArrayList<EntityValue> valueList;
     private boolean fromCache = false;
+    /** Sorted copies of a list from cache by order by field list, see getSortedView() */
+    private transient volatile ConcurrentHashMap<List<String>, EntityListImpl> sortedViews = null;
     protected Integer offset = null;
     protected Integer limit = null;
 
@@ -378,7 +383,40 @@ public class EntityListImpl implements EntityList {
         if (fieldNames != null && fieldNames.size() > 0) valueList.sort(new CollectionUtilities.MapOrderByComparator(fieldNames));
         return this;
     }
-    @Override public void sort(Comparator<? super EntityValue> comparator) { valueList.sort(comparator); }
+    @Override public void sort(Comparator<? super EntityValue> comparator) {
+        if (fromCache) throw new EntityException("Cannot modify EntityList from cache");
+        valueList.sort(comparator);
+    }
+
+    /** For a list from cache returns a sorted copy, also from cache (immutable), memoized per order by field list so
+     * that each cache hit doesn't sort again; the views are dropped along with this list when its cache entry is
+     * removed. For other lists sorts in place like orderByFields(). */
+    public EntityListImpl getSortedView(List<String> fieldNames) {
+        if (fieldNames == null || fieldNames.size() == 0) return this;
+        if (!fromCache) { orderByFields(fieldNames); return this; }
+        if (valueList.size() < 2) return this;
+
+        ConcurrentHashMap<List<String>, EntityListImpl> views = sortedViews;
+        if (views == null) {
+            synchronized (this) {
+                views = sortedViews;
+                if (views == null) { views = new ConcurrentHashMap<>(); sortedViews = views; }
+            }
+        }
+        EntityListImpl view = views.get(fieldNames);
+        if (view != null) return view;
+
+        view = (EntityListImpl) this.cloneList();
+        view.valueList.sort(new CollectionUtilities.MapOrderByComparator(fieldNames));
+        // values are already from cache, just mark the list
+        view.fromCache = true;
+        // limit views per list, with more order by variations than this just sort each time
+        if (views.size() < maxSortedViews) {
+            EntityListImpl existing = views.putIfAbsent(new ArrayList<>(fieldNames), view);
+            if (existing != null) return existing;
+        }
+        return view;
+    }
 
     @Override public int indexMatching(Map<String, Object> valueMap) {
         ListIterator<EntityValue> li = valueList.listIterator();
@@ -442,9 +480,8 @@ public class EntityListImpl implements EntityList {
         return plainRelList;
     }
     @Override public List<Map<String, Object>> getMasterValueList(String name) {
-        List<Map<String, Object>> masterRelList = new ArrayList<>(valueList.size());
-        for (EntityValue ev : valueList) masterRelList.add(ev.getMasterValueMap(name));
-        return masterRelList;
+        // related values for all values in the list found together, one query per detail level instead of per value
+        return new EntityMasterLoader(getEfi()).loadMasterList(valueList, name);
     }
     @Override public ArrayList<Map<String, Object>> getValueMapList() {
         int elSize = valueList.size();
@@ -539,9 +576,12 @@ public class EntityListImpl implements EntityList {
 
     @Override public int indexOf(Object o) { return valueList.indexOf(o); }
     @Override public int lastIndexOf(Object o) { return valueList.lastIndexOf(o); }
-    @Override public @Nonnull ListIterator<EntityValue> listIterator() { return valueList.listIterator(); }
-    @Override public @Nonnull ListIterator<EntityValue> listIterator(int i) { return valueList.listIterator(i); }
-    @Override public @Nonnull List<EntityValue> subList(int start, int end) { return valueList.subList(start, end); }
+    @Override public @Nonnull ListIterator<EntityValue> listIterator() {
+        return fromCache ? Collections.unmodifiableList(valueList).listIterator() : valueList.listIterator(); }
+    @Override public @Nonnull ListIterator<EntityValue> listIterator(int i) {
+        return fromCache ? Collections.unmodifiableList(valueList).listIterator(i) : valueList.listIterator(i); }
+    @Override public @Nonnull List<EntityValue> subList(int start, int end) {
+        return fromCache ? Collections.unmodifiableList(valueList.subList(start, end)) : valueList.subList(start, end); }
     @Override public String toString() { return valueList.toString(); }
 
     @SuppressWarnings("unused")
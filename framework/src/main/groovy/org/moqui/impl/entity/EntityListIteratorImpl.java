@@ -46,6 +46,9 @@ public class EntityListIteratorImpl implements EntityListIterator {
     private final CollectionUtilities.MapOrderByComparator orderByComparator;
     /** This is needed to determine if the ResultSet is empty as cheaply as possible. */
     private boolean haveMadeValue = false;
+    // for EntityFind.listWithCount(), the result set column with COUNT(*) OVER () (0 for none) and the value from the first row
+    private int countOverIndex = 0;
+    private Long countOver = null;
     protected boolean closed = false;
     private StackTraceElement[] constructStack = null;
     private final ArrayList<ArtifactExecutionInfo> artifactStack;
@@ -141,6 +144,10 @@ public class EntityListIteratorImpl implements EntityListIterator {
         catch (SQLException e) { throw new EntityException("Error moving EntityListIterator to first", e); }
     }
 
+    void setCountOverIndex(int index) { countOverIndex = index; }
+    /** Total count from the COUNT(*) OVER () column of the first row read, null if no rows read or not selected */
+    Long getCountOver() { return countOver; }
+
     @Override public EntityValue currentEntityValue() { return currentEntityValueBase(); }
     public EntityValueBase currentEntityValueBase() {
         if (txcListIndex >= 0) {
@@ -154,6 +161,10 @@ public class EntityListIteratorImpl implements EntityListIterator {
             if (fi == null) break;
             fi.getResultSetValue(rs, i + 1, valueMap, efi);
         }
+        if (countOverIndex > 0 && countOver == null) {
+            try { countOver = rs.getLong(countOverIndex); }
+            catch (SQLException e) { throw new EntityException("Error getting count over column", e); }
+        }
 
         // if txCache in place always put in cache for future reference (onePut handles any stale from DB issues too)
         if (txCache != null) txCache.onePut(newEntityValue, false);
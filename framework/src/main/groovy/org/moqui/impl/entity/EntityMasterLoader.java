@@ -0,0 +1,235 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.moqui.entity.EntityCondition;
+import org.moqui.entity.EntityConditionFactory;
+import org.moqui.entity.EntityException;
+import org.moqui.entity.EntityList;
+import org.moqui.entity.EntityValue;
+import org.moqui.impl.entity.EntityJavaUtil.RelationshipInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * Builds master value Maps (see EntityValue.getMasterValueMap()) for a list of values of the same entity with one query
+ * per master detail relationship level instead of one per value. Related values are found with an IN condition on the
+ * relationship key (or OR of key conditions for multi-field keys) in chunks of inChunkSize values, then grouped by key
+ * and added to each parent's Map. The result has the same shape as calling getMasterValueMap() on each value.
+ *
+ * Related entities with cache=true are still found per value through the entity cache, where that is cheaper than a
+ * query and avoids filling the list cache with one-off IN conditions.
+ */
+public class EntityMasterLoader {
+    protected final static Logger logger = LoggerFactory.getLogger(EntityMasterLoader.class);
+    /** Max key values in an IN condition, below the Oracle limit of 1000 */
+    public final static int inChunkSize = 500;
+    /** Max keys in an OR of multi-field key conditions */
+    public final static int orChunkSize = 100;
+
+    private final EntityFacadeImpl efi;
+    private int queryCount = 0;
+
+    public EntityMasterLoader(EntityFacadeImpl efi) { this.efi = efi; }
+
+    /** Number of related value queries run so far by this loader */
+    public int getQueryCount() { return queryCount; }
+
+    public List<Map<String, Object>> loadMasterList(List<? extends EntityValue> valueList, String masterName) {
+        int valueListSize = valueList.size();
+        ArrayList<Map<String, Object>> masterList = new ArrayList<>(valueListSize);
+        if (valueListSize == 0) return masterList;
+
+        EntityValueBase firstValue = (EntityValueBase) valueList.get(0);
+        EntityDefinition ed = firstValue.getEntityDefinition();
+        EntityDefinition.MasterDefinition masterDefinition = ed.getMasterDefinition(masterName);
+        if (masterDefinition == null)
+            throw new EntityException("No master definition found for name [" + masterName + "] in entity [" + ed.getFullEntityName() + "]");
+
+        ArrayList<EntityValueBase> parentList = new ArrayList<>(valueListSize);
+        for (int i = 0; i < valueListSize; i++) {
+            EntityValueBase evb = (EntityValueBase) valueList.get(i);
+            if (evb.getEntityDefinition() != ed) {
+                // not all the same entity (EntityList built by hand), do each separately
+                masterList.clear();
+                for (int j = 0; j < valueListSize; j++) masterList.add(loadMasterList(Collections.singletonList(valueList.get(j)), masterName).get(0));
+                return masterList;
+            }
+            parentList.add(evb);
+            masterList.add(evb.makeMasterPlainMap(null, null));
+        }
+
+        addDetails(ed, parentList, masterList, masterDefinition.getDetailList(), null);
+        return masterList;
+    }
+
+    private void addDetails(EntityDefinition parentEd, ArrayList<EntityValueBase> parentList, ArrayList<Map<String, Object>> parentMapList,
+                            ArrayList<EntityDefinition.MasterDetail> detailList, Set<String> parentPkFields) {
+        if (detailList == null || detailList.isEmpty() || parentList.isEmpty()) return;
+
+        Set<String> curPkFields = new HashSet<>(parentEd.getPkFieldNames());
+        // keep track of all parent PK field names, even not part of this entity's PK, they will be inherited when read
+        if (parentPkFields != null) curPkFields.addAll(parentPkFields);
+
+        int parentListSize = parentList.size();
+        int detailListSize = detailList.size();
+        for (int i = 0; i < detailListSize; i++) {
+            EntityDefinition.MasterDetail detail = detailList.get(i);
+            RelationshipInfo relInfo = detail.getRelInfo();
+            final String relAlias = relInfo.shortAlias;
+            String entryName = relAlias != null && !relAlias.isEmpty() ? relAlias : relInfo.relationshipName;
+
+            ArrayList<EntityValueBase> childList = new ArrayList<>();
+            ArrayList<Map<String, Object>> childMapList = new ArrayList<>();
+            List<List<EntityValueBase>> relatedByParent = findRelatedBatch(parentList, relInfo);
+            for (int pi = 0; pi < parentListSize; pi++) {
+                List<EntityValueBase> relList = relatedByParent.get(pi);
+                if (relList == null || relList.isEmpty()) continue;
+                Map<String, Object> parentMap = parentMapList.get(pi);
+                if (relInfo.isTypeOne) {
+                    EntityValueBase relEv = relList.get(0);
+                    Map<String, Object> relMap = relEv.makeMasterPlainMap(curPkFields, relInfo);
+                    parentMap.put(entryName, relMap);
+                    childList.add(relEv);
+                    childMapList.add(relMap);
+                } else {
+                    int relListSize = relList.size();
+                    List<Map<String, Object>> plainRelList = new ArrayList<>(relListSize);
+                    for (int rlIndex = 0; rlIndex < relListSize; rlIndex++) {
+                        EntityValueBase relEv = relList.get(rlIndex);
+                        Map<String, Object> relMap = relEv.makeMasterPlainMap(curPkFields, relInfo);
+                        plainRelList.add(relMap);
+                        childList.add(relEv);
+                        childMapList.add(relMap);
+                    }
+                    parentMap.put(entryName, plainRelList);
+                }
+            }
+
+            addDetails(relInfo.relatedEd, childList, childMapList, detail.getDetailList(), curPkFields);
+        }
+    }
+
+    /** Find related values for each parent, the result has an entry (null if nothing found) for each parent in order */
+    private List<List<EntityValueBase>> findRelatedBatch(ArrayList<EntityValueBase> parentList, RelationshipInfo relInfo) {
+        int parentListSize = parentList.size();
+        ArrayList<List<EntityValueBase>> relatedByParent = new ArrayList<>(parentListSize);
+        Map<String, String> keyMap = relInfo.keyMap;
+        if (keyMap == null || keyMap.size() == 0) throw new EntityException("Relationship " + relInfo.relationshipName + " in entity " + relInfo.fromEd.getFullEntityName() + " has no key-map sub-elements and no default values");
+
+        boolean perValue = "true".equals(relInfo.relatedEd.entityInfo.useCache);
+        ArrayList<String> fieldList = new ArrayList<>(keyMap.keySet());
+        int fieldListSize = fieldList.size();
+        ArrayList<String> relFieldList = new ArrayList<>(fieldListSize);
+        for (int fi = 0; fi < fieldListSize; fi++) relFieldList.add(keyMap.get(fieldList.get(fi)));
+
+        // key values for each parent, and distinct keys to query (with the field values as they are in the parents);
+        //     values with null key fields are found separately (IS NULL)
+        ArrayList<List<Object>> parentKeyList = new ArrayList<>(parentListSize);
+        LinkedHashMap<List<Object>, List<Object>> queryValuesByKey = new LinkedHashMap<>();
+        for (int pi = 0; pi < parentListSize; pi++) {
+            EntityValueBase parent = parentList.get(pi);
+            ArrayList<Object> key = null;
+            if (!perValue) {
+                key = new ArrayList<>(fieldListSize);
+                ArrayList<Object> queryValues = new ArrayList<>(fieldListSize);
+                for (int fi = 0; fi < fieldListSize; fi++) {
+                    Object fieldValue = parent.getValueMap().get(fieldList.get(fi));
+                    if (fieldValue == null) { key = null; break; }
+                    key.add(keyValue(fieldValue));
+                    queryValues.add(fieldValue);
+                }
+                if (key != null) queryValuesByKey.putIfAbsent(key, queryValues);
+            }
+            parentKeyList.add(key);
+        }
+
+        HashMap<List<Object>, List<EntityValueBase>> relatedByKey = new HashMap<>();
+        if (!queryValuesByKey.isEmpty()) {
+            ArrayList<List<Object>> queryValuesList = new ArrayList<>(queryValuesByKey.values());
+            int queryValuesListSize = queryValuesList.size();
+            int chunkSize = fieldListSize == 1 ? inChunkSize : orChunkSize;
+            for (int start = 0; start < queryValuesListSize; start += chunkSize) {
+                List<List<Object>> chunk = queryValuesList.subList(start, Math.min(start + chunkSize, queryValuesListSize));
+                EntityList relList = findChunk(relInfo, relFieldList, chunk);
+                int relListSize = relList.size();
+                for (int ri = 0; ri < relListSize; ri++) {
+                    EntityValueBase relEv = (EntityValueBase) relList.get(ri);
+                    ArrayList<Object> relKey = new ArrayList<>(fieldListSize);
+                    for (int fi = 0; fi < fieldListSize; fi++) relKey.add(keyValue(relEv.getValueMap().get(relFieldList.get(fi))));
+                    relatedByKey.computeIfAbsent(relKey, k -> new ArrayList<>()).add(relEv);
+                }
+            }
+        }
+
+        for (int pi = 0; pi < parentListSize; pi++) {
+            List<Object> key = parentKeyList.get(pi);
+            if (key != null) {
+                relatedByParent.add(relatedByKey.get(key));
+            } else {
+                // cached related entity or null key field, find for this value like EntityValueBase.findRelated()
+                EntityValueBase parent = parentList.get(pi);
+                if (relInfo.isTypeOne) {
+                    EntityValue relEv = parent.findRelatedOne(relInfo, null, false);
+                    relatedByParent.add(relEv != null ? Collections.singletonList((EntityValueBase) relEv) : null);
+                } else {
+                    EntityList relList = parent.findRelated(relInfo, null, null, null, false);
+                    ArrayList<EntityValueBase> relValues = new ArrayList<>(relList.size());
+                    for (EntityValue relEv : relList) relValues.add((EntityValueBase) relEv);
+                    relatedByParent.add(relValues);
+                }
+            }
+        }
+        return relatedByParent;
+    }
+
+    /** Normalize numbers so keys match when the field types differ between the entities (like Long and Integer) */
+    private static Object keyValue(Object fieldValue) {
+        if (fieldValue instanceof Number && !(fieldValue instanceof BigDecimal))
+            return new BigDecimal(fieldValue.toString()).stripTrailingZeros();
+        if (fieldValue instanceof BigDecimal) return ((BigDecimal) fieldValue).stripTrailingZeros();
+        return fieldValue;
+    }
+
+    private EntityList findChunk(RelationshipInfo relInfo, ArrayList<String> relFieldList, List<List<Object>> keyChunk) {
+        EntityConditionFactory ecf = efi.getConditionFactory();
+        ArrayList<EntityCondition> condList = new ArrayList<>();
+        int relFieldListSize = relFieldList.size();
+        if (relFieldListSize == 1) {
+            ArrayList<Object> inValues = new ArrayList<>(keyChunk.size());
+            for (List<Object> key : keyChunk) inValues.add(key.get(0));
+            condList.add(ecf.makeCondition(relFieldList.get(0), EntityCondition.ComparisonOperator.IN, inValues));
+        } else {
+            ArrayList<EntityCondition> keyCondList = new ArrayList<>(keyChunk.size());
+            for (List<Object> key : keyChunk) {
+                Map<String, Object> keyCondMap = new HashMap<>();
+                for (int fi = 0; fi < relFieldListSize; fi++) keyCondMap.put(relFieldList.get(fi), key.get(fi));
+                keyCondList.add(ecf.makeCondition(keyCondMap));
+            }
+            condList.add(ecf.makeCondition(keyCondList, EntityCondition.JoinOperator.OR));
+        }
+        if (relInfo.keyValueMap != null) {
+            for (Map.Entry<String, String> keyValueEntry : relInfo.keyValueMap.entrySet())
+                condList.add(ecf.makeCondition(keyValueEntry.getKey(), EntityCondition.ComparisonOperator.EQUALS, keyValueEntry.getValue()));
+        }
+
+        queryCount++;
+        // order by PK so related values for each parent are in a consistent order
+        return efi.find(relInfo.relatedEntityName).condition(ecf.makeCondition(condList))
+                .orderBy(relInfo.relatedEd.getPkFieldNames()).useCache(false).list();
+    }
+}
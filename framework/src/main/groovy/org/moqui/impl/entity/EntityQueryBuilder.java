@@ -14,6 +14,7 @@
 package org.moqui.impl.entity;
 
 import org.moqui.entity.EntityException;
+import org.moqui.impl.context.ContextJavaUtil.ConnectionWrapper;
 import org.moqui.impl.entity.EntityJavaUtil.EntityConditionParameter;
 import org.moqui.impl.entity.EntityJavaUtil.FieldOrderOptions;
 import org.moqui.util.LiteStringMap;
@@ -46,6 +47,9 @@ public class EntityQueryBuilder implements Runnable {
     private ResultSet rs = null;
     protected Connection connection = null;
     private boolean externalConnection = false;
+    // set when ps is from the statement cache of a stashed transaction connection, released there instead of closed
+    private ConnectionWrapper psCacheConnection = null;
+    private int psResultSetType, psResultSetConcurrency;
     private boolean isFindOne = false;
 
     boolean execWithTimeout = false;
@@ -85,7 +89,7 @@ public class EntityQueryBuilder implements Runnable {
         // if (this.mainEntityDefinition.getFullEntityName().contains("foo")) logger.warn("========= making crud PreparedStatement for SQL: ${sql}")
         if (isDebugEnabled) logger.debug("making crud PreparedStatement for SQL: " + finalSql);
         try {
-            ps = connection.prepareStatement(finalSql);
+            ps = prepareStatement(finalSql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
         } catch (SQLException sqle) {
             handleSqlException(sqle, finalSql);
         }
@@ -93,6 +97,18 @@ public class EntityQueryBuilder implements Runnable {
         return ps;
     }
 
+    /** Prepare using the statement cache if the connection is a stashed transaction connection */
+    protected PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        if (connection instanceof ConnectionWrapper) {
+            psCacheConnection = (ConnectionWrapper) connection;
+            psResultSetType = resultSetType;
+            psResultSetConcurrency = resultSetConcurrency;
+            return psCacheConnection.prepareCachedStatement(sql, resultSetType, resultSetConcurrency);
+        }
+        psCacheConnection = null;
+        return connection.prepareStatement(sql, resultSetType, resultSetConcurrency);
+    }
+
     // ======== execute methods + Runnable
     Throwable uncaughtThrowable = null;
     Boolean execQuery = null;
@@ -193,14 +209,20 @@ public class EntityQueryBuilder implements Runnable {
 
     /** NOTE: this should be called in a finally clause to make sure things are closed */
     void closeAll() throws SQLException {
-        if (ps != null) {
-            ps.close();
-            ps = null;
-        }
         if (rs != null) {
             rs.close();
             rs = null;
         }
+        if (ps != null) {
+            if (psCacheConnection != null) {
+                // don't reuse a statement after an error or timeout, may be in a bad state
+                psCacheConnection.releaseStatement(finalSql, psResultSetType, psResultSetConcurrency, ps, uncaughtThrowable == null);
+                psCacheConnection = null;
+            } else {
+                ps.close();
+            }
+            ps = null;
+        }
         if (connection != null && !externalConnection) {
             connection.close();
             connection = null;
@@ -210,6 +232,7 @@ public class EntityQueryBuilder implements Runnable {
     /** For when closing to be done in other places, like a EntityListIteratorImpl */
     void releaseAll() {
         ps = null;
+        psCacheConnection = null;
         rs = null;
         connection = null;
     }
@@ -0,0 +1,184 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.entity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Primary sequenced ID banks for a single sequence name. IDs are handed out from the current bank with an atomic
+ * counter so there is no lock except when switching banks. When the IDs left in the current bank drop to the refill
+ * percent the next bank is reserved in a worker thread (in its own transaction like before) so it is usually ready
+ * before the current bank runs out.
+ *
+ * Bank size starts at the configured size for the sequence and adapts to how fast IDs are used: a bank that would be
+ * used up in less than targetBankMillis doubles the next bank size (up to maxBankSize), one that would last more than
+ * 8 times that halves it (down to the configured size).
+ */
+public class EntitySequenceBank {
+    protected final static Logger logger = LoggerFactory.getLogger(EntitySequenceBank.class);
+    public final static long targetBankMillis = 10000L;
+
+    /** A reserved range of IDs, first and last are inclusive (the last is what is in SequenceValueItem.seqNum) */
+    private static final class Bank {
+        final long first, last, reservedTime;
+        final AtomicLong next;
+        Bank(long first, long last) {
+            this.first = first;
+            this.last = last;
+            this.next = new AtomicLong(first);
+            this.reservedTime = System.currentTimeMillis();
+        }
+        long size() { return last - first + 1; }
+    }
+
+    public final String seqName;
+    private final EntityFacadeImpl efi;
+    private final long baseBankSize, maxBankSize;
+    private final int refillPercent;
+
+    private volatile Bank current = null;
+    private volatile long bankSize;
+    private final AtomicReference<CompletableFuture<Bank>> nextBankRef = new AtomicReference<>();
+    private final ReentrantLock switchLock = new ReentrantLock();
+    private final AtomicLong syncRefillCount = new AtomicLong(0), asyncRefillCount = new AtomicLong(0);
+
+    public EntitySequenceBank(EntityFacadeImpl efi, String seqName, long bankSize, long maxBankSize, int refillPercent) {
+        this.efi = efi;
+        this.seqName = seqName;
+        this.baseBankSize = bankSize > 0 ? bankSize : 1L;
+        this.maxBankSize = Math.max(this.baseBankSize, maxBankSize);
+        this.refillPercent = Math.max(0, Math.min(refillPercent, 100));
+        this.bankSize = this.baseBankSize;
+    }
+
+    public long getBankSize() { return bankSize; }
+    public long getSyncRefillCount() { return syncRefillCount.get(); }
+    public long getAsyncRefillCount() { return asyncRefillCount.get(); }
+
+    /** Get the next ID; if staggerMax > 1 the following ID will be a random 1 to staggerMax after this one */
+    public long nextSeqNum(long staggerMax) {
+        long step = staggerMax > 1L ? ThreadLocalRandom.current().nextLong(1L, staggerMax + 1L) : 1L;
+        while (true) {
+            Bank bank = current;
+            if (bank != null) {
+                long seqNum = bank.next.getAndAdd(step);
+                if (seqNum <= bank.last) {
+                    if (refillPercent > 0 && (bank.last - seqNum) * 100L <= bank.size() * refillPercent) startRefill(bank);
+                    return seqNum;
+                }
+            }
+            switchBank(bank);
+        }
+    }
+
+    /** Use the given range for the next IDs, mainly for testing (see EntityFacadeImpl.tempSetSequencedIdPrimary()) */
+    public void setBank(long nextSeqNum, long lastSeqNum) {
+        switchLock.lock();
+        try {
+            nextBankRef.set(null);
+            current = new Bank(nextSeqNum, lastSeqNum);
+        } finally {
+            switchLock.unlock();
+        }
+    }
+
+    private void startRefill(Bank bank) {
+        if (nextBankRef.get() != null || current != bank) return;
+        CompletableFuture<Bank> future = new CompletableFuture<>();
+        if (!nextBankRef.compareAndSet(null, future)) return;
+        long minFirst = bank.last + 1L;
+        long size = adaptBankSize(bank);
+        try {
+            efi.ecfi.workerPool.execute(() -> {
+                try {
+                    future.complete(reserveBank(minFirst, size));
+                    asyncRefillCount.incrementAndGet();
+                } catch (Throwable t) {
+                    logger.warn("Error reserving next bank for sequence " + seqName + ", will reserve when needed: " + t.toString());
+                    future.complete(null);
+                } finally {
+                    efi.ecfi.destroyActiveExecutionContext();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // worker pool busy or shutting down, just reserve when needed
+            nextBankRef.compareAndSet(future, null);
+        }
+    }
+
+    private void switchBank(Bank usedBank) {
+        switchLock.lock();
+        try {
+            // another thread may have already switched
+            if (current != usedBank) return;
+
+            Bank newBank = null;
+            CompletableFuture<Bank> future = nextBankRef.get();
+            // don't wait on a background reserve that hasn't finished, may be queued behind other work
+            if (future != null && future.isDone()) {
+                nextBankRef.compareAndSet(future, null);
+                newBank = future.getNow(null);
+            }
+            if (newBank == null) {
+                long minFirst = usedBank != null ? usedBank.last + 1L : 0L;
+                long size = usedBank != null ? adaptBankSize(usedBank) : bankSize;
+                newBank = reserveBank(minFirst, size);
+                syncRefillCount.incrementAndGet();
+            }
+            current = newBank;
+        } finally {
+            switchLock.unlock();
+        }
+    }
+
+    private Bank reserveBank(long minFirst, long size) {
+        long[] range = efi.dbSequenceReserveBank(seqName, minFirst, size);
+        return new Bank(range[0], range[1]);
+    }
+
+    /** Adjust bankSize based on how long the bank would last at the rate IDs have been used from it */
+    private long adaptBankSize(Bank bank) {
+        long size = bankSize;
+        if (maxBankSize <= baseBankSize) return size;
+        long used = Math.min(bank.next.get(), bank.last + 1L) - bank.first;
+        if (used <= 0) return size;
+        long elapsed = Math.max(1L, System.currentTimeMillis() - bank.reservedTime);
+        long projectedMillis = elapsed * bank.size() / used;
+        if (projectedMillis < targetBankMillis && size < maxBankSize) {
+            size = Math.min(maxBankSize, size * 2);
+        } else if (projectedMillis > targetBankMillis * 8 && size > baseBankSize) {
+            size = Math.max(baseBankSize, size / 2);
+        }
+        if (size != bankSize) {
+            if (logger.isDebugEnabled()) logger.debug("Sequence " + seqName + " bank size changed from " + bankSize + " to " + size);
+            bankSize = size;
+        }
+        return size;
+    }
+
+    @Override public String toString() {
+        Bank bank = current;
+        return "EntitySequenceBank " + seqName + " [" + (bank != null ? (bank.next.get() + " to " + bank.last) : "none") +
+                ", size " + bankSize + ", next reserved " + (nextBankRef.get() != null) + ", refills " + syncRefillCount.get() +
+                " sync " + asyncRefillCount.get() + " async]";
+    }
+}
@@ -769,7 +769,7 @@ public abstract class EntityValueBase implements EntityValue {
         return findRelated(relInfo, byAndFields, orderBy, useCache, forUpdate);
     }
 
-    private EntityList findRelated(final EntityJavaUtil.RelationshipInfo relInfo, Map<String, Object> byAndFields,
+    EntityList findRelated(final EntityJavaUtil.RelationshipInfo relInfo, Map<String, Object> byAndFields,
                                    List<String> orderBy, Boolean useCache, Boolean forUpdate) {
         String relatedEntityName = relInfo.relatedEntityName;
         Map<String, String> keyMap = relInfo.keyMap;
@@ -796,7 +796,7 @@ public abstract class EntityValueBase implements EntityValue {
         return findRelatedOne(relInfo, useCache, forUpdate);
     }
 
-    private EntityValue findRelatedOne(final EntityJavaUtil.RelationshipInfo relInfo, Boolean useCache, Boolean forUpdate) {
+    EntityValue findRelatedOne(final EntityJavaUtil.RelationshipInfo relInfo, Boolean useCache, Boolean forUpdate) {
         String relatedEntityName = relInfo.relatedEntityName;
         Map<String, String> keyMap = relInfo.keyMap;
         if (keyMap == null || keyMap.size() == 0) throw new EntityException("Relationship " + relInfo.relationshipName + " in entity " + entityName + " has no key-map sub-elements and no default values");
@@ -1235,13 +1235,12 @@ public abstract class EntityValueBase implements EntityValue {
 
     @Override
     public Map<String, Object> getMasterValueMap(final String name) {
-        EntityDefinition.MasterDefinition masterDefinition = getEntityDefinition().getMasterDefinition(name);
-        if (masterDefinition == null)
-            throw new EntityException("No master definition found for name [" + name + "] in entity [" + entityName + "]");
-        return internalMasterValueMap(masterDefinition.getDetailList(), null, null);
+        // use the batch loader even for a single value, related values are found with one query per detail level
+        return new EntityMasterLoader(getEntityFacadeImpl()).loadMasterList(Collections.singletonList(this), name).get(0);
     }
 
-    private Map<String, Object> internalMasterValueMap(ArrayList<EntityDefinition.MasterDetail> detailList, Set<String> parentPkFields, EntityJavaUtil.RelationshipInfo parentRelInfo) {
+    /** Plain Map for this value in a master value Map, without details; see EntityMasterLoader */
+    Map<String, Object> makeMasterPlainMap(Set<String> parentPkFields, EntityJavaUtil.RelationshipInfo parentRelInfo) {
         Map<String, Object> vMap = new HashMap<>(valueMapInternal);
         CollectionUtilities.removeNullsFromMap(vMap);
         if (parentPkFields != null) {
@@ -1255,40 +1254,7 @@ public abstract class EntityValueBase implements EntityValue {
                 for (String pkField : parentPkFields) vMap.remove(pkField);
             }
         }
-        EntityDefinition ed = getEntityDefinition();
-        vMap.put("_entity", ed.getShortOrFullEntityName());
-
-        if (detailList != null && !detailList.isEmpty()) {
-            Set<String> curPkFields = new HashSet<>(ed.getPkFieldNames());
-            // keep track of all parent PK field names, even not part of this entity's PK, they will be inherited when read
-            if (parentPkFields != null) curPkFields.addAll(parentPkFields);
-
-            int detailListSize = detailList.size();
-            for (int i = 0; i < detailListSize; i++) {
-                EntityDefinition.MasterDetail detail = detailList.get(i);
-
-                EntityJavaUtil.RelationshipInfo relInfo = detail.getRelInfo();
-                String relationshipName = relInfo.relationshipName;
-                final String relAlias = relInfo.shortAlias;
-                String entryName = relAlias != null && !relAlias.isEmpty() ? relAlias : relationshipName;
-                if (relInfo.isTypeOne) {
-                    EntityValue relEv = findRelatedOne(relationshipName, null, false);
-                    if (relEv != null) vMap.put(entryName, ((EntityValueBase) relEv).internalMasterValueMap(detail.getDetailList(), curPkFields, relInfo));
-                } else {
-                    EntityList relList = findRelated(relationshipName, null, null, null, false);
-                    if (relList != null && !relList.isEmpty()) {
-                        List<Map> plainRelList = new ArrayList<>();
-                        int relListSize = relList.size();
-                        for (int rlIndex = 0; rlIndex < relListSize; rlIndex++) {
-                            EntityValue relEv = relList.get(rlIndex);
-                            plainRelList.add(((EntityValueBase) relEv).internalMasterValueMap(detail.getDetailList(), curPkFields, relInfo));
-                        }
-                        vMap.put(entryName, plainRelList);
-                    }
-                }
-            }
-        }
-
+        vMap.put("_entity", getEntityDefinition().getShortOrFullEntityName());
         return vMap;
     }
 
@@ -1443,7 +1409,7 @@ public abstract class EntityValueBase implements EntityValue {
         return errorMessage;
     }
 
-    private void registerMutateLock() {
+    void registerMutateLock() {
         final EntityFacadeImpl efi = getEntityFacadeImpl();
         final TransactionFacadeImpl tfi = efi.ecfi.transactionFacade;
         if (!tfi.getUseLockTrack()) return;
@@ -1497,48 +1463,18 @@ public abstract class EntityValueBase implements EntityValue {
     @Override
     public EntityValue create() {
         final EntityDefinition ed = getEntityDefinition();
-        final EntityJavaUtil.EntityInfo entityInfo = ed.entityInfo;
         final EntityFacadeImpl efi = getEntityFacadeImpl();
-        final ExecutionContextFactoryImpl ecfi = efi.ecfi;
-        final ExecutionContextImpl ec = ecfi.getEci();
+        final ExecutionContextImpl ec = efi.ecfi.getEci();
         final ArtifactExecutionFacadeImpl aefi = ec.artifactExecutionFacade;
 
-        // check/set defaults
-        if (entityInfo.hasFieldDefaults) checkSetFieldDefaults(ed, ec, null);
-
-        // set lastUpdatedStamp
-        final Long time = ecfi.transactionFacade.getCurrentTransactionStartTime();
-        Long lastUpdatedLong = time != null && time > 0 ? time : System.currentTimeMillis();
-        FieldInfo lastUpdatedStampInfo = ed.entityInfo.lastUpdatedStampInfo;
-        if (lastUpdatedStampInfo != null && valueMapInternal.getByIString(lastUpdatedStampInfo.name, lastUpdatedStampInfo.index) == null)
-            valueMapInternal.putByIString(lastUpdatedStampInfo.name, new Timestamp(lastUpdatedLong), lastUpdatedStampInfo.index);
-
-        // do the artifact push/authz
-        ArtifactExecutionInfoImpl aei = new ArtifactExecutionInfoImpl(entityName, ArtifactExecutionInfo.AT_ENTITY, ArtifactExecutionInfo.AUTHZA_CREATE, "create").setParameters(valueMapInternal);
-        aefi.pushInternal(aei, !entityInfo.authorizeSkipCreate, false);
+        // check/set defaults, set lastUpdatedStamp, do the artifact push/authz
+        ArtifactExecutionInfoImpl aei = createPush(ed, ec);
 
         try {
-            // run EECA before rules
-            efi.runEecaRules(entityName, this, "create", true);
-
-            // do this before the db change so modified flag isn't cleared
-            if (doDataFeed(ec)) efi.getEntityDataFeed().dataFeedCheckAndRegister(this, false, valueMapInternal, null);
-
             // if there is not a txCache or the txCache doesn't handle the create, call the abstract method to create the main record
-            TransactionCache curTxCache = getTxCache(ecfi);
-            if (curTxCache == null || !curTxCache.create(this)) {
-                // NOTE: calls basicCreate() instead of createExtended() directly so don't register lock here
-
-                this.basicCreate(null);
-            }
-
-            // NOTE: cache clear is the same for create, update, delete; even on create need to clear one cache because it
-            // might have a null value for a previous query attempt
-            efi.getEntityCache().clearCacheForValue(this, true);
-            // save audit log(s) if applicable
-            handleAuditLog(false, null, ed, ec);
-            // run EECA after rules
-            efi.runEecaRules(entityName, this, "create", false);
+            // NOTE: calls basicCreate() instead of createExtended() directly so don't register lock here
+            if (createBefore(ed, efi, ec)) this.basicCreate(null);
+            createAfter(ed, efi, ec);
         } catch (SQLException e) {
             throw new EntitySqlException(makeErrorMsg("Error creating", CREATE_ERROR, ed, ec), e);
         } catch (Exception e) {
@@ -1551,7 +1487,95 @@ public abstract class EntityValueBase implements EntityValue {
         return this;
     }
 
+    /** For bulk creates (see EntityBatchWriter): everything in create() before the insert (defaults, authz, EECA before
+     * rules, data feed, TransactionCache); returns true if the insert still needs to be done */
+    boolean createBulkBefore() {
+        final EntityDefinition ed = getEntityDefinition();
+        final EntityFacadeImpl efi = getEntityFacadeImpl();
+        final ExecutionContextImpl ec = efi.ecfi.getEci();
+        ArtifactExecutionInfoImpl aei = createPush(ed, ec);
+        try {
+            return createBefore(ed, efi, ec);
+        } catch (Exception e) {
+            throw new EntityException(makeErrorMsg("Error creating", CREATE_ERROR, ed, ec), e);
+        } finally {
+            ec.artifactExecutionFacade.pop(aei);
+        }
+    }
+    /** For bulk creates (see EntityBatchWriter): everything in create() after the insert (cache clear, audit log, EECA
+     * after rules); NOTE: runs without the artifact execution push for the create, that is done in createBulkBefore() */
+    void createBulkAfter() {
+        final EntityDefinition ed = getEntityDefinition();
+        final EntityFacadeImpl efi = getEntityFacadeImpl();
+        final ExecutionContextImpl ec = efi.ecfi.getEci();
+        try {
+            createAfter(ed, efi, ec);
+        } catch (Exception e) {
+            throw new EntityException(makeErrorMsg("Error creating", CREATE_ERROR, ed, ec), e);
+        }
+    }
+    String makeCreateErrorMsg() {
+        final EntityFacadeImpl efi = getEntityFacadeImpl();
+        return makeErrorMsg("Error creating", CREATE_ERROR, getEntityDefinition(), efi.ecfi.getEci());
+    }
+    String makeUpdateErrorMsg() {
+        final EntityFacadeImpl efi = getEntityFacadeImpl();
+        return makeErrorMsg("Error updating", UPDATE_ERROR, getEntityDefinition(), efi.ecfi.getEci());
+    }
+    String makeDeleteErrorMsg() {
+        final EntityFacadeImpl efi = getEntityFacadeImpl();
+        return makeErrorMsg("Error deleting", DELETE_ERROR, getEntityDefinition(), efi.ecfi.getEci());
+    }
+
+    private ArtifactExecutionInfoImpl createPush(EntityDefinition ed, ExecutionContextImpl ec) {
+        final EntityJavaUtil.EntityInfo entityInfo = ed.entityInfo;
+
+        // check/set defaults
+        if (entityInfo.hasFieldDefaults) checkSetFieldDefaults(ed, ec, null);
+
+        // set lastUpdatedStamp
+        final Long time = ec.ecfi.transactionFacade.getCurrentTransactionStartTime();
+        Long lastUpdatedLong = time != null && time > 0 ? time : System.currentTimeMillis();
+        FieldInfo lastUpdatedStampInfo = entityInfo.lastUpdatedStampInfo;
+        if (lastUpdatedStampInfo != null && valueMapInternal.getByIString(lastUpdatedStampInfo.name, lastUpdatedStampInfo.index) == null)
+            valueMapInternal.putByIString(lastUpdatedStampInfo.name, new Timestamp(lastUpdatedLong), lastUpdatedStampInfo.index);
+
+        // do the artifact push/authz
+        ArtifactExecutionInfoImpl aei = new ArtifactExecutionInfoImpl(entityName, ArtifactExecutionInfo.AT_ENTITY, ArtifactExecutionInfo.AUTHZA_CREATE, "create").setParameters(valueMapInternal);
+        ec.artifactExecutionFacade.pushInternal(aei, !entityInfo.authorizeSkipCreate, false);
+        return aei;
+    }
+    private boolean createBefore(EntityDefinition ed, EntityFacadeImpl efi, ExecutionContextImpl ec) {
+        // run EECA before rules
+        efi.runEecaRules(entityName, this, "create", true);
+
+        // do this before the db change so modified flag isn't cleared
+        if (doDataFeed(ec)) efi.getEntityDataFeed().dataFeedCheckAndRegister(this, false, valueMapInternal, null);
+
+        // if there is a txCache and it handles the create no need to insert
+        TransactionCache curTxCache = getTxCache(efi.ecfi);
+        return curTxCache == null || !curTxCache.create(this);
+    }
+    private void createAfter(EntityDefinition ed, EntityFacadeImpl efi, ExecutionContextImpl ec) {
+        // NOTE: cache clear is the same for create, update, delete; even on create need to clear one cache because it
+        // might have a null value for a previous query attempt
+        efi.getEntityCache().clearCacheForValue(this, true);
+        // save audit log(s) if applicable
+        handleAuditLog(false, null, ed, ec);
+        // run EECA after rules
+        efi.runEecaRules(entityName, this, "create", false);
+    }
+
     public void basicCreate(Connection con) throws SQLException {
+        FieldInfo[] fieldArray = getCreateFieldArray();
+
+        // if enabled register locks before operation
+        registerMutateLock();
+
+        createExtended(fieldArray, con);
+    }
+    /** Get fields with a value set (even if null) to insert, in entity field order; array is exact size (no trailing nulls) */
+    FieldInfo[] getCreateFieldArray() {
         EntityDefinition ed = getEntityDefinition();
         FieldInfo[] allFieldArray = ed.entityInfo.allFieldInfoArray;
         FieldInfo[] fieldArray = new FieldInfo[allFieldArray.length];
@@ -1564,11 +1588,7 @@ public abstract class EntityValueBase implements EntityValue {
                 fieldArrayIndex++;
             }
         }
-
-        // if enabled register locks before operation
-        registerMutateLock();
-
-        createExtended(fieldArray, con);
+        return fieldArrayIndex == size ? fieldArray : Arrays.copyOf(fieldArray, fieldArrayIndex);
     }
 
     /**
@@ -1716,6 +1736,16 @@ public abstract class EntityValueBase implements EntityValue {
         */
 
         FieldInfo[] pkFieldArray = ed.entityInfo.pkFieldInfoArray;
+        FieldInfo[] nonPkFieldArray = getUpdateFieldArray();
+
+        // if enabled register locks before operation
+        registerMutateLock();
+
+        updateExtended(pkFieldArray, nonPkFieldArray, con);
+    }
+    /** Get modified non-PK fields to update, in entity field order; array is exact size (no trailing nulls) */
+    FieldInfo[] getUpdateFieldArray() {
+        EntityDefinition ed = getEntityDefinition();
         FieldInfo[] allNonPkFieldArray = ed.entityInfo.nonPkFieldInfoArray;
         FieldInfo[] nonPkFieldArray = new FieldInfo[allNonPkFieldArray.length];
         int size = allNonPkFieldArray.length;
@@ -1727,11 +1757,7 @@ public abstract class EntityValueBase implements EntityValue {
                 nonPkFieldArrayIndex++;
             }
         }
-
-        // if enabled register locks before operation
-        registerMutateLock();
-
-        updateExtended(pkFieldArray, nonPkFieldArray, con);
+        return nonPkFieldArrayIndex == size ? nonPkFieldArray : Arrays.copyOf(nonPkFieldArray, nonPkFieldArrayIndex);
     }
 
     /**
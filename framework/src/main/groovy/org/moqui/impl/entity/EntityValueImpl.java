@@ -60,25 +60,8 @@ public class EntityValueImpl extends EntityValueBase {
         if (ed.isViewEntity) throw new EntityException("Create not yet implemented for view-entity");
 
         EntityQueryBuilder eqb = new EntityQueryBuilder(ed, efi);
-        StringBuilder sql = eqb.sqlTopLevel;
-        sql.append("INSERT INTO ").append(ed.getFullTableName()).append(" (");
-
+        eqb.sqlTopLevel.append(EntityBatchWriter.makeInsertSql(ed, fieldInfoArray));
         int size = fieldInfoArray.length;
-        StringBuilder values = new StringBuilder(size*3);
-
-        for (int i = 0; i < size; i++) {
-            FieldInfo fieldInfo = fieldInfoArray[i];
-            if (fieldInfo == null) break;
-            if (i > 0) {
-                sql.append(", ");
-                values.append(", ");
-            }
-
-            sql.append(fieldInfo.getFullColumnName());
-            values.append("?");
-        }
-
-        sql.append(") VALUES (").append(values.toString()).append(")");
 
         try {
             efi.getEntityDbMeta().checkTableRuntime(ed);
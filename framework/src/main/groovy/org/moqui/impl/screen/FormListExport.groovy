@@ -0,0 +1,162 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.screen
+
+import groovy.transform.CompileStatic
+import org.apache.commons.csv.CSVFormat
+import org.apache.commons.csv.CSVPrinter
+import org.moqui.entity.EntityListIterator
+import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ExecutionContextImpl
+import org.moqui.impl.entity.EntityFindBase
+import org.moqui.util.ContextStack
+import org.moqui.util.MNode
+import org.moqui.util.StringUtilities
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+/** Export form-list rows with display values (like the JSON from ScreenRenderImpl.getFormListRowValues()) to a RowWriter.
+ * When the list comes from an entity-find with no group by or totals rows are read from an EntityListIterator and
+ * processed and written a window at a time, so memory use is bounded by the window size and not the number of rows. */
+@CompileStatic
+class FormListExport {
+    protected final static Logger logger = LoggerFactory.getLogger(FormListExport.class)
+    final static int defaultWindowSize = 500
+    protected final static int exportTransactionTimeout = 3600
+
+    /** Output format for exported rows, implement for other formats like a streaming (SXSSF) workbook for xlsx */
+    static interface RowWriter {
+        void writeHeader(ArrayList<String> titles)
+        void writeRow(ArrayList<Object> values)
+        /** Called after each window of rows is written */
+        void flush()
+        void close()
+    }
+    static class CsvRowWriter implements RowWriter {
+        protected final CSVPrinter printer
+        CsvRowWriter(Writer writer) { printer = new CSVPrinter(writer, CSVFormat.DEFAULT) }
+        @Override void writeHeader(ArrayList<String> titles) { printer.printRecord(titles) }
+        @Override void writeRow(ArrayList<Object> values) { printer.printRecord(values) }
+        @Override void flush() { printer.flush() }
+        @Override void close() { printer.flush() }
+    }
+
+    protected final ScreenRenderImpl sri
+    protected final ScreenForm.FormListRenderInfo renderInfo
+    protected final ArrayList<MNode> columnFieldList = new ArrayList<>()
+    protected int windowSize = defaultWindowSize
+
+    FormListExport(ScreenRenderImpl sri, ScreenForm.FormListRenderInfo renderInfo) {
+        this.sri = sri
+        this.renderInfo = renderInfo
+        ArrayList<ArrayList<MNode>> allColInfo = renderInfo.getAllColInfo()
+        int colSize = allColInfo.size()
+        for (int ci = 0; ci < colSize; ci++) {
+            ArrayList<MNode> colFields = (ArrayList<MNode>) allColInfo.get(ci)
+            if (colFields != null) columnFieldList.addAll(colFields)
+        }
+    }
+
+    FormListExport windowSize(int size) { windowSize = size > 0 ? size : defaultWindowSize; return this }
+
+    ArrayList<String> getColumnTitles() {
+        ExecutionContextImpl eci = sri.ec
+        int fieldsSize = columnFieldList.size()
+        ArrayList<String> titles = new ArrayList<>(fieldsSize)
+        for (int i = 0; i < fieldsSize; i++) {
+            MNode fieldNode = (MNode) columnFieldList.get(i)
+            MNode headerNode = fieldNode.first("header-field")
+            String title = headerNode != null ? headerNode.attribute("title") : null
+            if (title == null || title.isEmpty()) {
+                MNode defaultNode = fieldNode.first("default-field")
+                if (defaultNode != null) title = defaultNode.attribute("title")
+            }
+            if (title != null && !title.isEmpty()) {
+                titles.add(eci.resourceFacade.expand(eci.l10nFacade.localize(title), ""))
+            } else {
+                titles.add(StringUtilities.camelCaseToPretty(fieldNode.attribute("name")))
+            }
+        }
+        return titles
+    }
+
+    /** Write a header row and all rows, returns the number of rows written; does not close the RowWriter */
+    long export(RowWriter rowWriter) {
+        ExecutionContextImpl eci = sri.ec
+        rowWriter.writeHeader(getColumnTitles())
+
+        long rowCount = 0
+        Set<String> includeFields = new HashSet<>(renderInfo.getDisplayedFields())
+        EntityFindBase ef = renderInfo.isListStreamable() ? renderInfo.makeListFind(includeFields) : (EntityFindBase) null
+        if (ef == null || ef.shouldCache()) {
+            // group by, totals, cached or not from an entity-find: needs the full list
+            rowCount = writeRows(renderInfo.getListObject(false), rowWriter)
+            rowWriter.flush()
+        } else {
+            boolean beganTransaction = eci.transactionFacade.begin(exportTransactionTimeout)
+            try {
+                EntityListIterator eli = ef.iterator()
+                try {
+                    ArrayList<EntityValue> window = new ArrayList<>(windowSize)
+                    EntityValue ev
+                    while ((ev = eli.next()) != null) {
+                        window.add(ev)
+                        if (window.size() >= windowSize) {
+                            rowCount += writeRows(renderInfo.aggregateWindow(window, includeFields), rowWriter)
+                            rowWriter.flush()
+                            window.clear()
+                        }
+                    }
+                    if (window.size() > 0) {
+                        rowCount += writeRows(renderInfo.aggregateWindow(window, includeFields), rowWriter)
+                        rowWriter.flush()
+                    }
+                } finally {
+                    eli.close()
+                }
+                eci.transactionFacade.commit(beganTransaction)
+            } catch (Throwable t) {
+                eci.transactionFacade.rollback(beganTransaction, "Error exporting form-list ${renderInfo.getFormNode().attribute('name')}", t)
+                throw t
+            }
+            if (logger.isTraceEnabled()) logger.trace("Exported ${rowCount} rows from form-list ${renderInfo.getFormNode().attribute('name')} in windows of ${windowSize}")
+
+            // like getListObject() so code running later on (like ScreenScheduled noResultsAbort) knows what happened
+            ContextStack cs = eci.contextStack
+            cs.getSharedMap().put("_formListRendered", true)
+            Object curResultCount = cs.getSharedMap().get("_formListResultCount")
+            int resultCount = (int) rowCount
+            if (curResultCount instanceof Number) resultCount += ((Number) curResultCount).intValue()
+            cs.getSharedMap().put("_formListResultCount", resultCount)
+        }
+
+        return rowCount
+    }
+
+    protected int writeRows(ArrayList<Map<String, Object>> rowList, RowWriter rowWriter) {
+        int rowsSize = rowList.size()
+        int fieldsSize = columnFieldList.size()
+        for (int ri = 0; ri < rowsSize; ri++) {
+            Map<String, Object> outRow = sri.transformFormListRow(renderInfo, (Map<String, Object>) rowList.get(ri), (char) 'r')
+            ArrayList<Object> values = new ArrayList<>(fieldsSize)
+            for (int fi = 0; fi < fieldsSize; fi++) {
+                String fieldName = ((MNode) columnFieldList.get(fi)).attribute("name")
+                String displayName = fieldName + "_display"
+                values.add(outRow.containsKey(displayName) ? outRow.get(displayName) : outRow.get(fieldName))
+            }
+            rowWriter.writeRow(values)
+        }
+        return rowsSize
+    }
+}
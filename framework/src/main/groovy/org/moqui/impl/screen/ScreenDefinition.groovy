@@ -1039,6 +1039,17 @@ class ScreenDefinition {
                     ScreenForm.FormInstance formInstance = form.getFormInstance()
                     if (formInstance.isList()) {
                         ScreenForm.FormListRenderInfo renderInfo = formInstance.makeFormListRenderInfo()
+                        String accept = wf.request.getHeader("Accept")
+                        if (accept != null && accept.contains("text/csv")) {
+                            // export rows as CSV written in windows as they are read, chunked with no content length
+                            HttpServletResponse response = wf.response
+                            response.setContentType("text/csv")
+                            response.setCharacterEncoding("UTF-8")
+                            response.setHeader("Content-Disposition", "attachment; filename=\"${partName}.csv\"")
+                            sri.writeFormListCsv(renderInfo)
+                            sri.getWriter().flush()
+                            return defaultResponse
+                        }
                         // old approach, raw data: Object listObj = renderInfo.getListObject(true)
                         // new approach: transformed and auto values filled in based on field defs
                         ArrayList<Map<String, Object>> listObj = sri.getFormListRowValues(renderInfo)
@@ -2030,6 +2030,45 @@ class ScreenForm {
         ArrayList<MNode> getListLastRowHiddenFieldList() { return formInstance.hiddenLastRowFieldList }
         LinkedHashSet<String> getDisplayedFields() { return displayedFieldSet }
 
+        /** Make the EntityFind for the form-list entity-find with the displayed and hidden fields selected, adds hidden
+         * field names to includeFields */
+        EntityFindBase makeListFind(Set<String> includeFields) {
+            EntityFindBase ef = (EntityFindBase) ecfi.entityFacade.find(screenForm.entityFindNode)
+            // don't do this, use explicit select-field fields plus display/hidden fields: if (ef.getSelectFields() == null || ef.getSelectFields().size() == 0) {
+            // always do this even if there are some entity-find.select-field elements, support specifying some fields that are always selected
+            for (String fieldName in displayedFieldSet) ef.selectField(fieldName)
+            List<String> selFields = ef.getSelectFields()
+            // don't order by fields not in displayedFieldSet
+            ArrayList<String> orderByFields = ef.orderByFields
+            if (orderByFields != null) for (int i = 0; i < orderByFields.size(); ) {
+                String obfString = (String) orderByFields.get(i)
+                EntityJavaUtil.FieldOrderOptions foo = EntityJavaUtil.makeFieldOrderOptions(obfString)
+                if (displayedFieldSet.contains(foo.fieldName) || selFields.contains(foo.fieldName)) {
+                    i++
+                } else {
+                    orderByFields.remove(i)
+                }
+            }
+            // always select hidden fields
+            ArrayList<String> hiddenNames = formInstance.getListHiddenFieldNameList()
+            int hiddenNamesSize = hiddenNames.size()
+            for (int i = 0; i < hiddenNamesSize; i++) {
+                String fn = (String) hiddenNames.get(i)
+                MNode fieldNode = formInstance.getFieldNode(fn)
+                if (!fieldNode.hasChild("default-field")) continue
+                ef.selectField(fn)
+                includeFields.add(fn)
+            }
+            return ef
+        }
+        /** True if the list comes from an entity-find and each row can be processed without the rest of the list (no
+         * group by or totals) so it can be read and written in windows, see FormListExport */
+        boolean isListStreamable() { return screenForm.entityFindNode != null && formInstance.aggregationUtil.isRowIndependent() }
+        /** Run row-actions, field.@from, etc on a window of rows from the list like getListObject() does for the full list */
+        ArrayList<Map<String, Object>> aggregateWindow(List<EntityValue> window, Set<String> includeFields) {
+            return formInstance.aggregationUtil.aggregateList(window, includeFields, false, ecfi.getEci())
+        }
+
         ArrayList<Map<String, Object>> getListObject(boolean aggregateList) {
             ContextStack context = ecfi.getEci().contextStack
 
@@ -2038,40 +2077,25 @@ class ScreenForm {
             Set<String> includeFields = new HashSet<>(displayedFieldSet)
             MNode entityFindNode = screenForm.entityFindNode
             if (entityFindNode != null) {
-                EntityFindBase ef = (EntityFindBase) ecfi.entityFacade.find(entityFindNode)
-
-                // don't do this, use explicit select-field fields plus display/hidden fields: if (ef.getSelectFields() == null || ef.getSelectFields().size() == 0) {
-                // always do this even if there are some entity-find.select-field elements, support specifying some fields that are always selected
-                for (String fieldName in displayedFieldSet) ef.selectField(fieldName)
-                List<String> selFields = ef.getSelectFields()
-                // don't order by fields not in displayedFieldSet
-                ArrayList<String> orderByFields = ef.orderByFields
-                if (orderByFields != null) for (int i = 0; i < orderByFields.size(); ) {
-                    String obfString = (String) orderByFields.get(i)
-                    EntityJavaUtil.FieldOrderOptions foo = EntityJavaUtil.makeFieldOrderOptions(obfString)
-                    if (displayedFieldSet.contains(foo.fieldName) || selFields.contains(foo.fieldName)) {
-                        i++
-                    } else {
-                        orderByFields.remove(i)
-                    }
-                }
-                // always select hidden fields
-                ArrayList<String> hiddenNames = formInstance.getListHiddenFieldNameList()
-                int hiddenNamesSize = hiddenNames.size()
-                for (int i = 0; i < hiddenNamesSize; i++) {
-                    String fn = (String) hiddenNames.get(i)
-                    MNode fieldNode = formInstance.getFieldNode(fn)
-                    if (!fieldNode.hasChild("default-field")) continue
-                    ef.selectField(fn)
-                    includeFields.add(fn)
-                }
+                EntityFindBase ef = makeListFind(includeFields)
 
                 // logger.warn("TOREMOVE form-list.entity-find: ${ef.toString()}\ndisplayedFieldSet: ${displayedFieldSet}")
 
-                // run the query
-                EntityList efList = ef.list()
-                // if cached do the date filter after query
+                // keyset pagination with the ${listName}PageCursor parameter from the previous page instead of the offset from
+                //     pageIndex; the cursor clears the offset so keep the pageIndex for the page range
+                MNode sfiNode = entityFindNode.first("search-form-inputs")
+                String pageCursorName = listName.concat("PageCursor")
+                String pageCursor = sfiNode != null ? (String) context.get(pageCursorName) : (String) null
+                int cursorPageIndex = ef.getPageIndex()
+                if (pageCursor) ef.keysetCursor(pageCursor)
+
+                // run the query, when paginated get the page and total count in one query where supported
                 boolean useCache = ef.shouldCache()
+                boolean withCount = sfiNode != null && !"false".equals(sfiNode.attribute("paginate")) && !useCache && ef.getLimit() != null
+                // the count cache is opt in with form-list.@count-cache as the total may be out of date
+                boolean countCache = "true".equals(formInstance.formNode.attribute("count-cache"))
+                EntityList efList = withCount ? ef.listWithCount(countCache) : ef.list()
+                // if cached do the date filter after query
                 if (useCache) for (MNode df in entityFindNode.children("date-filter")) {
                     Timestamp validDate = (Timestamp) null
                     String validDateAttr = df.attribute("valid-date")
@@ -2085,7 +2109,6 @@ class ScreenForm {
                 context.put(listName.concat("_xafind"), ef)
 
                 // handle pagination, etc parameters like XML Actions entity-find
-                MNode sfiNode = entityFindNode.first("search-form-inputs")
                 boolean doPaginate = sfiNode != null && !"false".equals(sfiNode.attribute("paginate"))
                 if (doPaginate) {
                     long count, pageSize, pageIndex
@@ -2099,11 +2122,11 @@ class ScreenForm {
                         pageSize = efList.getPageSize()
                         pageIndex = efList.getPageIndex()
                     } else {
-                        pageIndex = ef.pageIndex
+                        pageIndex = pageCursor ? cursorPageIndex : ef.pageIndex
                         pageSize = ef.pageSize
-                        // this can be expensive, only get count if efList size is equal to pageSize (can skip if no paginate needed)
-                        if (efList.size() < pageSize) count = efList.size() + pageSize * pageIndex
-                        else count = ef.count()
+                        count = ef.getTotalCount()
+                        // always set so the cursor parameter for this page isn't used as the next page cursor
+                        context.put(pageCursorName, efList.size() == pageSize ? ef.makeKeysetCursor(efList.get(efList.size() - 1)) : null)
                     }
                     long maxIndex = (new BigDecimal(count-1)).divide(new BigDecimal(pageSize), 0, RoundingMode.DOWN).longValue()
                     long pageRangeLow = (pageIndex * pageSize) + 1
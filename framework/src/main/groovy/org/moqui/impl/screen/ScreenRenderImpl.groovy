@@ -1498,6 +1498,15 @@ class ScreenRenderImpl implements ScreenRender {
         return ""
     }
 
+    /** Write all form-list rows as CSV to the screen writer, reading and writing in windows where possible (see FormListExport) */
+    String writeFormListCsv(ScreenForm.FormListRenderInfo listRenderInfo) {
+        FormListExport.CsvRowWriter rowWriter = new FormListExport.CsvRowWriter(getWriter())
+        new FormListExport(this, listRenderInfo).export(rowWriter)
+        rowWriter.close()
+        // NOTE: this returns an empty String so that it can be used in an FTL interpolation, but nothing is written
+        return ""
+    }
+
     String getFieldValueString(MNode widgetNode) {
         MNode fieldNodeWrapper = widgetNode.parent.parent
         String defaultValue = widgetNode.attribute("default-value")
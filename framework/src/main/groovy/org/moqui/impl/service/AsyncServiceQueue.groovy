@@ -0,0 +1,362 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.impl.service
+
+import groovy.transform.CompileStatic
+import org.moqui.entity.EntityCondition
+import org.moqui.entity.EntityConditionFactory
+import org.moqui.entity.EntityList
+import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.impl.context.ExecutionContextImpl
+import org.moqui.impl.entity.EntityFacadeImpl
+import org.moqui.impl.service.ServiceCallAsyncImpl.AsyncServiceInfo
+import org.moqui.service.ServiceException
+import org.moqui.util.MNode
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+
+import javax.sql.rowset.serial.SerialBlob
+import javax.transaction.Status
+import javax.transaction.Synchronization
+import java.sql.Timestamp
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/** Persistent queue for async service calls (see ServiceCallAsync.persist() and service-facade.@async-persist).
+ *
+ * Calls are serialized (AsyncServiceInfo is Externalizable, as for distributed calls) to an AsyncServiceCall record,
+ * in the caller's transaction if there is one, and run by a fixed number of consumer threads that claim records in
+ * batches. Records are deleted when run, or kept with failedDate and the error if the service fails. Records claimed by
+ * this host when it stopped are released on start, records claimed by another host are claimed again when the claim
+ * is older than async-queue-claim-time.
+ *
+ * Callers are blocked (up to async-queue-timeout) instead of rejected while the number of pending calls is at
+ * async-queue-capacity, except in a transaction where waiting would hold its locks so the call is rejected right away.
+ * Calls queued in a transaction are counted when it commits; the pending count is refreshed from the database when
+ * consumers find nothing to run. */
+@CompileStatic
+class AsyncServiceQueue {
+    protected final static Logger logger = LoggerFactory.getLogger(AsyncServiceQueue.class)
+    final static String queueEntityName = "moqui.service.async.AsyncServiceCall"
+    protected final static String syncName = "AsyncServiceQueue"
+    protected final static int claimBatchSize = 10
+    protected final static long pollMillis = 1000L
+
+    protected final ExecutionContextFactoryImpl ecfi
+    final boolean persistDefault
+    protected final int consumers
+    protected final long capacity
+    protected final long offerTimeoutMillis
+    protected final long claimLeaseMillis
+    protected final String hostName
+
+    protected final AtomicLong pendingCount = new AtomicLong(0)
+    protected final AtomicLong runCount = new AtomicLong(0)
+    protected final AtomicLong failedCount = new AtomicLong(0)
+    protected final Object capacityLock = new Object()
+    protected final Object pollLock = new Object()
+    protected ExecutorService consumerPool = (ExecutorService) null
+    protected volatile boolean running = false
+
+    AsyncServiceQueue(ExecutionContextFactoryImpl ecfi, MNode serviceFacadeNode) {
+        this.ecfi = ecfi
+        persistDefault = serviceFacadeNode.attribute("async-persist") == "true"
+        consumers = (serviceFacadeNode.attribute("async-queue-consumers") ?: "2") as int
+        capacity = (serviceFacadeNode.attribute("async-queue-capacity") ?: "10000") as long
+        offerTimeoutMillis = ((serviceFacadeNode.attribute("async-queue-timeout") ?: "30") as long) * 1000L
+        claimLeaseMillis = ((serviceFacadeNode.attribute("async-queue-claim-time") ?: "3600") as long) * 1000L
+        hostName = ecfi.getLocalhostAddress()?.getHostName() ?: 'localhost'
+    }
+
+    /** Called on init: release calls claimed by this host before it stopped, then start consumers if async-persist is
+     * true or there are calls queued; otherwise consumers are started on the first persisted call */
+    void init() {
+        if (consumers <= 0) {
+            if (persistDefault) logger.warn("Persistent async service calls enabled but async-queue-consumers is 0, queued calls will not be run on this server")
+            return
+        }
+        long queuedCount = 0
+        ExecutionContextImpl eci = ecfi.getEci()
+        try {
+            eci.artifactExecutionFacade.disableAuthz()
+            ecfi.transactionFacade.runUseOrBegin(300, "Error releasing async service calls claimed by ${hostName}", {
+                EntityList claimedList = ecfi.entityFacade.find(queueEntityName).condition("claimedByHost", hostName)
+                        .condition("failedDate", null).useCache(false).list()
+                for (EntityValue asyncCall in claimedList) {
+                    asyncCall.set("claimToken", null)
+                    asyncCall.set("claimedByHost", null)
+                    asyncCall.set("claimedDate", null)
+                    asyncCall.update()
+                }
+                if (claimedList.size() > 0) logger.warn("Released ${claimedList.size()} async service calls claimed by ${hostName} when stopped, they will be run again")
+            })
+            queuedCount = ecfi.entityFacade.find(queueEntityName).condition("failedDate", null).useCache(false).count()
+        } catch (Throwable t) {
+            logger.error("Error checking persistent async service queue on init", t)
+        } finally {
+            eci.destroy()
+        }
+        pendingCount.set(queuedCount)
+        if (persistDefault || queuedCount > 0) {
+            logger.info("Starting ${consumers} persistent async service queue consumers, ${queuedCount} calls queued")
+            start()
+        }
+    }
+
+    synchronized void start() {
+        if (running) return
+        running = true
+        AtomicInteger threadNumber = new AtomicInteger()
+        consumerPool = Executors.newFixedThreadPool(consumers,
+                { Runnable r -> new Thread(r, "AsyncServiceQueue-" + threadNumber.incrementAndGet()) } as ThreadFactory)
+        for (int i = 0; i < consumers; i++) consumerPool.execute(new QueueConsumer(this))
+    }
+
+    /** Stop consumers, waiting up to 30 seconds for calls running; calls not done are run again after restart */
+    synchronized void destroy() {
+        if (!running) return
+        running = false
+        synchronized (pollLock) { pollLock.notifyAll() }
+        consumerPool.shutdown()
+        try {
+            if (!consumerPool.awaitTermination(30, TimeUnit.SECONDS))
+                logger.warn("Persistent async service queue consumers NOT YET terminated, waited 30 seconds")
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted waiting for persistent async service queue consumers to stop")
+        }
+    }
+
+    /** Queue a call, blocking while the queue is at capacity unless in a transaction; throws ServiceException if still
+     * full after the timeout (right away in a transaction) or if the parameters are not Serializable */
+    void enqueue(AsyncServiceInfo asyncInfo) {
+        if (consumers > 0 && !running) start()
+        // don't wait in the caller's transaction, it would hold its locks and connection while waiting
+        boolean inCallerTx = ecfi.transactionFacade.isTransactionInPlace()
+        waitForCapacity(asyncInfo.serviceName, inCallerTx ? 0L : offerTimeoutMillis)
+
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream()
+        try {
+            ObjectOutputStream objectOut = new ObjectOutputStream(bytesOut)
+            objectOut.writeObject(asyncInfo)
+            objectOut.close()
+        } catch (NotSerializableException e) {
+            throw new ServiceException("Parameters for persistent async service ${asyncInfo.serviceName} must be Serializable: ${e.getMessage()}", e)
+        }
+
+        ExecutionContextImpl eci = ecfi.getEci()
+        boolean alreadyDisabled = eci.artifactExecutionFacade.disableAuthz()
+        try {
+            // in the caller's transaction if there is one so the call is queued only if it commits
+            ecfi.transactionFacade.runUseOrBegin(60, "Error queueing async service ${asyncInfo.serviceName}", {
+                EntityValue asyncCall = ecfi.entityFacade.makeValue(queueEntityName)
+                asyncCall.setAll([serviceName:asyncInfo.serviceName, username:asyncInfo.threadUsername,
+                        queuedDate:new Timestamp(System.currentTimeMillis()), queuedByHost:hostName,
+                        attemptCount:0L, serializedInfo:new SerialBlob(bytesOut.toByteArray())])
+                asyncCall.setSequencedIdPrimary().create()
+            })
+        } finally {
+            if (!alreadyDisabled) eci.artifactExecutionFacade.enableAuthz()
+        }
+        if (inCallerTx) {
+            // count the call and notify consumers only if the caller's transaction commits
+            QueuedSynchronization sync = (QueuedSynchronization) ecfi.transactionFacade.getActiveSynchronization(syncName)
+            if (sync == null) {
+                sync = new QueuedSynchronization(this)
+                ecfi.transactionFacade.putAndEnlistActiveSynchronization(syncName, sync)
+            }
+            sync.queuedCount++
+        } else {
+            queued(1)
+        }
+    }
+    protected void queued(int count) {
+        pendingCount.addAndGet(count)
+        synchronized (pollLock) { if (count == 1) pollLock.notify() else pollLock.notifyAll() }
+    }
+
+    protected void waitForCapacity(String serviceName, long timeoutMillis) {
+        if (pendingCount.get() < capacity) return
+        if (timeoutMillis <= 0L) throw new ServiceException("Persistent async service queue full (${pendingCount.get()} pending, capacity ${capacity}), could not queue ${serviceName} in a transaction")
+        long startTime = System.currentTimeMillis()
+        synchronized (capacityLock) {
+            while (pendingCount.get() >= capacity) {
+                long remaining = timeoutMillis - (System.currentTimeMillis() - startTime)
+                if (remaining <= 0L) throw new ServiceException("Persistent async service queue full (${pendingCount.get()} pending, capacity ${capacity}), could not queue ${serviceName} after waiting ${timeoutMillis/1000}s")
+                capacityLock.wait(remaining)
+            }
+        }
+    }
+    protected void releaseCapacity(long pending) {
+        if (pending >= 0L) pendingCount.set(pending) else pendingCount.decrementAndGet()
+        synchronized (capacityLock) { capacityLock.notifyAll() }
+    }
+
+    /** Claim up to claimBatchSize queued calls; each record is locked and checked again before claiming so a call is
+     * claimed by only one consumer on any server */
+    protected ArrayList<EntityValue> claim(String claimToken) {
+        ArrayList<EntityValue> claimedList = new ArrayList<>()
+        EntityFacadeImpl efi = ecfi.entityFacade
+        ecfi.transactionFacade.runUseOrBegin(60, "Error claiming async service calls", {
+            EntityConditionFactory ecf = efi.getConditionFactory()
+            Timestamp nowTimestamp = new Timestamp(System.currentTimeMillis())
+            Timestamp leaseExpired = new Timestamp(nowTimestamp.getTime() - claimLeaseMillis)
+            EntityList candidateList = efi.find(queueEntityName).condition("failedDate", null)
+                    .condition(ecf.makeCondition(ecf.makeCondition("claimToken", EntityCondition.EQUALS, null), EntityCondition.OR,
+                        ecf.makeCondition("claimedDate", EntityCondition.LESS_THAN, leaseExpired)))
+                    .selectField("asyncCallId").orderBy("queuedDate").limit(claimBatchSize).useCache(false).list()
+            int candidateListSize = candidateList.size()
+            for (int i = 0; i < candidateListSize; i++) {
+                EntityValue asyncCall = efi.find(queueEntityName).condition("asyncCallId", candidateList.get(i).getNoCheckSimple("asyncCallId"))
+                        .forUpdate(true).useCache(false).one()
+                if (asyncCall == null || asyncCall.getNoCheckSimple("failedDate") != null) continue
+                Timestamp claimedDate = asyncCall.getTimestamp("claimedDate")
+                if (asyncCall.getNoCheckSimple("claimToken") != null && claimedDate != null && !claimedDate.before(leaseExpired)) continue
+                asyncCall.set("claimToken", claimToken)
+                asyncCall.set("claimedByHost", hostName)
+                asyncCall.set("claimedDate", nowTimestamp)
+                asyncCall.set("attemptCount", (asyncCall.getLong("attemptCount") ?: 0L) + 1)
+                asyncCall.update()
+                claimedList.add(asyncCall)
+            }
+        })
+        return claimedList
+    }
+
+    /** Run a claimed call in the current thread (with its own ExecutionContext like other async calls), then delete the
+     * record or, on error (thrown or in the MessageFacade), set failedDate and the error with stack trace; failed calls
+     * are not run again automatically */
+    protected void runClaimed(EntityValue asyncCall, String claimToken) {
+        String asyncCallId = asyncCall.getString("asyncCallId")
+        String errorText = (String) null
+        try {
+            ObjectInputStream objectIn = new MoquiObjectInputStream(new ByteArrayInputStream(asyncCall.getBytes("serializedInfo")), ecfi.getClassLoader())
+            AsyncServiceInfo asyncInfo = (AsyncServiceInfo) objectIn.readObject()
+            asyncInfo.ecfiLocal = ecfi
+            asyncInfo.runInternal(null, false, true)
+        } catch (Throwable t) {
+            logger.error("Persistent async service call ${asyncCallId} for ${asyncCall.getString("serviceName")} failed, will not be run again", t)
+            StringWriter errorWriter = new StringWriter()
+            t.printStackTrace(new PrintWriter(errorWriter))
+            errorText = errorWriter.toString()
+        }
+
+        ExecutionContextImpl eci = ecfi.getEci()
+        try {
+            eci.artifactExecutionFacade.disableAuthz()
+            final String finalErrorText = errorText
+            ecfi.transactionFacade.runUseOrBegin(60, "Error completing async service call ${asyncCallId}", {
+                EntityValue current = ecfi.entityFacade.find(queueEntityName).condition("asyncCallId", asyncCallId)
+                        .forUpdate(true).useCache(false).one()
+                if (current == null || claimToken != current.getNoCheckSimple("claimToken")) {
+                    logger.warn("Async service call ${asyncCallId} no longer claimed by this consumer (claim expired?), not updating")
+                    return
+                }
+                if (finalErrorText == null) {
+                    current.delete()
+                } else {
+                    current.set("failedDate", new Timestamp(System.currentTimeMillis()))
+                    current.set("lastErrorText", finalErrorText)
+                    current.update()
+                }
+            })
+        } catch (Throwable t) {
+            logger.error("Error completing async service call ${asyncCallId}", t)
+        } finally {
+            eci.destroy()
+        }
+        if (errorText == null) runCount.incrementAndGet()
+        else failedCount.incrementAndGet()
+        releaseCapacity(-1L)
+    }
+
+    protected long countPending() {
+        ExecutionContextImpl eci = ecfi.getEci()
+        try {
+            return ecfi.entityFacade.find(queueEntityName).condition("failedDate", null).useCache(false).disableAuthz().count()
+        } finally {
+            eci.destroy()
+        }
+    }
+
+    /** Queue size and counts for the status map; Pending is an estimate (see class comment) */
+    Map<String, Object> getStats() {
+        return [Running:running, Consumers:consumers, Pending:pendingCount.get(), Capacity:capacity,
+                Run:runCount.get(), FailedSinceStart:failedCount.get()] as Map<String, Object>
+    }
+
+    static class QueueConsumer implements Runnable {
+        protected final AsyncServiceQueue queue
+        QueueConsumer(AsyncServiceQueue queue) { this.queue = queue }
+
+        @Override
+        void run() {
+            String claimToken = UUID.randomUUID().toString()
+            while (queue.running) {
+                try {
+                    ArrayList<EntityValue> claimedList
+                    ExecutionContextImpl eci = queue.ecfi.getEci()
+                    try {
+                        eci.artifactExecutionFacade.disableAuthz()
+                        claimedList = queue.claim(claimToken)
+                    } finally {
+                        // runInternal() makes its own ExecutionContext
+                        eci.destroy()
+                    }
+                    int claimedListSize = claimedList.size()
+                    for (int i = 0; i < claimedListSize; i++) queue.runClaimed((EntityValue) claimedList.get(i), claimToken)
+                    if (claimedListSize == 0) {
+                        queue.releaseCapacity(queue.countPending())
+                        synchronized (queue.pollLock) { if (queue.running) queue.pollLock.wait(pollMillis) }
+                    }
+                } catch (InterruptedException e) {
+                    break
+                } catch (Throwable t) {
+                    logger.error("Error in persistent async service queue consumer", t)
+                    try { Thread.sleep(pollMillis) } catch (InterruptedException e) { break }
+                }
+            }
+        }
+    }
+
+    /** Counts calls queued in a transaction when it commits */
+    static class QueuedSynchronization implements Synchronization {
+        protected final AsyncServiceQueue queue
+        int queuedCount = 0
+        QueuedSynchronization(AsyncServiceQueue queue) { this.queue = queue }
+        @Override void beforeCompletion() { }
+        @Override void afterCompletion(int status) { if (status == Status.STATUS_COMMITTED && queuedCount > 0) queue.queued(queuedCount) }
+    }
+
+    /** Resolve classes with the Moqui ClassLoader so parameter classes from components deserialize */
+    static class MoquiObjectInputStream extends ObjectInputStream {
+        protected final ClassLoader classLoader
+        MoquiObjectInputStream(InputStream inputStream, ClassLoader classLoader) throws IOException {
+            super(inputStream)
+            this.classLoader = classLoader
+        }
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, classLoader)
+            } catch (ClassNotFoundException e) {
+                return super.resolveClass(desc)
+            }
+        }
+    }
+}
@@ -13,24 +13,34 @@
  */
 package org.moqui.impl.service
 
+import com.fasterxml.jackson.core.JsonEncoding
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.databind.ObjectWriter
+import com.fasterxml.jackson.databind.SerializationFeature
 import groovy.transform.CompileStatic
+import org.apache.commons.csv.CSVFormat
+import org.apache.commons.csv.CSVPrinter
 import org.moqui.BaseException
 import org.moqui.context.ArtifactExecutionInfo
 import org.moqui.context.AuthenticationRequiredException
 import org.moqui.context.ExecutionContext
+import org.moqui.entity.EntityList
 import org.moqui.entity.EntityValue
 import org.moqui.resource.ResourceReference
 import org.moqui.entity.EntityFind
 import org.moqui.impl.context.ArtifactExecutionInfoImpl
+import org.moqui.impl.context.ContextJavaUtil
 import org.moqui.impl.context.ExecutionContextFactoryImpl
 import org.moqui.impl.context.ExecutionContextImpl
 import org.moqui.impl.context.UserFacadeImpl
 import org.moqui.impl.entity.EntityDefinition
+import org.moqui.impl.entity.EntityJavaUtil
 import org.moqui.impl.entity.FieldInfo
 import org.moqui.impl.util.RestSchemaUtil
 import org.moqui.jcache.MCache
 import org.moqui.util.CollectionUtilities
 import org.moqui.util.MNode
+import org.moqui.util.ObjectUtilities
 import org.moqui.util.SystemBinding
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
@@ -39,6 +49,7 @@ import javax.cache.Cache
 import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 import java.math.RoundingMode
+import java.nio.charset.StandardCharsets
 
 @CompileStatic
 class RestApi {
@@ -46,10 +57,17 @@ class RestApi {
 
     @SuppressWarnings("GrFinalVariableAccess") protected final ExecutionContextFactoryImpl ecfi
     @SuppressWarnings("GrFinalVariableAccess") final MCache<String, ResourceNode> rootResourceCache
+    /** Entity list results with a limit at or above this (or no limit) are streamed, see EntityListStream; 0 to only stream CSV */
+    @SuppressWarnings("GrFinalVariableAccess") final int streamListMinLimit
+    /** Rows read per query for EntityListStream */
+    @SuppressWarnings("GrFinalVariableAccess") final int streamChunkRows
 
     RestApi(ExecutionContextFactoryImpl ecfi) {
         this.ecfi = ecfi
         rootResourceCache = ecfi.cacheFacade.getLocalCache("service.rest.api")
+        MNode serviceFacadeNode = ecfi.confXmlRoot.first("service-facade")
+        streamListMinLimit = (serviceFacadeNode.attribute("rest-list-stream-limit") ?: "500") as int
+        streamChunkRows = (serviceFacadeNode.attribute("rest-list-stream-chunk") ?: "1000") as int
         loadRootResourceNode(null)
     }
 
@@ -376,9 +394,22 @@ class RestApi {
                     EntityFind ef = ec.entity.find(entityName).searchFormMap(ec.context, null, null, null, false)
                     // we don't want to go overboard with these requests, never do an unlimited find, if no limit use 100
                     if (!ef.getLimit() && !"true".equals(ec.context.get("pageNoLimit"))) ef.limit(100)
-
-                    int count = ef.count() as int
+                    // get the pageIndex (from searchFormMap) for the page range headers before a cursor clears the offset
                     int pageIndex = ef.getPageIndex()
+                    // keyset pagination with the X-Page-Cursor header from the previous page, count() still counts all
+                    String pageCursor = (String) ec.context.get("pageCursor")
+                    if (pageCursor) ef.keysetCursor(pageCursor)
+
+                    // stream CSV and large lists in chunks instead of building the whole list in memory
+                    RestApi restApi = ((ExecutionContextImpl) ec).serviceFacade.restApi
+                    boolean csvOutput = isCsvRequest(ec)
+                    boolean streamList = !masterName && (csvOutput || (restApi.streamListMinLimit > 0 &&
+                            (!ef.getLimit() || ef.getLimit() >= restApi.streamListMinLimit)))
+                    // for a plain list get the page and total count in one query where supported, only use the count cache
+                    //     when requested with pageCountCache=true as the total may be out of date
+                    boolean countCache = "true".equals(ec.context.get("pageCountCache"))
+                    EntityList el = masterName || streamList ? (EntityList) null : ef.listWithCount(countCache)
+                    int count = (el == null ? ef.count() : ef.getTotalCount()) as int
                     int pageSize = ef.getPageSize()
                     int pageMaxIndex = ((count - 1) as BigDecimal).divide(pageSize as BigDecimal, 0, RoundingMode.DOWN).intValue()
                     int pageRangeLow = pageIndex * pageSize + 1
@@ -387,10 +418,22 @@ class RestApi {
                     Map<String, Object> headers = ['X-Total-Count':count, 'X-Page-Index':pageIndex, 'X-Page-Size':pageSize,
                         'X-Page-Max-Index':pageMaxIndex, 'X-Page-Range-Low':pageRangeLow, 'X-Page-Range-High':pageRangeHigh] as Map<String, Object>
 
-                    if (masterName) {
-                        return new RestResult(ef.listMaster(masterName), headers)
+                    if (streamList) {
+                        // no X-Page-Cursor, headers are sent before the rows are read
+                        return new RestResult(EntityListStream.open(ef, csvOutput, restApi.streamChunkRows, ec), headers)
+                    } else if (masterName) {
+                        List<Map<String, Object>> masterList = ef.listMaster(masterName)
+                        if (ef.getLimit() && masterList.size() == ef.getLimit()) {
+                            String nextCursor = ef.makeKeysetCursor(masterList.get(masterList.size() - 1))
+                            if (nextCursor) headers.put('X-Page-Cursor', nextCursor)
+                        }
+                        return new RestResult(masterList, headers)
                     } else {
-                        return new RestResult(ef.list().getValueMapList(), headers)
+                        if (ef.getLimit() && el.size() == ef.getLimit()) {
+                            String nextCursor = ef.makeKeysetCursor(el.get(el.size() - 1))
+                            if (nextCursor) headers.put('X-Page-Cursor', nextCursor)
+                        }
+                        return new RestResult(el.getValueMapList(), headers)
                     }
                 } else if (operation == 'count') {
                     EntityFind ef = ec.entity.find(entityName).searchFormMap(ec.context, null, null, null, false)
@@ -803,6 +846,164 @@ class RestApi {
         }
     }
 
+    static boolean isCsvRequest(ExecutionContext ec) {
+        HttpServletRequest request = ec.getWeb()?.getRequest()
+        String accept = request != null ? request.getHeader("Accept") : null
+        return accept != null && accept.contains("text/csv")
+    }
+
+    /** Entity list response written row by row as a JSON array or CSV, so memory use does not depend on the number of
+     * rows. Rows are read in queries of chunkRows rows each, with no transaction held open while writing to the client,
+     * and the primary key fields added to the order by so the order is unique. When ordered only by primary key fields
+     * each query starts after the last row read (keyset, see EntityFind.keysetAfter()); other fields may be null and
+     * where nulls sort is database specific, so for those the next query uses an offset. Rows changed between chunks
+     * may be included as of the later chunk. Opened in RestApi.run() so authz is checked and the first chunk read there;
+     * the rest are read after the REST path artifact is popped so a copy of it, authorized as in run(), is pushed for each. */
+    static class EntityListStream {
+        protected final static int flushRows = 200
+        final EntityFind ef
+        final boolean csv
+        final ArrayList<String> fieldNames
+        final String entityName
+        final int chunkRows
+        /** Rows left to read for the find limit, null for no limit */
+        protected Integer remainingRows
+        /** Start each chunk after the last row by keyset, otherwise by offset (seekOffset plus rowsSinceSeek) */
+        protected boolean keysetChunks = false
+        protected int seekOffset
+        protected int rowsSinceSeek = 0
+        protected EntityList chunk = (EntityList) null
+        protected int chunkLimit = 0
+        protected int chunkIndex = 0
+        /** The REST path artifact the stream was opened under, with the authz from RestApi.run() */
+        protected ExecutionContextImpl eci = (ExecutionContextImpl) null
+        protected ArtifactExecutionInfoImpl restAei = (ArtifactExecutionInfoImpl) null
+
+        protected EntityListStream(EntityFind ef, boolean csv, int chunkRows, ArrayList<String> fieldNames, String entityName) {
+            this.ef = ef; this.csv = csv; this.fieldNames = fieldNames; this.entityName = entityName
+            this.chunkRows = chunkRows > 0 ? chunkRows : 1000
+            remainingRows = ef.getLimit()
+            seekOffset = ef.getOffset() ?: 0
+        }
+
+        static EntityListStream open(EntityFind ef, boolean csv, int chunkRows, ExecutionContext ec) {
+            EntityDefinition ed = ((ExecutionContextImpl) ec).entityFacade.getEntityDefinition(ef.getEntity())
+            List<String> selectFields = ef.getSelectFields()
+            ArrayList<String> fieldNames = selectFields ? new ArrayList<String>(selectFields) : ed.getAllFieldNames()
+            // same order by as used for keyset so the first chunk is in the same order as the rest
+            Set<String> orderByNames = new HashSet<>()
+            boolean pkOrderOnly = true
+            List<String> orderByList = ef.getOrderBy()
+            if (orderByList != null) for (String orderBy in orderByList) {
+                String fieldName = EntityJavaUtil.makeFieldOrderOptions(orderBy).getFieldName()
+                orderByNames.add(fieldName)
+                FieldInfo fi = ed.getFieldInfo(fieldName)
+                if (fi == null || !fi.isPk || orderBy.contains("^")) pkOrderOnly = false
+            }
+            for (String pkName in ed.getPkFieldNames()) if (!orderByNames.contains(pkName)) ef.orderBy(pkName)
+            ef.useCache(false)
+
+            EntityListStream els = new EntityListStream(ef, csv, chunkRows, fieldNames, ed.getShortOrFullEntityName())
+            els.keysetChunks = pkOrderOnly
+            els.eci = (ExecutionContextImpl) ec
+            ArtifactExecutionInfo topAei = ec.artifactExecution.peek()
+            if (topAei != null && ArtifactExecutionInfo.AT_REST_PATH.is(topAei.getTypeEnum())) els.restAei = (ArtifactExecutionInfoImpl) topAei
+            els.readChunk()
+            return els
+        }
+
+        /** Read the next chunk, returns false if there are no more rows */
+        protected boolean readChunk() {
+            if (chunk != null) {
+                // a short chunk is the last one
+                if (chunk.size() < chunkLimit) return false
+                EntityValue lastValue = chunk.get(chunk.size() - 1)
+                if (keysetChunks) {
+                    ef.keysetAfter(lastValue)
+                    seekOffset = 0
+                    rowsSinceSeek = 0
+                } else {
+                    ef.offset(seekOffset + rowsSinceSeek)
+                }
+            }
+            chunkLimit = remainingRows != null ? Math.min(chunkRows, remainingRows.intValue()) : chunkRows
+            if (chunkLimit <= 0) return false
+            ef.limit(chunkLimit)
+            // push the REST path with the authz it had in run(), entity finds inherit from it as they did there
+            ArtifactExecutionInfoImpl aei = (ArtifactExecutionInfoImpl) null
+            if (restAei != null) {
+                aei = new ArtifactExecutionInfoImpl(restAei.getName(), ArtifactExecutionInfo.AT_REST_PATH, restAei.getActionEnum(), null)
+                aei.setTrackArtifactHit(false)
+                eci.artifactExecutionFacade.pushInternal(aei, false, false)
+                aei.copyAuthorizedInfo(restAei)
+            }
+            try {
+                chunk = ef.list()
+            } finally {
+                if (aei != null) eci.artifactExecutionFacade.pop(aei)
+            }
+            chunkIndex = 0
+            if (remainingRows != null) remainingRows = remainingRows.intValue() - chunk.size()
+            return chunk.size() > 0
+        }
+        protected EntityValue next() {
+            if (chunk == null) return (EntityValue) null
+            if (chunkIndex >= chunk.size() && !readChunk()) return (EntityValue) null
+            rowsSinceSeek++
+            return chunk.get(chunkIndex++)
+        }
+
+        void write(HttpServletResponse response) {
+            response.setStatus(HttpServletResponse.SC_OK)
+            response.setCharacterEncoding("UTF-8")
+            // no content length so the response is chunked
+            if (csv) {
+                response.setContentType("text/csv")
+                response.setHeader("Content-Disposition", "attachment; filename=\"${entityName}.csv\"")
+                writeCsv(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8))
+            } else {
+                response.setContentType("application/json")
+                writeJson(response.getOutputStream())
+            }
+        }
+        void writeJson(OutputStream os) {
+            ObjectWriter writer = ContextJavaUtil.jacksonMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+                    .without(SerializationFeature.INDENT_OUTPUT)
+            JsonGenerator jg = ContextJavaUtil.jacksonMapper.getFactory().createGenerator(os, JsonEncoding.UTF8)
+            jg.writeStartArray()
+            int rows = 0
+            EntityValue ev
+            while ((ev = next()) != null) {
+                writer.writeValue(jg, CollectionUtilities.removeNullsFromMap(ev.getMap()))
+                if (++rows % flushRows == 0) jg.flush()
+            }
+            jg.writeEndArray()
+            jg.close()
+        }
+        void writeCsv(Writer writer) {
+            CSVPrinter printer = new CSVPrinter(writer, CSVFormat.DEFAULT)
+            printer.printRecord(fieldNames)
+            int fieldCount = fieldNames.size()
+            ArrayList<String> row = new ArrayList<>(fieldCount)
+            int rows = 0
+            EntityValue ev
+            while ((ev = next()) != null) {
+                row.clear()
+                for (int i = 0; i < fieldCount; i++) row.add(ObjectUtilities.toPlainString(ev.getNoCheckSimple(fieldNames.get(i))))
+                printer.printRecord(row)
+                if (++rows % flushRows == 0) printer.flush()
+            }
+            printer.close(true)
+        }
+        /** For batch requests where responses are combined, reads all rows */
+        ArrayList<Map<String, Object>> readAll() {
+            ArrayList<Map<String, Object>> valueMapList = new ArrayList<>()
+            EntityValue ev
+            while ((ev = next()) != null) valueMapList.add(ev.getMap())
+            return valueMapList
+        }
+    }
+
     static class RestResult {
         Object responseObj
         Map<String, Object> headers = [:]
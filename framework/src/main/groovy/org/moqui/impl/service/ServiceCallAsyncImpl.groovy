@@ -31,6 +31,7 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
     protected final static Logger logger = LoggerFactory.getLogger(ServiceCallAsyncImpl.class)
 
     protected boolean distribute = false
+    protected Boolean persist = (Boolean) null
 
     ServiceCallAsyncImpl(ServiceFacadeImpl sfi) {
         super(sfi)
@@ -50,6 +51,8 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
 
     @Override
     ServiceCallAsync distribute(boolean dist) { this.distribute = dist; return this }
+    @Override
+    ServiceCallAsync persist(boolean per) { this.persist = per; return this }
 
     @Override
     void call() {
@@ -60,6 +63,8 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
         AsyncServiceRunnable runnable = new AsyncServiceRunnable(eci, serviceName, parameters)
         if (distribute && sfi.distributedExecutorService != null) {
             sfi.distributedExecutorService.execute(runnable)
+        } else if (persist != null ? persist.booleanValue() : sfi.asyncQueue.persistDefault) {
+            sfi.asyncQueue.enqueue(runnable)
         } else {
             ecfi.workerPool.execute(runnable)
         }
@@ -90,6 +95,7 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
     }
 
     static class AsyncServiceInfo implements Externalizable {
+        private static final long serialVersionUID = 1L
         transient ExecutionContextFactoryImpl ecfiLocal
         String threadUsername
         String serviceName
@@ -132,6 +138,11 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
             return runInternal(null, false)
         }
         Map<String, Object> runInternal(Map<String, Object> parameters, boolean skipEcCheck) throws Exception {
+            return runInternal(parameters, skipEcCheck, false)
+        }
+        /** @param errorOnMessage throw a ServiceException for errors in the MessageFacade after the call, the service call
+         *     reports most errors there and they are gone once the thread ExecutionContext is destroyed */
+        Map<String, Object> runInternal(Map<String, Object> parameters, boolean skipEcCheck, boolean errorOnMessage) throws Exception {
             ExecutionContextImpl threadEci = (ExecutionContextImpl) null
             try {
                 // check for active Transaction
@@ -171,6 +182,8 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
 
                 // NOTE: authz is disabled because authz is checked before queueing
                 Map<String, Object> result = threadEci.serviceFacade.sync().name(serviceName).parameters(parmsToUse).disableAuthz().call()
+                if (errorOnMessage && threadEci.messageFacade.hasError())
+                    throw new ServiceException("Error in async service ${serviceName}: ${threadEci.messageFacade.getErrorsString()}")
                 return result
             } catch (Throwable t) {
                 logger.error("Error in async service", t)
@@ -182,6 +195,7 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
     }
 
     static class AsyncServiceRunnable extends AsyncServiceInfo implements Runnable, Externalizable {
+        private static final long serialVersionUID = 1L
         AsyncServiceRunnable() { super() }
         AsyncServiceRunnable(ExecutionContextImpl eci, String serviceName, Map<String, Object> parameters) {
             super(eci, serviceName, parameters)
@@ -191,6 +205,7 @@ class ServiceCallAsyncImpl extends ServiceCallImpl implements ServiceCallAsync {
 
 
     static class AsyncServiceCallable extends AsyncServiceInfo implements Callable<Map<String, Object>>, Externalizable {
+        private static final long serialVersionUID = 1L
         AsyncServiceCallable() { super() }
         AsyncServiceCallable(ExecutionContextImpl eci, String serviceName, Map<String, Object> parameters) {
             super(eci, serviceName, parameters)
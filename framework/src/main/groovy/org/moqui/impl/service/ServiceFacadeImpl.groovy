@@ -63,6 +63,8 @@ class ServiceFacadeImpl implements ServiceFacade {
 
     /** Distributed ExecutorService for async services, etc */
     protected ExecutorService distributedExecutorService = null
+    /** Persistent queue for async services, see ServiceCallAsync.persist() */
+    public final AsyncServiceQueue asyncQueue
 
     protected final ConcurrentMap<String, List<ServiceCallback>> callbackRegistry = new ConcurrentHashMap<>()
 
@@ -83,6 +85,7 @@ class ServiceFacadeImpl implements ServiceFacade {
         restApi = new RestApi(ecfi)
 
         jobWorkerPool = makeWorkerPool()
+        asyncQueue = new AsyncServiceQueue(ecfi, serviceFacadeNode)
     }
 
     private ThreadPoolExecutor makeWorkerPool() {
@@ -142,6 +145,9 @@ class ServiceFacadeImpl implements ServiceFacade {
             jobRunner = null
         }
 
+        // resume persistent async service calls not run before the last stop
+        asyncQueue.init()
+
     }
 
     void setDistributedExecutorService(ExecutorService executorService) {
@@ -161,6 +167,8 @@ class ServiceFacadeImpl implements ServiceFacade {
     }
 
     void destroy() {
+        // stop persistent async queue consumers first, calls not yet run stay in the queue
+        asyncQueue.destroy()
         // destroy all service runners
         for (ServiceRunner sr in serviceRunners.values()) sr.destroy()
     }
@@ -46,7 +46,8 @@ public class ServiceJsonRpcDispatcher {
     public void dispatch() {
         Map callMap = eci.web.getRequestParameters()
         if (callMap._requestBodyJsonList) {
-            List callList = (List) callMap._requestBodyJsonList
+            // may be a List or an Iterator for JSON bodies parsed from the request stream
+            Object callList = callMap._requestBodyJsonList
             List<Map> jsonRespList = []
             for (Object callSingleObj in callList) {
                 if (callSingleObj instanceof Map) {
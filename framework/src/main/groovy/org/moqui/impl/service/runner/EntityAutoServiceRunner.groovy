@@ -26,6 +26,7 @@ import org.moqui.impl.context.ExecutionContextImpl
 import org.moqui.impl.entity.EntityDefinition
 import org.moqui.impl.entity.EntityFacadeImpl
 import org.moqui.impl.entity.EntityJavaUtil.RelationshipInfo
+import org.moqui.impl.entity.EntitySequenceBank
 import org.moqui.impl.entity.EntityValueBase
 import org.moqui.impl.entity.FieldInfo
 import org.moqui.impl.service.ServiceDefinition
@@ -213,7 +214,7 @@ class EntityAutoServiceRunner implements ServiceRunner {
             newEntityValue.create()
         } catch (Exception e) {
             if (e.getMessage().contains("primary key")) {
-                long[] bank = (long[]) efi.entitySequenceBankCache.get(ed.getFullEntityName())
+                EntitySequenceBank bank = efi.entitySequenceBankCache.get(ed.getFullEntityName())
                 EntityValue svi = efi.find("moqui.entity.SequenceValueItem").condition("seqName", ed.getFullEntityName())
                         .useCache(false).disableAuthz().one()
                 logger.warn("Got PK violation, current bank is ${bank}, PK is ${newEntityValue.getPrimaryKeys()}, current SequenceValueItem: ${svi}")
@@ -140,6 +140,8 @@ public class Moqui {
         if (argMap.containsKey("location")) edl.location(argMap.get("location"));
         if (argMap.containsKey("timeout")) edl.transactionTimeout(Integer.valueOf(argMap.get("timeout")));
         if (argMap.containsKey("dummy-fks")) edl.dummyFks(true);
+        if (argMap.containsKey("threads")) edl.threads(Integer.valueOf(argMap.get("threads")));
+        if (argMap.containsKey("batch-size")) edl.batchSize(Integer.valueOf(argMap.get("batch-size")));
         if (argMap.containsKey("raw") || argMap.containsKey("no-fk-create")) edl.disableFkCreate(true);
         if (argMap.containsKey("raw") || argMap.containsKey("use-try-insert")) edl.useTryInsert(true);
         if (argMap.containsKey("raw") || argMap.containsKey("disable-eeca")) edl.disableEntityEca(true);
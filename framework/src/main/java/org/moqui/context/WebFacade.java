@@ -46,7 +46,8 @@ public interface WebFacade {
     /** Like getPathInfo() but returns a list of decoded path segment Strings.
      * If there is no extra path after the servlet path returns an empty list. */
     ArrayList<String> getPathInfoList();
-    /** If Content-Type request header is a text type and body length is greater than zero you can get the full body text here */
+    /** If Content-Type request header is a text type and body length is greater than zero you can get the full body text here.
+     * Null for JSON bodies parsed from the request stream (see the webapp.@request-json-stream-size attribute). */
     String getRequestBodyText();
     /** Returns a String to append to a URL to make it distinct to force browser reload */
     String getResourceDistinctValue();
@@ -80,6 +80,15 @@ public interface EntityDataLoader {
      */
     EntityDataLoader dummyFks(boolean dummyFks);
 
+    /** Number of threads to load with, defaults to 1 which loads values in file order in one transaction. With more than
+     * one thread values are written in chunks (see batchSize()), each in its own transaction, ordered by foreign key
+     * dependencies with chunks for entities that don't depend on each other written in parallel.
+     * @return Reference to this for convenience.
+     */
+    EntityDataLoader threads(int threads);
+    /** Values per chunk and transaction when loading with more than one thread, defaults to 1000 */
+    EntityDataLoader batchSize(int batchSize);
+
     /** Files with no actions (or no messages for check) are logged in the check and load message list by default,
      * set to false to not add messages for them */
     EntityDataLoader messageNoActionFiles(boolean messageNoActionFiles);
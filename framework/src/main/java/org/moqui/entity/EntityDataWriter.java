@@ -105,6 +105,16 @@ public interface EntityDataWriter {
     /** Write table and column names instead of entity and field names; currently only supported for CSV */
     EntityDataWriter tableColumnNames(boolean tcn);
 
+    /** Number of threads to write with for directory() and zipDirectory(), defaults to 1. With more than one thread
+     * entities (and ranges of large entities, see splitRows()) are each queried in their own transaction and written to
+     * their own file or zip entry, and a manifest (export-manifest.json) is written with row counts and SHA-256 checksums.
+     * @return Reference to this for convenience.
+     */
+    EntityDataWriter threads(int threads);
+    /** With more than one thread entities with a single primary key field and more than this many records are split
+     * into ranges by primary key, each written to its own file. Defaults to 1,000,000; 0 to not split. */
+    EntityDataWriter splitRows(long splitRows);
+
     /** Write all results to a single file.
      * @param filename The path and name of the file to write values to
      * @return Count of values written
@@ -195,6 +195,27 @@ public interface EntityFind extends java.io.Serializable, SimpleEtl.Extractor {
     /** For use with searchFormInputs when paginated. Equals limit (default 20; exists for consistency/convenience along with getPageIndex()). */
     int getPageSize();
 
+    /** Keyset (seek) pagination: only get records after the record with the given values in the order by fields. Primary
+     * key fields not in the order by are added to it so the order is unique, and lastValues must have non-null values for
+     * all of these fields (like the last EntityValue of the previous page). All order by fields must be primary key or
+     * not-null fields and not case insensitive (^). Unlike offset the database does not have to
+     * read and skip earlier records so each page costs about the same. Clears the offset and disables the entity cache.
+     * Only applicable for list() and iterator() finds, count() still counts all records.
+     *
+     * @return Returns this for chaining of method calls.
+     */
+    EntityFind keysetAfter(Map<String, Object> lastValues);
+    /** Keyset pagination using an opaque cursor from makeKeysetCursor(); the find must have the same order by as the
+     * find the cursor was made from. A null or empty cursor is ignored so the first page can be found the same way.
+     *
+     * @return Returns this for chaining of method calls.
+     */
+    EntityFind keysetCursor(String cursor);
+    /** Make an opaque cursor for keysetCursor() to get the page after lastValue (usually the last record in the current
+     * page) with the order by of this find. Returns null if lastValue is null, any order by or primary key field is null,
+     * or the order by is not supported for keyset pagination (see keysetAfter()). */
+    String makeKeysetCursor(Map<String, Object> lastValue);
+
     /** Lock the selected record so only this transaction can change it until it is ended.
      * If this is set when the find is done the useCache setting will be ignored as this will always get the data from
      *     the database.
@@ -269,6 +290,18 @@ public interface EntityFind extends java.io.Serializable, SimpleEtl.Extractor {
     /** Runs a find with current options to get a list of records. */
     EntityList list() throws EntityException;
 
+    /** Runs a find with current options to get a page of records (see offset and limit) and the total count of records
+     * ignoring offset and limit, available from getTotalCount() after this. Where the database supports it (database
+     * count-over attribute) the count comes from a COUNT(*) OVER () column in the same query, otherwise (or for distinct
+     * finds) count() is also run, unless the page is not full so the count is known.
+     *
+     * @param useCountCache If true get the count from and put it in the entity.list.count cache, a short lived cache by
+     *     condition so paging through results does not count every time; the count may be a little out of date.
+     */
+    EntityList listWithCount(boolean useCountCache) throws EntityException;
+    /** The total count from the last listWithCount() call, null if not called */
+    Long getTotalCount();
+
     /** Runs a find with current options to get a list of records, then for each result gets all related/dependent
      * entities according to the named master definition (default name is 'default') */
     List<Map<String, Object>> listMaster(String name) throws EntityException;
@@ -29,7 +29,7 @@ import javax.cache.processor.EntryProcessorResult;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,16 +57,17 @@ public class MCache<K, V> implements Cache<K, V> {
     private final boolean hasExpiry;
     private boolean isClosed = false;
 
-    private EvictRunnable evictRunnable = null;
-    private ScheduledFuture<?> evictFuture = null;
+    /** Min time between writes to MEntry.lastAccessTime, so idle expire times are accurate to about a second */
+    static final long ACCESS_TIME_GRANULARITY = 1000;
+    private final MReadBuffer<K, V> readBuffer = new MReadBuffer<>();
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final ArrayList<MEntry<K, V>> drainBatch = new ArrayList<>();
 
-    private static class WorkerThreadFactory implements ThreadFactory {
-        private final ThreadGroup workerGroup = new ThreadGroup("MCacheEvict");
-        private final AtomicInteger threadNumber = new AtomicInteger(1);
-        @Override public Thread newThread(Runnable r) { return new Thread(workerGroup, r, "MCacheEvict-" + threadNumber.getAndIncrement()); }
-    }
-    private static ScheduledThreadPoolExecutor workerPool = new ScheduledThreadPoolExecutor(1, new WorkerThreadFactory());
-    static { workerPool.setRemoveOnCancelPolicy(true); }
+    /** Enforces max entries, max weight, and budget on put, null if none of these */
+    private volatile MEvictionPolicy<K, V> evictionPolicy = null;
+    private MWeigher<K, V> weigher = null;
+    private MCacheBudget budget = null;
+    private double missCost = 1.0;
 
     /** Supports a few configurations but both manager and configuration can be null. */
     public MCache(String name, CacheManager manager, Configuration<K, V> configuration) {
@@ -97,34 +98,98 @@ public class MCache<K, V> implements Cache<K, V> {
             if (configuration instanceof MCacheConfiguration) {
                 MCacheConfiguration<K, V> mCacheConf = (MCacheConfiguration<K, V>) configuration;
 
-                if (mCacheConf.maxEntries > 0) {
-                    evictRunnable = new EvictRunnable(this, mCacheConf.maxEntries);
-                    evictFuture = workerPool.scheduleWithFixedDelay(evictRunnable, 30, mCacheConf.maxCheckSeconds, TimeUnit.SECONDS);
-                }
+                weigher = mCacheConf.weigher;
+                budget = weigher != null ? mCacheConf.budget : null;
+                missCost = mCacheConf.missCost;
+                long maxWeight = weigher != null ? mCacheConf.maxWeight : 0;
+                if (mCacheConf.maxEntries > 0 || maxWeight > 0 || budget != null)
+                    evictionPolicy = new MEvictionPolicy<>(this, mCacheConf.maxEntries, maxWeight, weigher, budget, missCost);
             }
         }
         hasExpiry = accessDuration != null || creationDuration != null || updateDuration != null;
     }
 
-    public synchronized void setMaxEntries(int elements) {
-        if (elements == 0) {
-            if (evictRunnable != null) {
-                evictRunnable = null;
-                evictFuture.cancel(false);
-                evictFuture = null;
-            }
+    public synchronized void setMaxEntries(int elements) { setLimits(elements, getMaxWeight()); }
+    public int getMaxEntries() { MEvictionPolicy<K, V> policy = evictionPolicy; return policy != null ? policy.getMaxEntries() : 0; }
+    /** Set the max total weight of entries, only used if the cache has a weigher (see MCacheConfiguration.setWeigher()) */
+    public synchronized void setMaxWeight(long maxWeight) { setLimits(getMaxEntries(), maxWeight); }
+    public long getMaxWeight() { MEvictionPolicy<K, V> policy = evictionPolicy; return policy != null ? policy.getMaxWeight() : 0; }
+    /** Total weight of entries if the cache has a weigher and a limit or budget, otherwise 0 */
+    public long getWeight() {
+        MEvictionPolicy<K, V> policy = evictionPolicy;
+        return policy != null && policy.getWeigher() != null ? policy.weight() : 0;
+    }
+    public MCacheBudget getBudget() { return budget; }
+
+    private void setLimits(int maxEntries, long maxWeight) {
+        if (weigher == null) maxWeight = 0;
+        MEvictionPolicy<K, V> oldPolicy = evictionPolicy;
+        if (maxEntries <= 0 && maxWeight <= 0 && budget == null) {
+            evictionPolicy = null;
+            if (oldPolicy != null) oldPolicy.close();
+        } else if (oldPolicy != null) {
+            oldPolicy.setLimits(maxEntries, maxWeight);
         } else {
-            if (evictRunnable != null) {
-                evictRunnable.maxEntries = elements;
-            } else {
-                evictRunnable = new EvictRunnable(this, elements);
-                long maxCheckSeconds = 30;
-                if (configuration instanceof MCacheConfiguration) maxCheckSeconds = ((MCacheConfiguration) configuration).maxCheckSeconds;
-                evictFuture = workerPool.scheduleWithFixedDelay(evictRunnable, 1, maxCheckSeconds, TimeUnit.SECONDS);
-            }
+            MEvictionPolicy<K, V> newPolicy = new MEvictionPolicy<>(this, maxEntries, maxWeight, weigher, budget, missCost);
+            // add existing entries, will evict down to the limits
+            for (MEntry<K, V> entry : entryStore.values()) newPolicy.onAdd(entry);
+            evictionPolicy = newPolicy;
         }
     }
-    public int getMaxEntries() { return evictRunnable != null ? evictRunnable.maxEntries : 0; }
+
+    /** Called by MEvictionPolicy to remove an entry, only removed if the entry is still the one in the store for the key */
+    void evictEntry(MEntry<K, V> entry, boolean rejected) {
+        boolean[] removed = new boolean[1];
+        entryStore.computeIfPresent(entry.getKey(), (k, v) -> { if (v == entry) { removed[0] = true; return null; } return v; });
+        if (removed[0] && statsEnabled) stats.countEviction(rejected);
+    }
+    /** Remove the entry for a key from the store and the eviction policy, returns the removed entry */
+    private MEntry<K, V> removeStoreEntry(K key) {
+        MEntry<K, V> removed = entryStore.remove(key);
+        if (removed != null) {
+            MEvictionPolicy<K, V> policy = evictionPolicy;
+            if (policy != null) policy.onRemove(removed);
+        }
+        return removed;
+    }
+    private void addStoreEntry(K key, MEntry<K, V> entry) {
+        MEntry<K, V> replaced = entryStore.put(key, entry);
+        MEvictionPolicy<K, V> policy = evictionPolicy;
+        if (policy != null) {
+            if (replaced != null) policy.onRemove(replaced);
+            policy.onAdd(entry);
+        }
+    }
+    /** Record a get hit: lastAccessTime is written only if more than ACCESS_TIME_GRANULARITY old (currentTime is 0 if
+     * not needed), access count and eviction policy order are updated when the read buffer is drained */
+    private void recordAccess(MEntry<K, V> entry, long currentTime) {
+        if (currentTime - entry.lastAccessTime > ACCESS_TIME_GRANULARITY) entry.lastAccessTime = currentTime;
+        if (readBuffer.offer(entry)) drainReadBuffer();
+    }
+    private void countUpdate(MEntry<K, V> entry) {
+        MEvictionPolicy<K, V> policy = evictionPolicy;
+        if (policy != null && policy.getWeigher() != null) policy.onUpdate(entry);
+        else if (readBuffer.offer(entry)) drainReadBuffer();
+    }
+    /** Apply buffered accesses, skipped if another thread is draining */
+    void drainReadBuffer() {
+        if (!drainLock.tryLock()) return;
+        try {
+            readBuffer.drainTo(drainBatch);
+            int batchSize = drainBatch.size();
+            if (batchSize == 0) return;
+            for (int i = 0; i < batchSize; i++) drainBatch.get(i).accessCount++;
+            MEvictionPolicy<K, V> policy = evictionPolicy;
+            if (policy != null) policy.onAccessBatch(drainBatch);
+            drainBatch.clear();
+        } finally {
+            drainLock.unlock();
+        }
+    }
+    private void countMiss(K key) {
+        MEvictionPolicy<K, V> policy = evictionPolicy;
+        if (policy != null) policy.onMiss(key);
+    }
 
     @Override
     public String getName() { return name; }
@@ -155,11 +220,11 @@ public class MCache<K, V> implements Cache<K, V> {
         if (key == null) throw new IllegalArgumentException("Cache key cannot be null");
         MEntry<K, V> entry = entryStore.get(key);
         if (entry != null) {
-            if (statsEnabled) { stats.gets++; stats.hits++; }
-            long accessTime = System.currentTimeMillis();
-            entry.accessCount++; if (accessTime > entry.lastAccessTime) entry.lastAccessTime = accessTime;
+            if (statsEnabled) stats.countHit();
+            recordAccess(entry, System.currentTimeMillis());
         } else {
-            if (statsEnabled) { stats.gets++; stats.misses++; }
+            if (statsEnabled) stats.countMiss();
+            countMiss(key);
         }
         return entry;
     }
@@ -172,37 +237,37 @@ public class MCache<K, V> implements Cache<K, V> {
             if (policy != null) {
                 if (currentTime == 0) currentTime = System.currentTimeMillis();
                 if (entry.isExpired(currentTime, policy)) {
-                    entryStore.remove(key);
+                    removeStoreEntry(key);
                     entry = null;
                     if (statsEnabled) stats.countExpire();
                 }
             } else if (hasExpiry) {
                 if (currentTime == 0) currentTime = System.currentTimeMillis();
                 if (entry.isExpired(currentTime, accessDuration, creationDuration, updateDuration)) {
-                    entryStore.remove(key);
+                    removeStoreEntry(key);
                     entry = null;
                     if (statsEnabled) stats.countExpire();
                 }
             }
 
             if (expireBeforeTime != null && entry != null && entry.lastUpdatedTime < expireBeforeTime) {
-                entryStore.remove(key);
+                removeStoreEntry(key);
                 entry = null;
                 if (statsEnabled) stats.countExpire();
             }
 
             if (entry != null) {
-                if (statsEnabled) { stats.gets++; stats.hits++; }
-                entry.accessCount++;
+                if (statsEnabled) stats.countHit();
                 // at this point if an ad-hoc policy is used or hasExpiry == true currentTime will be set, otherwise will be 0
                 // meaning we don't need to track the lastAccessTime (only thing we need System.currentTimeMillis() for)
-                // if (currentTime == 0) currentTime = System.currentTimeMillis();
-                if (currentTime > entry.lastAccessTime) entry.lastAccessTime = currentTime;
+                recordAccess(entry, currentTime);
             } else {
-                if (statsEnabled) { stats.gets++; stats.misses++; }
+                if (statsEnabled) stats.countMiss();
+                countMiss(key);
             }
         } else {
-            if (statsEnabled) { stats.gets++; stats.misses++; }
+            if (statsEnabled) stats.countMiss();
+            countMiss(key);
         }
 
         return entry;
@@ -212,7 +277,7 @@ public class MCache<K, V> implements Cache<K, V> {
         if (key == null) throw new IllegalArgumentException("Cache key cannot be null");
         MEntry<K, V> entry = entryStore.get(key);
         if (hasExpiry && entry != null && entry.isExpired(accessDuration, creationDuration, updateDuration)) {
-            entryStore.remove(key);
+            removeStoreEntry(key);
             entry = null;
             if (statsEnabled) stats.countExpire();
         }
@@ -223,7 +288,7 @@ public class MCache<K, V> implements Cache<K, V> {
         if (key == null) throw new IllegalArgumentException("Cache key cannot be null");
         MEntry<K, V> entry = entryStore.get(key);
         if (hasExpiry && entry != null && entry.isExpired(currentTime, accessDuration, creationDuration, updateDuration)) {
-            entryStore.remove(key);
+            removeStoreEntry(key);
             entry = null;
             if (statsEnabled) stats.countExpire();
         }
@@ -253,11 +318,12 @@ public class MCache<K, V> implements Cache<K, V> {
         MEntry<K, V> entry = getCheckExpired(key, currentTime);
         if (entry != null) {
             entry.setValue(value, currentTime);
-            if (statsEnabled) stats.puts++;
+            if (statsEnabled) stats.countPut();
+            countUpdate(entry);
         } else {
             entry = new MEntry<>(key, value, currentTime);
-            entryStore.put(key, entry);
-            if (statsEnabled) stats.puts++;
+            addStoreEntry(key, entry);
+            if (statsEnabled) stats.countPut();
         }
     }
     @Override
@@ -268,12 +334,13 @@ public class MCache<K, V> implements Cache<K, V> {
         if (entry != null) {
             V oldValue = entry.value;
             entry.setValue(value, currentTime);
-            if (statsEnabled) stats.puts++;
+            if (statsEnabled) stats.countPut();
+            countUpdate(entry);
             return oldValue;
         } else {
             entry = new MEntry<>(key, value, currentTime);
-            entryStore.put(key, entry);
-            if (statsEnabled) stats.puts++;
+            addStoreEntry(key, entry);
+            if (statsEnabled) stats.countPut();
             return null;
         }
     }
@@ -293,7 +360,9 @@ public class MCache<K, V> implements Cache<K, V> {
             entry = new MEntry<>(key, value, currentTime);
             MEntry<K, V> existingValue = entryStore.putIfAbsent(key, entry);
             if (existingValue == null) {
-                if (statsEnabled) stats.puts++;
+                MEvictionPolicy<K, V> policy = evictionPolicy;
+                if (policy != null) policy.onAdd(entry);
+                if (statsEnabled) stats.countPut();
                 return true;
             } else {
                 return false;
@@ -305,7 +374,7 @@ public class MCache<K, V> implements Cache<K, V> {
     public boolean remove(K key) {
         MEntry<K, V> entry = getCheckExpired(key);
         if (entry != null) {
-            entryStore.remove(key);
+            removeStoreEntry(key);
             if (statsEnabled) stats.countRemoval();
             return true;
         } else {
@@ -321,7 +390,11 @@ public class MCache<K, V> implements Cache<K, V> {
             if (remove) {
                 // remove with dummy MEntry instance for comparison to ensure still equals
                 remove = entryStore.remove(key, new MEntry<>(key, oldValue));
-                if (remove && statsEnabled) stats.countRemoval();
+                if (remove) {
+                    MEvictionPolicy<K, V> policy = evictionPolicy;
+                    if (policy != null) policy.onRemove(entry);
+                    if (statsEnabled) stats.countRemoval();
+                }
             }
             return remove;
         } else {
@@ -335,7 +408,7 @@ public class MCache<K, V> implements Cache<K, V> {
         MEntry<K, V> entry = getEntryInternal(key, null, null, 0);
         if (entry != null) {
             V oldValue = entry.value;
-            entryStore.remove(key);
+            removeStoreEntry(key);
             if (statsEnabled) stats.countRemoval();
             return oldValue;
         }
@@ -349,7 +422,7 @@ public class MCache<K, V> implements Cache<K, V> {
 
         if (entry != null) {
             boolean replaced = entry.setValueIfEquals(oldValue, newValue, currentTime);
-            if (replaced) if (statsEnabled) stats.puts++;
+            if (replaced) { if (statsEnabled) stats.countPut(); countUpdate(entry); }
             return replaced;
         } else {
             return false;
@@ -363,7 +436,8 @@ public class MCache<K, V> implements Cache<K, V> {
 
         if (entry != null) {
             entry.setValue(value, currentTime);
-            if (statsEnabled) stats.puts++;
+            if (statsEnabled) stats.countPut();
+            countUpdate(entry);
             return true;
         } else {
             return false;
@@ -378,7 +452,8 @@ public class MCache<K, V> implements Cache<K, V> {
         if (entry != null) {
             V oldValue = entry.value;
             entry.setValue(value, currentTime);
-            if (statsEnabled) stats.puts++;
+            if (statsEnabled) stats.countPut();
+            countUpdate(entry);
             return oldValue;
         } else {
             return null;
@@ -396,6 +471,8 @@ public class MCache<K, V> implements Cache<K, V> {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is closed");
         int size = entryStore.size();
         entryStore.clear();
+        MEvictionPolicy<K, V> policy = evictionPolicy;
+        if (policy != null) policy.clear();
         if (statsEnabled) stats.countBulkRemoval(size);
     }
 
@@ -404,6 +481,8 @@ public class MCache<K, V> implements Cache<K, V> {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is closed");
         // don't track removals or do anything else, removeAll does that
         entryStore.clear();
+        MEvictionPolicy<K, V> policy = evictionPolicy;
+        if (policy != null) policy.clear();
     }
 
     @Override
@@ -442,6 +521,8 @@ public class MCache<K, V> implements Cache<K, V> {
         if (isClosed) throw new IllegalStateException("Cache " + name + " is already closed");
         isClosed = true;
         entryStore.clear();
+        MEvictionPolicy<K, V> policy = evictionPolicy;
+        if (policy != null) policy.close();
     }
     @Override
     public boolean isClosed() { return isClosed; }
@@ -485,11 +566,11 @@ public class MCache<K, V> implements Cache<K, V> {
                 if (curEntry.isExpired) {
                     curEntry = null;
                 } else if (mCache.hasExpiry && curEntry.isExpired(initialTime, mCache.accessDuration, mCache.creationDuration, mCache.updateDuration)) {
-                    mCache.entryStore.remove(curEntry.getKey());
+                    mCache.removeStoreEntry(curEntry.getKey());
                     if (mCache.statsEnabled) mCache.stats.countExpire();
                     curEntry = null;
                 } else {
-                    if (mCache.statsEnabled)  { mCache.stats.gets++; mCache.stats.hits++; }
+                    if (mCache.statsEnabled) mCache.stats.countHit();
                     break;
                 }
             }
@@ -499,7 +580,7 @@ public class MCache<K, V> implements Cache<K, V> {
         @Override
         public void remove() {
             if (curEntry != null) {
-                mCache.entryStore.remove(curEntry.getKey());
+                mCache.removeStoreEntry(curEntry.getKey());
                 if (mCache.statsEnabled) mCache.stats.countRemoval();
                 curEntry = null;
             }
@@ -518,8 +599,8 @@ public class MCache<K, V> implements Cache<K, V> {
             MEntry<K, V> entry = getCheckExpired(key, currentTime);
             if (entry != null) {
                 entryList.add(entry);
-                if (statsEnabled) { stats.gets++; stats.hits++; }
-                entry.accessCount++; if (currentTime > entry.lastAccessTime) entry.lastAccessTime = currentTime;
+                if (statsEnabled) stats.countHit();
+                recordAccess(entry, currentTime);
             }
         }
         return entryList;
@@ -535,7 +616,7 @@ public class MCache<K, V> implements Cache<K, V> {
             K key = keyList.get(i);
             MEntry<K, V> entry = entryStore.get(key);
             if (entry != null && entry.isExpired(currentTime, accessDuration, creationDuration, updateDuration)) {
-                entryStore.remove(key);
+                removeStoreEntry(key);
                 if (statsEnabled) stats.countExpire();
                 expireCount++;
             }
@@ -549,49 +630,4 @@ public class MCache<K, V> implements Cache<K, V> {
     public Duration getAccessDuration() { return accessDuration; }
     public Duration getCreationDuration() { return creationDuration; }
     public Duration getUpdateDuration() { return updateDuration; }
-
-    private static class EvictRunnable<K, V> implements Runnable {
-        static AccessComparator comparator = new AccessComparator();
-        MCache cache;
-        int maxEntries;
-        EvictRunnable(MCache mc, int entries) { cache = mc; maxEntries = entries; }
-        @Override
-        @SuppressWarnings("unchecked")
-        public void run() {
-            if (maxEntries == 0) return;
-            int entriesToEvict = cache.entryStore.size() - maxEntries;
-            if (entriesToEvict <= 0) return;
-
-            long startTime = System.currentTimeMillis();
-
-            Collection<MEntry> entrySet = (Collection<MEntry>) cache.entryStore.values();
-            PriorityQueue<MEntry> priorityQueue = new PriorityQueue<>(entrySet.size(), comparator);
-            priorityQueue.addAll(entrySet);
-
-            int entriesEvicted = 0;
-            while (entriesToEvict > 0 && priorityQueue.size() > 0) {
-                MEntry curEntry = priorityQueue.poll();
-                // if an entry was expired after pulling the initial value set
-                if (curEntry.isExpired) continue;
-                cache.entryStore.remove(curEntry.getKey());
-                cache.stats.evictions++;
-                entriesEvicted++;
-                entriesToEvict--;
-            }
-            long timeElapsed = System.currentTimeMillis() - startTime;
-            logger.info("Evicted " + entriesEvicted + " entries in " + timeElapsed + "ms from cache " + cache.name);
-        }
-    }
-    private static class AccessComparator implements Comparator<MEntry> {
-        @Override
-        public int compare(MEntry e1, MEntry e2) {
-            if (e1.accessCount == e2.accessCount) {
-                if (e1.lastAccessTime == e2.lastAccessTime) return 0;
-                else return e1.lastAccessTime > e2.lastAccessTime ? 1 : -1;
-            } else {
-                return e1.accessCount > e2.accessCount ? 1 : -1;
-            }
-        }
-    }
-
 }
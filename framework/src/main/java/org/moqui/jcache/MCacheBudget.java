@@ -0,0 +1,130 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A heap budget shared by a set of MCache instances (with a weigher, see MCacheConfiguration.setBudget()). When the
+ * total weight of all caches goes over the max weight the cache doing the put trims caches down to a target total of
+ * 90% of the max so that trimming isn't done on every put.
+ *
+ * The target is split between caches in proportion to eviction cost, where cost is the configured miss cost
+ * (MCacheConfiguration.setMissCost()) times the hit ratio. Caches using less than their share keep all entries and the
+ * rest is split between the others the same way (weighted max-min fair), so only caches that are large relative to how
+ * much their entries are used and how expensive they are to load get trimmed.
+ */
+public class MCacheBudget {
+    private static final Logger logger = LoggerFactory.getLogger(MCacheBudget.class);
+
+    private final long maxWeight;
+    private final AtomicLong totalWeight = new AtomicLong(0);
+    private final CopyOnWriteArrayList<MEvictionPolicy<?, ?>> policyList = new CopyOnWriteArrayList<>();
+    private final ReentrantLock trimLock = new ReentrantLock();
+    private long trimCount = 0;
+
+    public MCacheBudget(long maxWeight) {
+        if (maxWeight <= 0) throw new IllegalArgumentException("Cache budget max weight must be greater than 0");
+        this.maxWeight = maxWeight;
+    }
+
+    /** Parse a memory size with optional k, m, or g suffix (1024 based), or a percent of max heap like 20% */
+    public static long parseMemorySize(String sizeStr) {
+        if (sizeStr == null) return 0;
+        String str = sizeStr.trim().toLowerCase();
+        if (str.isEmpty()) return 0;
+        if (str.endsWith("%")) {
+            double percent = Double.parseDouble(str.substring(0, str.length() - 1));
+            return (long) (Runtime.getRuntime().maxMemory() * percent / 100.0);
+        }
+        long multiplier = 1;
+        char last = str.charAt(str.length() - 1);
+        if (last == 'k') multiplier = 1024L;
+        else if (last == 'm') multiplier = 1024L * 1024L;
+        else if (last == 'g') multiplier = 1024L * 1024L * 1024L;
+        if (multiplier > 1) str = str.substring(0, str.length() - 1);
+        return Long.parseLong(str.trim()) * multiplier;
+    }
+
+    public long getMaxWeight() { return maxWeight; }
+    public long getTotalWeight() { return totalWeight.get(); }
+    public long getTrimCount() { return trimCount; }
+    public int getCacheCount() { return policyList.size(); }
+
+    void register(MEvictionPolicy<?, ?> policy) { if (!policyList.contains(policy)) policyList.add(policy); }
+    void unregister(MEvictionPolicy<?, ?> policy) {
+        if (policyList.remove(policy)) totalWeight.addAndGet(-policy.weight());
+    }
+
+    /** Called by MEvictionPolicy after its weight changes, never with a policy lock held */
+    void adjust(long delta) {
+        if (delta == 0) return;
+        long total = totalWeight.addAndGet(delta);
+        if (delta > 0 && total > maxWeight) trim();
+    }
+
+    private void trim() {
+        // only one thread trims at a time, others continue (the total may be over max for a short time)
+        if (!trimLock.tryLock()) return;
+        try {
+            long total = totalWeight.get();
+            if (total <= maxWeight) return;
+            long targetTotal = maxWeight - maxWeight / 10;
+
+            List<MEvictionPolicy<?, ?>> policies = new ArrayList<>(policyList);
+            int size = policies.size();
+            long[] weights = new long[size];
+            double[] costs = new double[size];
+            boolean[] fits = new boolean[size];
+            double costTotal = 0;
+            for (int i = 0; i < size; i++) {
+                MEvictionPolicy<?, ?> policy = policies.get(i);
+                weights[i] = policy.weight();
+                costs[i] = policy.evictionCost();
+                costTotal += costs[i];
+            }
+
+            // caches under their share of what remains fit, take them out and split the rest again until none change
+            long remaining = targetTotal;
+            boolean changed = true;
+            while (changed && costTotal > 0) {
+                changed = false;
+                for (int i = 0; i < size; i++) {
+                    if (fits[i]) continue;
+                    if (weights[i] <= remaining * (costs[i] / costTotal)) {
+                        fits[i] = true;
+                        remaining -= weights[i];
+                        costTotal -= costs[i];
+                        changed = true;
+                    }
+                }
+            }
+            for (int i = 0; i < size; i++) {
+                if (fits[i] || costTotal <= 0) continue;
+                policies.get(i).trimTo((long) (remaining * (costs[i] / costTotal)));
+            }
+            trimCount++;
+            if (logger.isTraceEnabled()) logger.trace("Trimmed caches from total weight " + total + " to " + totalWeight.get() + " with max " + maxWeight);
+        } finally {
+            trimLock.unlock();
+        }
+    }
+}
@@ -27,9 +27,14 @@ public class MCacheConfiguration<K, V> extends MutableConfiguration<K, V> {
     }
 
     int maxEntries = 0;
+    long maxWeight = 0;
+    MWeigher<K, V> weigher = null;
+    MCacheBudget budget = null;
+    double missCost = 1.0;
     long maxCheckSeconds = 30;
 
-    /** Set maximum number of entries in the cache, 0 means no limit (default). Limit is enforced in a scheduled worker, not on put operations. */
+    /** Set maximum number of entries in the cache, 0 means no limit (default). Limit is enforced on put operations
+     * with a W-TinyLFU policy, see MEvictionPolicy. */
     public MCacheConfiguration<K, V> setMaxEntries(int elements) {
         maxEntries = elements;
         return this;
@@ -38,7 +43,44 @@ public class MCacheConfiguration<K, V> extends MutableConfiguration<K, V> {
         return maxEntries;
     }
 
-    /** Set maximum number of entries in the cache, 0 means no limit (default). */
+    /** Set the weigher used to calculate entry weights for max weight and budget, null (default) for no weights */
+    public MCacheConfiguration<K, V> setWeigher(MWeigher<K, V> weigher) {
+        this.weigher = weigher;
+        return this;
+    }
+    public MWeigher<K, V> getWeigher() {
+        return weigher;
+    }
+
+    /** Set maximum total weight of entries as calculated by the weigher, 0 means no limit (default); ignored if no
+     * weigher. Can be used with max entries, the cache is kept within both limits. */
+    public MCacheConfiguration<K, V> setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        return this;
+    }
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /** Set a budget shared with other caches; ignored if no weigher */
+    public MCacheConfiguration<K, V> setBudget(MCacheBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+    public MCacheBudget getBudget() {
+        return budget;
+    }
+
+    /** Set the relative cost of a miss (default 1.0), caches with a higher miss cost get a bigger share of the budget */
+    public MCacheConfiguration<K, V> setMissCost(double missCost) {
+        this.missCost = missCost;
+        return this;
+    }
+    public double getMissCost() {
+        return missCost;
+    }
+
+    /** No longer used, max entries is enforced on put instead of in a scheduled worker; kept for configuration compatibility */
     public MCacheConfiguration<K, V> setMaxCheckSeconds(long seconds) {
         maxCheckSeconds = seconds;
         return this;
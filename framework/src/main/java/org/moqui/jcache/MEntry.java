@@ -26,6 +26,10 @@ public class MEntry<K, V> implements Cache.Entry<K, V> {
     long lastAccessTime = 0;
     long accessCount = 0;
     boolean isExpired = false;
+    // for MEvictionPolicy, only changed with the policy lock held
+    MEntry<K, V> policyPrev = null, policyNext = null;
+    byte policyQueue = 0;
+    int policyWeight = 1;
 
     /**
      * Use this only to create MEntry to compare with an existing entry
@@ -99,19 +103,16 @@ public class MEntry<K, V> implements Cache.Entry<K, V> {
         return lastUpdatedTime;
     }
 
+    /** Only updated for caches with expiry, and at most once per MCache.ACCESS_TIME_GRANULARITY */
     public long getLastAccessTime() {
         return lastAccessTime;
     }
 
+    /** Approximate, counted when the MCache read buffer is drained and accesses may be dropped under contention */
     public long getAccessCount() {
         return accessCount;
     }
 
-    /* done directly on fields for performance reasons
-    void countAccess(long accessTime) {
-        accessCount++; if (accessTime > lastAccessTime) lastAccessTime = accessTime;
-    }
-    */
     @SuppressWarnings("unused")
     public boolean isExpired(ExpiryPolicy policy) {
         return isExpired(System.currentTimeMillis(), policy.getExpiryForAccess(), policy.getExpiryForCreation(),
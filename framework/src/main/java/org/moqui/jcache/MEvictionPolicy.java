@@ -0,0 +1,388 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * W-TinyLFU replacement policy for MCache with a max entries or max weight limit, or in a shared MCacheBudget. New
+ * entries go into a small LRU window (1% of capacity); entries leaving the window are candidates for the main segmented
+ * LRU (probation and protected, 80% of the main space). When the cache is over the limit the candidate is compared to
+ * the probation LRU entry (the victim) using a count-min frequency sketch of recent accesses and the one used less is
+ * evicted, so one-time entries don't push out frequently used ones.
+ *
+ * With a weigher each entry has a weight (1 without), with a max weight the window and protected sizes are in weight
+ * instead of entries. With only a budget the capacity is the current size so the segments still have the same ratios.
+ *
+ * All changes are done under a lock on put (amortized O(1), no sorting). Gets are recorded in the MCache read buffer
+ * and applied in batches when it is drained (lossy) so gets never wait. Weight changes are passed to the budget after
+ * the lock is released.
+ */
+public class MEvictionPolicy<K, V> {
+    static final byte QUEUE_NONE = 0, QUEUE_WINDOW = 1, QUEUE_PROBATION = 2, QUEUE_PROTECTED = 3, QUEUE_DEAD = -1;
+
+    private final MCache<K, V> cache;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final EntryDeque<K, V> window = new EntryDeque<>(), probation = new EntryDeque<>(), protectedDeque = new EntryDeque<>();
+    private final MWeigher<K, V> weigher;
+    private final MCacheBudget budget;
+    private final double missCost;
+    private volatile int maxEntries;
+    private volatile long maxWeight;
+
+    MEvictionPolicy(MCache<K, V> cache, int maxEntries, long maxWeight, MWeigher<K, V> weigher, MCacheBudget budget, double missCost) {
+        this.cache = cache;
+        this.weigher = weigher;
+        this.budget = budget;
+        this.missCost = missCost > 0 ? missCost : 1.0;
+        this.maxEntries = Math.max(0, maxEntries);
+        this.maxWeight = weigher != null ? Math.max(0, maxWeight) : 0;
+        sketch.ensureCapacity(this.maxEntries > 0 ? this.maxEntries : 1024);
+        if (budget != null) budget.register(this);
+    }
+
+    public int getMaxEntries() { return maxEntries; }
+    public long getMaxWeight() { return maxWeight; }
+    public MCacheBudget getBudget() { return budget; }
+    public MWeigher<K, V> getWeigher() { return weigher; }
+    public int size() { return window.size + probation.size + protectedDeque.size; }
+    /** Total weight of entries in the policy, same as size() if there is no weigher */
+    public long weight() { return window.weight + probation.weight + protectedDeque.weight; }
+    /** True if this policy limits the cache in any way */
+    boolean isBounded() { return maxEntries > 0 || maxWeight > 0 || budget != null; }
+
+    /** Relative cost of evicting from this cache for MCacheBudget: miss cost times hit ratio */
+    double evictionCost() {
+        MStats stats = cache.getMStats();
+        double hitRatio = (stats.getCacheHits() + 1.0) / (stats.getCacheGets() + 1.0);
+        return missCost * hitRatio;
+    }
+
+    void setLimits(int maxEntries, long maxWeight) {
+        long delta;
+        lock.lock();
+        try {
+            long before = weight();
+            this.maxEntries = Math.max(0, maxEntries);
+            if (weigher != null) this.maxWeight = Math.max(0, maxWeight);
+            if (this.maxEntries > 0) sketch.ensureCapacity(this.maxEntries);
+            evict(null);
+            delta = weight() - before;
+        } finally {
+            lock.unlock();
+        }
+        if (budget != null) budget.adjust(delta);
+    }
+
+    /** Record a get miss so the key's frequency is known if it is put */
+    void onMiss(K key) {
+        if (!lock.tryLock()) return;
+        try {
+            sketch.increment(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+    /** Record get hits drained from the MCache read buffer, moves entries to the most recently used end of their segment */
+    void onAccessBatch(ArrayList<MEntry<K, V>> entryList) {
+        int size = entryList.size();
+        lock.lock();
+        try {
+            for (int i = 0; i < size; i++) accessInternal(entryList.get(i));
+        } finally {
+            lock.unlock();
+        }
+    }
+    /** Record a value update with a weigher so the new weight is counted, without a weigher updates go through the read buffer */
+    void onUpdate(MEntry<K, V> entry) {
+        if (weigher == null) return;
+        long delta;
+        lock.lock();
+        try {
+            long before = weight();
+            if (entry.policyQueue > QUEUE_NONE) {
+                int newWeight = weigh(entry);
+                EntryDeque<K, V> deque = dequeOf(entry.policyQueue);
+                deque.weight += newWeight - entry.policyWeight;
+                entry.policyWeight = newWeight;
+                accessInternal(entry);
+                evict(null);
+            }
+            delta = weight() - before;
+        } finally {
+            lock.unlock();
+        }
+        if (budget != null) budget.adjust(delta);
+    }
+    /** Add a new entry (already in the entry store), evicting entries if over the limits */
+    void onAdd(MEntry<K, V> entry) {
+        long delta;
+        lock.lock();
+        try {
+            // removed before it got here (put and remove race)
+            if (entry.policyQueue != QUEUE_NONE) return;
+            long before = weight();
+            // no max entries to size the sketch, grow it with the cache
+            if (maxEntries == 0) sketch.ensureCapacity(size() + 1);
+            sketch.increment(entry.getKey());
+            entry.policyWeight = weigher != null ? weigh(entry) : 1;
+            entry.policyQueue = QUEUE_WINDOW;
+            window.addFirst(entry);
+            long windowMax = Math.max(1, capacity() / 100);
+            MEntry<K, V> candidate = null;
+            while (units(window) > windowMax && window.size > 1) {
+                candidate = window.removeLast();
+                candidate.policyQueue = QUEUE_PROBATION;
+                probation.addFirst(candidate);
+            }
+            evict(candidate);
+            delta = weight() - before;
+        } finally {
+            lock.unlock();
+        }
+        if (budget != null) budget.adjust(delta);
+    }
+    /** Entry removed from the entry store (remove, expire, replace) */
+    void onRemove(MEntry<K, V> entry) {
+        if (entry == null) return;
+        long delta;
+        lock.lock();
+        try {
+            long before = weight();
+            unlink(entry);
+            entry.policyQueue = QUEUE_DEAD;
+            delta = weight() - before;
+        } finally {
+            lock.unlock();
+        }
+        if (budget != null) budget.adjust(delta);
+    }
+    /** Evict least valuable entries until weight is at or below target weight, used by MCacheBudget */
+    void trimTo(long targetWeight) {
+        long delta;
+        lock.lock();
+        try {
+            long before = weight();
+            while (weight() > targetWeight) {
+                MEntry<K, V> victim = probation.last;
+                if (victim == null) victim = window.last;
+                if (victim == null) victim = protectedDeque.last;
+                if (victim == null) break;
+                removeFromCache(victim, false);
+            }
+            delta = weight() - before;
+        } finally {
+            lock.unlock();
+        }
+        if (budget != null) budget.adjust(delta);
+    }
+    /** Entries removed from the entry store (cache clear) */
+    void clear() { unlinkAll(QUEUE_DEAD); }
+    /** Unlink all and remove from the budget, for cache close or removing the limits; entries may stay in the entry
+     * store so are left in no queue for onAdd() by a later policy */
+    void close() {
+        unlinkAll(QUEUE_NONE);
+        if (budget != null) budget.unregister(this);
+    }
+    private void unlinkAll(byte queueAfter) {
+        long delta;
+        lock.lock();
+        try {
+            long before = weight();
+            MEntry<K, V> entry;
+            while ((entry = window.removeLast()) != null) entry.policyQueue = queueAfter;
+            while ((entry = probation.removeLast()) != null) entry.policyQueue = queueAfter;
+            while ((entry = protectedDeque.removeLast()) != null) entry.policyQueue = queueAfter;
+            delta = weight() - before;
+        } finally {
+            lock.unlock();
+        }
+        if (budget != null) budget.adjust(delta);
+    }
+
+    private int weigh(MEntry<K, V> entry) {
+        int weight = weigher.weigh(entry.getKey(), entry.value);
+        return Math.max(weight, 0);
+    }
+    private EntryDeque<K, V> dequeOf(byte queue) {
+        switch (queue) {
+            case QUEUE_WINDOW: return window;
+            case QUEUE_PROBATION: return probation;
+            case QUEUE_PROTECTED: return protectedDeque;
+            default: return null;
+        }
+    }
+    /** Weight if there is a max weight, otherwise entry count */
+    private long units(EntryDeque<K, V> deque) { return maxWeight > 0 ? deque.weight : deque.size; }
+    private long capacity() {
+        if (maxWeight > 0) return maxWeight;
+        if (maxEntries > 0) return maxEntries;
+        return size();
+    }
+    private boolean overLimit() {
+        return (maxEntries > 0 && size() > maxEntries) || (maxWeight > 0 && weight() > maxWeight);
+    }
+
+    /** Call with lock held */
+    private void accessInternal(MEntry<K, V> entry) {
+        sketch.increment(entry.getKey());
+        switch (entry.policyQueue) {
+            case QUEUE_WINDOW: window.moveToFront(entry); break;
+            case QUEUE_PROBATION:
+                // used again while in probation, promote to protected and demote protected LRU if over max
+                probation.remove(entry);
+                entry.policyQueue = QUEUE_PROTECTED;
+                protectedDeque.addFirst(entry);
+                long protectedMax = (capacity() - Math.max(1, capacity() / 100)) * 80L / 100L;
+                while (units(protectedDeque) > protectedMax && protectedDeque.size > 1) {
+                    MEntry<K, V> demoted = protectedDeque.removeLast();
+                    demoted.policyQueue = QUEUE_PROBATION;
+                    probation.addFirst(demoted);
+                }
+                break;
+            case QUEUE_PROTECTED: protectedDeque.moveToFront(entry); break;
+        }
+    }
+    private void unlink(MEntry<K, V> entry) {
+        EntryDeque<K, V> deque = dequeOf(entry.policyQueue);
+        if (deque != null) deque.remove(entry);
+    }
+
+    /** Evict until within the limits; call with lock held */
+    private void evict(MEntry<K, V> candidate) {
+        while (overLimit()) {
+            MEntry<K, V> victim = probation.last;
+            if (victim == null) victim = protectedDeque.last;
+            if (victim == null) victim = window.last;
+            if (victim == null) break;
+
+            if (candidate != null && candidate != victim && candidate.policyQueue == QUEUE_PROBATION) {
+                if (sketch.frequency(candidate.getKey()) <= sketch.frequency(victim.getKey())) {
+                    // candidate not used more than the victim, don't admit it
+                    MEntry<K, V> rejected = candidate;
+                    candidate = null;
+                    removeFromCache(rejected, true);
+                    continue;
+                }
+                candidate = null;
+            }
+            removeFromCache(victim, false);
+        }
+    }
+    private void removeFromCache(MEntry<K, V> entry, boolean rejected) {
+        unlink(entry);
+        entry.policyQueue = QUEUE_DEAD;
+        cache.evictEntry(entry, rejected);
+    }
+
+    /** Intrusive doubly linked list using MEntry.policyPrev/policyNext, first is most recently used */
+    private static final class EntryDeque<K, V> {
+        MEntry<K, V> first = null, last = null;
+        int size = 0;
+        long weight = 0;
+        void addFirst(MEntry<K, V> entry) {
+            entry.policyPrev = null;
+            entry.policyNext = first;
+            if (first != null) first.policyPrev = entry; else last = entry;
+            first = entry;
+            size++;
+            weight += entry.policyWeight;
+        }
+        void remove(MEntry<K, V> entry) {
+            MEntry<K, V> prev = entry.policyPrev, next = entry.policyNext;
+            if (prev != null) prev.policyNext = next; else first = next;
+            if (next != null) next.policyPrev = prev; else last = prev;
+            entry.policyPrev = null;
+            entry.policyNext = null;
+            size--;
+            weight -= entry.policyWeight;
+        }
+        MEntry<K, V> removeLast() {
+            MEntry<K, V> entry = last;
+            if (entry != null) remove(entry);
+            return entry;
+        }
+        void moveToFront(MEntry<K, V> entry) {
+            if (first == entry) return;
+            remove(entry);
+            addFirst(entry);
+        }
+    }
+
+    /**
+     * Count-min sketch with 4-bit counters, 16 per long and 4 counters (rows) per key. When the number of increments
+     * reaches 10 times the maximum all counters are halved so old popularity fades. Not thread-safe, used under lock.
+     */
+    static final class FrequencySketch {
+        private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private long[] table = new long[16];
+        private int tableMask = 15, sampleSize = 160, additions = 0;
+
+        void ensureCapacity(int maximum) {
+            int length = Integer.highestOneBit(Math.max(16, Math.min(maximum, 1 << 26)) - 1) << 1;
+            if (length <= table.length) return;
+            table = new long[length];
+            tableMask = length - 1;
+            sampleSize = (int) Math.min(10L * maximum, Integer.MAX_VALUE);
+            additions = 0;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) added |= incrementAt(indexOf(hash, i), start + i);
+            if (added && ++additions >= sampleSize) reset();
+        }
+
+        private boolean incrementAt(int index, int counter) {
+            int offset = counter << 2;
+            long mask = 0xfL << offset;
+            if ((table[index] & mask) != mask) {
+                table[index] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+        private void reset() {
+            for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & RESET_MASK;
+            additions = additions / 2;
+        }
+        private int indexOf(int item, int i) {
+            long hash = (item + SEED[i]) * SEED[i];
+            hash += (hash >>> 32);
+            return ((int) hash) & tableMask;
+        }
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
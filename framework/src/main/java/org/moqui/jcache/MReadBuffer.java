@@ -0,0 +1,84 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lossy striped ring buffer of accessed entries, used by MCache so that gets record access with one CAS on a mostly
+ * thread-local stripe instead of writing to the entry or taking the eviction policy lock. Entries are dropped when a
+ * stripe is full or the CAS fails; access order and counts are approximate. Only one thread may drain at a time.
+ */
+final class MReadBuffer<K, V> {
+    static final int STRIPE_SIZE = 16, STRIPE_MASK = STRIPE_SIZE - 1;
+    private static final int MAX_STRIPES = 64;
+
+    private static final class Stripe<K, V> {
+        final AtomicLong writeCounter = new AtomicLong(0);
+        volatile long readCounter = 0;
+        final AtomicReferenceArray<MEntry<K, V>> slots = new AtomicReferenceArray<>(STRIPE_SIZE);
+    }
+
+    private final Stripe<K, V>[] stripes;
+    private final int stripeMask;
+
+    @SuppressWarnings("unchecked")
+    MReadBuffer() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int count = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, processors - 1)) << 1);
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) stripes[i] = new Stripe<>();
+        stripeMask = count - 1;
+    }
+
+    /** Returns true if the stripe is full and should be drained (whether or not the entry was added) */
+    boolean offer(MEntry<K, V> entry) {
+        Stripe<K, V> stripe = stripes[probe() & stripeMask];
+        long tail = stripe.writeCounter.get();
+        long size = tail - stripe.readCounter;
+        if (size >= STRIPE_SIZE) return true;
+        if (stripe.writeCounter.compareAndSet(tail, tail + 1)) {
+            stripe.slots.lazySet((int) (tail & STRIPE_MASK), entry);
+            return size + 1 >= STRIPE_SIZE;
+        }
+        return false;
+    }
+
+    /** Move all published entries to the batch list; call from one thread at a time */
+    void drainTo(ArrayList<MEntry<K, V>> batch) {
+        for (int s = 0; s < stripes.length; s++) {
+            Stripe<K, V> stripe = stripes[s];
+            long head = stripe.readCounter;
+            long tail = stripe.writeCounter.get();
+            while (head < tail) {
+                int index = (int) (head & STRIPE_MASK);
+                MEntry<K, V> entry = stripe.slots.get(index);
+                // slot claimed but not yet set, get it next time
+                if (entry == null) break;
+                stripe.slots.lazySet(index, null);
+                batch.add(entry);
+                head++;
+            }
+            stripe.readCounter = head;
+        }
+    }
+
+    private static int probe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -14,68 +14,73 @@
 package org.moqui.jcache;
 
 import javax.cache.management.CacheStatisticsMXBean;
+import java.util.concurrent.atomic.LongAdder;
 
+/** Cache statistics with striped counters (LongAdder) so gets on hot caches don't contend on shared fields. Counts
+ * are exact; gets is the sum of hits and misses. */
 public class MStats implements CacheStatisticsMXBean {
-    long hits = 0;
-    long misses = 0;
-    long gets = 0;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
 
-    long puts = 0;
-    private long removals = 0;
-    long evictions = 0;
-    private long expires = 0;
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder removals = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder admissionRejections = new LongAdder();
+    private final LongAdder expires = new LongAdder();
 
     // long totalGetMicros = 0, totalPutMicros = 0, totalRemoveMicros = 0;
 
     @Override
     public void clear() {
-        hits = 0;
-        misses = 0;
-        gets = 0;
-        puts = 0;
-        removals = 0;
-        evictions = 0;
-        expires = 0;
+        hits.reset();
+        misses.reset();
+        puts.reset();
+        removals.reset();
+        evictions.reset();
+        admissionRejections.reset();
+        expires.reset();
     }
 
     @Override
     public long getCacheHits() {
-        return hits;
+        return hits.sum();
     }
 
     @Override
     public float getCacheHitPercentage() {
-        return (hits / gets) * 100;
+        long hitCount = hits.sum(), gets = hitCount + misses.sum();
+        return gets == 0 ? 0 : (hitCount * 100.0f) / gets;
     }
 
     @Override
     public long getCacheMisses() {
-        return misses;
+        return misses.sum();
     }
 
     @Override
     public float getCacheMissPercentage() {
-        return (misses / gets) * 100;
+        long missCount = misses.sum(), gets = hits.sum() + missCount;
+        return gets == 0 ? 0 : (missCount * 100.0f) / gets;
     }
 
     @Override
     public long getCacheGets() {
-        return gets;
+        return hits.sum() + misses.sum();
     }
 
     @Override
     public long getCachePuts() {
-        return puts;
+        return puts.sum();
     }
 
     @Override
     public long getCacheRemovals() {
-        return removals;
+        return removals.sum();
     }
 
     @Override
     public long getCacheEvictions() {
-        return evictions;
+        return evictions.sum();
     }
 
     @Override
@@ -93,34 +98,43 @@ public class MStats implements CacheStatisticsMXBean {
         return 0;
     } // totalRemoveMicros / removals
 
+    /** New entries evicted because the max entries policy did not admit them (used less than the entry they would replace),
+     * these are included in getCacheEvictions() */
+    public long getCacheAdmissionRejections() {
+        return admissionRejections.sum();
+    }
+
     public long getCacheExpires() {
-        return expires;
+        return expires.sum();
     }
 
-    /* have callers access fields directly for performance reasons:
     void countHit() {
-        gets++; hits++;
+        hits.increment();
         // totalGetMicros += micros;
     }
     void countMiss() {
-        gets++; misses++;
+        misses.increment();
         // totalGetMicros += micros;
     }
     void countPut() {
-        puts++;
+        puts.increment();
         // totalPutMicros += micros;
     }
-    */
     void countRemoval() {
-        removals++;
+        removals.increment();
         // totalRemoveMicros += micros;
     }
 
     void countBulkRemoval(long entries) {
-        removals += entries;
+        removals.add(entries);
+    }
+
+    void countEviction(boolean rejected) {
+        evictions.increment();
+        if (rejected) admissionRejections.increment();
     }
 
     void countExpire() {
-        expires++;
+        expires.increment();
     }
 }
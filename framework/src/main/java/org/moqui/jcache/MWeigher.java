@@ -0,0 +1,66 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+package org.moqui.jcache;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Calculates the weight of a cache entry for MCache weight limits (MCacheConfiguration.setMaxWeight()) and the shared
+ * MCacheBudget. Weights are meant to be an estimate of retained heap bytes so that max weight and max memory settings
+ * are in the same units, but any consistent unit works for a single cache. Called on each put so should be cheap.
+ */
+public interface MWeigher<K, V> {
+    /** Weight of the entry, must be 0 or more */
+    int weigh(K key, V value);
+
+    /** Rough heap size estimates for String, byte[], boxed values and (sampled) Collection and Map values */
+    class SimpleWeigher<K, V> implements MWeigher<K, V> {
+        public static final int ENTRY_OVERHEAD = 64, OBJECT_OVERHEAD = 16, DEFAULT_WEIGHT = 64;
+        /** Max elements of a Collection or Map to weigh, the rest are assumed to be the average of these */
+        public static final int SAMPLE_SIZE = 64;
+
+        @Override
+        public int weigh(K key, V value) {
+            long weight = ENTRY_OVERHEAD + estimate(key) + estimate(value);
+            return weight > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) weight;
+        }
+
+        public long estimate(Object value) {
+            if (value == null) return 0;
+            if (value instanceof String) return 40 + 2L * ((String) value).length();
+            if (value instanceof byte[]) return OBJECT_OVERHEAD + ((byte[]) value).length;
+            if (value instanceof Number || value instanceof Boolean || value instanceof Character) return 24;
+            if (value instanceof Collection) {
+                Collection<?> coll = (Collection<?>) value;
+                int size = coll.size();
+                long sampled = 0; int count = 0;
+                for (Object item : coll) { if (count >= SAMPLE_SIZE) break; sampled += estimate(item) + 8; count++; }
+                return 40 + (count == 0 ? 0 : sampled * size / count);
+            }
+            if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                int size = map.size();
+                long sampled = 0; int count = 0;
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    if (count >= SAMPLE_SIZE) break;
+                    sampled += 32 + estimate(entry.getKey()) + estimate(entry.getValue());
+                    count++;
+                }
+                return 48 + (count == 0 ? 0 : sampled * size / count);
+            }
+            return DEFAULT_WEIGHT;
+        }
+    }
+}
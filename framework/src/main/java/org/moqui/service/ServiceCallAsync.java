@@ -45,6 +45,17 @@ public interface ServiceCallAsync extends ServiceCall {
      */
     ServiceCallAsync distribute(boolean dist);
 
+    /** If true call() stores the service call in a database queue (in the current transaction if there is one) that is
+     * run by queue consumer threads, so calls not yet run are not lost on restart. Parameter entries MUST be
+     * java.io.Serializable (or java.io.Externalizable). If the queue is full call() blocks until there is room, up to a
+     * configured timeout, then throws a ServiceException. Does not apply to callFuture() or distributed calls.
+     *
+     * Defaults to the service-facade.@async-persist setting (false by default).
+     *
+     * @return Reference to this for convenience.
+     */
+    ServiceCallAsync persist(boolean persist);
+
     /**
      * Call the service asynchronously, ignoring the result.
      * This effectively calls the service through a java.lang.Runnable implementation.
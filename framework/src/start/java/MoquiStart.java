@@ -92,6 +92,8 @@ public class MoquiStart {
             System.out.println("    no-fk-create ---------------- Don't create foreign-keys, for empty database to avoid referential integrity errors");
             System.out.println("    dummy-fks ------------------- Use dummy foreign-keys to avoid referential integrity errors");
             System.out.println("    use-try-insert -------------- Try insert and update on error instead of checking for record first");
+            System.out.println("    threads=<count> ------------- Load with this many threads, in chunks ordered by foreign-key with a transaction per chunk");
+            System.out.println("    batch-size=<count> ---------- Records per chunk when loading with more than one thread, defaults to 1000");
             System.out.println("    disable-eeca ---------------- Disable Entity ECA rules");
             System.out.println("    disable-audit-log ----------- Disable Entity Audit Log");
             System.out.println("    disable-data-feed ----------- Disable Entity DataFeed");
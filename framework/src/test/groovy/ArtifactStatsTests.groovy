@@ -0,0 +1,132 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+import org.moqui.Moqui
+import org.moqui.context.ArtifactExecutionInfo
+import org.moqui.context.ExecutionContext
+import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ContextJavaUtil
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.sql.Timestamp
+
+class ArtifactStatsTests extends Specification {
+    @Shared
+    ExecutionContext ec
+
+    def setupSpec() {
+        ec = Moqui.getExecutionContext()
+    }
+
+    def cleanupSpec() {
+        ec.destroy()
+    }
+
+    static ContextJavaUtil.ArtifactStatsInfo makeStatsInfo() {
+        return new ContextJavaUtil.ArtifactStatsInfo(ArtifactExecutionInfo.ArtifactType.AT_SERVICE, "test", "ArtifactStatsTests")
+    }
+
+    @Unroll
+    def "histogram p#percentile of 1 to 1000ms within 5 percent"() {
+        when:
+        ContextJavaUtil.LatencyHistogram histogram = new ContextJavaUtil.LatencyHistogram()
+        for (int i = 1; i <= 1000; i++) histogram.record((double) i)
+        double value = histogram.getPercentile(percentile)
+
+        then:
+        histogram.getCount() == 1000L
+        Math.abs(value - expected) / expected < 0.05
+
+        where:
+        percentile | expected
+        50         | 500
+        95         | 950
+        99         | 990
+    }
+
+    def "histogram with no values and values out of range"() {
+        when:
+        ContextJavaUtil.LatencyHistogram emptyHistogram = new ContextJavaUtil.LatencyHistogram()
+        ContextJavaUtil.LatencyHistogram histogram = new ContextJavaUtil.LatencyHistogram()
+        histogram.record(0.0d)
+        histogram.record(1.0E12d)
+
+        then:
+        emptyHistogram.getPercentile(50) == 0
+        histogram.getCount() == 2L
+        histogram.getPercentile(50) == 0.01d
+        // values over the last bucket are counted in it
+        histogram.getPercentile(100) > 1.0E7d
+    }
+
+    def "concurrent hits all counted in bin and since start stats"() {
+        when:
+        ContextJavaUtil.ArtifactStatsInfo statsInfo = makeStatsInfo()
+        long startTime = System.currentTimeMillis()
+        List results = ConcurrentExecution.executeConcurrently(8, {
+            for (int i = 1; i <= 1000; i++) statsInfo.countHit(startTime, (double) (i % 100) + 1.0d)
+            return true
+        })
+        Map<String, Object> statsMap = statsInfo.makeStatsMap()
+
+        then:
+        results.every { it == true }
+        statsInfo.getCurHitBin().getHitCount() == 8000L
+        // the first hit is left out of the since start stats
+        statsMap.hitCount == 7999L
+        statsMap.binHitCount == 8000L
+        Math.abs((double) statsMap.averageTimeMillis - 50.5d) < 0.1d
+        (double) statsMap.binP50TimeMillis >= 45.0d && (double) statsMap.binP50TimeMillis <= 55.0d
+        (double) statsMap.binP99TimeMillis >= 94.0d && (double) statsMap.binP99TimeMillis <= 100.0d
+    }
+
+    def "bin advanced once when past bin length"() {
+        when:
+        ContextJavaUtil.ArtifactStatsInfo statsInfo = makeStatsInfo()
+        statsInfo.countHit(1000L, 10.0d)
+        ContextJavaUtil.ArtifactBinInfo firstBin = statsInfo.getCurHitBin()
+        ContextJavaUtil.ArtifactBinInfo withinLength = statsInfo.advanceBin(1500L, 1000L)
+        ContextJavaUtil.ArtifactBinInfo pastLength = statsInfo.advanceBin(2500L, 1000L)
+        ContextJavaUtil.ArtifactBinInfo secondBin = statsInfo.getCurHitBin()
+        ContextJavaUtil.ArtifactBinInfo againPastLength = statsInfo.advanceBin(2600L, 1000L)
+        statsInfo.countHit(2600L, 20.0d)
+
+        then:
+        withinLength == null
+        pastLength.is(firstBin)
+        !secondBin.is(firstBin)
+        secondBin.startTime == 2500L
+        againPastLength == null
+        firstBin.getHitCount() == 1L
+        secondBin.getHitCount() == 1L
+    }
+
+    def "hit bin value has percentiles between min and max"() {
+        when:
+        ContextJavaUtil.ArtifactStatsInfo statsInfo = makeStatsInfo()
+        for (int i = 1; i <= 100; i++) statsInfo.countHit(1000L, (double) i)
+        EntityValue ahb = statsInfo.getCurHitBin().makeAhbValue((ExecutionContextFactoryImpl) ec.factory, new Timestamp(2000L))
+
+        then:
+        ahb.hitCount == 100L
+        ahb.minTimeMillis == 1.0
+        ahb.maxTimeMillis == 100.0
+        ahb.p50TimeMillis >= 47.5 && ahb.p50TimeMillis <= 52.5
+        ahb.p95TimeMillis >= 90.0 && ahb.p95TimeMillis <= 100.0
+        ahb.p99TimeMillis >= 94.0 && ahb.p99TimeMillis <= 100.0
+    }
+}
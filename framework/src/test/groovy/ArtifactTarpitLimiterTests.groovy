@@ -0,0 +1,132 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+import org.moqui.Moqui
+import org.moqui.context.ExecutionContext
+import org.moqui.impl.context.ArtifactTarpitLimiter
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.jcache.MCache
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.sql.Timestamp
+
+class ArtifactTarpitLimiterTests extends Specification {
+    @Shared
+    ExecutionContext ec
+    @Shared
+    ArtifactTarpitLimiter limiter
+
+    def setupSpec() {
+        ec = Moqui.getExecutionContext()
+        // a separate limiter so the lock table is not shared with the one used for real tarpit checks
+        limiter = new ArtifactTarpitLimiter((ExecutionContextFactoryImpl) ec.factory)
+    }
+
+    def cleanupSpec() {
+        ec.destroy()
+    }
+
+    @Unroll
+    def "hit window with #maxHits max hits in 1 second and hits at #hitTimes exceeded #exceeded"() {
+        when:
+        ArtifactTarpitLimiter.HitWindow hitWindow = new ArtifactTarpitLimiter.HitWindow(size)
+        long hitSeq = -1
+        for (long hitTime in hitTimes) hitSeq = hitWindow.record(hitTime)
+
+        then:
+        hitWindow.exceeded(hitSeq, hitTimes.last(), maxHits, 1000L) == exceeded
+        hitWindow.getHitCount() == hitTimes.size()
+
+        where:
+        size | maxHits | hitTimes                      | exceeded
+        4    | 3       | [0L, 10L, 20L]                | false
+        4    | 3       | [0L, 10L, 20L, 30L]           | true
+        // the first hit is out of the duration
+        4    | 3       | [0L, 10L, 20L, 1500L]         | false
+        // ring buffer wraps around
+        4    | 3       | [0L, 10L, 20L, 1500L, 1510L, 1520L, 1530L] | true
+        4    | 3       | [0L, 10L, 20L, 1500L, 2600L, 2610L, 2620L] | false
+        // more hits allowed than kept, estimated from the rate over the kept hits
+        4    | 10      | [0L, 10L, 20L, 30L]           | true
+        4    | 10      | [0L, 100L, 200L, 300L]        | true
+        4    | 10      | [0L, 300L, 600L, 900L]        | false
+        4    | 10      | [0L, 500L, 1000L, 1500L]      | false
+    }
+
+    def "artifact name matches exact name and compiled pattern"() {
+        expect:
+        limiter.nameMatches([artifactName:"component://test/Foo.xml", nameIsPattern:"N"], "component://test/Foo.xml")
+        !limiter.nameMatches([artifactName:"component://test/.*", nameIsPattern:"N"], "component://test/Foo.xml")
+        limiter.nameMatches([artifactName:"component://test/.*", nameIsPattern:"Y"], "component://test/Foo.xml")
+        limiter.nameMatches([artifactName:"component://test/.*", nameIsPattern:"Y"], "component://test/Bar.xml")
+        !limiter.nameMatches([artifactName:"component://test/.*", nameIsPattern:"Y"], "component://other/Foo.xml")
+        !limiter.nameMatches([nameIsPattern:"Y"], "component://test/Foo.xml")
+    }
+
+    def "hit window replaced with a bigger one up to the max size"() {
+        when:
+        MCache<String, ArtifactTarpitLimiter.HitWindow> hitCache = ec.cache.getLocalCache("ArtifactTarpitLimiterTests")
+        ArtifactTarpitLimiter.HitWindow firstWindow = limiter.getHitWindow(hitCache, "key1", 5L)
+        ArtifactTarpitLimiter.HitWindow smallerWindow = limiter.getHitWindow(hitCache, "key1", 3L)
+        ArtifactTarpitLimiter.HitWindow biggerWindow = limiter.getHitWindow(hitCache, "key1", 10L)
+        ArtifactTarpitLimiter.HitWindow maxWindow = limiter.getHitWindow(hitCache, "key1", 5000L)
+
+        then:
+        firstWindow.getSize() == 5
+        smallerWindow.is(firstWindow)
+        biggerWindow.getSize() == 10
+        hitCache.get("key1").is(maxWindow)
+        maxWindow.getSize() == ArtifactTarpitLimiter.maxWindowSize
+
+        cleanup:
+        hitCache.clear()
+    }
+
+    def "locks added and loaded from ArtifactTarpitLock until released"() {
+        when:
+        long nowTime = System.currentTimeMillis()
+        // whole seconds so the time is the same after a database round trip
+        long releaseTime = ((long) (nowTime / 1000L) + 600L) * 1000L
+        String addedKey = ArtifactTarpitLimiter.makeKey("TARPIT_TEST", "AT_XML_SCREEN", "component://test/Added.xml")
+        String loadedKey = ArtifactTarpitLimiter.makeKey("TARPIT_TEST", "AT_XML_SCREEN", "component://test/Loaded.xml")
+        ec.artifactExecution.disableAuthz()
+        ec.entity.makeValue("moqui.security.ArtifactTarpitLock").setAll([artifactTarpitLockId:"TARPIT_TEST",
+                userId:"TARPIT_TEST", artifactTypeEnumId:"AT_XML_SCREEN", artifactName:"component://test/Loaded.xml",
+                releaseDateTime:new Timestamp(releaseTime)]).create()
+        limiter.clearLocks()
+        long loadedRelease = limiter.getLockReleaseTime(loadedKey, nowTime)
+        limiter.addLock(addedKey, nowTime + 1000L)
+        long addedRelease = limiter.getLockReleaseTime(addedKey, nowTime)
+        long afterRelease = limiter.getLockReleaseTime(addedKey, nowTime + 2000L)
+
+        ec.entity.find("moqui.security.ArtifactTarpitLock").condition("artifactTarpitLockId", "TARPIT_TEST").deleteAll()
+        long beforeReload = limiter.getLockReleaseTime(loadedKey, nowTime)
+        limiter.clearLocks()
+        long afterReload = limiter.getLockReleaseTime(loadedKey, nowTime)
+
+        then:
+        loadedRelease == releaseTime
+        addedRelease == nowTime + 1000L
+        afterRelease == 0L
+        // removed records are in the lock table until it is reloaded
+        beforeReload == releaseTime
+        afterReload == 0L
+
+        cleanup:
+        ec.entity.find("moqui.security.ArtifactTarpitLock").condition("artifactTarpitLockId", "TARPIT_TEST").deleteAll()
+        ec.artifactExecution.enableAuthz()
+    }
+}
@@ -16,6 +16,9 @@
 import org.moqui.Moqui
 import org.moqui.context.ExecutionContext
 import org.moqui.jcache.MCache
+import org.moqui.jcache.MCacheBudget
+import org.moqui.jcache.MCacheConfiguration
+import org.moqui.jcache.MWeigher
 import spock.lang.*
 
 class CacheFacadeTests extends Specification {
@@ -77,6 +80,112 @@ class CacheFacadeTests extends Specification {
     }
     */
 
+    def "evict on put over max entries"() {
+        when:
+        testCache.setMaxEntries(100)
+        long evictionsBefore = testCache.stats.getCacheEvictions()
+        // use a few keys often so they are more frequent than the one-time keys
+        for (int i = 0; i < 20; i++) for (int j = 0; j < 5; j++) { testCache.put("hot" + j, "value"); testCache.get("hot" + j) }
+        for (int i = 0; i < 1000; i++) testCache.put("key" + i, "value" + i)
+
+        then:
+        testCache.size() <= 100
+        testCache.stats.getCacheEvictions() >= evictionsBefore + 900
+        (0..4).every { testCache.containsKey("hot" + it) }
+
+        cleanup:
+        testCache.setMaxEntries(0)
+        testCache.clear()
+    }
+
+    def "max entries disabled and enabled again limits entries added before"() {
+        when:
+        testCache.setMaxEntries(100)
+        for (int i = 0; i < 80; i++) testCache.put("key" + i, "value" + i)
+        testCache.setMaxEntries(0)
+        for (int i = 80; i < 100; i++) testCache.put("key" + i, "value" + i)
+        int disabledSize = testCache.size()
+        // entries added with the first limit and with no limit are tracked by the new one
+        testCache.setMaxEntries(20)
+        int enabledSize = testCache.size()
+        for (int i = 100; i < 200; i++) testCache.put("key" + i, "value" + i)
+
+        then:
+        disabledSize == 100
+        enabledSize <= 20
+        testCache.size() <= 20
+
+        cleanup:
+        testCache.setMaxEntries(0)
+        testCache.clear()
+    }
+
+    def "evict on put over max weight and budget"() {
+        when:
+        MCacheBudget budget = new MCacheBudget(100000)
+        MCacheConfiguration weightConf = new MCacheConfiguration().setWeigher(new MWeigher.SimpleWeigher()).setMaxWeight(20000)
+        MCache weightCache = new MCache("CacheFacadeTestsWeight", null, weightConf)
+        MCacheConfiguration budgetConf = new MCacheConfiguration().setWeigher(new MWeigher.SimpleWeigher()).setBudget(budget)
+        MCache budgetCache1 = new MCache("CacheFacadeTestsBudget1", null, budgetConf)
+        MCache budgetCache2 = new MCache("CacheFacadeTestsBudget2", null, budgetConf)
+        for (int i = 0; i < 2000; i++) {
+            weightCache.put("key" + i, "x" * 100)
+            budgetCache1.put("key" + i, "x" * 100)
+            budgetCache2.put("key" + i, "x" * 100)
+        }
+
+        then:
+        weightCache.getWeight() <= 20000
+        weightCache.size() < 2000
+        budget.getTotalWeight() <= 100000
+        budget.getTotalWeight() == budgetCache1.getWeight() + budgetCache2.getWeight()
+        budgetCache1.size() > 0
+        budgetCache2.size() > 0
+
+        cleanup:
+        weightCache.close()
+        budgetCache1.close()
+        budgetCache2.close()
+    }
+
+    def "getAndReplace updates weight and evicts over max weight"() {
+        when:
+        MCacheConfiguration weightConf = new MCacheConfiguration().setWeigher(new MWeigher.SimpleWeigher()).setMaxWeight(20000)
+        MCache weightCache = new MCache("CacheFacadeTestsReplaceWeight", null, weightConf)
+        for (int i = 0; i < 10; i++) weightCache.put("key" + i, "x" * 10)
+        long smallWeight = weightCache.getWeight()
+        Object oldValue = weightCache.getAndReplace("key0", "x" * 1000)
+        long replacedWeight = weightCache.getWeight()
+        for (int i = 0; i < 10; i++) weightCache.getAndReplace("key" + i, "x" * 5000)
+
+        then:
+        oldValue == "x" * 10
+        replacedWeight == smallWeight + 2 * 990
+        weightCache.getWeight() <= 20000
+        weightCache.size() < 10
+
+        cleanup:
+        weightCache.close()
+    }
+
+    def "hit counts not lost with concurrent gets"() {
+        when:
+        MCache getCache = ec.cache.getLocalCache("CacheFacadeTestsGet")
+        for (int i = 0; i < 100; i++) getCache.put("key" + i, "value" + i)
+        long hitsBefore = getCache.stats.getCacheHits()
+        def results = ConcurrentExecution.executeConcurrently(8, {
+            for (int i = 0; i < 10000; i++) getCache.get("key" + (i % 100))
+            return true
+        })
+
+        then:
+        results.every { it == true }
+        getCache.stats.getCacheHits() == hitsBefore + 8 * 10000
+
+        cleanup:
+        getCache.clear()
+    }
+
     def "get cache concurrently"() {
         def getCache = {
             ec.cache.getLocalCache("CacheFacadeConcurrencyTests")
@@ -13,6 +13,7 @@
  */
 
 
+import org.moqui.entity.EntityCondition
 import org.moqui.entity.EntityException
 import org.moqui.entity.EntityList
 import spock.lang.*
@@ -133,6 +134,71 @@ class EntityCrud extends Specification {
         enumsAfter.size() == 0
     }
 
+    def "create bulk TestEntity with mixed field sets"() {
+        when:
+        List<EntityValue> valueList = [
+                ec.entity.makeValue("moqui.test.TestEntity").setAll([testId:"BLKTST1", testMedium:"Bulk 1"]),
+                ec.entity.makeValue("moqui.test.TestEntity").setAll([testId:"BLKTST2", testMedium:"Bulk 2", testNumberInteger:2]),
+                ec.entity.makeValue("moqui.test.TestEntity").setAll([testId:"BLKTST3", testMedium:"Bulk 3"]),
+                ec.entity.makeValue("moqui.basic.EnumerationType").setAll([enumTypeId:"TEST_BLK_ET", description:"Test bulk enum type"]),
+                ec.entity.makeValue("moqui.basic.Enumeration").setAll([enumId:"TBLKEN1", enumTypeId:"TEST_BLK_ET", description:"Test bulk enum 1"])]
+        ec.entity.createBulk(valueList)
+        EntityList testEntityList = ec.entity.find("moqui.test.TestEntity").condition("testId", EntityCondition.LIKE, "BLKTST%")
+                .orderBy("testId").list()
+        EntityValue bulkEnum = ec.entity.find("moqui.basic.Enumeration").condition("enumId", "TBLKEN1").one()
+        testEntityList.each { it.delete() }
+        bulkEnum.delete()
+        ec.entity.find("moqui.basic.EnumerationType").condition("enumTypeId", "TEST_BLK_ET").one().delete()
+
+        then:
+        testEntityList.size() == 3
+        testEntityList[1].testNumberInteger == 2
+        testEntityList[2].testMedium == "Bulk 3"
+        bulkEnum.enumTypeId == "TEST_BLK_ET"
+    }
+
+    def "create update delete TestEntity through transaction cache"() {
+        when:
+        ec.transaction.initTransactionCache(false)
+        for (int i = 1; i <= 4; i++) ec.entity.makeValue("moqui.test.TestEntity")
+                .setAll([testId:"TXCTST" + i, testMedium:"Tx Cache " + i]).create()
+        ec.transaction.flushAndDisableTransactionCache()
+
+        ec.transaction.initTransactionCache(false)
+        for (int i = 1; i <= 3; i++) ec.entity.find("moqui.test.TestEntity").condition("testId", "TXCTST" + i).one()
+                .set("testMedium", "Tx Cache Updated " + i).update()
+        ec.entity.find("moqui.test.TestEntity").condition("testId", "TXCTST4").one().delete()
+        ec.transaction.flushAndDisableTransactionCache()
+
+        EntityList testEntityList = ec.entity.find("moqui.test.TestEntity").condition("testId", EntityCondition.LIKE, "TXCTST%")
+                .orderBy("testId").list()
+        testEntityList.each { it.delete() }
+
+        then:
+        testEntityList.size() == 3
+        testEntityList[0].testMedium == "Tx Cache Updated 1"
+        testEntityList[2].testMedium == "Tx Cache Updated 3"
+    }
+
+    def "sequenced IDs unique with #threads threads"() {
+        when:
+        String seqName = "EntityCrudSeqTest" + threads
+        int idsPerThread = 500
+        List results = ConcurrentExecution.executeConcurrently(threads, {
+            List<String> idList = new ArrayList<>(idsPerThread)
+            for (int i = 0; i < idsPerThread; i++) idList.add(ec.entity.sequencedIdPrimary(seqName, null, null))
+            return idList
+        })
+        Set<String> idSet = new HashSet<>()
+        for (Object result in results) idSet.addAll((List<String>) result)
+
+        then:
+        idSet.size() == threads * idsPerThread
+
+        where:
+        threads << [1, 8, 64]
+    }
+
     def "serialize And Deserialize"() {
         when:
         Timestamp nowStamp = new Timestamp(System.currentTimeMillis())
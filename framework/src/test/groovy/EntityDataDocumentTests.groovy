@@ -0,0 +1,164 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+import org.moqui.Moqui
+import org.moqui.context.ExecutionContext
+import org.moqui.entity.EntityCondition
+import org.moqui.entity.EntityValue
+import org.moqui.impl.entity.EntityDataDocument
+import org.moqui.impl.entity.EntityFacadeImpl
+import org.moqui.service.ServiceCallback
+import spock.lang.Shared
+import spock.lang.Specification
+
+/** Tests for parallel DataDocument feeds over ranges of the primary entity PK. Documents are fed to the noop service
+ * and collected by a callback registered on it. */
+class EntityDataDocumentTests extends Specification {
+    final static String receiveServiceName = "org.moqui.impl.BasicServices.noop"
+    final static String rangeEntityName = "moqui.entity.feed.DataDocumentFeedRange"
+
+    @Shared
+    ExecutionContext ec
+    @Shared
+    EntityDataDocument edd
+    @Shared
+    List<String> fedDocIds = Collections.synchronizedList(new ArrayList<String>())
+
+    def setupSpec() {
+        ec = Moqui.getExecutionContext()
+        edd = ((EntityFacadeImpl) ec.entity).getEntityDataDocument()
+        ec.service.registerCallback(receiveServiceName, [isEnabled:{ -> true }, receiveEvent:{ Map context, Object result ->
+            List<Map> documentList = (List<Map>) context?.get("documentList")
+            if (documentList != null) for (Map doc in documentList) fedDocIds.add((String) doc.get("_id"))
+        }] as ServiceCallback)
+
+        ec.artifactExecution.disableAuthz()
+        ec.entity.makeValue("moqui.entity.document.DataDocument").setAll([dataDocumentId:"DDRTST", documentName:"Range Test",
+                primaryEntityName:"moqui.basic.Enumeration"]).create()
+        ec.entity.makeValue("moqui.entity.document.DataDocumentField").setAll([dataDocumentId:"DDRTST", fieldSeqId:"01",
+                fieldPath:"enumId"]).create()
+        ec.entity.makeValue("moqui.entity.document.DataDocumentField").setAll([dataDocumentId:"DDRTST", fieldSeqId:"02",
+                fieldPath:"description"]).create()
+        for (String enumTypeId in ["DDRTST_A", "DDRTST_B"])
+            ec.entity.makeValue("moqui.basic.EnumerationType").setAll([enumTypeId:enumTypeId, description:"Range Test"]).create()
+        for (int e = 1; e <= 30; e++) ec.entity.makeValue("moqui.basic.Enumeration").setAll([enumId:"DDRTST_E${String.format('%02d', e)}".toString(),
+                enumTypeId:(e % 2 == 0 ? "DDRTST_A" : "DDRTST_B"), description:"Range Test ${e}".toString()]).create()
+        ec.artifactExecution.enableAuthz()
+    }
+
+    def cleanupSpec() {
+        ec.artifactExecution.disableAuthz()
+        ec.entity.find(rangeEntityName).condition("dataDocumentId", "DDRTST").deleteAll()
+        ec.entity.find("moqui.entity.document.DataDocumentField").condition("dataDocumentId", "DDRTST").deleteAll()
+        ec.entity.find("moqui.entity.document.DataDocument").condition("dataDocumentId", "DDRTST").deleteAll()
+        ec.entity.find("moqui.basic.Enumeration").condition("enumId", EntityCondition.LIKE, "DDRTST%").deleteAll()
+        ec.entity.find("moqui.basic.EnumerationType").condition("enumTypeId", EntityCondition.LIKE, "DDRTST%").deleteAll()
+        ec.artifactExecution.enableAuthz()
+        ec.destroy()
+    }
+
+    def setup() {
+        ec.artifactExecution.disableAuthz()
+        fedDocIds.clear()
+    }
+
+    def cleanup() {
+        ec.entity.find(rangeEntityName).condition("dataDocumentId", "DDRTST").deleteAll()
+        ec.artifactExecution.enableAuthz()
+    }
+
+    static EntityCondition typeCondition(ExecutionContext ec, String enumTypeId) {
+        return ec.entity.conditionFactory.makeCondition("enumTypeId", EntityCondition.EQUALS, enumTypeId)
+    }
+    List<EntityValue> findRanges() {
+        return ec.entity.find(rangeEntityName).condition("dataDocumentId", "DDRTST").orderBy(["feedRunId", "rangeSeqId"])
+                .useCache(false).list()
+    }
+
+    def "parallel feed sends the same documents as sequential feed"() {
+        when:
+        int sequentialCount = edd.feedDataDocuments("DDRTST", typeCondition(ec, "DDRTST_A"), null, null, receiveServiceName, 4)
+        List<String> sequentialIds = new ArrayList<>(fedDocIds).sort()
+        fedDocIds.clear()
+        int parallelCount = edd.feedDataDocumentsParallel("DDRTST", typeCondition(ec, "DDRTST_A"), null, null,
+                receiveServiceName, 4, 3, 6, false)
+        List<String> parallelIds = new ArrayList<>(fedDocIds).sort()
+        List<EntityValue> rangeList = findRanges()
+
+        then:
+        sequentialCount == 15
+        parallelCount == 15
+        sequentialIds.size() == 15
+        parallelIds == sequentialIds
+        rangeList.size() > 1
+        rangeList.every({ it.completedDate != null })
+        rangeList*.feedRunId.unique().size() == 1
+        // ranges are contiguous, each from the thru value of the one before
+        rangeList.first().fromPkValue == null
+        rangeList.last().thruPkValue == null
+        (1..<rangeList.size()).every({ int i -> rangeList[i].fromPkValue == rangeList[i - 1].thruPkValue })
+    }
+
+    def "feeds with different conditions keep their own ranges and resume only incomplete ranges"() {
+        when:
+        edd.feedDataDocumentsParallel("DDRTST", typeCondition(ec, "DDRTST_A"), null, null, receiveServiceName, 4, 3, 6, true)
+        edd.feedDataDocumentsParallel("DDRTST", typeCondition(ec, "DDRTST_B"), null, null, receiveServiceName, 4, 3, 6, true)
+        List<EntityValue> bothRangeList = findRanges()
+        String keyA = EntityDataDocument.makeFeedKey(receiveServiceName, null, null, typeCondition(ec, "DDRTST_A"))
+        String keyB = EntityDataDocument.makeFeedKey(receiveServiceName, null, null, typeCondition(ec, "DDRTST_B"))
+        List<EntityValue> rangeListA = bothRangeList.findAll({ it.feedKey == keyA })
+        List<EntityValue> rangeListB = bothRangeList.findAll({ it.feedKey == keyB })
+
+        // like a feed of B interrupted before the range with the test documents completed
+        EntityValue testRangeB = rangeListB.find({ (it.fromPkValue == null || it.fromPkValue <= "DDRTST_E01") &&
+                (it.thruPkValue == null || it.thruPkValue > "DDRTST_E01") })
+        testRangeB.set("completedDate", null).update()
+        fedDocIds.clear()
+        int resumedCount = edd.feedDataDocumentsParallel("DDRTST", typeCondition(ec, "DDRTST_B"), null, null,
+                receiveServiceName, 4, 3, 6, true)
+        List<String> resumedIds = new ArrayList<>(fedDocIds)
+        List<EntityValue> afterResumeList = findRanges()
+
+        // all complete so a new run with new ranges, replacing the complete run
+        fedDocIds.clear()
+        int newRunCount = edd.feedDataDocumentsParallel("DDRTST", typeCondition(ec, "DDRTST_B"), null, null,
+                receiveServiceName, 4, 3, 6, true)
+        List<EntityValue> newRunList = findRanges().findAll({ it.feedKey == keyB })
+
+        then:
+        keyA != keyB
+        rangeListA.size() > 1
+        rangeListB.size() > 1
+        rangeListA*.feedRunId.unique().size() == 1
+        rangeListB*.feedRunId.unique().size() == 1
+        rangeListA.get(0).feedRunId != rangeListB.get(0).feedRunId
+        bothRangeList.every({ it.completedDate != null })
+
+        // only B documents (odd numbers) in the incomplete range
+        resumedCount > 0
+        resumedCount == resumedIds.size()
+        resumedIds.every({ String docId -> (testRangeB.fromPkValue == null || docId >= testRangeB.fromPkValue) &&
+                (testRangeB.thruPkValue == null || docId < testRangeB.thruPkValue) })
+        resumedIds.every({ String docId -> Integer.parseInt(docId.substring(docId.length() - 2)) % 2 == 1 })
+        afterResumeList.size() == bothRangeList.size()
+        afterResumeList.every({ it.completedDate != null })
+
+        newRunCount == 15
+        fedDocIds.size() == 15
+        newRunList.size() == rangeListB.size()
+        newRunList*.feedRunId.unique().size() == 1
+        newRunList.get(0).feedRunId != rangeListB.get(0).feedRunId
+        findRanges().findAll({ it.feedKey == keyA }).size() == rangeListA.size()
+    }
+}
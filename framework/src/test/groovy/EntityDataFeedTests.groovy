@@ -0,0 +1,223 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+import org.moqui.Moqui
+import org.moqui.context.ExecutionContext
+import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.impl.entity.EntityDataFeed
+import org.moqui.impl.entity.EntityFacadeImpl
+import org.moqui.impl.entity.EntityListImpl
+import spock.lang.Shared
+import spock.lang.Specification
+
+import java.sql.Timestamp
+
+/** Tests for the DataFeed outbox; these call the outbox methods directly, whether or not entity-facade.@data-feed-outbox
+ * is enabled. An outbox record with no DataDocument IDs feeds without errors, one with a DataDocument that does not
+ * exist gets an error. */
+class EntityDataFeedTests extends Specification {
+    @Shared
+    ExecutionContext ec
+    @Shared
+    EntityDataFeed edf
+
+    def setupSpec() {
+        ec = Moqui.getExecutionContext()
+        edf = ((EntityFacadeImpl) ec.entity).getEntityDataFeed()
+    }
+
+    def cleanupSpec() {
+        ec.destroy()
+    }
+
+    def setup() {
+        ec.artifactExecution.disableAuthz()
+    }
+
+    def cleanup() {
+        ec.entity.find(EntityDataFeed.outboxEntityName).deleteAll()
+        ec.artifactExecution.enableAuthz()
+    }
+
+    String createOutbox(Set<String> dataDocumentIds, boolean commit) {
+        EntityDataFeed.DataFeedSynchronization dfs = new EntityDataFeed.DataFeedSynchronization(edf)
+        dfs.addValueToFeed(ec.entity.makeValue("moqui.test.TestEntity").setAll([testId:"OUTBOXTST", testMedium:"Outbox Test"]), dataDocumentIds)
+        ec.transaction.begin(null)
+        edf.createOutbox(dfs)
+        if (commit) ec.transaction.commit()
+        else ec.transaction.rollback("Test outbox rollback", null)
+        return dfs.outboxId
+    }
+    EntityValue findOutbox(String outboxId) {
+        return ec.entity.find(EntityDataFeed.outboxEntityName).condition("outboxId", outboxId).useCache(false).one()
+    }
+    void expireClaim(String outboxId) {
+        findOutbox(outboxId).set("claimedDate", new Timestamp(System.currentTimeMillis() - EntityDataFeed.outboxClaimLeaseMillis - 60000L)).update()
+    }
+    /** dispatchOutbox() destroys the ExecutionContext for the thread, so run it in another thread */
+    int dispatchInThread() {
+        int fedCount = 0
+        Thread dispatchThread = Thread.start { fedCount = edf.dispatchOutbox() }
+        dispatchThread.join()
+        return fedCount
+    }
+
+    def "outbox record created claimed only when transaction commits"() {
+        when:
+        String rolledBackId = createOutbox(["OUTBOX_TEST"] as Set<String>, false)
+        String committedId = createOutbox(["OUTBOX_TEST"] as Set<String>, true)
+        EntityValue committed = findOutbox(committedId)
+
+        then:
+        findOutbox(rolledBackId) == null
+        committed != null
+        committed.claimToken != null
+        committed.dataDocumentIds == "OUTBOX_TEST"
+        ((String) committed.feedValuesText).contains("OUTBOXTST")
+        // claimed by the committing transaction's feed, so not claimed by a dispatcher until the claim expires
+        edf.claimOutbox(UUID.randomUUID().toString()).size() == 0
+    }
+
+    def "outbox record claimed by one dispatcher after claim expires"() {
+        when:
+        String outboxId = createOutbox(["OUTBOX_TEST"] as Set<String>, true)
+        expireClaim(outboxId)
+        String claimToken = UUID.randomUUID().toString()
+        List<EntityValue> claimedList = edf.claimOutbox(claimToken)
+        List<EntityValue> otherClaimedList = edf.claimOutbox(UUID.randomUUID().toString())
+
+        then:
+        claimedList*.outboxId == [outboxId]
+        otherClaimedList.size() == 0
+        findOutbox(outboxId).claimToken == claimToken
+    }
+
+    def "outbox claim renewed only by the feed that has it"() {
+        when:
+        String outboxId = createOutbox(["OUTBOX_TEST"] as Set<String>, true)
+        String claimToken = findOutbox(outboxId).claimToken
+        Timestamp oldClaimedDate = new Timestamp(System.currentTimeMillis() - 60000L)
+        findOutbox(outboxId).set("claimedDate", oldClaimedDate).update()
+        boolean otherRenewed = edf.renewOutboxClaim(outboxId, UUID.randomUUID().toString())
+        Timestamp afterOtherDate = findOutbox(outboxId).getTimestamp("claimedDate")
+        boolean renewed = edf.renewOutboxClaim(outboxId, claimToken)
+        Timestamp afterRenewDate = findOutbox(outboxId).getTimestamp("claimedDate")
+        ec.entity.find(EntityDataFeed.outboxEntityName).condition("outboxId", outboxId).deleteAll()
+
+        then:
+        !otherRenewed
+        afterOtherDate == oldClaimedDate
+        renewed
+        afterRenewDate.after(oldClaimedDate)
+        !edf.renewOutboxClaim(outboxId, claimToken)
+    }
+
+    def "feed for an outbox record claimed again is not run or completed"() {
+        when:
+        // a DataDocument that does not exist so the feed would record an error if run
+        String outboxId = createOutbox(["OUTBOX_TEST_NO_DOCUMENT"] as Set<String>, true)
+        String oldClaimToken = findOutbox(outboxId).claimToken
+        // like the claim expired while waiting in the worker pool and a dispatcher claimed it
+        expireClaim(outboxId)
+        String newClaimToken = UUID.randomUUID().toString()
+        edf.claimOutbox(newClaimToken)
+        EntityListImpl feedValues = new EntityListImpl((EntityFacadeImpl) ec.entity)
+        feedValues.add(ec.entity.makeValue("moqui.test.TestEntity").setAll([testId:"OUTBOXTST"]))
+        EntityDataFeed.FeedRunnable runnable = new EntityDataFeed.FeedRunnable((ExecutionContextFactoryImpl) ec.factory, edf,
+                feedValues, ["OUTBOX_TEST_NO_DOCUMENT"] as Set<String>, null)
+        runnable.outboxId = outboxId
+        runnable.outboxClaimToken = oldClaimToken
+        // run() destroys the ExecutionContext for the thread
+        Thread runThread = Thread.start { runnable.run() }
+        runThread.join()
+        EntityValue outbox = findOutbox(outboxId)
+
+        then:
+        runnable.claimLost
+        runnable.errorList.size() == 0
+        outbox.claimToken == newClaimToken
+        outbox.attemptCount == 0L
+    }
+
+    def "complete outbox deletes when fed and ignores other claims"() {
+        when:
+        String outboxId = createOutbox(["OUTBOX_TEST"] as Set<String>, true)
+        String claimToken = findOutbox(outboxId).claimToken
+        edf.completeOutbox(outboxId, UUID.randomUUID().toString(), new ArrayList<String>())
+        boolean afterOtherClaim = findOutbox(outboxId) != null
+        edf.completeOutbox(outboxId, claimToken, new ArrayList<String>())
+
+        then:
+        afterOtherClaim
+        findOutbox(outboxId) == null
+    }
+
+    def "complete outbox with errors retries with backoff then fails"() {
+        when:
+        String outboxId = createOutbox(["OUTBOX_TEST"] as Set<String>, true)
+        String claimToken = findOutbox(outboxId).claimToken
+        long beforeMillis = System.currentTimeMillis()
+        edf.completeOutbox(outboxId, claimToken, new ArrayList<String>(["Test error 1"]))
+        EntityValue firstRetry = findOutbox(outboxId)
+        // not due until the retry time
+        int claimedBeforeDue = edf.claimOutbox(UUID.randomUUID().toString()).size()
+
+        findOutbox(outboxId).set("nextAttemptDate", new Timestamp(System.currentTimeMillis() - 1000L)).update()
+        claimToken = UUID.randomUUID().toString()
+        int claimedWhenDue = edf.claimOutbox(claimToken).size()
+        beforeMillis = System.currentTimeMillis()
+        edf.completeOutbox(outboxId, claimToken, new ArrayList<String>(["Test error 2"]))
+        EntityValue secondRetry = findOutbox(outboxId)
+
+        findOutbox(outboxId).setAll([attemptCount:9L, claimToken:claimToken]).update()
+        edf.completeOutbox(outboxId, claimToken, new ArrayList<String>(["Test error 10"]))
+        EntityValue failed = findOutbox(outboxId)
+
+        then:
+        firstRetry.attemptCount == 1L
+        firstRetry.claimToken == null
+        firstRetry.lastErrorText == "Test error 1"
+        firstRetry.failedDate == null
+        claimedBeforeDue == 0
+        claimedWhenDue == 1
+        secondRetry.attemptCount == 2L
+        // second retry waits twice the base of 30 seconds
+        secondRetry.getTimestamp("nextAttemptDate").getTime() >= beforeMillis + 60000L
+        secondRetry.getTimestamp("nextAttemptDate").getTime() <= System.currentTimeMillis() + 60000L
+        failed.attemptCount == 10L
+        failed.failedDate != null
+        edf.claimOutbox(UUID.randomUUID().toString()).size() == 0
+    }
+
+    def "dispatch outbox feeds records left by a stopped server and retries errors"() {
+        when:
+        // claimed by a committing transaction whose feed never ran, like when the server stopped
+        String okId = createOutbox(new HashSet<String>(), true)
+        String errorId = createOutbox(["OUTBOX_TEST_NO_DOCUMENT"] as Set<String>, true)
+        expireClaim(okId)
+        expireClaim(errorId)
+        int fedCount = dispatchInThread()
+        EntityValue errorOutbox = findOutbox(errorId)
+
+        then:
+        fedCount == 2
+        findOutbox(okId) == null
+        errorOutbox != null
+        errorOutbox.attemptCount == 1L
+        errorOutbox.claimToken == null
+        ((String) errorOutbox.lastErrorText).contains("OUTBOX_TEST_NO_DOCUMENT")
+        errorOutbox.getTimestamp("nextAttemptDate").getTime() > System.currentTimeMillis()
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+import org.moqui.Moqui
+import org.moqui.context.ExecutionContext
+import org.moqui.entity.EntityCondition
+import org.moqui.entity.EntityDataLoader
+import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ContextJavaUtil
+import org.moqui.impl.entity.EntityDataLoaderImpl
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.file.Files
+import java.util.zip.ZipEntry
+import java.util.zip.ZipFile
+import java.util.zip.ZipOutputStream
+
+class EntityDataLoaderTests extends Specification {
+    @Shared
+    ExecutionContext ec
+
+    def setupSpec() {
+        ec = Moqui.getExecutionContext()
+    }
+
+    def cleanupSpec() {
+        ec.destroy()
+    }
+
+    def setup() {
+        ec.artifactExecution.disableAuthz()
+    }
+
+    def cleanup() {
+        for (String prefix in ["PLTST", "SQTST", "DWTST", "JLTST"]) {
+            ec.entity.find("moqui.basic.Enumeration").condition("enumId", EntityCondition.LIKE, prefix + "%").deleteAll()
+            ec.entity.find("moqui.basic.EnumerationType").condition("enumTypeId", EntityCondition.LIKE, prefix + "%").deleteAll()
+        }
+        ec.artifactExecution.enableAuthz()
+    }
+
+    /** Enumeration records with parents (EnumerationType, parent Enumeration) after children unless typesFirst, plus
+     * a second partial record for the first Enumeration */
+    static String makeEnumXml(String prefix, boolean typesFirst, String descPrefix) {
+        StringBuilder typesSb = new StringBuilder()
+        for (int t = 1; t <= 3; t++)
+            typesSb.append("<moqui.basic.EnumerationType enumTypeId=\"${prefix}_T${t}\" description=\"${descPrefix} Type ${t}\"/>\n")
+        StringBuilder enumsSb = new StringBuilder()
+        for (int e = 1; e <= 25; e++) {
+            // each parent is an Enumeration later in the file
+            String parentAttr = e < 25 ? " parentEnumId=\"${prefix}_E${String.format('%02d', e + 1)}\"" : ""
+            enumsSb.append("<moqui.basic.Enumeration enumId=\"${prefix}_E${String.format('%02d', e)}\" enumTypeId=\"${prefix}_T${(e % 3) + 1}\"${parentAttr} sequenceNum=\"${e}\" description=\"${descPrefix} Enum ${e}\"/>\n")
+        }
+        String secondValue = "<moqui.basic.Enumeration enumId=\"${prefix}_E01\" optionValue=\"${descPrefix} Option\"/>\n"
+        return "<entity-facade-xml type=\"seed\">\n" + (typesFirst ? typesSb.toString() + enumsSb : enumsSb.toString() + typesSb) +
+                secondValue + "</entity-facade-xml>"
+    }
+    /** Loaded values with the prefix removed from IDs to compare loads with different prefixes */
+    List<Map<String, Object>> findLoaded(String prefix) {
+        List<Map<String, Object>> loaded = []
+        for (EntityValue ev in ec.entity.find("moqui.basic.EnumerationType").condition("enumTypeId", EntityCondition.LIKE, prefix + "%")
+                .orderBy("enumTypeId").useCache(false).list())
+            loaded.add([enumTypeId:ev.enumTypeId.replace(prefix, ""), description:ev.description])
+        for (EntityValue ev in ec.entity.find("moqui.basic.Enumeration").condition("enumId", EntityCondition.LIKE, prefix + "%")
+                .orderBy("enumId").useCache(false).list())
+            loaded.add([enumId:ev.enumId.replace(prefix, ""), enumTypeId:ev.enumTypeId.replace(prefix, ""),
+                    parentEnumId:ev.parentEnumId?.replace(prefix, ""), sequenceNum:ev.sequenceNum, description:ev.description,
+                    optionValue:ev.optionValue])
+        return loaded
+    }
+
+    def "parallel load of out of FK order data matches sequential load"() {
+        when:
+        List<String> parallelMessages = []
+        long parallelCount = ec.entity.makeDataLoader().xmlText(makeEnumXml("PLTST", false, "Load"))
+                .threads(3).batchSize(4).load(parallelMessages)
+        long sequentialCount = ec.entity.makeDataLoader().xmlText(makeEnumXml("SQTST", true, "Load")).load()
+        List<Map<String, Object>> parallelLoaded = findLoaded("PLTST")
+
+        then:
+        parallelCount == 29
+        sequentialCount == 29
+        parallelLoaded.size() == 28
+        parallelLoaded == findLoaded("SQTST")
+        parallelLoaded.find({ it.enumId == "_E01" }).optionValue == "Load Option"
+        parallelLoaded.find({ it.enumId == "_E01" }).description == "Load Enum 1"
+        !parallelMessages.any({ it.contains("Error") })
+    }
+
+    def "parallel load updates existing records like sequential load"() {
+        when:
+        ec.entity.makeDataLoader().xmlText(makeEnumXml("PLTST", false, "First")).threads(3).batchSize(4).load()
+        ec.entity.makeDataLoader().xmlText(makeEnumXml("SQTST", true, "First")).load()
+        ec.entity.makeDataLoader().xmlText(makeEnumXml("PLTST", false, "Second")).threads(3).batchSize(4).load()
+        ec.entity.makeDataLoader().xmlText(makeEnumXml("SQTST", true, "Second")).load()
+        List<Map<String, Object>> parallelLoaded = findLoaded("PLTST")
+
+        then:
+        parallelLoaded.size() == 28
+        parallelLoaded == findLoaded("SQTST")
+        parallelLoaded.every({ ((String) it.description).startsWith("Second") })
+    }
+
+    def "parallel load with a bad value in a chunk loads the other values"() {
+        when:
+        StringBuilder xmlSb = new StringBuilder("<entity-facade-xml type=\"seed\">\n")
+        xmlSb.append("<moqui.basic.EnumerationType enumTypeId=\"PLTST_T1\" description=\"Load Type\"/>\n")
+        for (int e = 1; e <= 10; e++) {
+            // the 5th has an enumTypeId with no EnumerationType record so fails the foreign key
+            String enumTypeId = e == 5 ? "PLTST_NONE" : "PLTST_T1"
+            xmlSb.append("<moqui.basic.Enumeration enumId=\"PLTST_E${String.format('%02d', e)}\" enumTypeId=\"${enumTypeId}\" description=\"Load Enum ${e}\"/>\n")
+        }
+        xmlSb.append("</entity-facade-xml>")
+        List<String> messages = []
+        ec.entity.makeDataLoader().xmlText(xmlSb.toString()).threads(3).batchSize(10).load(messages)
+        List<String> loadedIds = ec.entity.find("moqui.basic.Enumeration").condition("enumId", EntityCondition.LIKE, "PLTST_E%")
+                .orderBy("enumId").useCache(false).list()*.enumId as List<String>
+
+        then:
+        loadedIds == (1..10).findAll({ it != 5 }).collect({ "PLTST_E${String.format('%02d', it)}".toString() })
+        messages.findAll({ it.contains("Error loading") }).size() == 1
+        messages.find({ it.contains("Error loading") }).contains("PLTST_E05")
+    }
+
+    /** Enumerations with the JLTST_T type as enumId:description */
+    Map<String, String> findJsonEnums() {
+        Map<String, String> enumMap = new TreeMap<>()
+        for (EntityValue ev in ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "JLTST_T").useCache(false).list())
+            enumMap.put((String) ev.enumId, (String) ev.description)
+        return enumMap
+    }
+
+    def "JSON root object with nested related records"() {
+        when:
+        String json = '''{"_entity":"moqui.basic.EnumerationType", "enumTypeId":"JLTST_T", "description":"JSON Type",
+                "enums":[{"enumId":"JLTST_E01", "description":"JSON Enum 1"}, {"enumId":"JLTST_E02", "description":"JSON Enum 2"}]}'''
+        long valuesLoaded = ec.entity.makeDataLoader().jsonText(json).load()
+        EntityValue enumType = ec.entity.find("moqui.basic.EnumerationType").condition("enumTypeId", "JLTST_T").useCache(false).one()
+
+        then:
+        // nested records are not counted
+        valuesLoaded == 1L
+        enumType?.description == "JSON Type"
+        // enumTypeId from the parent record
+        findJsonEnums() == [JLTST_E01:"JSON Enum 1", JLTST_E02:"JSON Enum 2"]
+    }
+
+    @Unroll
+    def "JSON root array with leading _dataType #dataType loaded for data types #dataTypes is #loaded"() {
+        when:
+        String json = (dataType ? '[{"_dataType":"' + dataType + '"},' : "[") + '''
+                {"_entity":"moqui.basic.EnumerationType", "enumTypeId":"JLTST_T", "description":"JSON Type"},
+                {"_entity":"moqui.basic.Enumeration", "enumId":"JLTST_E01", "enumTypeId":"JLTST_T", "description":"JSON Enum 1"},
+                {"_entity":"moqui.basic.Enumeration", "enumId":"JLTST_E02", "enumTypeId":"JLTST_T", "description":"JSON Enum 2"}]'''
+        EntityDataLoader edl = ec.entity.makeDataLoader().jsonText(json)
+        if (dataTypes) edl.dataTypes(dataTypes as Set<String>)
+        long valuesLoaded = edl.load()
+        Map<String, String> enumMap = findJsonEnums()
+
+        then:
+        valuesLoaded == (loaded ? 3L : 0L)
+        enumMap == (loaded ? [JLTST_E01:"JSON Enum 1", JLTST_E02:"JSON Enum 2"] : [:])
+
+        where:
+        dataType | dataTypes | loaded
+        null     | null      | true
+        null     | ["seed"]  | true
+        "seed"   | null      | true
+        "seed"   | ["seed"]  | true
+        "seed"   | ["demo"]  | false
+    }
+
+    def "JSON service _entity called with the record fields"() {
+        when:
+        String json = '''[{"_entity":"moqui.basic.EnumerationType", "enumTypeId":"JLTST_T", "description":"JSON Type"},
+                {"_entity":"create#moqui.basic.Enumeration", "enumId":"JLTST_E01", "enumTypeId":"JLTST_T", "description":"JSON Service Enum"}]'''
+        ec.entity.makeDataLoader().jsonText(json).load()
+
+        then:
+        findJsonEnums() == [JLTST_E01:"JSON Service Enum"]
+    }
+
+    /** 25 Enumerations to export, with all IDs and the enumTypeId starting with DWTST */
+    void createExportEnums() {
+        ec.entity.makeValue("moqui.basic.EnumerationType").setAll([enumTypeId:"DWTST_T", description:"Export Type"]).create()
+        for (int e = 1; e <= 25; e++) ec.entity.makeValue("moqui.basic.Enumeration").setAll([enumId:"DWTST_E${String.format('%02d', e)}".toString(),
+                enumTypeId:"DWTST_T", description:"Export Enum ${e}".toString()]).create()
+    }
+    List<String> findExportEnumIds() {
+        return ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DWTST_T").orderBy("enumId").useCache(false)
+                .list()*.enumId as List<String>
+    }
+
+    @Unroll
+    def "parallel directory export splits by primary key and writes manifest (order by #orderBy)"() {
+        when:
+        createExportEnums()
+        File outDir = Files.createTempDirectory("moqui-export-test").toFile()
+        // split by primary key regardless of the order by for writing
+        int written = ec.entity.makeDataWriter().entityName("moqui.basic.Enumeration").filterMap([enumTypeId:"DWTST_T"])
+                .orderBy(orderBy).fileType("XML").threads(3).splitRows(10).directory(outDir.path)
+        Map<String, Object> manifest = (Map<String, Object>) ContextJavaUtil.jacksonMapper.readValue(
+                new File(outDir, "export-manifest.json"), Map.class)
+        List<Map<String, Object>> partList = (List<Map<String, Object>>) manifest.parts
+        Map<String, Integer> fileEnumCount = [:]
+        for (Map<String, Object> partMap in partList) fileEnumCount.put((String) partMap.file,
+                new File(outDir, (String) partMap.file).text.count("<moqui.basic.Enumeration "))
+        outDir.deleteDir()
+
+        then:
+        written == 25
+        manifest.totalRows == 25
+        partList*.file == ["moqui.basic.Enumeration-1.xml", "moqui.basic.Enumeration-2.xml", "moqui.basic.Enumeration-3.xml"]
+        partList*.rows == [10, 10, 5]
+        partList*.pkFrom == [null, "DWTST_E11", "DWTST_E21"]
+        partList*.pkThru == ["DWTST_E11", "DWTST_E21", null]
+        partList.every({ it.sha256 != null })
+        fileEnumCount == ["moqui.basic.Enumeration-1.xml":10, "moqui.basic.Enumeration-2.xml":10, "moqui.basic.Enumeration-3.xml":5]
+
+        where:
+        orderBy << [[], ["-enumId"]]
+    }
+
+    def "export manifest check warns for failed parts and not for parts with no records"() {
+        when:
+        Map<String, Object> manifest = [parts:[[entityName:"moqui.basic.Enumeration", file:"export/Enumeration-1.xml", rows:0,
+                error:"java.sql.SQLException: Test Error"], [entityName:"moqui.basic.Enumeration", file:"export/Enumeration-2.xml", rows:0],
+                [entityName:"moqui.basic.EnumerationType", file:"export/EnumerationType.xml", rows:2]]] as Map<String, Object>
+        List<String> messages = []
+        EntityDataLoaderImpl.checkManifest(manifest, [:], new HashSet<String>(), "export.zip", messages)
+
+        then:
+        messages.size() == 2
+        messages.get(0).contains("export/Enumeration-1.xml") && messages.get(0).contains("Test Error")
+        messages.get(1).contains("export/EnumerationType.xml") && messages.get(1).contains("not found")
+    }
+
+    def "parallel zip export loads back and checks manifest skipping data types not loaded"() {
+        when:
+        createExportEnums()
+        File tempDir = Files.createTempDirectory("moqui-export-test").toFile()
+        File zipFile = new File(tempDir, "export.zip")
+        int written = ec.entity.makeDataWriter().entityName("moqui.basic.Enumeration").filterMap([enumTypeId:"DWTST_T"])
+                .fileType("XML").threads(3).splitRows(10).zipDirectory("export", zipFile.path)
+
+        // same zip with the second part changed to a data type not loaded
+        File typedZipFile = new File(tempDir, "export-typed.zip")
+        ZipFile zf = new ZipFile(zipFile)
+        ZipOutputStream typedOut = new ZipOutputStream(new FileOutputStream(typedZipFile))
+        for (ZipEntry entry in zf.entries()) {
+            String entryText = zf.getInputStream(entry).getText("UTF-8")
+            if (entry.name == "export/moqui.basic.Enumeration-2.xml")
+                entryText = entryText.replace("<entity-facade-xml>", "<entity-facade-xml type=\"ext-test\">")
+            typedOut.putNextEntry(new ZipEntry(entry.name))
+            typedOut.write(entryText.getBytes("UTF-8"))
+            typedOut.closeEntry()
+        }
+        typedOut.close()
+        zf.close()
+
+        ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DWTST_T").deleteAll()
+        List<String> zipMessages = []
+        long zipLoaded = ec.entity.makeDataLoader().location("file:" + zipFile.absolutePath).load(zipMessages)
+        List<String> zipEnumIds = findExportEnumIds()
+
+        ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "DWTST_T").deleteAll()
+        List<String> typedMessages = []
+        long typedLoaded = ec.entity.makeDataLoader().location("file:" + typedZipFile.absolutePath)
+                .dataTypes(["seed"] as Set<String>).load(typedMessages)
+        List<String> typedEnumIds = findExportEnumIds()
+        tempDir.deleteDir()
+
+        then:
+        written == 25
+        zipLoaded == 25
+        zipEnumIds.size() == 25
+        !zipMessages.any({ it.contains("manifest") })
+        typedLoaded == 15
+        typedEnumIds.size() == 15
+        !typedEnumIds.any({ it >= "DWTST_E11" && it < "DWTST_E21" })
+        // the changed entry was skipped so is not checked, the others have the same rows and checksum
+        !typedMessages.any({ it.contains("manifest") })
+    }
+}
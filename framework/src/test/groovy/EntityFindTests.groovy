@@ -22,7 +22,11 @@ import org.moqui.entity.EntityValue
 import org.moqui.Moqui
 import java.sql.Timestamp
 import org.moqui.entity.EntityCondition
+import org.moqui.entity.EntityException
+import org.moqui.entity.EntityFind
 import org.moqui.entity.EntityList
+import org.moqui.impl.entity.EntityFacadeImpl
+import org.moqui.impl.entity.EntityListCacheIndex
 
 class EntityFindTests extends Specification {
     protected final static Logger logger = LoggerFactory.getLogger(EntityFindTests.class)
@@ -129,6 +133,31 @@ class EntityFindTests extends Specification {
         noEnums.size() == 0
     }
 
+    def "list master with related values found in batch"() {
+        when:
+        for (int i = 1; i <= 3; i++) ec.entity.makeValue("moqui.test.Foo").setAll([fooId:"MSTFOO" + i, fooText:"Foo " + i]).create()
+        ec.entity.makeValue("moqui.test.Bar").setAll([barId:"MSTBAR1", fooId:"MSTFOO1", barRank:1]).create()
+        ec.entity.makeValue("moqui.test.Bar").setAll([barId:"MSTBAR2", fooId:"MSTFOO1", barRank:2]).create()
+        ec.entity.makeValue("moqui.test.Bar").setAll([barId:"MSTBAR3", fooId:"MSTFOO2", barRank:3]).create()
+
+        List<Map<String, Object>> masterList = ec.entity.find("moqui.test.Foo").condition("fooId", EntityCondition.LIKE, "MSTFOO%")
+                .orderBy("fooId").listMaster(null)
+        Map<String, Object> oneMaster = ec.entity.find("moqui.test.Foo").condition("fooId", "MSTFOO1").oneMaster(null)
+
+        ec.entity.find("moqui.test.Bar").condition("barId", EntityCondition.LIKE, "MSTBAR%").deleteAll()
+        ec.entity.find("moqui.test.Foo").condition("fooId", EntityCondition.LIKE, "MSTFOO%").deleteAll()
+
+        then:
+        masterList.size() == 3
+        masterList[0]._entity == "moqui.test.Foo"
+        ((List<Map>) masterList[0].bars)*.barId == ["MSTBAR1", "MSTBAR2"]
+        // parent PK field not repeated in detail Maps
+        !((List<Map>) masterList[0].bars)[0].containsKey("fooId")
+        ((List<Map>) masterList[1].bars)*.barRank == [3]
+        !masterList[2].containsKey("bars")
+        oneMaster == masterList[0]
+    }
+
     def "auto cache clear for list"() {
         // update the testMedium and make sure we get the new value
         when:
@@ -142,6 +171,175 @@ class EntityFindTests extends Specification {
         testEntityList.first.testMedium == "Test Name 2"
     }
 
+    def "list from cache sorted by different order by"() {
+        when:
+        EntityList ascList = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType")
+                .orderBy("enumId").useCache(true).list()
+        EntityList descList = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType")
+                .orderBy("-enumId").useCache(true).list()
+        EntityList ascList2 = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType")
+                .orderBy("enumId").useCache(true).list()
+
+        then:
+        ascList.size() > 1
+        ascList*.enumId == ascList*.enumId.sort(false)
+        descList*.enumId == ascList*.enumId.reverse()
+        ascList2*.enumId == ascList*.enumId
+        descList.isFromCache()
+
+        when:
+        descList.sort({ a, b -> 0 } as Comparator)
+
+        then:
+        thrown(EntityException)
+    }
+
+    def "view list uses cached SQL shape with different condition values"() {
+        when:
+        EntityFacadeImpl efi = (EntityFacadeImpl) ec.entity
+        long hitsBefore = efi.sqlShapeCache.unwrap(org.moqui.jcache.MCache.class).stats.getCacheHits()
+        EntityList usaList = ec.entity.find("moqui.basic.GeoAndType").condition("geoId", "USA").list()
+        EntityList canList = ec.entity.find("moqui.basic.GeoAndType").condition("geoId", "CAN").list()
+        long canCount = ec.entity.find("moqui.basic.GeoAndType").condition("geoId", "CAN").count()
+        long usaCount = ec.entity.find("moqui.basic.GeoAndType").condition("geoId", "USA").count()
+
+        then:
+        usaList.size() == 1
+        usaList.first.geoId == "USA"
+        canList.size() == 1
+        canList.first.geoId == "CAN"
+        canCount == 1
+        usaCount == 1
+        efi.sqlShapeCache.unwrap(org.moqui.jcache.MCache.class).stats.getCacheHits() >= hitsBefore + 2
+    }
+
+    def "keyset pagination by cursor matches offset pagination (#orderBy)"() {
+        when:
+        List<String> allIds = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType")
+                .orderBy(orderBy).useCache(false).list()*.enumId
+        List<String> keysetIds = []
+        String cursor = null
+        int pages = 0
+        while (pages < 20) {
+            EntityFind ef = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType")
+                    .orderBy(orderBy).limit(3).keysetCursor(cursor)
+            EntityList page = ef.list()
+            keysetIds.addAll(page*.enumId)
+            pages++
+            cursor = page.size() == 3 ? ef.makeKeysetCursor(page.get(2)) : null
+            if (cursor == null) break
+        }
+
+        then:
+        allIds.size() > 3
+        keysetIds == allIds
+        pages == (int) Math.ceil((allIds.size() + 1) / 3.0)
+
+        where:
+        orderBy << [["enumId"], ["-enumId"]]
+    }
+
+    def "no keyset cursor for order by on case insensitive or nullable field (#orderBy)"() {
+        when:
+        EntityFind ef = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").orderBy(orderBy).limit(3)
+        EntityList page = ef.list()
+        boolean keysetFailed = false
+        try {
+            ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").orderBy(orderBy).limit(3)
+                    .keysetAfter(page.get(2)).list()
+        } catch (EntityException e) {
+            keysetFailed = true
+        }
+
+        then:
+        page.size() == 3
+        ef.makeKeysetCursor(page.get(2)) == null
+        keysetFailed
+
+        where:
+        orderBy << [["^enumId"], ["description"], ["-description", "enumId"]]
+    }
+
+    def "keyset cursor keeps timestamp fraction of a second"() {
+        when:
+        Timestamp baseTs = new Timestamp(timestamp.getTime() - (timestamp.getTime() % 1000L))
+        // a timestamp primary key field, keyset order by fields must be primary key or not-null
+        ec.entity.makeValue("moqui.entity.sync.EntitySync").setAll([entitySyncId:"KSTST", description:"Keyset Test"]).createOrUpdate()
+        List<Integer> testCounts = [1, 2, 3]
+        for (int i = 0; i < testCounts.size(); i++) {
+            Timestamp ts = new Timestamp(baseTs.getTime())
+            ts.setNanos((i + 1) * 1000)
+            ec.entity.makeValue("moqui.entity.sync.EntitySyncHistory").setAll([entitySyncId:"KSTST", startDate:ts,
+                    recordsStored:testCounts.get(i)]).createOrUpdate()
+        }
+        List<Integer> keysetCounts = []
+        List<Timestamp> keysetTimestamps = []
+        String cursor = null
+        for (int pages = 0; pages < 5; pages++) {
+            EntityFind ef = ec.entity.find("moqui.entity.sync.EntitySyncHistory").condition("entitySyncId", "KSTST")
+                    .orderBy("startDate").limit(1).keysetCursor(cursor)
+            EntityList page = ef.list()
+            if (page.size() == 0) break
+            keysetCounts.add(page.get(0).recordsStored as Integer)
+            keysetTimestamps.add((Timestamp) page.get(0).startDate)
+            cursor = ef.makeKeysetCursor(page.get(0))
+        }
+        ec.entity.find("moqui.entity.sync.EntitySyncHistory").condition("entitySyncId", "KSTST").deleteAll()
+        ec.entity.find("moqui.entity.sync.EntitySync").condition("entitySyncId", "KSTST").deleteAll()
+
+        then:
+        keysetCounts == testCounts
+        keysetTimestamps*.getNanos() == [1000, 2000, 3000]
+    }
+
+    def "list with count for page #pageIndex"() {
+        when:
+        long count = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").useCache(false).count()
+        EntityFind ef = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").orderBy("enumId")
+                .useCache(false).offset(pageIndex, 3).limit(3)
+        EntityList page = ef.listWithCount(useCountCache)
+        EntityList plainPage = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").orderBy("enumId")
+                .useCache(false).offset(pageIndex, 3).limit(3).list()
+
+        then:
+        count > 6
+        ef.getTotalCount() == count
+        page*.enumId == plainPage*.enumId
+
+        where:
+        pageIndex | useCountCache
+        0 | false
+        1 | true
+        1 | true
+        1000 | false
+    }
+
+    def "list with count after keyset cursor has full total (useCountCache #useCountCache)"() {
+        when:
+        long count = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").useCache(false).count()
+        EntityFind firstEf = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").orderBy("enumId")
+                .useCache(false).limit(3)
+        EntityList firstPage = firstEf.listWithCount(useCountCache)
+        String cursor = firstEf.makeKeysetCursor(firstPage.get(2))
+        EntityFind cursorEf = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").orderBy("enumId")
+                .useCache(false).limit(3).keysetCursor(cursor)
+        EntityList cursorPage = cursorEf.listWithCount(useCountCache)
+        // an offset page after the cursor page must not get a count cached for the cursor page
+        EntityFind offsetEf = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").orderBy("enumId")
+                .useCache(false).offset(2, 3).limit(3)
+        offsetEf.listWithCount(useCountCache)
+
+        then:
+        count > 6
+        firstEf.getTotalCount() == count
+        cursorPage.size() == 3
+        cursorEf.getTotalCount() == count
+        offsetEf.getTotalCount() == count
+
+        where:
+        useCountCache << [false, true]
+    }
+
     def "auto cache clear for one by primary key"() {
         when:
         ec.entity.find("moqui.test.TestEntity").condition("testId", "EXTST1").useCache(true).one()
@@ -188,6 +386,26 @@ class EntityFindTests extends Specification {
         testEntityList.first.testNumberInteger == 1234
     }
 
+    def "auto cache clear for list by indexed and range conditions"() {
+        when:
+        EntityListCacheIndex listCacheIndex = ((EntityFacadeImpl) ec.entity).getEntityCache()
+                .getListCacheIndex(((EntityFacadeImpl) ec.entity).getEntityDefinition("moqui.test.TestEntity"))
+        long removedBefore = listCacheIndex.getKeysRemovedCount()
+        // one indexed by equals on a String field, one that can't be indexed (range only)
+        ec.entity.find("moqui.test.TestEntity").condition("testMedium", "Test Name 6").useCache(true).list()
+        ec.entity.find("moqui.test.TestEntity").condition("testNumberInteger", EntityCondition.GREATER_THAN, 4000).useCache(true).list()
+        ec.entity.makeValue("moqui.test.TestEntity").setAll([testId:"EXTST1", testMedium:"Test Name 6"]).update()
+        EntityList byMediumList = ec.entity.find("moqui.test.TestEntity")
+                .condition("testMedium", "Test Name 6").useCache(true).list()
+        EntityList byRangeList = ec.entity.find("moqui.test.TestEntity")
+                .condition("testNumberInteger", EntityCondition.GREATER_THAN, 4000).useCache(true).list()
+
+        then:
+        byMediumList.size() == 1
+        byRangeList.filterByAnd([testId:"EXTST1"]).first.testMedium == "Test Name 6"
+        listCacheIndex.getKeysRemovedCount() >= removedBefore + 2
+    }
+
 
     def "auto cache clear for view list on create of record not included"() {
         // this is similar to what happens with authz checking with changes after startup
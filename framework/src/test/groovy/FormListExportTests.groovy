@@ -0,0 +1,145 @@
+/*
+ * This software is in the public domain under CC0 1.0 Universal plus a
+ * Grant of Patent License.
+ *
+ * To the extent possible under law, the author(s) have dedicated all
+ * copyright and related and neighboring rights to this software to the
+ * public domain worldwide. This software is distributed without any
+ * warranty.
+ *
+ * You should have received a copy of the CC0 Public Domain Dedication
+ * along with this software (see the LICENSE.md file). If not, see
+ * <http://creativecommons.org/publicdomain/zero/1.0/>.
+ */
+
+import org.apache.commons.csv.CSVFormat
+import org.apache.commons.csv.CSVRecord
+import org.moqui.Moqui
+import org.moqui.context.ExecutionContext
+import org.moqui.entity.EntityCondition
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.impl.screen.FormListExport
+import org.moqui.impl.screen.ScreenDefinition
+import org.moqui.impl.screen.ScreenForm
+import org.moqui.impl.screen.ScreenRenderImpl
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.nio.file.Files
+
+/** Tests for form-list CSV export, with form-list forms from a screen file written for the test */
+class FormListExportTests extends Specification {
+    @Shared
+    ExecutionContext ec
+    @Shared
+    File screenFile
+    @Shared
+    ScreenDefinition sd
+
+    final static String screenXml = '''<?xml version="1.0" encoding="UTF-8"?>
+<screen require-authentication="false">
+    <widgets>
+        <form-list name="EnumList" list="enumList">
+            <entity-find entity-name="moqui.basic.Enumeration" list="enumList">
+                <econdition field-name="enumTypeId" value="FLXTST_T"/>
+                <order-by field-name="enumId"/>
+            </entity-find>
+            <field name="enumId"><header-field title="ID"/><default-field><display/></default-field></field>
+            <field name="description"><header-field title="Description"/><default-field><display/></default-field></field>
+            <field name="optionValue"><header-field title="Option, Value"/><default-field><display/></default-field></field>
+        </form-list>
+        <form-list name="EnumContextList" list="enumList">
+            <field name="enumId"><header-field title="ID"/><default-field><display/></default-field></field>
+            <field name="description"><header-field title="Description"/><default-field><display/></default-field></field>
+            <field name="optionValue"><header-field title="Option, Value"/><default-field><display/></default-field></field>
+        </form-list>
+    </widgets>
+</screen>
+'''
+
+    def setupSpec() {
+        ec = Moqui.getExecutionContext()
+        screenFile = Files.createTempFile("FormListExportTests", ".xml").toFile()
+        screenFile.setText(screenXml, "UTF-8")
+        sd = ((ExecutionContextFactoryImpl) ec.factory).screenFacade.getScreenDefinition("file:" + screenFile.absolutePath)
+
+        ec.artifactExecution.disableAuthz()
+        ec.entity.makeValue("moqui.basic.EnumerationType").setAll([enumTypeId:"FLXTST_T", description:"Export Test"]).create()
+        for (int e = 1; e <= 10; e++) ec.entity.makeValue("moqui.basic.Enumeration").setAll([enumId:"FLXTST_E${String.format('%02d', e)}".toString(),
+                enumTypeId:"FLXTST_T", description:"Export \"Test\" ${e}".toString(), optionValue:"Option, ${e}".toString()]).create()
+        ec.artifactExecution.enableAuthz()
+    }
+
+    def cleanupSpec() {
+        ec.artifactExecution.disableAuthz()
+        ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "FLXTST_T").deleteAll()
+        ec.entity.find("moqui.basic.EnumerationType").condition("enumTypeId", "FLXTST_T").deleteAll()
+        ec.artifactExecution.enableAuthz()
+        screenFile.delete()
+        ec.destroy()
+    }
+
+    def setup() {
+        ec.artifactExecution.disableAuthz()
+    }
+
+    def cleanup() {
+        ec.artifactExecution.enableAuthz()
+    }
+
+    List<CSVRecord> exportCsv(String formName, int windowSize) {
+        ScreenForm.FormListRenderInfo renderInfo = sd.getForm(formName).getFormInstance().makeFormListRenderInfo()
+        StringWriter sw = new StringWriter()
+        FormListExport.CsvRowWriter rowWriter = new FormListExport.CsvRowWriter(sw)
+        long rowCount = new FormListExport((ScreenRenderImpl) ec.screen.makeRender(), renderInfo).windowSize(windowSize).export(rowWriter)
+        rowWriter.close()
+        List<CSVRecord> recordList = CSVFormat.DEFAULT.parse(new StringReader(sw.toString())).getRecords()
+        assert rowCount == recordList.size() - 1
+        return recordList
+    }
+    static List<List<String>> expectedRows() {
+        List<List<String>> rows = [["ID", "Description", "Option, Value"]]
+        for (int e = 1; e <= 10; e++) rows.add(["FLXTST_E${String.format('%02d', e)}".toString(), "Export \"Test\" ${e}".toString(),
+                "Option, ${e}".toString()])
+        return rows
+    }
+
+    @Unroll
+    def "entity-find form-list exported in windows of #windowSize same as full list"() {
+        when:
+        List<CSVRecord> recordList = exportCsv("EnumList", windowSize)
+
+        then:
+        recordList.collect({ it.toList() }) == expectedRows()
+        ec.context.getSharedMap().get("_formListRendered") == true
+
+        where:
+        windowSize << [3, 10, 500]
+    }
+
+    def "form-list from a context list exported with the full list"() {
+        when:
+        ec.context.push()
+        ec.context.put("enumList", ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "FLXTST_T")
+                .orderBy("enumId").useCache(false).list())
+        List<CSVRecord> recordList = exportCsv("EnumContextList", 3)
+        ec.context.pop()
+
+        then:
+        recordList.collect({ it.toList() }) == expectedRows()
+    }
+
+    def "entity-find form-list with no rows exports only the header"() {
+        when:
+        ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "FLXTST_T")
+                .condition("enumId", EntityCondition.GREATER_THAN, "FLXTST_E05").deleteAll()
+        List<CSVRecord> partialList = exportCsv("EnumList", 2)
+        ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "FLXTST_T").deleteAll()
+        List<CSVRecord> emptyList = exportCsv("EnumList", 2)
+
+        then:
+        partialList.collect({ it.toList() }) == expectedRows().subList(0, 6)
+        emptyList.collect({ it.toList() }) == [expectedRows().get(0)]
+    }
+}
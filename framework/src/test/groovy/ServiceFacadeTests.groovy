@@ -13,8 +13,14 @@
  */
 
 
+import org.moqui.entity.EntityValue
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.impl.context.ExecutionContextImpl
+import org.moqui.impl.service.AsyncServiceQueue
+import org.moqui.impl.service.ServiceCallAsyncImpl
 import org.moqui.impl.service.ServiceFacadeImpl
 import org.moqui.service.ServiceCallback
+import org.moqui.util.MNode
 import spock.lang.*
 
 import org.moqui.context.ExecutionContext
@@ -44,4 +50,147 @@ class ServiceFacadeTests extends Specification {
         then:
         10 * scb.receiveEvent(null, null)
     }
+
+    // the persistent async queue tests use their own AsyncServiceQueue, with no consumers unless noted, and run claimed
+    //     calls in another thread as runClaimed() destroys the ExecutionContext and any transaction in place
+
+    AsyncServiceQueue makeAsyncQueue(String consumers) {
+        return new AsyncServiceQueue((ExecutionContextFactoryImpl) ec.factory,
+                new MNode("service-facade", ["async-queue-consumers":consumers, "async-queue-capacity":"5"]))
+    }
+    void queueCreateTest(AsyncServiceQueue queue, String testId) {
+        queue.enqueue(new ServiceCallAsyncImpl.AsyncServiceRunnable((ExecutionContextImpl) ec,
+                "create#moqui.test.TestEntity", [testId:testId, testMedium:"Async Queue Test"] as Map<String, Object>))
+    }
+    List<EntityValue> findQueued() {
+        return ec.entity.find(AsyncServiceQueue.queueEntityName).condition("serviceName", "create#moqui.test.TestEntity")
+                .orderBy("queuedDate").useCache(false).disableAuthz().list()
+    }
+    void runClaimedInThread(AsyncServiceQueue queue, List<EntityValue> claimedList, String claimToken) {
+        Thread runThread = Thread.start { for (EntityValue asyncCall in claimedList) queue.runClaimed(asyncCall, claimToken) }
+        runThread.join()
+    }
+    void cleanupQueueTest(List<String> testIds) {
+        ec.artifactExecution.disableAuthz()
+        ec.entity.find(AsyncServiceQueue.queueEntityName).condition("serviceName", "create#moqui.test.TestEntity").deleteAll()
+        ec.entity.find("moqui.test.TestEntity").condition("testId", "in", testIds).deleteAll()
+        ec.artifactExecution.enableAuthz()
+    }
+
+    def "persistent async call counted only when transaction commits"() {
+        when:
+        AsyncServiceQueue queue = makeAsyncQueue("0")
+        ec.transaction.begin(null)
+        queueCreateTest(queue, "ASYNCQ1")
+        long pendingInTx = queue.getStats().Pending as long
+        int queuedInTx = findQueued().size()
+        ec.transaction.rollback("Test rollback of queued async call", null)
+        long pendingRolledBack = queue.getStats().Pending as long
+        int queuedRolledBack = findQueued().size()
+
+        ec.transaction.begin(null)
+        queueCreateTest(queue, "ASYNCQ1")
+        queueCreateTest(queue, "ASYNCQ2")
+        ec.transaction.commit()
+
+        then:
+        pendingInTx == 0L
+        queuedInTx == 1
+        pendingRolledBack == 0L
+        queuedRolledBack == 0
+        queue.getStats().Pending == 2L
+        findQueued().size() == 2
+
+        cleanup:
+        cleanupQueueTest(["ASYNCQ1", "ASYNCQ2"])
+    }
+
+    def "persistent async call rejected in transaction when queue full"() {
+        when:
+        AsyncServiceQueue queue = makeAsyncQueue("0")
+        for (int i = 1; i <= 5; i++) queueCreateTest(queue, "ASYNCQ" + i)
+        ec.transaction.begin(null)
+        queueCreateTest(queue, "ASYNCQ6")
+
+        then:
+        thrown(ServiceException)
+
+        cleanup:
+        ec.transaction.rollback("Test queue full", null)
+        cleanupQueueTest(["ASYNCQ1", "ASYNCQ2", "ASYNCQ3", "ASYNCQ4", "ASYNCQ5", "ASYNCQ6"])
+    }
+
+    def "persistent async call claimed once and deleted when run"() {
+        when:
+        AsyncServiceQueue queue = makeAsyncQueue("0")
+        queueCreateTest(queue, "ASYNCQ1")
+        String claimToken = UUID.randomUUID().toString()
+        List<EntityValue> claimedList = queue.claim(claimToken)
+        List<EntityValue> otherClaimedList = queue.claim(UUID.randomUUID().toString())
+        EntityValue claimedCall = findQueued().get(0)
+        runClaimedInThread(queue, claimedList, claimToken)
+
+        then:
+        claimedList.size() == 1
+        otherClaimedList.size() == 0
+        claimedCall.claimToken == claimToken
+        claimedCall.attemptCount == 1L
+        findQueued().size() == 0
+        ec.entity.find("moqui.test.TestEntity").condition("testId", "ASYNCQ1").useCache(false).disableAuthz().one() != null
+        queue.getStats().Run == 1L
+        queue.getStats().Pending == 0L
+
+        cleanup:
+        cleanupQueueTest(["ASYNCQ1"])
+    }
+
+    def "persistent async call with service error kept as failed with stack trace"() {
+        when:
+        AsyncServiceQueue queue = makeAsyncQueue("0")
+        // the second create fails on the duplicate key, the error is in the MessageFacade and not thrown by the call
+        queueCreateTest(queue, "ASYNCQ1")
+        queueCreateTest(queue, "ASYNCQ1")
+        String claimToken = UUID.randomUUID().toString()
+        List<EntityValue> claimedList = queue.claim(claimToken)
+        runClaimedInThread(queue, claimedList, claimToken)
+        List<EntityValue> queuedList = findQueued()
+
+        then:
+        claimedList.size() == 2
+        queuedList.size() == 1
+        queuedList.get(0).failedDate != null
+        ((String) queuedList.get(0).lastErrorText).contains("\tat ")
+        queue.getStats().Run == 1L
+        queue.getStats().FailedSinceStart == 1L
+        queue.claim(UUID.randomUUID().toString()).size() == 0
+
+        cleanup:
+        cleanupQueueTest(["ASYNCQ1"])
+    }
+
+    def "persistent async call claimed when stopped run after restart"() {
+        when:
+        AsyncServiceQueue queue = makeAsyncQueue("0")
+        queueCreateTest(queue, "ASYNCQ1")
+        // claimed by this host but never run, as if the server stopped while running it
+        List<EntityValue> claimedList = queue.claim(UUID.randomUUID().toString())
+        AsyncServiceQueue restartQueue = makeAsyncQueue("1")
+        // like runClaimed() init() destroys the ExecutionContext it uses
+        Thread initThread = Thread.start { restartQueue.init() }
+        initThread.join()
+        EntityValue testValue = null
+        for (int i = 0; i < 100 && testValue == null; i++) {
+            Thread.sleep(100)
+            testValue = ec.entity.find("moqui.test.TestEntity").condition("testId", "ASYNCQ1").useCache(false).disableAuthz().one()
+        }
+        restartQueue.destroy()
+
+        then:
+        claimedList.size() == 1
+        testValue != null
+        findQueued().size() == 0
+
+        cleanup:
+        cleanupQueueTest(["ASYNCQ1"])
+    }
 }
@@ -13,7 +13,19 @@
  */
 
 import org.moqui.Moqui
+import groovy.json.JsonSlurper
+import org.apache.commons.csv.CSVFormat
+import org.apache.commons.csv.CSVParser
+import org.apache.commons.csv.CSVRecord
+import org.moqui.context.ArtifactAuthorizationException
+import org.moqui.context.ArtifactExecutionInfo
 import org.moqui.context.ExecutionContext
+import org.moqui.entity.EntityFind
+import org.moqui.impl.context.ArtifactExecutionInfoImpl
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.impl.context.ExecutionContextImpl
+import org.moqui.impl.context.ExecutionContextFactoryImpl.WebappInfo
+import org.moqui.impl.service.RestApi
 import org.moqui.screen.ScreenTest
 import org.moqui.screen.ScreenTest.ScreenTestRender
 import org.slf4j.Logger
@@ -22,6 +34,8 @@ import spock.lang.Shared
 import spock.lang.Specification
 import spock.lang.Unroll
 
+import javax.servlet.http.HttpServletRequest
+
 class ToolsRestApiTests extends Specification {
     protected final static Logger logger = LoggerFactory.getLogger(ToolsRestApiTests.class)
 
@@ -74,4 +88,127 @@ class ToolsRestApiTests extends Specification {
         "s1/moqui/email/templates" | "PASSWORD_RESET" | "Default Password Reset"
         // TODO add more... current are enough to make sure Service REST API working generally, but more would be nice
     }
+
+    EntityFind makeGeoTypeFind(List<String> orderBy, Integer offset, Integer limit) {
+        EntityFind ef = ec.entity.find("moqui.basic.Enumeration").condition("enumTypeId", "GeoType").orderBy(orderBy)
+        if (offset != null) ef.offset(offset)
+        if (limit != null) ef.limit(limit)
+        return ef
+    }
+
+    @Unroll
+    def "entity list stream JSON in chunks matches list (#orderBy, offset #offset, limit #limit)"() {
+        when:
+        // the stream adds the primary key to the order by
+        List<String> expectedIds = makeGeoTypeFind(orderBy.contains("enumId") ? orderBy : orderBy + ["enumId"], offset, limit).list()*.enumId
+        RestApi.EntityListStream els = RestApi.EntityListStream.open(makeGeoTypeFind(orderBy, offset, limit), false, 3, ec)
+        ByteArrayOutputStream os = new ByteArrayOutputStream()
+        els.writeJson(os)
+        List<Map> streamList = (List<Map>) new JsonSlurper().parseText(os.toString("UTF-8"))
+
+        then:
+        expectedIds.size() > 3
+        streamList*.enumId == expectedIds
+        streamList.every { it.enumTypeId == "GeoType" }
+
+        where:
+        orderBy | offset | limit
+        // by primary key chunks start by keyset, otherwise by offset
+        ["enumId"] | null | null
+        ["-enumId"] | null | null
+        ["-description"] | null | null
+        ["enumId"] | 2 | 7
+        ["description"] | 2 | 7
+    }
+
+    def "entity list stream CSV has header and all rows"() {
+        when:
+        List<String> expectedIds = makeGeoTypeFind(["enumId"], null, null).list()*.enumId
+        EntityFind ef = makeGeoTypeFind(["enumId"], null, null).selectField("enumId").selectField("description")
+        RestApi.EntityListStream els = RestApi.EntityListStream.open(ef, true, 4, ec)
+        StringWriter writer = new StringWriter()
+        els.writeCsv(writer)
+        List<CSVRecord> records = CSVParser.parse(writer.toString(), CSVFormat.DEFAULT).getRecords()
+
+        then:
+        records.get(0).toList() == ["enumId", "description"]
+        records.subList(1, records.size())*.get(0) == expectedIds
+    }
+
+    def "entity list stream chunks after the REST path is popped are read with its authz"() {
+        when:
+        ExecutionContextImpl eci = (ExecutionContextImpl) ec
+        List<String> expectedIds = makeGeoTypeFind(["enumId"], null, null).list()*.enumId
+        // a user authorized only for a REST path, entity finds under it inherit the authz
+        ec.entity.makeValue("moqui.security.UserAccount").setAll([userId:"RSTTST_USER", username:"rsttst.user",
+                userFullName:"REST Stream Test"]).create()
+        ec.entity.makeValue("moqui.security.UserGroup").setAll([userGroupId:"RSTTST_GROUP", description:"REST Stream Test"]).create()
+        ec.entity.makeValue("moqui.security.UserGroupMember").setAll([userGroupId:"RSTTST_GROUP", userId:"RSTTST_USER",
+                fromDate:ec.user.nowTimestamp]).create()
+        ec.entity.makeValue("moqui.security.ArtifactGroup").setAll([artifactGroupId:"RSTTST_REST", description:"REST Stream Test"]).create()
+        ec.entity.makeValue("moqui.security.ArtifactGroupMember").setAll([artifactGroupId:"RSTTST_REST", artifactName:"/rsttst/enums",
+                artifactTypeEnumId:"AT_REST_PATH", inheritAuthz:"Y"]).create()
+        ec.entity.makeValue("moqui.security.ArtifactAuthz").setAll([artifactAuthzId:"RSTTST_REST", userGroupId:"RSTTST_GROUP",
+                artifactGroupId:"RSTTST_REST", authzTypeEnumId:"AUTHZT_ALLOW", authzActionEnumId:"AUTHZA_VIEW"]).create()
+        eci.userFacade.internalLoginUser("rsttst.user", false)
+        ec.artifactExecution.enableAuthz()
+
+        boolean findDenied = false
+        try { makeGeoTypeFind(["enumId"], null, null).list() } catch (ArtifactAuthorizationException e) { findDenied = true }
+        // like RestApi.run() the first chunk is read under the REST path, the rest after it is popped
+        ArtifactExecutionInfoImpl aei = new ArtifactExecutionInfoImpl("/rsttst/enums", ArtifactExecutionInfo.AT_REST_PATH,
+                ArtifactExecutionInfo.AUTHZA_VIEW, null)
+        eci.artifactExecutionFacade.pushInternal(aei, true, false)
+        RestApi.EntityListStream els
+        try {
+            els = RestApi.EntityListStream.open(makeGeoTypeFind(["enumId"], null, null), false, 3, ec)
+        } finally {
+            eci.artifactExecutionFacade.pop(aei)
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream()
+        els.writeJson(os)
+        List<Map> streamList = (List<Map>) new JsonSlurper().parseText(os.toString("UTF-8"))
+
+        then:
+        findDenied
+        expectedIds.size() > 3
+        streamList*.enumId == expectedIds
+
+        cleanup:
+        ec.artifactExecution.disableAuthz()
+        // back to the user logged in for the spec
+        ec.user.logoutUser()
+        ec.entity.find("moqui.security.ArtifactAuthz").condition("artifactAuthzId", "RSTTST_REST").deleteAll()
+        ec.entity.find("moqui.security.ArtifactGroupMember").condition("artifactGroupId", "RSTTST_REST").deleteAll()
+        ec.entity.find("moqui.security.ArtifactGroup").condition("artifactGroupId", "RSTTST_REST").deleteAll()
+        ec.entity.find("moqui.security.UserGroupMember").condition("userGroupId", "RSTTST_GROUP").deleteAll()
+        ec.entity.find("moqui.security.UserGroup").condition("userGroupId", "RSTTST_GROUP").deleteAll()
+        ec.entity.find("moqui.security.UserAccount").condition("userId", "RSTTST_USER").deleteAll()
+    }
+
+    def "JSON request body streamed only when configured (size #streamSize, length #contentLength)"() {
+        when:
+        WebappInfo webappInfo = ((ExecutionContextFactoryImpl) ec.factory).getWebappInfo("webroot")
+        long defaultStreamSize = webappInfo.requestJsonStreamSize
+        HttpServletRequest request = Mock(HttpServletRequest)
+        request.getServletPath() >> "/rest"
+        request.getPathInfo() >> "/s1/moqui/basic/geos"
+        request.getContentLengthLong() >> contentLength
+        if (streamSize != null) webappInfo.requestJsonStreamSize = streamSize
+        boolean isStream = webappInfo.isRequestJsonStream(request)
+        webappInfo.requestJsonStreamSize = defaultStreamSize
+
+        then:
+        defaultStreamSize == 0L
+        isStream == expected
+
+        where:
+        streamSize | contentLength | expected
+        null | 100000000L | false
+        null | -1L | false
+        1000L | 999L | false
+        1000L | 1000L | true
+        1000L | -1L | false
+        -1L | 100000000L | false
+    }
 }
@@ -17,6 +17,7 @@ import java.sql.Statement
 
 import org.moqui.Moqui
 import org.moqui.context.ExecutionContext
+import org.moqui.impl.context.ContextJavaUtil.ConnectionWrapper
 
 import spock.lang.Shared
 import spock.lang.Specification
@@ -95,6 +96,28 @@ class TransactionFacadeTests extends Specification {
         rawCon1 == rawCon3
     }
 
+    def "test prepared statement reuse in tx"() {
+        when:
+        boolean beganTransaction = false
+        long prepareCount = 0, reuseCount = 0
+        try {
+            beganTransaction = ec.transaction.begin(null)
+            for (int i = 0; i < 20; i++)
+                ec.entity.find("moqui.test.TestEntity").condition("testId", "STMTCACHE" + i).useCache(false).one()
+            ConnectionWrapper cw = (ConnectionWrapper) ec.entity.getConnection(ec.entity.getEntityGroupName("moqui.test.TestEntity"))
+            prepareCount = cw.getPrepareCount()
+            reuseCount = cw.getReuseCount()
+        }  finally {
+            ec.transaction.commit(beganTransaction)
+        }
+
+        then:
+        noExceptionThrown()
+        // other queries may run on the connection (like authz setup), but this one is only prepared once
+        reuseCount >= 19
+        prepareCount < reuseCount
+    }
+
     def "test suspend resume"() {
         when:
         boolean beganTransaction = false
@@ -14,7 +14,12 @@
 
 import spock.lang.*
 
+import org.moqui.context.ArtifactExecutionInfo
 import org.moqui.context.ExecutionContext
+import org.moqui.impl.context.ArtifactAuthzIndex
+import org.moqui.impl.context.ArtifactExecutionInfoImpl.ArtifactAuthzCheck
+import org.moqui.impl.context.ExecutionContextFactoryImpl
+import org.moqui.impl.context.UserFacadeImpl
 import org.moqui.Moqui
 
 class UserFacadeTests extends Specification {
@@ -100,6 +105,24 @@ class UserFacadeTests extends Specification {
         ec.user.isInGroup("ADMIN")
     }
 
+    def "check ADMIN artifact authz index matches and memoizes"() {
+        when:
+        ArtifactAuthzIndex.Registry registry = ((ExecutionContextFactoryImpl) ec.factory).artifactAuthzIndexRegistry
+        ArtifactAuthzIndex authzIndex = ((UserFacadeImpl) ec.user).getArtifactAuthzIndex()
+        String serviceName = "org.moqui.impl.EntitySyncServices.put#EntitySyncData"
+        ArtifactAuthzCheck[] firstMatches = authzIndex.getMatches(ArtifactExecutionInfo.AT_SERVICE, ArtifactExecutionInfo.AUTHZA_VIEW, serviceName)
+        long hitsBefore = registry.getHitCount()
+        ArtifactAuthzCheck[] secondMatches = authzIndex.getMatches(ArtifactExecutionInfo.AT_SERVICE, ArtifactExecutionInfo.AUTHZA_VIEW, serviceName)
+
+        then:
+        authzIndex.userGroupIdList.contains("ADMIN")
+        firstMatches.any { it.artifactAuthzId == "EntitySyncServicesADMIN" }
+        secondMatches.is(firstMatches)
+        registry.getHitCount() == hitsBefore + 1
+        authzIndex.getMatches(ArtifactExecutionInfo.AT_SERVICE, ArtifactExecutionInfo.AUTHZA_VIEW, "bogus.Services.do#Nothing")
+                .every { it.artifactName != serviceName }
+    }
+
     /* TODO replacement for this
     def "check default admin group permission ExamplePerm"() {
         expect:
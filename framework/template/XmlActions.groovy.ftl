@@ -150,6 +150,12 @@ ${.node}
         ${listName}_xafind.searchFormMap(${sfiNode["@input-fields-map"]!"ec.context"}, efSfiDefParms, "${sfiNode["@skip-fields"]!("")}", "${sfiNode["@default-order-by"]!("")}", ${sfiNode["@paginate"]!("true")})
     }
     </#if>
+    <#if doPaginate && !useCache>
+    <#-- keyset pagination with the ${listName}PageCursor parameter from the previous page; the cursor clears the offset so keep the pageIndex -->
+    ${listName}_xafind_pi = ${listName}_xafind.getPageIndex()
+    ${listName}_xafind_pc = ec.context.get("${listName}PageCursor") as String
+    if (${listName}_xafind_pc) ${listName}_xafind.keysetCursor(${listName}_xafind_pc)
+    </#if>
     <#if .node["limit-range"]?has_content && !useCache>
         org.moqui.entity.EntityListIterator ${listName}_xafind_eli = ${listName}_xafind.iterator()
         ${listName} = ${listName}_xafind_eli.getPartialList(${.node["limit-range"][0]["@start"]}, ${.node["limit-range"][0]["@size"]}, true)
@@ -181,10 +187,12 @@ ${.node}
                 ${listName}PageIndex = ${listName}.getPageIndex()
                 ${listName}PageSize = ${listName}Count > 20 ? ${listName}Count : 20
             } else {
-                ${listName}PageIndex = ${listName}_xafind.getPageIndex()
+                ${listName}PageIndex = ${listName}_xafind_pc ? ${listName}_xafind_pi : ${listName}_xafind.getPageIndex()
                 ${listName}PageSize = ${listName}_xafind.getPageSize()
                 if (${listName}.size() < ${listName}PageSize) { ${listName}Count = ${listName}.size() + ${listName}PageIndex * ${listName}PageSize }
                 else { ${listName}Count = ${listName}_xafind.count() }
+                <#-- always set so the cursor parameter for this page isn't used as the next page cursor -->
+                ${listName}PageCursor = ${listName} instanceof List && ${listName}.size() == ${listName}PageSize ? ${listName}_xafind.makeKeysetCursor(${listName}.get(${listName}.size() - 1)) : null
             }
         </#if>
         ${listName}PageMaxIndex = ((BigDecimal) (${listName}Count - 1)).divide(${listName}PageSize ?: (${listName}Count - 1), 0, java.math.RoundingMode.DOWN) as int